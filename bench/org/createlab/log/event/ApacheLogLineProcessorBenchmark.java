@@ -0,0 +1,101 @@
+package org.createlab.log.event;
+
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link BaseApacheLogLineProcessor#processLine}, i.e. finding and parsing the event (if any) in an access
+ * log line, for both the {@link String} and byte versions.  One operation is one line of the benchmark mix, so about a
+ * quarter of them contain no event at all.  With <code>metrics</code> set, the lines are also counted and timed by a
+ * {@link PipelineMetrics}, as they are in a real run, which shows what that costs.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ApacheLogLineProcessorBenchmark
+   {
+   private static final int NUM_LINES = 4096;
+
+   @Param({"false", "true"})
+   public boolean metrics;
+
+   private String[] lines;
+   private byte[][] lineBytes;
+   private int lineIndex = 0;
+
+   private ConsumingLineProcessor lineProcessor;
+
+   @Setup
+   public void setUp(final Blackhole blackhole) throws Exception
+      {
+      final List<String> accessLogLines = BenchmarkData.createAccessLogLines(NUM_LINES);
+      lines = accessLogLines.toArray(new String[NUM_LINES]);
+      lineBytes = new byte[NUM_LINES][];
+      for (int i = 0; i < NUM_LINES; i++)
+         {
+         lineBytes[i] = lines[i].getBytes("UTF-8");
+         }
+      lineProcessor = new ConsumingLineProcessor(blackhole);
+      if (metrics)
+         {
+         lineProcessor.setMetrics(new PipelineMetrics());
+         }
+      lineProcessor.preProcess();
+      }
+
+   @Benchmark
+   public void processStringLine()
+      {
+      lineProcessor.processLine(lines[nextLineIndex()]);
+      }
+
+   @Benchmark
+   public void processByteLine()
+      {
+      final byte[] bytes = lineBytes[nextLineIndex()];
+      lineProcessor.processLine(bytes, 0, bytes.length);
+      }
+
+   private int nextLineIndex()
+      {
+      final int i = lineIndex;
+      lineIndex = (i + 1) & (NUM_LINES - 1);
+      return i;
+      }
+
+   private static final class ConsumingLineProcessor extends BaseApacheLogLineProcessor
+      {
+      @NotNull
+      private final Blackhole blackhole;
+
+      private ConsumingLineProcessor(@NotNull final Blackhole blackhole)
+         {
+         this.blackhole = blackhole;
+         }
+
+      @Override
+      protected void processEvent(@NotNull final Event event)
+         {
+         blackhole.consume(event);
+         }
+
+      @Override
+      protected TimeZone getTimeZone()
+         {
+         return BenchmarkData.TIME_ZONE;
+         }
+      }
+   }
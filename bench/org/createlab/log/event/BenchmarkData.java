@@ -0,0 +1,144 @@
+package org.createlab.log.event;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import org.jetbrains.annotations.NotNull;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Creates the inputs for the benchmarks: the start of the CMNH access log written by the {@link AccessLogGenerator}
+ * (with its default settings, so a quarter of the lines aren't events), and the event log lines those would produce.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class BenchmarkData
+   {
+   private static final long SEED = 20121120;
+
+   static final TimeZone TIME_ZONE = TimeZone.getTimeZone("GMT-5");
+
+   private static final String MEDIA_URL_PREFIX = "http%3A%2F%2Flocalhost%2Fmedia%2F46684%2F";
+
+   private static final DateTimeFormatter EVENT_LOG_TIME_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+   /** Returns the first <code>numLines</code> lines of the access log.  The same lines are returned every time. */
+   @NotNull
+   static List<String> createAccessLogLines(final int numLines)
+      {
+      final AccessLogGenerator generator = new AccessLogGenerator(AccessLogGenerator.Museum.CMNH);
+      generator.setSeed(SEED);
+      generator.setNumDays(Integer.MAX_VALUE);
+      final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      try
+         {
+         generator.write(outputStream, numLines);
+         }
+      catch (IOException e)
+         {
+         throw new IllegalStateException("IOException while writing to memory", e);
+         }
+
+      final List<String> lines = new ArrayList<String>(numLines);
+      for (final String line : new String(outputStream.toByteArray(), Charset.forName("US-ASCII")).split("\n"))
+         {
+         lines.add(line);
+         }
+      return lines;
+      }
+
+   /** Returns the events contained in the given access log lines. */
+   @NotNull
+   static List<Event> createEvents(@NotNull final List<String> accessLogLines)
+      {
+      final List<Event> events = new ArrayList<Event>();
+      final BaseApacheLogLineProcessor parser = new BaseApacheLogLineProcessor()
+      {
+      @Override
+      protected void processEvent(@NotNull final Event event)
+         {
+         events.add(event);
+         }
+
+      @Override
+      protected TimeZone getTimeZone()
+         {
+         return TIME_ZONE;
+         }
+      };
+      parser.preProcess();
+      for (final String line : accessLogLines)
+         {
+         parser.processLine(line);
+         }
+      parser.postProcess();
+      return events;
+      }
+
+   /** Returns the lines of the (sorted) event log which the CmnhEventLogProducer would write for the given events. */
+   @NotNull
+   static List<String> createEventLogLines(@NotNull final List<Event> events)
+      {
+      final List<String> lines = new ArrayList<String>(events.size());
+      for (final Event event : events)
+         {
+         lines.add(EVENT_LOG_TIME_FORMATTER.print(event.getDate()) + "," +
+                   EVENT_LOG_TIME_FORMATTER.print(event.getTime()) + "," +
+                   event.getDateInMillis() + "," +
+                   event.getTimeInMillis() + "," +
+                   event.getType() + "," +
+                   CmnhConstants.SUPPORTED_EVENT_TYPES.getParameterValuesAsString(event));
+         }
+      return lines;
+      }
+
+   /**
+    * Returns the given event log lines with the media URLs reduced to just the file name, which is the manual step
+    * described in the README that has to be done before the event log is given to the CmnhStatsGenerator.
+    */
+   @NotNull
+   static List<String> stripMediaUrlPrefixes(@NotNull final List<String> eventLogLines)
+      {
+      final List<String> lines = new ArrayList<String>(eventLogLines.size());
+      for (final String line : eventLogLines)
+         {
+         lines.add(line.replace(MEDIA_URL_PREFIX + "audio%2F", "").replace(MEDIA_URL_PREFIX + "video%2F", ""));
+         }
+      return lines;
+      }
+
+   /** Writes the given lines to a new temporary file, which is deleted when the JVM exits. */
+   @NotNull
+   static File writeTemporaryFile(@NotNull final List<String> lines) throws IOException
+      {
+      final File file = File.createTempFile("benchmark", ".log");
+      file.deleteOnExit();
+      final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try
+         {
+         for (final String line : lines)
+            {
+            writer.print(line);
+            writer.print('\n');
+            }
+         }
+      finally
+         {
+         writer.close();
+         }
+      return file;
+      }
+
+   private BenchmarkData()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,91 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link CsvOutputEventProcessor#processEvent}, i.e. formatting an event as a line of the event log and
+ * writing it to the file, either through a PrintStream or (if <code>asynchronous</code>) by handing batches to a writer
+ * thread.  One operation is one event.  The file is recreated for every iteration, so that it doesn't grow without
+ * bound.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CsvOutputEventProcessorBenchmark
+   {
+   private static final int NUM_ACCESS_LOG_LINES = 8192;
+
+   @Param({"false", "true"})
+   public boolean asynchronous;
+
+   private Event[] events;
+   private int eventIndex = 0;
+
+   private File file;
+   private EventLogWriter eventProcessor;
+
+   @Setup
+   public void setUp()
+      {
+      final List<Event> eventList = BenchmarkData.createEvents(BenchmarkData.createAccessLogLines(NUM_ACCESS_LOG_LINES));
+      events = eventList.toArray(new Event[eventList.size()]);
+      }
+
+   @Setup(Level.Iteration)
+   public void openFile() throws IOException
+      {
+      file = File.createTempFile("benchmark", ".csv");
+      file.delete();    // the processor insists on creating the file itself
+      eventProcessor = new EventLogWriter(file);
+      eventProcessor.setAsynchronous(asynchronous);
+      eventProcessor.beforeProcessingAnyEvents();
+      }
+
+   @TearDown(Level.Iteration)
+   public void closeFile()
+      {
+      eventProcessor.afterProcessingAnyEvents();
+      file.delete();
+      }
+
+   @Benchmark
+   public void processEvent()
+      {
+      eventProcessor.processEvent(events[eventIndex]);
+      if (++eventIndex == events.length)
+         {
+         eventIndex = 0;
+         }
+      }
+
+   /** Writes the same lines as the CmnhEventLogProducer's event log. */
+   private static final class EventLogWriter extends CsvOutputEventProcessor
+      {
+      private EventLogWriter(@NotNull final File file)
+         {
+         super(file);
+         }
+
+      @Override
+      protected void appendEventParameters(@NotNull final Event event, @NotNull final StringBuilder stringBuilder)
+         {
+         stringBuilder.append(CmnhConstants.SUPPORTED_EVENT_TYPES.getParameterValuesAsString(event));
+         }
+      }
+   }
@@ -0,0 +1,101 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures whole runs, just as the {@link LogFileProcessor} does them by default: the {@link CmnhEventLogProducer}
+ * turning an access log into an event log, and the {@link CmnhStatsGenerator} turning the (sorted) event log into
+ * stats.  One operation is one whole run.  Both write their output files to the current directory, which is why the
+ * <code>benchmark</code> target runs them in a scratch directory, and their summaries to System.out, which is
+ * discarded while they run.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EndToEndBenchmark
+   {
+   private static final File[] OUTPUT_FILES = new File[]{new File("event-log.csv"), new File("daily-usage-stats.csv"), new File("session-stats.csv")};
+
+   @Param("100000")
+   public int numLines;
+
+   private File accessLog;
+   private File eventLog;
+
+   private PrintStream originalSystemOut;
+
+   @Setup
+   public void setUp() throws IOException
+      {
+      final List<String> accessLogLines = BenchmarkData.createAccessLogLines(numLines);
+      accessLog = BenchmarkData.writeTemporaryFile(accessLogLines);
+      eventLog = BenchmarkData.writeTemporaryFile(BenchmarkData.stripMediaUrlPrefixes(BenchmarkData.createEventLogLines(BenchmarkData.createEvents(accessLogLines))));
+
+      originalSystemOut = System.out;
+      System.setOut(new PrintStream(new OutputStream()
+      {
+      @Override
+      public void write(final int b)
+         {
+         // discard
+         }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len)
+         {
+         // discard
+         }
+      }));
+      }
+
+   @TearDown
+   public void tearDown()
+      {
+      System.setOut(originalSystemOut);
+      accessLog.delete();
+      eventLog.delete();
+      deleteOutputFiles();
+      }
+
+   @Setup(Level.Invocation)
+   public void deleteOutputFiles()
+      {
+      for (final File file : OUTPUT_FILES)
+         {
+         file.delete();
+         }
+      }
+
+   @Benchmark
+   public int eventLogProducer()
+      {
+      final CmnhEventLogProducer lineProcessor = new CmnhEventLogProducer();
+      new LineReader(accessLog).read(lineProcessor);
+      return lineProcessor.getNumberOfLinesProcessed();
+      }
+
+   @Benchmark
+   public int statsGenerator()
+      {
+      final CmnhStatsGenerator lineProcessor = new CmnhStatsGenerator();
+      new LineReader(eventLog).read(lineProcessor);
+      return lineProcessor.getNumberOfLinesProcessed();
+      }
+   }
@@ -0,0 +1,80 @@
+package org.createlab.log.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the construction of an {@link Event}: the original constructor, which works out the date itself, and the
+ * one used by the parser, which gets it from a {@link DayBoundaryCalculator}.  One operation is one event.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventBenchmark
+   {
+   private static final int NUM_ACCESS_LOG_LINES = 8192;
+
+   private String[] types;
+   private long[] timesInMillis;
+   private List<Map<String, String>> params;
+   private int eventIndex = 0;
+
+   private DateTimeZone timeZone;
+   private DayBoundaryCalculator dayBoundaryCalculator;
+
+   @Setup
+   public void setUp()
+      {
+      final List<Event> events = BenchmarkData.createEvents(BenchmarkData.createAccessLogLines(NUM_ACCESS_LOG_LINES));
+      types = new String[events.size()];
+      timesInMillis = new long[events.size()];
+      params = new ArrayList<Map<String, String>>(events.size());
+      for (int i = 0; i < events.size(); i++)
+         {
+         final Event event = events.get(i);
+         types[i] = event.getType();
+         timesInMillis[i] = event.getTimeInMillis();
+         params.add(new HashMap<String, String>(event.getParameters()));
+         }
+      timeZone = DateTimeZone.forTimeZone(BenchmarkData.TIME_ZONE);
+      dayBoundaryCalculator = new DayBoundaryCalculator(timeZone);
+      }
+
+   @Benchmark
+   public Event constructWithTimeZone()
+      {
+      final int i = nextEventIndex();
+      return new Event(types[i], timesInMillis[i], params.get(i), BenchmarkData.TIME_ZONE);
+      }
+
+   @Benchmark
+   public Event constructWithDayBoundaryCalculator()
+      {
+      final int i = nextEventIndex();
+      final long timeInMillis = timesInMillis[i];
+      return new Event(types[i], timeInMillis, dayBoundaryCalculator.getDateInMillis(timeInMillis), params.get(i), timeZone);
+      }
+
+   private int nextEventIndex()
+      {
+      final int i = eventIndex;
+      if (++eventIndex == types.length)
+         {
+         eventIndex = 0;
+         }
+      return i;
+      }
+   }
@@ -0,0 +1,74 @@
+package org.createlab.log.event;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link BaseEventLogLineProcessor#processLine}, i.e. splitting an event log line into its fields.  One
+ * operation is one line.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventLogLineProcessorBenchmark
+   {
+   private static final int NUM_ACCESS_LOG_LINES = 8192;
+
+   private String[] lines;
+   private int lineIndex = 0;
+
+   private ConsumingLineProcessor lineProcessor;
+
+   @Setup
+   public void setUp(final Blackhole blackhole)
+      {
+      final List<String> eventLogLines = BenchmarkData.createEventLogLines(BenchmarkData.createEvents(BenchmarkData.createAccessLogLines(NUM_ACCESS_LOG_LINES)));
+      lines = eventLogLines.toArray(new String[eventLogLines.size()]);
+      lineProcessor = new ConsumingLineProcessor(blackhole);
+      lineProcessor.preProcess();
+      }
+
+   @Benchmark
+   public void processLine()
+      {
+      lineProcessor.processLine(lines[lineIndex]);
+      if (++lineIndex == lines.length)
+         {
+         lineIndex = 0;
+         }
+      }
+
+   private static final class ConsumingLineProcessor extends BaseEventLogLineProcessor
+      {
+      @NotNull
+      private final Blackhole blackhole;
+
+      private ConsumingLineProcessor(@NotNull final Blackhole blackhole)
+         {
+         this.blackhole = blackhole;
+         }
+
+      @Override
+      protected void processEvent(final long dateInMillis,
+                                  final long eventTimeInMillis,
+                                  @NotNull final String eventTypeName,
+                                  @NotNull final String eventParams)
+         {
+         blackhole.consume(dateInMillis);
+         blackhole.consume(eventTimeInMillis);
+         blackhole.consume(eventTypeName);
+         blackhole.consume(eventParams);
+         }
+      }
+   }
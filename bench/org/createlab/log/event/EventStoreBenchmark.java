@@ -0,0 +1,131 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares the {@link EventStore} to what it replaces: counting events by type in the store versus in a list of
+ * {@link Event}s, and replaying the store into the {@link CmnhStatsGenerator} versus having it read the (sorted) event
+ * log.  One operation is one pass over all the events.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventStoreBenchmark
+   {
+   private static final File[] OUTPUT_FILES = new File[]{new File("daily-usage-stats.csv"), new File("session-stats.csv")};
+
+   @Param("100000")
+   public int numLines;
+
+   private List<Event> events;
+   private EventStore eventStore;
+   private File eventLog;
+
+   private PrintStream originalSystemOut;
+
+   @Setup
+   public void setUp() throws IOException
+      {
+      events = BenchmarkData.createEvents(BenchmarkData.createAccessLogLines(numLines));
+      final List<String> eventLogLines = BenchmarkData.stripMediaUrlPrefixes(BenchmarkData.createEventLogLines(events));
+      eventLog = BenchmarkData.writeTemporaryFile(eventLogLines);
+
+      eventStore = new EventStore(CmnhConstants.SUPPORTED_EVENT_TYPES, DateTimeZone.forTimeZone(BenchmarkData.TIME_ZONE));
+      final BaseEventLogLineProcessor loader = eventStore.createLoader();
+      loader.preProcess();
+      for (final String line : eventLogLines)
+         {
+         loader.processLine(line);
+         }
+      loader.postProcess();
+      eventStore.trimToSize();
+
+      originalSystemOut = System.out;
+      System.setOut(new PrintStream(new OutputStream()
+      {
+      @Override
+      public void write(final int b)
+         {
+         // discard
+         }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len)
+         {
+         // discard
+         }
+      }));
+      }
+
+   @TearDown
+   public void tearDown()
+      {
+      System.setOut(originalSystemOut);
+      eventLog.delete();
+      deleteOutputFiles();
+      }
+
+   @Setup(Level.Invocation)
+   public void deleteOutputFiles()
+      {
+      for (final File file : OUTPUT_FILES)
+         {
+         file.delete();
+         }
+      }
+
+   @Benchmark
+   public int[] countByTypeIdInEventList()
+      {
+      final int[] counts = new int[CmnhConstants.SUPPORTED_EVENT_TYPES.getNumberOfEventTypes()];
+      for (final Event event : events)
+         {
+         final int typeId = event.getTypeId(CmnhConstants.SUPPORTED_EVENT_TYPES);
+         if (typeId >= 0)
+            {
+            counts[typeId]++;
+            }
+         }
+      return counts;
+      }
+
+   @Benchmark
+   public int[] countByTypeIdInEventStore()
+      {
+      return eventStore.countByTypeId();
+      }
+
+   @Benchmark
+   public int statsGeneratorReadingEventLog()
+      {
+      final CmnhStatsGenerator statsGenerator = new CmnhStatsGenerator();
+      new LineReader(eventLog).read(statsGenerator);
+      return statsGenerator.getNumberOfLinesProcessed();
+      }
+
+   @Benchmark
+   public int statsGeneratorReplayingEventStore()
+      {
+      final CmnhStatsGenerator statsGenerator = new CmnhStatsGenerator();
+      eventStore.replay(statsGenerator);
+      return statsGenerator.getNumberOfLinesProcessed();
+      }
+   }
@@ -0,0 +1,108 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how quickly each reader can split an access log into lines, with a processor which does nothing but count
+ * them.  One operation is one whole file.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LineReaderBenchmark
+   {
+   @Param("100000")
+   public int numLines;
+
+   private File accessLog;
+
+   @Setup
+   public void setUp() throws IOException
+      {
+      accessLog = BenchmarkData.writeTemporaryFile(BenchmarkData.createAccessLogLines(numLines));
+      }
+
+   @TearDown
+   public void tearDown()
+      {
+      accessLog.delete();
+      }
+
+   @Benchmark
+   public long lineReader()
+      {
+      final CountingLineProcessor lineProcessor = new CountingLineProcessor();
+      new LineReader(accessLog).read(lineProcessor);
+      return lineProcessor.numBytes;
+      }
+
+   @Benchmark
+   public long mappedLineReader()
+      {
+      final CountingLineProcessor lineProcessor = new CountingLineProcessor();
+      new MappedLineReader(accessLog).read(lineProcessor);
+      return lineProcessor.numBytes;
+      }
+
+   @Benchmark
+   public long multiFileReader()
+      {
+      final CountingLineProcessor lineProcessor = new CountingLineProcessor();
+      new MultiFileReader(Collections.singletonList(accessLog)).read(lineProcessor);
+      return lineProcessor.numBytes;
+      }
+
+   private static final class CountingLineProcessor implements ByteLineProcessor
+      {
+      private int numLines = 0;
+      private long numBytes = 0;
+
+      @Override
+      public void preProcess()
+         {
+         numLines = 0;
+         numBytes = 0;
+         }
+
+      @Override
+      public void processLine(@NotNull final String line)
+         {
+         numLines++;
+         numBytes += line.length();
+         }
+
+      @Override
+      public void processLine(@NotNull final byte[] bytes, final int offset, final int length)
+         {
+         numLines++;
+         numBytes += length;
+         }
+
+      @Override
+      public void postProcess()
+         {
+         // nothing to do
+         }
+
+      @Override
+      public int getNumberOfLinesProcessed()
+         {
+         return numLines;
+         }
+      }
+   }
@@ -0,0 +1,4 @@
+package org.createlab.log.event.jmh_generated;
+public class ApacheLogLineProcessorBenchmark_jmhType extends ApacheLogLineProcessorBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.createlab.log.event.jmh_generated;
+public class CsvOutputEventProcessorBenchmark_jmhType extends CsvOutputEventProcessorBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.createlab.log.event.jmh_generated;
+public class EndToEndBenchmark_jmhType extends EndToEndBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.createlab.log.event.jmh_generated;
+public class EventLogLineProcessorBenchmark_jmhType extends EventLogLineProcessorBenchmark_jmhType_B3 {
+}
+
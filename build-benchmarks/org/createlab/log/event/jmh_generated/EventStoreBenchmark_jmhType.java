@@ -0,0 +1,4 @@
+package org.createlab.log.event.jmh_generated;
+public class EventStoreBenchmark_jmhType extends EventStoreBenchmark_jmhType_B3 {
+}
+
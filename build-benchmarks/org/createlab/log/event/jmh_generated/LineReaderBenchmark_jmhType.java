@@ -0,0 +1,4 @@
+package org.createlab.log.event.jmh_generated;
+public class LineReaderBenchmark_jmhType extends LineReaderBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,862 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * <p>
+ * Writes a synthetic Apache access log (in the combined format) for a museum's kiosks, for testing and benchmarking
+ * with realistic volumes of data without needing the museum's real logs.  Each kiosk starts up every morning and then
+ * alternates between sitting idle and being used, sending the same <code>event.json?type=...&amp;time=...&amp;_=...</code>
+ * requests, with the same parameters, as the real kiosk software does.  Requests for everything else (images, scripts,
+ * etc) are mixed in as noise.
+ * </p>
+ * <p>
+ * The output is completely determined by the seed and the other settings, so the same settings always produce the same
+ * file.  Its size is roughly proportional to kiosks &times; days &times; events per hour: the defaults produce a few
+ * MB, and tens of GB just needs bigger numbers.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class AccessLogGenerator
+   {
+   private static final Logger LOG = Logger.getLogger(AccessLogGenerator.class);
+
+   private static final String OPTION_MUSEUM = "--museum";
+   private static final String OPTION_SEED = "--seed";
+   private static final String OPTION_KIOSKS = "--kiosks";
+   private static final String OPTION_DAYS = "--days";
+   private static final String OPTION_EVENTS_PER_HOUR = "--events-per-hour";
+   private static final String OPTION_NOISE = "--noise";
+   private static final String OPTION_START_DATE = "--start-date";
+
+   private static final String STANDARD_OUTPUT_FILENAME = "-";
+   private static final String GZIP_EXTENSION = ".gz";
+   private static final int IO_BUFFER_SIZE = 256 * 1024;
+
+   private static final long MILLIS_PER_SECOND = 1000;
+   private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+   private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+
+   /** The kiosks are switched on at (about) opening time, and no new sessions start after closing time. */
+   private static final int OPENING_HOUR = 10;
+   private static final int CLOSING_HOUR = 17;
+
+   private static final String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.64 Safari/537.11";
+
+   public static enum Museum
+      {
+         CMNH("cmnh", "GMT-5")
+            {
+            @NotNull
+            @Override
+            Kiosk createKiosk(final int kioskIndex, @NotNull final Random random, final long meanGapMillis)
+               {
+               return new CmnhKiosk(kioskIndex, random, meanGapMillis);
+               }
+            },
+         BRITISH_MUSEUM("british-museum", "GMT+0")
+            {
+            @NotNull
+            @Override
+            Kiosk createKiosk(final int kioskIndex, @NotNull final Random random, final long meanGapMillis)
+               {
+               return new BritishMuseumKiosk(kioskIndex, random, meanGapMillis);
+               }
+            };
+
+      @NotNull
+      private final String name;
+
+      @NotNull
+      private final DateTimeZone timeZone;
+
+      Museum(@NotNull final String name, @NotNull final String timeZoneId)
+         {
+         this.name = name;
+         this.timeZone = DateTimeZone.forTimeZone(TimeZone.getTimeZone(timeZoneId));
+         }
+
+      @Nullable
+      public static Museum findByName(@Nullable final String name)
+         {
+         for (final Museum museum : values())
+            {
+            if (museum.name.equals(name))
+               {
+               return museum;
+               }
+            }
+         return null;
+         }
+
+      @NotNull
+      public String getName()
+         {
+         return name;
+         }
+
+      @NotNull
+      abstract Kiosk createKiosk(final int kioskIndex, @NotNull final Random random, final long meanGapMillis);
+      }
+
+   @NotNull
+   private final Museum museum;
+   private long seed = 1;
+   private int numKiosks = 4;
+   private int numDays = 7;
+   private double eventsPerHour = 200;
+   private double noiseRatio = 0.25;
+   @NotNull
+   private LocalDate startDate = new LocalDate(2012, 11, 20);
+
+   public static void main(final String[] args)
+      {
+      if (args == null || args.length < 1)
+         {
+         printUsage();
+         return;
+         }
+
+      if (args.length % 2 == 0)
+         {
+         System.err.println("ERROR: Every option needs a value");
+         printUsage();
+         return;
+         }
+
+      final String outputFilename = args[0];
+      final AccessLogGenerator generator;
+      try
+         {
+         // find the museum first, since the generator needs it
+         Museum museum = Museum.CMNH;
+         for (int i = 1; i < args.length; i += 2)
+            {
+            if (OPTION_MUSEUM.equals(args[i]))
+               {
+               museum = Museum.findByName(args[i + 1]);
+               if (museum == null)
+                  {
+                  System.err.println("ERROR: Unknown museum [" + args[i + 1] + "]");
+                  printUsage();
+                  return;
+                  }
+               }
+            }
+
+         generator = new AccessLogGenerator(museum);
+         for (int i = 1; i < args.length; i += 2)
+            {
+            final String option = args[i];
+            final String value = args[i + 1];
+            if (OPTION_SEED.equals(option))
+               {
+               generator.setSeed(Long.parseLong(value));
+               }
+            else if (OPTION_KIOSKS.equals(option))
+               {
+               generator.setNumKiosks(Integer.parseInt(value));
+               }
+            else if (OPTION_DAYS.equals(option))
+               {
+               generator.setNumDays(Integer.parseInt(value));
+               }
+            else if (OPTION_EVENTS_PER_HOUR.equals(option))
+               {
+               generator.setEventsPerHour(Double.parseDouble(value));
+               }
+            else if (OPTION_NOISE.equals(option))
+               {
+               generator.setNoiseRatio(Double.parseDouble(value));
+               }
+            else if (OPTION_START_DATE.equals(option))
+               {
+               generator.setStartDate(new LocalDate(value));
+               }
+            else if (!OPTION_MUSEUM.equals(option))
+               {
+               System.err.println("ERROR: Unknown option [" + option + "]");
+               printUsage();
+               return;
+               }
+            }
+         }
+      catch (IllegalArgumentException e)
+         {
+         // includes NumberFormatException
+         System.err.println("ERROR: " + e.getMessage());
+         printUsage();
+         return;
+         }
+
+      final File outputFile = new File(outputFilename);
+      if (!STANDARD_OUTPUT_FILENAME.equals(outputFilename) && outputFile.exists())
+         {
+         System.err.println("ERROR: File [" + outputFile + "] already exists!!! Aborting.");
+         return;
+         }
+
+      try
+         {
+         final long startTime = System.currentTimeMillis();
+         final OutputStream outputStream;
+         if (STANDARD_OUTPUT_FILENAME.equals(outputFilename))
+            {
+            outputStream = System.out;
+            }
+         else if (outputFilename.endsWith(GZIP_EXTENSION))
+            {
+            outputStream = new GZIPOutputStream(new FileOutputStream(outputFile), IO_BUFFER_SIZE);
+            }
+         else
+            {
+            outputStream = new FileOutputStream(outputFile);
+            }
+         final long numLines;
+         try
+            {
+            numLines = generator.write(outputStream, Long.MAX_VALUE);
+            }
+         finally
+            {
+            outputStream.close();
+            }
+         System.err.println("Wrote [" + numLines + "] lines in [" + (System.currentTimeMillis() - startTime) + "] millis");
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to write the access log to [" + outputFilename + "]", e);
+         }
+      }
+
+   private static void printUsage()
+      {
+      System.err.println("Usage: java -cp event-parser.jar org.createlab.log.event.AccessLogGenerator OUTPUT_FILE [options]");
+      System.err.println("");
+      System.err.println("Writes a synthetic access log to OUTPUT_FILE (which is gzipped if it ends in .gz, or use - for stdout).");
+      System.err.println("");
+      System.err.println("Options:");
+      System.err.println("   " + OPTION_MUSEUM + " cmnh|british-museum   Whose kiosks and events to simulate (default: cmnh)");
+      System.err.println("   " + OPTION_SEED + " N                       Seed for the random number generator (default: 1)");
+      System.err.println("   " + OPTION_KIOSKS + " N                     Number of kiosks (default: 4)");
+      System.err.println("   " + OPTION_DAYS + " N                       Number of days (default: 7)");
+      System.err.println("   " + OPTION_EVENTS_PER_HOUR + " N            Average events per kiosk per opening hour (default: 200)");
+      System.err.println("   " + OPTION_NOISE + " RATIO                  Fraction of lines which aren't events, from 0 up to (but not including) 1 (default: 0.25)");
+      System.err.println("   " + OPTION_START_DATE + " YYYY-MM-DD        The first day (default: 2012-11-20)");
+      }
+
+   public AccessLogGenerator(@NotNull final Museum museum)
+      {
+      this.museum = museum;
+      }
+
+   public void setSeed(final long seed)
+      {
+      this.seed = seed;
+      }
+
+   public void setNumKiosks(final int numKiosks)
+      {
+      if (numKiosks < 1)
+         {
+         throw new IllegalArgumentException("The number of kiosks must be positive");
+         }
+      this.numKiosks = numKiosks;
+      }
+
+   public void setNumDays(final int numDays)
+      {
+      if (numDays < 1)
+         {
+         throw new IllegalArgumentException("The number of days must be positive");
+         }
+      this.numDays = numDays;
+      }
+
+   public void setEventsPerHour(final double eventsPerHour)
+      {
+      if (!(eventsPerHour > 0))
+         {
+         throw new IllegalArgumentException("The number of events per hour must be positive");
+         }
+      this.eventsPerHour = eventsPerHour;
+      }
+
+   public void setNoiseRatio(final double noiseRatio)
+      {
+      if (!(noiseRatio >= 0 && noiseRatio < 1))
+         {
+         throw new IllegalArgumentException("The noise ratio must be at least 0 and less than 1");
+         }
+      this.noiseRatio = noiseRatio;
+      }
+
+   public void setStartDate(@NotNull final LocalDate startDate)
+      {
+      this.startDate = startDate;
+      }
+
+   /**
+    * Writes the access log to the given stream, stopping early if <code>maxNumLines</code> lines have been written, and
+    * returns the number of lines written.  The stream is flushed, but not closed.
+    */
+   public long write(@NotNull final OutputStream outputStream, final long maxNumLines) throws IOException
+      {
+      final long meanGapMillis = Math.max(1, (long)(MILLIS_PER_HOUR / eventsPerHour));
+      final PriorityQueue<Kiosk> kiosks = new PriorityQueue<Kiosk>(numKiosks);
+      for (int i = 0; i < numKiosks; i++)
+         {
+         // each kiosk has its own random number generator, so that what it does doesn't depend on the other kiosks
+         final Kiosk kiosk = museum.createKiosk(i, new Random(seed * 1000003 + i), meanGapMillis);
+         if (kiosk.advance(museum.timeZone, startDate, numDays))
+            {
+            kiosks.add(kiosk);
+            }
+         }
+
+      final LineWriter lineWriter = new LineWriter(outputStream, museum.timeZone);
+      final Random noiseRandom = new Random(seed);
+      long numLines = 0;
+      while (!kiosks.isEmpty() && numLines < maxNumLines)
+         {
+         final Kiosk kiosk = kiosks.poll();
+         final PendingEvent event = kiosk.pendingEvents.remove();
+
+         // the request reaches the server a few millis after the kiosk timestamps it
+         final long requestTimeInMillis = event.timeInMillis + noiseRandom.nextInt(20);
+         lineWriter.writeEventLine(kiosk.clientAddress, requestTimeInMillis, event, noiseRandom.nextInt(10));
+         numLines++;
+         while (numLines < maxNumLines && noiseRandom.nextDouble() < noiseRatio)
+            {
+            lineWriter.writeNoiseLine(kiosk.clientAddress, requestTimeInMillis, noiseRandom);
+            numLines++;
+            }
+
+         if (kiosk.advance(museum.timeZone, startDate, numDays))
+            {
+            kiosks.add(kiosk);
+            }
+         }
+      lineWriter.flush();
+      return numLines;
+      }
+
+   /** An event which a kiosk will send, once the other kiosks have caught up with it. */
+   private static final class PendingEvent
+      {
+      private final long timeInMillis;
+      @NotNull
+      private final String type;
+
+      /** The extra query string parameters, including the leading ampersand, e.g. "&amp;id=ip3", or an empty string. */
+      @NotNull
+      private final String params;
+
+      private PendingEvent(final long timeInMillis, @NotNull final String type, @NotNull final String params)
+         {
+         this.timeInMillis = timeInMillis;
+         this.type = type;
+         this.params = params;
+         }
+      }
+
+   /**
+    * Simulates a single kiosk, one day at a time.  Subclasses decide which events the kiosk sends, and queue them (in
+    * time order) with {@link #queue}; the generator interleaves the events of all the kiosks by time.
+    */
+   private abstract static class Kiosk implements Comparable<Kiosk>
+      {
+      private final int kioskIndex;
+
+      @NotNull
+      private final String clientAddress;
+
+      @NotNull
+      final Random random;
+
+      /** The average time between events while the museum is open. */
+      final long meanGapMillis;
+
+      @NotNull
+      private final Queue<PendingEvent> pendingEvents = new LinkedList<PendingEvent>();
+
+      /** The time of the most recently queued event. */
+      long clock = 0;
+
+      private int dayIndex = -1;
+      private long closingTimeInMillis = Long.MIN_VALUE;
+
+      Kiosk(final int kioskIndex, @NotNull final Random random, final long meanGapMillis)
+         {
+         this.kioskIndex = kioskIndex;
+         this.clientAddress = "10.0." + (kioskIndex / 250) + "." + (kioskIndex % 250 + 1);
+         this.random = random;
+         this.meanGapMillis = meanGapMillis;
+         }
+
+      /**
+       * Makes sure there's a pending event, moving on to the next day if this one is over, and returns <code>false</code>
+       * if the last day is over.
+       */
+      private boolean advance(@NotNull final DateTimeZone timeZone, @NotNull final LocalDate startDate, final int numDays)
+         {
+         while (pendingEvents.isEmpty())
+            {
+            if (clock < closingTimeInMillis)
+               {
+               queueNextEvents();
+               }
+            else if (!queueClosingEvents())
+               {
+               if (++dayIndex >= numDays)
+                  {
+                  return false;
+                  }
+               final LocalDate date = startDate.plusDays(dayIndex);
+               closingTimeInMillis = date.toDateTime(new LocalTime(CLOSING_HOUR, 0), timeZone).getMillis();
+
+               // switched on some time in the half hour before opening
+               clock = date.toDateTime(new LocalTime(OPENING_HOUR, 0), timeZone).getMillis() - random.nextInt((int)(30 * MILLIS_PER_MINUTE));
+               queueStartupEvents();
+               }
+            }
+         return true;
+         }
+
+      /** Queues the events sent when the kiosk is switched on in the morning. */
+      abstract void queueStartupEvents();
+
+      /** Queues the next event(s) sent while the museum is open. */
+      abstract void queueNextEvents();
+
+      /** Queues whatever events are needed to finish off the day at closing time, returning <code>false</code> if there are none. */
+      abstract boolean queueClosingEvents();
+
+      /** Queues an event after the given delay. */
+      final void queue(final long delayInMillis, @NotNull final String type, @NotNull final String params)
+         {
+         clock += delayInMillis;
+         pendingEvents.add(new PendingEvent(clock, type, params));
+         }
+
+      final void queue(final long delayInMillis, @NotNull final String type)
+         {
+         queue(delayInMillis, type, "");
+         }
+
+      /** Returns an exponentially-distributed random delay with the given mean (like the time between arrivals of a Poisson process). */
+      final long randomDelay(final double meanInMillis)
+         {
+         return 1 + (long)(-meanInMillis * Math.log(1 - random.nextDouble()));
+         }
+
+      /** Returns a uniformly-distributed random delay between the two given values. */
+      final long randomDelay(final long minInMillis, final long maxInMillis)
+         {
+         return minInMillis + (long)(random.nextDouble() * (maxInMillis - minInMillis));
+         }
+
+      @Override
+      public final int compareTo(final Kiosk that)
+         {
+         final long time1 = pendingEvents.peek().timeInMillis;
+         final long time2 = that.pendingEvents.peek().timeInMillis;
+         if (time1 != time2)
+            {
+            return (time1 < time2) ? -1 : 1;
+            }
+         return (kioskIndex < that.kioskIndex) ? -1 : ((kioskIndex == that.kioskIndex) ? 0 : 1);
+         }
+      }
+
+   /**
+    * A CMNH kiosk.  A session starts when a visitor's touch hides the idle screen, and consists of (on average)
+    * {@link #GESTURES_PER_SESSION} gestures, mostly moving around the map, and ends when the idle screen reappears after
+    * a minute of inactivity.
+    */
+   private static final class CmnhKiosk extends Kiosk
+      {
+      private static final int GESTURES_PER_SESSION = 45;
+
+      /** Gestures within a session come much closer together than the average (the rest of the time is spent idle). */
+      private static final double SESSION_GAP_FRACTION = 0.25;
+
+      private static final long IDLE_SCREEN_TIMEOUT_MILLIS = MILLIS_PER_MINUTE;
+
+      /** The relative frequencies of the gestures, in the proportions seen in a week of real logs. */
+      private static final int[] GESTURE_WEIGHTS = new int[]{23730,    // move
+                                                             5994,     // reset home view
+                                                             4993,     // tap
+                                                             4428,     // interest point
+                                                             3242,     // theme change
+                                                             2374,     // open (and close) the themes panel drawer
+                                                             772};     // play a video
+      private static final int TOTAL_GESTURE_WEIGHT;
+
+      /** The number of events per session, given the events each gesture sends (a video sends between 3 and 4). */
+      private static final double EVENTS_PER_SESSION;
+
+      private static final String MEDIA_URL_PREFIX = "&url=http%3A%2F%2Flocalhost%2Fmedia%2F46684%2F";
+      private static final String[] MEDIA_FILES = new String[]{"video%2Fauroch_hunt.ogv",
+                                                               "video%2Fonager_mother_and_foal.ogv",
+                                                               "video%2Fhunting_dog_party.ogv",
+                                                               "video%2Faurochs_horns.ogv",
+                                                               "video%2Fasian_onager.ogv",
+                                                               "video%2Fcloaked_hunter.ogv",
+                                                               "audio%2Faurochs.webm",
+                                                               "audio%2Fbeard_3672.webm",
+                                                               "audio%2Folsen_3649.webm",
+                                                               "audio%2Fabdulaziz_3736.webm",
+                                                               "audio%2Fkhan_3745.webm",
+                                                               "audio%2Fbeard_3670.webm"};
+      private static final String[] THEME_IDS = new String[]{"null", "theme0", "theme1", "theme2", "theme3", "theme4"};
+      private static final int NUM_INTEREST_POINTS = 14;
+
+      static
+         {
+         final double[] eventsPerGesture = new double[]{2, 1, 1, 1, 1, 2, 3.35};
+         int totalWeight = 0;
+         double totalEvents = 0;
+         for (int i = 0; i < GESTURE_WEIGHTS.length; i++)
+            {
+            totalWeight += GESTURE_WEIGHTS[i];
+            totalEvents += GESTURE_WEIGHTS[i] * eventsPerGesture[i];
+            }
+         TOTAL_GESTURE_WEIGHT = totalWeight;
+         EVENTS_PER_SESSION = 2 + GESTURES_PER_SESSION * totalEvents / totalWeight;
+         }
+
+      private boolean isInSession = false;
+
+      private CmnhKiosk(final int kioskIndex, @NotNull final Random random, final long meanGapMillis)
+         {
+         super(kioskIndex, random, meanGapMillis);
+         }
+
+      @Override
+      void queueStartupEvents()
+         {
+         queue(0, CmnhConstants.EventType.INIT_START.getName());
+         queue(randomDelay(1000, 3000), CmnhConstants.EventType.INIT_FINISH.getName());
+         queue(randomDelay(100, 1000), CmnhConstants.EventType.IDLE_SCREEN_VISIBLE.getName());
+         isInSession = false;
+         }
+
+      @Override
+      void queueNextEvents()
+         {
+         final double sessionGapMillis = meanGapMillis * SESSION_GAP_FRACTION;
+         if (!isInSession)
+            {
+            // idle for long enough to make up for how busy the sessions are
+            final double idleGapMillis = Math.max(meanGapMillis, EVENTS_PER_SESSION * meanGapMillis - (EVENTS_PER_SESSION - 1) * sessionGapMillis - IDLE_SCREEN_TIMEOUT_MILLIS);
+            queue(randomDelay(idleGapMillis), CmnhConstants.EventType.IDLE_SCREEN_HIDDEN.getName());
+            isInSession = true;
+            }
+         else if (random.nextInt(GESTURES_PER_SESSION) == 0)
+            {
+            queueClosingEvents();
+            }
+         else
+            {
+            queueGesture(randomDelay(sessionGapMillis));
+            }
+         }
+
+      @Override
+      boolean queueClosingEvents()
+         {
+         if (isInSession)
+            {
+            queue(IDLE_SCREEN_TIMEOUT_MILLIS, CmnhConstants.EventType.IDLE_SCREEN_VISIBLE.getName());
+            isInSession = false;
+            return true;
+            }
+         return false;
+         }
+
+      private void queueGesture(final long delayInMillis)
+         {
+         int weight = random.nextInt(TOTAL_GESTURE_WEIGHT);
+         int gesture = 0;
+         while (weight >= GESTURE_WEIGHTS[gesture])
+            {
+            weight -= GESTURE_WEIGHTS[gesture++];
+            }
+
+         switch (gesture)
+            {
+            case 0:
+               queue(delayInMillis, CmnhConstants.EventType.NAV_MOVE_START.getName());
+               queue(randomDelay(300, 1500), CmnhConstants.EventType.NAV_MOVE_FINISH.getName());
+               break;
+            case 1:
+               queue(delayInMillis, CmnhConstants.EventType.NAV_RESET_HOME_VIEW.getName());
+               break;
+            case 2:
+               queue(delayInMillis, CmnhConstants.EventType.NAV_TAP.getName());
+               break;
+            case 3:
+               queue(delayInMillis, CmnhConstants.EventType.NAV_INTEREST_POINT.getName(), "&id=ip" + (1 + random.nextInt(NUM_INTEREST_POINTS)));
+               break;
+            case 4:
+               queue(delayInMillis, CmnhConstants.EventType.NAV_THEME_CHANGE.getName(), "&new=" + THEME_IDS[random.nextInt(THEME_IDS.length)]);
+               break;
+            case 5:
+               queue(delayInMillis, CmnhConstants.EventType.THEMES_PANEL_DRAWER_OPEN.getName());
+               queue(randomDelay(1000, 5000), CmnhConstants.EventType.THEMES_PANEL_DRAWER_CLOSE.getName());
+               break;
+            default:
+               final String url = MEDIA_URL_PREFIX + MEDIA_FILES[random.nextInt(MEDIA_FILES.length)];
+               queue(delayInMillis, CmnhConstants.EventType.MEDIA_PLAY.getName(), url);
+               if (random.nextInt(100) < 35)
+                  {
+                  queue(randomDelay(2000, 20000), CmnhConstants.EventType.MEDIA_TIME_CHANGED.getName(), url);
+                  }
+               if (random.nextInt(100) < 60)
+                  {
+                  queue(randomDelay(5000, 60000), CmnhConstants.EventType.MEDIA_PAUSE.getName(), url);
+                  }
+               else
+                  {
+                  queue(randomDelay(30000, 120000), CmnhConstants.EventType.MEDIA_ENDED.getName(), url);
+                  }
+               queue(randomDelay(1000, 5000), CmnhConstants.EventType.MEDIA_PANEL_CLOSE.getName());
+               break;
+            }
+         }
+      }
+
+   /**
+    * A British Museum kiosk.  While idle, it cycles through panoramas; a visitor's touch starts a tour of one of them,
+    * which ends after (on average) {@link #SNAPSHOTS_PER_TOUR} snapshots.  Every so often the Flash watchdog detects an
+    * error, and sometimes reloads the browser, which restarts the kiosk.
+    */
+   private static final class BritishMuseumKiosk extends Kiosk
+      {
+      private static final int PANO_CHANGES_PER_IDLE = 11;
+      private static final int SNAPSHOTS_PER_TOUR = 5;
+      private static final double ERROR_PROBABILITY = 0.002;
+      private static final String[] PANO_IDS = new String[]{"46694", "79105", "79156", "79221", "80073", "89586"};
+
+      private boolean isTouring = false;
+
+      @NotNull
+      private String tourParams = "";
+
+      private int errorCount = 0;
+
+      private BritishMuseumKiosk(final int kioskIndex, @NotNull final Random random, final long meanGapMillis)
+         {
+         super(kioskIndex, random, meanGapMillis);
+         }
+
+      @Override
+      void queueStartupEvents()
+         {
+         queue(0, BritishMuseumConstants.EVENT_INIT_BEGIN);
+         queue(randomDelay(1000, 5000), BritishMuseumConstants.EVENT_INIT_DONE);
+         queue(randomDelay(100, 1000), BritishMuseumConstants.EVENT_IDLE_BEGIN);
+         isTouring = false;
+         }
+
+      @Override
+      void queueNextEvents()
+         {
+         final long delayInMillis = randomDelay(meanGapMillis);
+         if (random.nextDouble() < ERROR_PROBABILITY)
+            {
+            queue(delayInMillis, BritishMuseumConstants.EVENT_FLASH_WATCHDOG_ERROR_DETECTED);
+            queue(randomDelay(10, 100), BritishMuseumConstants.EVENT_FLASH_WATCHDOG_ERROR_COUNT_CHANGE, "&count=" + (++errorCount));
+            if (random.nextBoolean())
+               {
+               queue(randomDelay(1000, 5000), BritishMuseumConstants.EVENT_FLASH_WATCHDOG_FORCE_BROWSER_RELOAD);
+               queueStartupEvents();
+               }
+            }
+         else if (isTouring)
+            {
+            if (random.nextInt(SNAPSHOTS_PER_TOUR) == 0)
+               {
+               queueClosingEvents();
+               }
+            else
+               {
+               queue(delayInMillis, BritishMuseumConstants.EVENT_TOUR_CHANGE_SNAPSHOT, tourParams);
+               }
+            }
+         else if (random.nextInt(PANO_CHANGES_PER_IDLE) == 0)
+            {
+            tourParams = "&pano=" + PANO_IDS[random.nextInt(PANO_IDS.length)];
+            queue(delayInMillis, BritishMuseumConstants.EVENT_IDLE_END);
+            queue(randomDelay(10, 100), BritishMuseumConstants.EVENT_TOUR_BEGIN, tourParams);
+            isTouring = true;
+            }
+         else
+            {
+            queue(delayInMillis, BritishMuseumConstants.EVENT_IDLE_CHANGE_PANO, "&pano=" + PANO_IDS[random.nextInt(PANO_IDS.length)]);
+            }
+         }
+
+      @Override
+      boolean queueClosingEvents()
+         {
+         if (isTouring)
+            {
+            queue(randomDelay(meanGapMillis), BritishMuseumConstants.EVENT_TOUR_END, tourParams);
+            queue(randomDelay(10, 100), BritishMuseumConstants.EVENT_IDLE_BEGIN);
+            isTouring = false;
+            return true;
+            }
+         return false;
+         }
+      }
+
+   /**
+    * Formats the lines straight into a byte buffer, since everything in them is ASCII, and only formats the
+    * (one-second resolution) request time when it changes.
+    */
+   private static final class LineWriter
+      {
+      private static final String[] NOISE_REQUESTS = new String[]{"GET / HTTP/1.1\" 200 5120",
+                                                                  "GET /static/js/kiosk.js HTTP/1.1\" 304 -",
+                                                                  "GET /static/css/kiosk.css HTTP/1.1\" 304 -",
+                                                                  "GET /favicon.ico HTTP/1.1\" 404 209"};
+
+      @NotNull
+      private final OutputStream outputStream;
+
+      @NotNull
+      private final DateTimeFormatter requestTimeFormatter;
+
+      private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+      private int bufferLength = 0;
+
+      private long formattedSecond = Long.MIN_VALUE;
+      @NotNull
+      private String formattedRequestTime = "";
+
+      private LineWriter(@NotNull final OutputStream outputStream, @NotNull final DateTimeZone timeZone)
+         {
+         this.outputStream = outputStream;
+         this.requestTimeFormatter = DateTimeFormat.forPattern("dd/MMM/yyyy:HH:mm:ss Z").withLocale(Locale.US).withZone(timeZone);
+         }
+
+      private void writeEventLine(@NotNull final String clientAddress, final long requestTimeInMillis, @NotNull final PendingEvent event, final int cacheBusterDelayInMillis) throws IOException
+         {
+         writeLineStart(clientAddress, requestTimeInMillis);
+         append("GET /event.json?type=").append(event.type);
+         append("&time=").append(event.timeInMillis);
+         append(event.params);
+         append("&_=").append(event.timeInMillis + cacheBusterDelayInMillis);
+         append(" HTTP/1.1\" 200 2 \"http://localhost/\" \"").append(USER_AGENT).append("\"\n");
+         }
+
+      private void writeNoiseLine(@NotNull final String clientAddress, final long requestTimeInMillis, @NotNull final Random random) throws IOException
+         {
+         writeLineStart(clientAddress, requestTimeInMillis);
+         final int request = random.nextInt(NOISE_REQUESTS.length + 4);
+         if (request < NOISE_REQUESTS.length)
+            {
+            append(NOISE_REQUESTS[request]);
+            }
+         else
+            {
+            // mostly map tiles
+            append("GET /media/46684/tiles/").append(random.nextInt(8)).append('/').append(random.nextInt(256)).append('/').append(random.nextInt(256));
+            append(".jpg HTTP/1.1\" 200 ").append(2000 + random.nextInt(30000));
+            }
+         append(" \"http://localhost/\" \"").append(USER_AGENT).append("\"\n");
+         }
+
+      private void writeLineStart(@NotNull final String clientAddress, final long requestTimeInMillis) throws IOException
+         {
+         final long second = requestTimeInMillis / MILLIS_PER_SECOND;
+         if (second != formattedSecond)
+            {
+            formattedSecond = second;
+            formattedRequestTime = requestTimeFormatter.print(second * MILLIS_PER_SECOND);
+            }
+         if (bufferLength > buffer.length / 2)
+            {
+            // lines are never anywhere near half the buffer, so there's always room for the next one
+            flushBuffer();
+            }
+         append(clientAddress).append(" - - [").append(formattedRequestTime).append("] \"");
+         }
+
+      @NotNull
+      private LineWriter append(@NotNull final String s)
+         {
+         final int length = s.length();
+         for (int i = 0; i < length; i++)
+            {
+            buffer[bufferLength++] = (byte)s.charAt(i);
+            }
+         return this;
+         }
+
+      @NotNull
+      private LineWriter append(final char c)
+         {
+         buffer[bufferLength++] = (byte)c;
+         return this;
+         }
+
+      @NotNull
+      private LineWriter append(final long value)
+         {
+         if (value < 0)
+            {
+            return append(String.valueOf(value));
+            }
+         // write the digits backwards, then reverse them
+         final int start = bufferLength;
+         long remaining = value;
+         do
+            {
+            buffer[bufferLength++] = (byte)('0' + (remaining % 10));
+            remaining /= 10;
+            }
+         while (remaining > 0);
+         for (int i = start, j = bufferLength - 1; i < j; i++, j--)
+            {
+            final byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+            }
+         return this;
+         }
+
+      private void flushBuffer() throws IOException
+         {
+         outputStream.write(buffer, 0, bufferLength);
+         bufferLength = 0;
+         }
+
+      private void flush() throws IOException
+         {
+         flushBuffer();
+         outputStream.flush();
+         }
+      }
+   }
@@ -0,0 +1,358 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Writes text to a file on a dedicated thread.  Text is appended to a byte buffer (ASCII is copied straight in, anything
+ * else is encoded in the platform's default charset, as a {@link java.io.PrintStream} would), and each full buffer is
+ * handed to the writer thread through a bounded queue, to be written to the file's {@link FileChannel}.  The buffers
+ * are then recycled, so once the writer has started, appending allocates nothing, and the appending thread only waits
+ * on the disk if it gets a whole queue of buffers ahead of it.
+ * </p>
+ * <p>
+ * If a write fails, the failure is logged, everything else handed to the writer thread is discarded, and the next
+ * attempt to hand over a buffer throws an {@link IllegalStateException}, just as the {@link BinaryEventLogWriter} does
+ * when a write fails.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class AsynchronousFileWriter
+   {
+   private static final Logger LOG = Logger.getLogger(AsynchronousFileWriter.class);
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final int NUM_BUFFERS = 8;
+
+   @NotNull
+   private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(Charset.defaultCharset());
+
+   @NotNull
+   private static final byte[] LONG_MIN_VALUE = String.valueOf(Long.MIN_VALUE).getBytes(Charset.defaultCharset());
+
+   @NotNull
+   private final File file;
+
+   @NotNull
+   private final FileChannel channel;
+
+   @NotNull
+   private final BlockingQueue<Batch> pendingBatches = new ArrayBlockingQueue<Batch>(NUM_BUFFERS);
+
+   @NotNull
+   private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>(NUM_BUFFERS);
+
+   @NotNull
+   private final Thread thread;
+
+   @NotNull
+   private byte[] buffer = new byte[BUFFER_SIZE];
+   private int position = 0;
+
+   /** The number of bytes in the buffers handed to the writer thread so far. */
+   private long numBytesHandedOff = 0;
+
+   /** Scratch space for formatting numbers, which are written backwards. */
+   @NotNull
+   private final byte[] digits = new byte[20];
+
+   @Nullable
+   private volatile IOException failure = null;
+
+   /** Starts the writer thread, which writes to the given channel (which must belong to the given file). */
+   AsynchronousFileWriter(@NotNull final File file, @NotNull final FileChannel channel)
+      {
+      this.file = file;
+      this.channel = channel;
+      for (int i = 1; i < NUM_BUFFERS; i++)
+         {
+         freeBuffers.add(new byte[BUFFER_SIZE]);
+         }
+      thread = new Thread(new Writer(), "AsynchronousFileWriter-" + file.getName());
+      thread.setDaemon(true);
+      thread.start();
+      }
+
+   void append(@NotNull final byte[] bytes)
+      {
+      int offset = 0;
+      while (offset < bytes.length)
+         {
+         if (position == buffer.length)
+            {
+            handOffBuffer();
+            }
+         final int length = Math.min(bytes.length - offset, buffer.length - position);
+         System.arraycopy(bytes, offset, buffer, position, length);
+         position += length;
+         offset += length;
+         }
+      }
+
+   /** Appends the given text, encoding any non-ASCII characters in the platform's default charset. */
+   void append(@NotNull final CharSequence text)
+      {
+      final int length = text.length();
+      for (int i = 0; i < length; i++)
+         {
+         final char c = text.charAt(i);
+         if (c >= 0x80)
+            {
+            // rare, so just let the charset deal with everything from here on
+            final ByteBuffer encoded = Charset.defaultCharset().encode(CharBuffer.wrap(text, i, length));
+            final byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            append(bytes);
+            return;
+            }
+         if (position == buffer.length)
+            {
+            handOffBuffer();
+            }
+         buffer[position++] = (byte)c;
+         }
+      }
+
+   /** Appends a single ASCII character. */
+   void append(final char c)
+      {
+      if (position == buffer.length)
+         {
+         handOffBuffer();
+         }
+      buffer[position++] = (byte)c;
+      }
+
+   /** Appends the given number in decimal, as {@link String#valueOf(long)} would. */
+   void append(final long number)
+      {
+      if (number == Long.MIN_VALUE)
+         {
+         append(LONG_MIN_VALUE);
+         return;
+         }
+      long remaining = Math.abs(number);
+      int numDigits = 0;
+      do
+         {
+         digits[numDigits++] = (byte)('0' + (remaining % 10));
+         remaining /= 10;
+         }
+      while (remaining > 0);
+      if (number < 0)
+         {
+         append('-');
+         }
+      while (numDigits > 0)
+         {
+         append((char)digits[--numDigits]);
+         }
+      }
+
+   /** Appends the given non-negative number in decimal, padded with leading zeros to (at least) the given width. */
+   void appendZeroPadded(final int number, final int width)
+      {
+      int numDigits = 0;
+      int remaining = number;
+      do
+         {
+         digits[numDigits++] = (byte)('0' + (remaining % 10));
+         remaining /= 10;
+         }
+      while (remaining > 0);
+      for (int i = numDigits; i < width; i++)
+         {
+         append('0');
+         }
+      while (numDigits > 0)
+         {
+         append((char)digits[--numDigits]);
+         }
+      }
+
+   void appendLineSeparator()
+      {
+      append(LINE_SEPARATOR);
+      }
+
+   /** Returns the number of bytes appended so far, whether or not they've been written yet. */
+   long getNumberOfBytesAppended()
+      {
+      return numBytesHandedOff + position;
+      }
+
+   /**
+    * Hands over everything appended so far, and waits until the writer thread has written it all to the file, so that
+    * the file's length is up to date.
+    */
+   void flush()
+      {
+      handOffBuffer();
+      final CountDownLatch latch = new CountDownLatch(1);
+      put(new Batch(null, 0, latch));
+      try
+         {
+         latch.await();
+         }
+      catch (InterruptedException e)
+         {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for [" + file + "] to be written", e);
+         }
+      checkForFailure();
+      }
+
+   /** Writes everything appended so far, stops the writer thread, and closes the file. */
+   void close() throws IOException
+      {
+      try
+         {
+         handOffBuffer();
+         put(Batch.END);
+         thread.join();
+         }
+      catch (InterruptedException e)
+         {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for [" + file + "] to be written", e);
+         }
+      finally
+         {
+         channel.close();
+         }
+      if (failure != null)
+         {
+         throw new IOException("Failed to write to [" + file + "]", failure);
+         }
+      }
+
+   /** Hands the current buffer (unless it's empty) to the writer thread, and takes a free one in its place. */
+   private void handOffBuffer()
+      {
+      if (position > 0)
+         {
+         checkForFailure();
+         put(new Batch(buffer, position, null));
+         numBytesHandedOff += position;
+         try
+            {
+            buffer = freeBuffers.take();
+            }
+         catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a buffer to write to [" + file + "]", e);
+            }
+         position = 0;
+         }
+      }
+
+   private void put(@NotNull final Batch batch)
+      {
+      try
+         {
+         pendingBatches.put(batch);
+         }
+      catch (InterruptedException e)
+         {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting to write to [" + file + "]", e);
+         }
+      }
+
+   private void checkForFailure()
+      {
+      if (failure != null)
+         {
+         throw new IllegalStateException("Failed to write to [" + file + "]", failure);
+         }
+      }
+
+   /** The first <code>length</code> bytes of a buffer, or (if it has a latch) a request to be told when all is written. */
+   private static final class Batch
+      {
+      /** Marks the end of the batches. */
+      private static final Batch END = new Batch(null, 0, null);
+
+      @Nullable
+      private final byte[] bytes;
+
+      private final int length;
+
+      @Nullable
+      private final CountDownLatch latch;
+
+      private Batch(@Nullable final byte[] bytes, final int length, @Nullable final CountDownLatch latch)
+         {
+         this.bytes = bytes;
+         this.length = length;
+         this.latch = latch;
+         }
+      }
+
+   private final class Writer implements Runnable
+      {
+      @Override
+      public void run()
+         {
+         try
+            {
+            while (true)
+               {
+               final Batch batch = pendingBatches.take();
+               if (batch == Batch.END)
+                  {
+                  return;
+                  }
+               if (batch.latch != null)
+                  {
+                  batch.latch.countDown();
+                  }
+               else
+                  {
+                  if (failure == null)
+                     {
+                     write(batch.bytes, batch.length);
+                     }
+
+                  // Always recycle the buffer, even after a failure, so the appending thread never waits forever
+                  freeBuffers.put(batch.bytes);
+                  }
+               }
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("InterruptedException while writing to [" + file + "]", e);
+            }
+         }
+
+      private void write(@NotNull final byte[] bytes, final int length)
+         {
+         try
+            {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, 0, length);
+            while (byteBuffer.hasRemaining())
+               {
+               channel.write(byteBuffer);
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to write to [" + file + "]", e);
+            failure = e;
+            }
+         }
+      }
+   }
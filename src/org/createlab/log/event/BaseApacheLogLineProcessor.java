@@ -1,95 +1,195 @@
 package org.createlab.log.event;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTimeZone;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
-abstract class BaseApacheLogLineProcessor implements LineProcessor
+abstract class BaseApacheLogLineProcessor implements ByteLineProcessor
    {
    public static final String EVENT_PARAMETER_TYPE_NAME = "type";
    public static final String EVENT_PARAMETER_TIME_NAME = "time";
    private static final TimeZone DEFAULT_TIME_ZONE = TimeZone.getTimeZone("GMT+0");
 
-   private static final Pattern PATTERN = Pattern.compile("^.*event\\.json\\?(.*)&_=.*$");
-
    private int numLinesProcessed = 0;
 
+   @Nullable
+   private PipelineMetrics metrics = null;
+
+   /** Counts the lines given to this processor, if it has metrics. */
+   @Nullable
+   private PipelineMetrics.Recorder recorder = null;
+
+   @NotNull
+   private EventFilter eventFilter = EventFilter.ALL;
+
+   /** Created lazily, since subclasses may override {@link #getTimeZone()}. */
+   @Nullable
+   private volatile DayBoundaryCalculator dayBoundaryCalculator = null;
+
+   /**
+    * Records the lines, events and time spent in each stage in the given metrics.  Only the processor which the reader
+    * gives the lines to should have metrics, not (say) the processors it passes the events on to.  Must be called before
+    * {@link #preProcess()}.
+    */
+   final void setMetrics(@Nullable final PipelineMetrics metrics)
+      {
+      this.metrics = metrics;
+      }
+
+   /**
+    * Only parses the lines whose events the given filter accepts, skipping the rest as soon as their type or time shows
+    * that they're rejected (see {@link EventRequestScanner}).  Must be called before {@link #preProcess()}.
+    */
+   final void setEventFilter(@NotNull final EventFilter eventFilter)
+      {
+      this.eventFilter = eventFilter;
+      }
+
+   /**
+    * Returns a recorder for a thread which only parses lines, with
+    * {@link #parseEvent(byte[], int, int, PipelineMetrics.Recorder)}, leaving their events to be processed by
+    * {@link #processParsedEvents(int, List)}.  Returns <code>null</code> if this processor doesn't have metrics.
+    */
+   @Nullable
+   final PipelineMetrics.Recorder createParsingRecorder()
+      {
+      return (metrics == null) ? null : metrics.createRecorder(false);
+      }
+
    @Override
    public final void processLine(@NotNull final String line)
+      {
+      final byte[] bytes = line.getBytes();
+      processLine(bytes, 0, bytes.length);
+      }
+
+   @Override
+   public final void processLine(@NotNull final byte[] bytes, final int offset, final int length)
       {
       numLinesProcessed++;
-      if (line.length() > 0)
+      final PipelineMetrics.Recorder recorder = this.recorder;
+      if (recorder == null)
+         {
+         final Event event = parseEvent(bytes, offset, length);
+         if (event != null)
+            {
+            processEvent(event);
+            }
+         }
+      else
          {
-         final Matcher matcher = PATTERN.matcher(line);
-         final boolean isMatchFound = matcher.find();
-         if (isMatchFound)
+         // the line terminator isn't included in the length
+         recorder.startLine(length + 1);
+         final Event event = scan(bytes, offset, length, recorder);
+         recorder.endParse();
+         if (event != null)
             {
-            if (matcher.groupCount() == 1)
-               {
-               final String eventParameterStr = matcher.group(1);
-               if (eventParameterStr != null && eventParameterStr.length() > 0)
-                  {
-                  final String[] keyValuePairs = eventParameterStr.split("&");
-                  if (keyValuePairs != null && keyValuePairs.length > 0)
-                     {
-                     final Map<String, String> eventParameters = new HashMap<String, String>(keyValuePairs.length);
-                     String eventType = null;
-                     long eventTimeInMillis = -1;
-                     for (final String keyValuePair : keyValuePairs)
-                        {
-                        final String[] keyAndValue = keyValuePair.split("=");
-                        final String key = keyAndValue[0];
-                        final String value = (keyAndValue.length >= 2) ? keyAndValue[1] : null;
-                        if (key != null)
-                           {
-                           if (EVENT_PARAMETER_TYPE_NAME.equals(key))
-                              {
-                              if (value != null)
-                                 {
-                                 eventType = value;
-                                 }
-                              }
-                           else if (EVENT_PARAMETER_TIME_NAME.equals(key))
-                              {
-                              if (value != null)
-                                 {
-                                 eventTimeInMillis = Long.parseLong(value);
-                                 }
-                              }
-                           else
-                              {
-                              eventParameters.put(key, value);
-                              }
-                           }
-                        }
-                     if (eventType != null && eventTimeInMillis >= 0)
-                        {
-                        final Event event = new Event(eventType, eventTimeInMillis, eventParameters, getTimeZone());
-                        processEvent(event);
-                        }
-                     }
-                  }
-               }
+            recorder.recordEvent(event, getSupportedEventTypes());
+            processEvent(event);
             }
+         recorder.endLine();
          }
       }
 
+   /**
+    * Hands the given already-parsed events to {@link #processEvent(Event)}, in order, and counts the
+    * <code>numLines</code> lines they were parsed from as processed.  Used by the {@link ParallelLineReader}, which
+    * parses lines on worker threads with {@link #parseEvent(byte[], int, int)}.
+    */
+   final void processParsedEvents(final int numLines, @NotNull final List<Event> events)
+      {
+      numLinesProcessed += numLines;
+      final PipelineMetrics.Recorder recorder = this.recorder;
+      if (recorder == null)
+         {
+         for (final Event event : events)
+            {
+            processEvent(event);
+            }
+         }
+      else
+         {
+         // the lines were counted by whoever parsed them, so just count and time the events
+         final SupportedEventTypes supportedEventTypes = getSupportedEventTypes();
+         final long startNanos = System.nanoTime();
+         for (final Event event : events)
+            {
+            recorder.recordEvent(event, supportedEventTypes);
+            processEvent(event);
+            }
+         recorder.addEventProcessorNanos(System.nanoTime() - startNanos);
+         recorder.publish();
+         }
+      }
+
+   /**
+    * Parses the given line, returning the {@link Event} it contains, or <code>null</code> if it doesn't contain one.
+    * This method doesn't modify any state, so it's safe to call from multiple threads at once.
+    */
+   @Nullable
+   final Event parseEvent(@NotNull final byte[] bytes, final int offset, final int length)
+      {
+      return scan(bytes, offset, length, null);
+      }
+
+   /**
+    * The same as {@link #parseEvent(byte[], int, int)}, but also counts (and times) the line with the given recorder, if
+    * there is one (see {@link #createParsingRecorder()}).
+    */
+   @Nullable
+   final Event parseEvent(@NotNull final byte[] bytes, final int offset, final int length, @Nullable final PipelineMetrics.Recorder parsingRecorder)
+      {
+      if (parsingRecorder == null)
+         {
+         return scan(bytes, offset, length, null);
+         }
+      parsingRecorder.startLine(length + 1);
+      final Event event = scan(bytes, offset, length, parsingRecorder);
+      parsingRecorder.endParse();
+      parsingRecorder.endLine();
+      return event;
+      }
+
+   @Nullable
+   private Event scan(@NotNull final byte[] bytes, final int offset, final int length, @Nullable final PipelineMetrics.Recorder recorder)
+      {
+      return EventRequestScanner.scan(bytes, offset, length, getDayBoundaryCalculator(), getSupportedEventTypes(), getKioskKey(), eventFilter, recorder);
+      }
+
+   /** Returns the calculator for {@link #getTimeZone()}, resolving the time zone only once per processor. */
+   @NotNull
+   private DayBoundaryCalculator getDayBoundaryCalculator()
+      {
+      DayBoundaryCalculator calculator = dayBoundaryCalculator;
+      if (calculator == null)
+         {
+         // a benign race: at worst, a few threads each create an equivalent calculator
+         calculator = new DayBoundaryCalculator(DateTimeZone.forTimeZone(getTimeZone()));
+         dayBoundaryCalculator = calculator;
+         }
+      return calculator;
+      }
+
    @Override
    public final void preProcess()
       {
       numLinesProcessed = 0;
+      recorder = (metrics == null) ? null : metrics.createRecorder(true);
       doBeforeProcessingLines();
       }
 
    @Override
    public final void postProcess()
       {
+      if (recorder != null)
+         {
+         recorder.publish();
+         }
       doAfterProcessingLines();
       }
 
@@ -117,4 +217,25 @@ abstract class BaseApacheLogLineProcessor implements LineProcessor
       {
       return DEFAULT_TIME_ZONE;
       }
+
+   /**
+    * Returns the event types this processor knows about, if any, in which case each event's type is looked up while the
+    * line is parsed (see {@link Event#getTypeId(SupportedEventTypes)}).  Returns <code>null</code> by default.
+    */
+   @Nullable
+   SupportedEventTypes getSupportedEventTypes()
+      {
+      return null;
+      }
+
+   /**
+    * Returns how to identify the kiosk which sent each event, if this processor handles each kiosk's events separately,
+    * in which case the kiosk is recorded in each event (see {@link Event#getKiosk()}) while the line is parsed.  Returns
+    * <code>null</code> by default.
+    */
+   @Nullable
+   KioskKey getKioskKey()
+      {
+      return null;
+      }
    }
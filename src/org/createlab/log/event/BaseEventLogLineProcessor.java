@@ -1,9 +1,12 @@
 package org.createlab.log.event;
 
+import java.io.File;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -12,15 +15,30 @@ abstract class BaseEventLogLineProcessor implements LineProcessor
    {
    private static final Logger LOG = Logger.getLogger(BaseEventLogLineProcessor.class);
 
+   private static final TimeZone DEFAULT_TIME_ZONE = TimeZone.getTimeZone("GMT+0");
+
    private static final Pattern PATTERN = Pattern.compile("^([^,]+),([^,]+),([\\d]+),([\\d]+),([^,]+),(.*)$");
 
+   /** The number of fields before the event's time (see {@link #PATTERN}), none of which can contain a comma. */
+   private static final int NUM_FIELDS_BEFORE_TIME = 3;
+
+   /** The longest string of digits which is guaranteed to fit in a long. */
+   private static final int MAX_TIME_DIGITS = 18;
+
    private int numLinesProcessed = 0;
 
+   @NotNull
+   private EventFilter eventFilter = EventFilter.ALL;
+
+   /** The directory in which the output files are written, or <code>null</code> for the current directory. */
+   @Nullable
+   private File outputDirectory = null;
+
    @Override
    public final void processLine(@NotNull final String line)
       {
       numLinesProcessed++;
-      if (line.length() > 0)
+      if (line.length() > 0 && (eventFilter.isAll() || isAccepted(line)))
          {
          final Matcher matcher = PATTERN.matcher(line);
          final boolean isMatchFound = matcher.find();
@@ -31,10 +49,15 @@ abstract class BaseEventLogLineProcessor implements LineProcessor
                try
                   {
                   // ignore groups 1 and 2 since it's just the formatted dates
-                  processEvent(Long.parseLong(matcher.group(3)),
-                               Long.parseLong(matcher.group(4)),
-                               matcher.group(5),
-                               matcher.group(6));
+                  final long eventTimeInMillis = Long.parseLong(matcher.group(4));
+                  final String eventType = matcher.group(5);
+                  if (eventFilter.accepts(eventTimeInMillis, eventType))
+                     {
+                     processEvent(Long.parseLong(matcher.group(3)),
+                                  eventTimeInMillis,
+                                  eventType,
+                                  matcher.group(6));
+                     }
                   }
                catch (NumberFormatException e)
                   {
@@ -45,6 +68,93 @@ abstract class BaseEventLogLineProcessor implements LineProcessor
          }
       }
 
+   /**
+    * Processes the given event as if it had been read from a line in the event log, with the given parameter values.
+    * Used to feed events straight from an {@link EventLogProducer} without going through an event log file.
+    */
+   final void processEvent(@NotNull final Event event, @NotNull final String eventParams)
+      {
+      processEventRecord(event.getDateInMillis(), event.getTimeInMillis(), event.getType(), eventParams);
+      }
+
+   /**
+    * Processes the given event record as if it had been read from a line in the event log.  Used by readers of other
+    * event log formats, such as the {@link BinaryEventLogReader}.
+    */
+   final void processEventRecord(final long dateInMillis,
+                                 final long eventTimeInMillis,
+                                 @NotNull final String eventType,
+                                 @NotNull final String eventParams)
+      {
+      numLinesProcessed++;
+      if (eventFilter.accepts(eventTimeInMillis, eventType))
+         {
+         processEvent(dateInMillis, eventTimeInMillis, eventType, eventParams);
+         }
+      }
+
+   /**
+    * Only processes the events which the given filter accepts, skipping the rest.  Lines of the event log are checked
+    * before they're split into their fields, so rejected ones cost little more than finding their time and type.  Must
+    * be called before {@link #preProcess()}.
+    */
+   final void setEventFilter(@NotNull final EventFilter eventFilter)
+      {
+      this.eventFilter = eventFilter;
+      }
+
+   /**
+    * Writes the output files in the given directory instead of the current directory.  Must be called before
+    * {@link #preProcess()} (and before restoring a checkpoint).
+    */
+   final void setOutputDirectory(@Nullable final File outputDirectory)
+      {
+      this.outputDirectory = outputDirectory;
+      }
+
+   /** Returns the output file with the given name, in the {@link #setOutputDirectory(File) output directory}. */
+   @NotNull
+   final File getOutputFile(@NotNull final String filename)
+      {
+      return new File(outputDirectory, filename);
+      }
+
+   /**
+    * Returns <code>false</code> if the filter rejects the event in the given line, judging by its time and type fields,
+    * which are found by counting commas rather than by matching the {@link #PATTERN}.  Lines which that can't tell
+    * about (e.g. because they don't have enough fields) are left for the pattern to deal with.
+    */
+   private boolean isAccepted(@NotNull final String line)
+      {
+      int timeStart = 0;
+      for (int i = 0; i < NUM_FIELDS_BEFORE_TIME; i++)
+         {
+         timeStart = line.indexOf(',', timeStart) + 1;
+         if (timeStart == 0)
+            {
+            return true;
+            }
+         }
+      final int timeEnd = line.indexOf(',', timeStart);
+      final int typeEnd = (timeEnd < 0) ? -1 : line.indexOf(',', timeEnd + 1);
+      if (typeEnd < 0 || timeEnd - timeStart > MAX_TIME_DIGITS)
+         {
+         return true;
+         }
+
+      long eventTimeInMillis = 0;
+      for (int i = timeStart; i < timeEnd; i++)
+         {
+         final char c = line.charAt(i);
+         if (c < '0' || c > '9')
+            {
+            return true;
+            }
+         eventTimeInMillis = eventTimeInMillis * 10 + (c - '0');
+         }
+      return eventFilter.isTimeAccepted(eventTimeInMillis) && eventFilter.isTypeAccepted(line, timeEnd + 1, typeEnd);
+      }
+
    @Override
    public final void preProcess()
       {
@@ -80,4 +190,13 @@ abstract class BaseEventLogLineProcessor implements LineProcessor
       {
       return numLinesProcessed;
       }
+
+   /**
+    * Returns the time zone in which the event log's days were computed (i.e. that of the producer which wrote it), and
+    * in which a date without an offset, such as the start or end of a time range, is taken to be.
+    */
+   protected TimeZone getTimeZone()
+      {
+      return DEFAULT_TIME_ZONE;
+      }
    }
@@ -0,0 +1,226 @@
+package org.createlab.log.event;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads a binary event log written by the {@link BinaryEventLogWriter} and hands each event to a
+ * {@link BaseEventLogLineProcessor}, with exactly the same values it would have parsed from the equivalent line of a
+ * CSV event log.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class BinaryEventLogReader
+   {
+   private static final Logger LOG = Logger.getLogger(BinaryEventLogReader.class);
+
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+   private static final String CHARSET = "UTF-8";
+
+   @NotNull
+   private final File file;
+
+   @NotNull
+   private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+   private int bufferPosition = 0;
+   private int bufferLimit = 0;
+
+   /** The position in the file of the first byte in the buffer. */
+   private long bufferFilePosition = 0;
+
+   public BinaryEventLogReader(@NotNull final File file)
+      {
+      this.file = file;
+      }
+
+   /** Returns <code>true</code> if the given file starts with the binary event log's magic bytes. */
+   public static boolean isBinaryEventLog(@NotNull final File file)
+      {
+      try
+         {
+         final InputStream inputStream = new FileInputStream(file);
+         try
+            {
+            for (final byte b : BinaryEventLogWriter.MAGIC)
+               {
+               if (inputStream.read() != (b & 0xFF))
+                  {
+                  return false;
+                  }
+               }
+            return true;
+            }
+         finally
+            {
+            inputStream.close();
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read the header of file [" + file + "]", e);
+         }
+      return false;
+      }
+
+   public void read(@NotNull final BaseEventLogLineProcessor eventLogLineProcessor)
+      {
+      read(eventLogLineProcessor, BinaryEventLogWriter.MAGIC.length + 1, Long.MAX_VALUE, 0, 0, Collections.<String>emptyList());
+      }
+
+   /**
+    * Like {@link #read(BaseEventLogLineProcessor)}, but only reads the records between the given positions, the first
+    * of which must be the start of a record, and the second either the start of a record or the end of the file.  Since
+    * records are delta-encoded, this also needs the time and date of the record before the first one, and the event
+    * types introduced before it, all of which an {@link EventLogIndex} records for the start of each block.
+    */
+   public void read(@NotNull final BaseEventLogLineProcessor eventLogLineProcessor,
+                    final long startPosition,
+                    final long endPosition,
+                    final long previousTimeInMillis,
+                    final long previousDateInMillis,
+                    @NotNull final List<String> typesSeen)
+      {
+      try
+         {
+         final FileInputStream inputStream = new FileInputStream(file);
+         try
+            {
+            bufferPosition = 0;
+            bufferLimit = 0;
+            bufferFilePosition = 0;
+            for (final byte b : BinaryEventLogWriter.MAGIC)
+               {
+               if (readByte(inputStream) != b)
+                  {
+                  System.err.println("ERROR: File [" + file + "] is not a binary event log.  Aborting.");
+                  return;
+                  }
+               }
+            final int version = readByte(inputStream);
+            if (version != BinaryEventLogWriter.VERSION)
+               {
+               System.err.println("ERROR: Unsupported binary event log version [" + version + "] in file [" + file + "].  Aborting.");
+               return;
+               }
+
+            if (startPosition > BinaryEventLogWriter.MAGIC.length + 1)
+               {
+               inputStream.getChannel().position(startPosition);
+               bufferPosition = 0;
+               bufferLimit = 0;
+               bufferFilePosition = startPosition;
+               }
+
+            final List<String> types = new ArrayList<String>(typesSeen);
+            long timeInMillis = previousTimeInMillis;
+            long dateInMillis = previousDateInMillis;
+
+            eventLogLineProcessor.preProcess();
+            while (bufferFilePosition + bufferPosition < endPosition && fillBuffer(inputStream))
+               {
+               final int typeId = (int)readUnsignedVarint(inputStream);
+               if (typeId == types.size())
+                  {
+                  types.add(readString(inputStream));
+                  }
+               else if (typeId < 0 || typeId > types.size())
+                  {
+                  throw new IOException("Invalid event type id [" + typeId + "]");
+                  }
+               timeInMillis += readSignedVarint(inputStream);
+               dateInMillis += readSignedVarint(inputStream);
+               eventLogLineProcessor.processEventRecord(dateInMillis, timeInMillis, types.get(typeId), readString(inputStream));
+               }
+            eventLogLineProcessor.postProcess();
+            }
+         finally
+            {
+            inputStream.close();
+            }
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException caught while trying to open file [" + file + "]", e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read file [" + file + "]", e);
+         }
+      }
+
+   /** Makes sure there's at least one byte in the buffer, returning <code>false</code> if the end of the file has been reached. */
+   private boolean fillBuffer(@NotNull final InputStream inputStream) throws IOException
+      {
+      if (bufferPosition < bufferLimit)
+         {
+         return true;
+         }
+      bufferFilePosition += bufferLimit;
+      bufferPosition = 0;
+      bufferLimit = Math.max(inputStream.read(buffer), 0);
+      return bufferLimit > 0;
+      }
+
+   private byte readByte(@NotNull final InputStream inputStream) throws IOException
+      {
+      if (!fillBuffer(inputStream))
+         {
+         throw new EOFException("Unexpected end of file [" + file + "]");
+         }
+      return buffer[bufferPosition++];
+      }
+
+   @NotNull
+   private String readString(@NotNull final InputStream inputStream) throws IOException
+      {
+      final int length = (int)readUnsignedVarint(inputStream);
+      if (bufferLimit - bufferPosition >= length)
+         {
+         // the common case: the whole string is already in the buffer
+         final String s = new String(buffer, bufferPosition, length, CHARSET);
+         bufferPosition += length;
+         return s;
+         }
+
+      final byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++)
+         {
+         bytes[i] = readByte(inputStream);
+         }
+      return new String(bytes, CHARSET);
+      }
+
+   private long readSignedVarint(@NotNull final InputStream inputStream) throws IOException
+      {
+      final long value = readUnsignedVarint(inputStream);
+      return (value >>> 1) ^ -(value & 1);
+      }
+
+   private long readUnsignedVarint(@NotNull final InputStream inputStream) throws IOException
+      {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do
+         {
+         if (shift > 63)
+            {
+            throw new IOException("Malformed varint in file [" + file + "]");
+            }
+         b = readByte(inputStream);
+         value |= (long)(b & 0x7F) << shift;
+         shift += 7;
+         }
+      while ((b & 0x80) != 0);
+      return value;
+      }
+   }
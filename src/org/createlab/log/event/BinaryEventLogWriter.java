@@ -0,0 +1,241 @@
+package org.createlab.log.event;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Writes events to a compact binary event log, which can be read back by the {@link BinaryEventLogReader} and given to
+ * any {@link BaseEventLogLineProcessor} (such as a stats generator) in place of the CSV event log.  The file starts with
+ * the {@link #MAGIC} bytes and the format {@link #VERSION}, followed by one record per event:
+ * </p>
+ * <ol>
+ *    <li>the event type's id, as a varint.  Types are numbered in the order in which they first appear, and an id equal
+ *    to the number of types seen so far introduces a new type, whose name follows as a length-prefixed UTF-8 string</li>
+ *    <li>the difference between the event's time and the previous event's time, as a zigzag varint</li>
+ *    <li>the difference between the event's date and the previous event's date, as a zigzag varint</li>
+ *    <li>the event's parameter values (as they'd appear in the param column of the CSV event log), as a length-prefixed
+ *    UTF-8 string</li>
+ * </ol>
+ * <p>
+ * Lengths are unsigned varints.  The deltas are small for a sorted event log (and the date delta is almost always
+ * zero), so a typical record takes about ten bytes instead of the hundred or so of a CSV line.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class BinaryEventLogWriter implements EventProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(BinaryEventLogWriter.class);
+
+   static final byte[] MAGIC = new byte[]{'E', 'V', 'L', 'O', 'G'};
+   static final int VERSION = 1;
+
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+   private static final String CHARSET = "UTF-8";
+
+   @NotNull
+   private final File file;
+
+   @NotNull
+   private final SupportedEventTypes supportedEventTypes;
+
+   /** The ids the types have in the file (or -1 if they haven't appeared yet), indexed by their supported type ID. */
+   @NotNull
+   private final int[] fileTypeIdsBySupportedTypeId;
+
+   /** The ids in the file of any types which aren't supported, which only happens if the caller doesn't filter them. */
+   @NotNull
+   private final Map<String, Integer> fileTypeIdsOfUnsupportedTypes = new HashMap<String, Integer>();
+
+   private int numFileTypeIds = 0;
+
+   @Nullable
+   private OutputStream outputStream = null;
+
+   private long previousTimeInMillis = 0;
+   private long previousDateInMillis = 0;
+
+   /** The number of bytes written to the file so far, which is where the next record will start. */
+   private long position = 0;
+
+   private boolean isIndexed = false;
+
+   @Nullable
+   private EventLogIndex.Builder indexBuilder = null;
+
+   BinaryEventLogWriter(@NotNull final File file, @NotNull final SupportedEventTypes supportedEventTypes)
+      {
+      this.file = file;
+      this.supportedEventTypes = supportedEventTypes;
+      this.fileTypeIdsBySupportedTypeId = new int[supportedEventTypes.getNumberOfEventTypes()];
+      if (file.exists())
+         {
+         System.err.println("ERROR: File [" + file + "] already exists!!! Aborting.");
+         System.exit(1);
+         }
+      }
+
+   /**
+    * Builds an {@link EventLogIndex} of the records, and saves it next to the file once it's closed.  The events must be
+    * given in time order.  Must be called before {@link #beforeProcessingAnyEvents()}.
+    */
+   void setIndexed(final boolean isIndexed)
+      {
+      this.isIndexed = isIndexed;
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      Arrays.fill(fileTypeIdsBySupportedTypeId, -1);
+      fileTypeIdsOfUnsupportedTypes.clear();
+      numFileTypeIds = 0;
+      previousTimeInMillis = 0;
+      previousDateInMillis = 0;
+      indexBuilder = isIndexed ? new EventLogIndex.Builder(file) : null;
+      try
+         {
+         outputStream = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE);
+         outputStream.write(MAGIC);
+         outputStream.write(VERSION);
+         position = MAGIC.length + 1;
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to open the binary event log [" + file + "]", e);
+         throw new IllegalStateException("Failed to open the binary event log [" + file + "]", e);
+         }
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      if (indexBuilder != null)
+         {
+         indexBuilder.addRow(position, event.getTimeInMillis(), previousTimeInMillis, previousDateInMillis, numFileTypeIds);
+         }
+      try
+         {
+         final int supportedTypeId = event.getTypeId(supportedEventTypes);
+         int fileTypeId = -1;
+         if (supportedTypeId >= 0)
+            {
+            fileTypeId = fileTypeIdsBySupportedTypeId[supportedTypeId];
+            }
+         else if (fileTypeIdsOfUnsupportedTypes.containsKey(event.getType()))
+            {
+            fileTypeId = fileTypeIdsOfUnsupportedTypes.get(event.getType());
+            }
+         if (fileTypeId < 0)
+            {
+            final int newFileTypeId = numFileTypeIds++;
+            if (supportedTypeId >= 0)
+               {
+               fileTypeIdsBySupportedTypeId[supportedTypeId] = newFileTypeId;
+               }
+            else
+               {
+               fileTypeIdsOfUnsupportedTypes.put(event.getType(), newFileTypeId);
+               }
+            writeUnsignedVarint(newFileTypeId);
+            writeString(event.getType());
+            }
+         else
+            {
+            writeUnsignedVarint(fileTypeId);
+            }
+
+         writeSignedVarint(event.getTimeInMillis() - previousTimeInMillis);
+         writeSignedVarint(event.getDateInMillis() - previousDateInMillis);
+         previousTimeInMillis = event.getTimeInMillis();
+         previousDateInMillis = event.getDateInMillis();
+
+         writeString(supportedEventTypes.getParameterValuesAsString(event));
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to write an event to the binary event log [" + file + "]", e);
+         throw new IllegalStateException("Failed to write to the binary event log [" + file + "]", e);
+         }
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      if (outputStream != null)
+         {
+         try
+            {
+            outputStream.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close the binary event log [" + file + "]", e);
+            }
+         outputStream = null;
+         }
+      if (indexBuilder != null)
+         {
+         indexBuilder.save(file.length(), getFileTypeNames());
+         indexBuilder = null;
+         }
+      }
+
+   /** Returns the names of the event types, in the order in which they were introduced in the file. */
+   @NotNull
+   private List<String> getFileTypeNames()
+      {
+      final String[] names = new String[numFileTypeIds];
+      for (int supportedTypeId = 0; supportedTypeId < fileTypeIdsBySupportedTypeId.length; supportedTypeId++)
+         {
+         if (fileTypeIdsBySupportedTypeId[supportedTypeId] >= 0)
+            {
+            names[fileTypeIdsBySupportedTypeId[supportedTypeId]] = supportedEventTypes.getName(supportedTypeId);
+            }
+         }
+      for (final Map.Entry<String, Integer> entry : fileTypeIdsOfUnsupportedTypes.entrySet())
+         {
+         names[entry.getValue()] = entry.getKey();
+         }
+      return Arrays.asList(names);
+      }
+
+   private void writeString(@NotNull final String s) throws IOException
+      {
+      final byte[] bytes = s.getBytes(CHARSET);
+      writeUnsignedVarint(bytes.length);
+      outputStream.write(bytes);
+      position += bytes.length;
+      }
+
+   /** Zigzag-encodes the given value, so that small negative deltas are as cheap as small positive ones. */
+   private void writeSignedVarint(final long value) throws IOException
+      {
+      writeUnsignedVarint((value << 1) ^ (value >> 63));
+      }
+
+   /** Writes the given value seven bits at a time, least significant group first, with the high bit set on all but the last byte. */
+   private void writeUnsignedVarint(final long value) throws IOException
+      {
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0)
+         {
+         outputStream.write((int)((remaining & 0x7F) | 0x80));
+         position++;
+         remaining >>>= 7;
+         }
+      outputStream.write((int)remaining);
+      position++;
+      }
+   }
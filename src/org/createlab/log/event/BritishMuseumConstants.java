@@ -76,6 +76,19 @@ final class BritishMuseumConstants
       SUPPORTED_EVENT_TYPES.registerEventType(EVENT_FLASH_WATCHDOG_FORCE_BROWSER_RELOAD);
       }
 
+   /** The activity mode of each supported event type, indexed by its ID in {@link #SUPPORTED_EVENT_TYPES}. */
+   @NotNull
+   static final ActivityMode[] ACTIVITY_MODES_BY_TYPE_ID;
+
+   static
+      {
+      ACTIVITY_MODES_BY_TYPE_ID = new ActivityMode[SUPPORTED_EVENT_TYPES.getNumberOfEventTypes()];
+      for (int typeId = 0; typeId < ACTIVITY_MODES_BY_TYPE_ID.length; typeId++)
+         {
+         ACTIVITY_MODES_BY_TYPE_ID[typeId] = EVENT_TYPE_ACTIVITY_MODES.get(SUPPORTED_EVENT_TYPES.getName(typeId));
+         }
+      }
+
    private BritishMuseumConstants()
       {
       // private to prevent instantiation
@@ -1,37 +1,38 @@
 package org.createlab.log.event;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
 public final class BritishMuseumStatsGenerator extends BaseEventLogLineProcessor
    {
-   @NotNull
-   private final DailyUsageStats eventProcessor = new DailyUsageStats();
+   private static final String DAILY_USAGE_STATS_FILENAME = "daily-usage-stats.csv";
+
+   /** Created lazily, once the output directory is known. */
+   @Nullable
+   private DailyUsageStats eventProcessor = null;
 
+   /** The number of events of each type, indexed by type ID. */
    @NotNull
-   private final Map<String, Integer> countsByType = new HashMap<String, Integer>();
+   private final int[] countsByTypeId = new int[BritishMuseumConstants.SUPPORTED_EVENT_TYPES.getNumberOfEventTypes()];
 
-   public BritishMuseumStatsGenerator()
+   @NotNull
+   private DailyUsageStats getEventProcessor()
       {
-      for (final String eventType : BritishMuseumConstants.SUPPORTED_EVENT_TYPES.getSupportedEventTypeNames())
+      if (eventProcessor == null)
          {
-         countsByType.put(eventType, 0);
+         eventProcessor = new DailyUsageStats(getOutputFile(DAILY_USAGE_STATS_FILENAME));
          }
+      return eventProcessor;
       }
 
    @Override
    protected final void doBeforeProcessingLines()
       {
-      eventProcessor.beforeProcessingAnyEvents();
+      getEventProcessor().beforeProcessingAnyEvents();
       }
 
    @Override
@@ -40,10 +41,11 @@ public final class BritishMuseumStatsGenerator extends BaseEventLogLineProcessor
                                @NotNull final String eventType,
                                @NotNull final String eventParams)
       {
-      if (BritishMuseumConstants.SUPPORTED_EVENT_TYPES.getSupportedEventTypeNames().contains(eventType))
+      final int typeId = BritishMuseumConstants.SUPPORTED_EVENT_TYPES.getId(eventType);
+      if (typeId >= 0)
          {
-         countsByType.put(eventType, countsByType.get(eventType) + 1);
-         eventProcessor.processEvent(dateInMillis, eventTimeInMillis, eventType, eventParams);
+         countsByTypeId[typeId]++;
+         getEventProcessor().processEvent(dateInMillis, eventTimeInMillis, typeId, eventType, eventParams);
          }
       else
          {
@@ -54,65 +56,22 @@ public final class BritishMuseumStatsGenerator extends BaseEventLogLineProcessor
    @Override
    public final void doAfterProcessingLines()
       {
-      eventProcessor.afterProcessingAnyEvents();
+      getEventProcessor().afterProcessingAnyEvents();
 
-      for (final String eventType : countsByType.keySet())
+      for (int typeId = 0; typeId < countsByTypeId.length; typeId++)
          {
-         final int count = countsByType.get(eventType);
-         System.out.println("Found [" + count + "] events for type [" + eventType + "]");
+         System.out.println("Found [" + countsByTypeId[typeId] + "] events for type [" + BritishMuseumConstants.SUPPORTED_EVENT_TYPES.getName(typeId) + "]");
          }
       }
 
-   private static final class DailyUsageStats extends CsvOutputEventProcessor
+   private static final class DailyUsageStats extends CsvOutputEventProcessor implements BritishMuseumUsageStats.RowWriter
       {
       @NotNull
-      private static final String[] PANO_IDS = new String[]{"46694", "79105", "79156", "79221", "80073", "89586"};
-
-      @NotNull
-      private static final File FILE = new File("daily-usage-stats.csv");
-
-      @NotNull
-      private final DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
-
-      @Nullable
-      private Long currentDate = null;
-      @Nullable
-      private Long timeOfEarliestEvent = null;
-      @Nullable
-      private Long timeOfLatestEvent = null;
-
-      @Nullable
-      private Long timeOfMostRecentInitEvent = null;
-      @Nullable
-      private Long timeOfMostRecentActiveEvent = null;
-      @Nullable
-      private Long timeOfMostRecentIdleEvent = null;
-      @Nullable
-      private Long timeOfMostRecentErrorEvent = null;
-
-      private long durationInit = 0;
-      private long durationActive = 0;
-      private long durationIdle = 0;
-      private long durationError = 0;
-
-      private int numInits = 0;
-      private int numIdles = 0;
-      private int numTours = 0;
-      private int numErrors = 0;
-      private int numReloads = 0;
-
-      private final Map<String, Integer> tourCounts = new HashMap<String, Integer>();
+      private final BritishMuseumUsageStats stats = new BritishMuseumUsageStats(this);
 
-      @NotNull
-      private BritishMuseumConstants.ActivityMode activityMode = BritishMuseumConstants.ActivityMode.UNKNOWN;
-
-      private DailyUsageStats()
+      private DailyUsageStats(@NotNull final File file)
          {
-         super(FILE);
-         for (final String panoId : PANO_IDS)
-            {
-            tourCounts.put(panoId, 0);
-            }
+         super(file);
          }
 
       @Override
@@ -132,9 +91,9 @@ public final class BritishMuseumStatsGenerator extends BaseEventLogLineProcessor
          sb.append("duration_error_millis").append(CsvOutputEventProcessor.FIELD_DELIMITER);
          sb.append("num_startups").append(CsvOutputEventProcessor.FIELD_DELIMITER);
          sb.append("num_tours").append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         for (int i = 0; i < PANO_IDS.length; i++)
+         for (int i = 0; i < BritishMuseumUsageStats.PANO_IDS.length; i++)
             {
-            sb.append("num_tour_" + PANO_IDS[i]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+            sb.append("num_tour_" + BritishMuseumUsageStats.PANO_IDS[i]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
             }
          sb.append("num_idle_periods").append(CsvOutputEventProcessor.FIELD_DELIMITER);
          sb.append("num_errors").append(CsvOutputEventProcessor.FIELD_DELIMITER);
@@ -150,163 +109,23 @@ public final class BritishMuseumStatsGenerator extends BaseEventLogLineProcessor
 
       public void processEvent(@NotNull final Long eventDate,
                                final long eventTime,
+                               final int eventTypeId,
                                @NotNull final String eventType,
                                @NotNull final String eventParams)
          {
-         // see whether we need to start a new day
-         if (!eventDate.equals(currentDate))
-            {
-            // write the stats, unless this is the first record we've seen (in which case the currentDate is null)
-            if (currentDate != null)
-               {
-               writeDaysStats();
-               }
-
-            resetStats(eventDate);
-            timeOfEarliestEvent = eventTime;
-            }
-         timeOfLatestEvent = eventTime;
-
-         // figure out what mode we're in
-         activityMode = BritishMuseumConstants.EVENT_TYPE_ACTIVITY_MODES.get(eventType);
-
-         switch (activityMode)
-            {
-            case INIT:
-               if (timeOfMostRecentInitEvent == null)
-                  {
-                  numInits++;
-                  }
-               durationInit += getElapsedTime(eventTime, timeOfMostRecentInitEvent);
-               timeOfMostRecentInitEvent = eventTime;
-
-               if (BritishMuseumConstants.EVENT_INIT_BEGIN.equals(eventType))
-                  {
-                  // An init means that we need to reset the times for the other activity types
-                  timeOfMostRecentActiveEvent = null;
-                  timeOfMostRecentIdleEvent = null;
-                  timeOfMostRecentErrorEvent = null;
-                  }
-               else if (BritishMuseumConstants.EVENT_INIT_DONE.equals(eventType))
-                  {
-                  timeOfMostRecentInitEvent = null;
-                  }
-               break;
-            case ACTIVE:
-               if (timeOfMostRecentActiveEvent == null)
-                  {
-                  numTours++;
-                  tourCounts.put(eventParams, tourCounts.get(eventParams) + 1);
-                  }
-               durationActive += getElapsedTime(eventTime, timeOfMostRecentActiveEvent);
-               timeOfMostRecentActiveEvent = eventTime;
-
-               if (BritishMuseumConstants.EVENT_TOUR_END.equals(eventType))
-                  {
-                  timeOfMostRecentActiveEvent = null;
-                  }
-               break;
-            case IDLE:
-               if (timeOfMostRecentIdleEvent == null)
-                  {
-                  numIdles++;
-                  }
-               durationIdle += getElapsedTime(eventTime, timeOfMostRecentIdleEvent);
-               timeOfMostRecentIdleEvent = eventTime;
-
-               if (BritishMuseumConstants.EVENT_IDLE_END.equals(eventType))
-                  {
-                  timeOfMostRecentIdleEvent = null;
-                  }
-               break;
-            case ERROR:
-               durationError += getElapsedTime(eventTime, timeOfMostRecentErrorEvent);
-               timeOfMostRecentErrorEvent = eventTime;
-
-               if (BritishMuseumConstants.EVENT_FLASH_WATCHDOG_ERROR_DETECTED.equals(eventType))
-                  {
-                  numErrors++;
-                  }
-               else if (BritishMuseumConstants.EVENT_FLASH_WATCHDOG_FORCE_BROWSER_RELOAD.equals(eventType))
-                  {
-                  numReloads++;
-                  timeOfMostRecentErrorEvent = null;
-                  }
-               break;
-            case UNKNOWN:
-            default:
-               System.err.println("Unexpected activity mode [" + activityMode + "] for event: " + eventType);
-               break;
-            }
+         stats.processEvent(eventDate, eventTime, eventTypeId, eventType, eventParams);
          }
 
-      private long getElapsedTime(final long currentEventTime, final Long previousEventTime)
+      @Override
+      public void writeDayRow(@NotNull final String row)
          {
-         return (previousEventTime == null) ? 0 : currentEventTime - previousEventTime;
+         println(row);
          }
 
       @Override
       public void doAfterProcessingAnyEvents()
          {
-         writeDaysStats();
-         }
-
-      private void writeDaysStats()
-         {
-         final StringBuilder sb = new StringBuilder();
-
-         final DateTime currentDateJoda = new DateTime(currentDate, BritishMuseumConstants.GMT_TIME_ZONE);
-         final DateTime timeOfFirstEventJoda = new DateTime(timeOfEarliestEvent, BritishMuseumConstants.GMT_TIME_ZONE);
-         final DateTime timeOfLastEventJoda = new DateTime(timeOfLatestEvent, BritishMuseumConstants.GMT_TIME_ZONE);
-
-         sb.append(dateTimeFormatter.print(currentDateJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(dateTimeFormatter.print(timeOfFirstEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(dateTimeFormatter.print(timeOfLastEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(currentDate).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(timeOfEarliestEvent).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(timeOfLatestEvent).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(durationInit).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(durationActive).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(durationIdle).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(durationError).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(numInits).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(numTours).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         for (int i = 0; i < PANO_IDS.length; i++)
-            {
-            sb.append(tourCounts.get(PANO_IDS[i])).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-            }
-         sb.append(numIdles).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(numErrors).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(numReloads).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         println(sb.toString());
-         }
-
-      private void resetStats(final long date)
-         {
-         currentDate = date;
-
-         timeOfEarliestEvent = null;
-         timeOfLatestEvent = null;
-
-         timeOfMostRecentInitEvent = null;
-         timeOfMostRecentActiveEvent = null;
-         timeOfMostRecentIdleEvent = null;
-         timeOfMostRecentErrorEvent = null;
-
-         durationInit = 0;
-         durationActive = 0;
-         durationIdle = 0;
-         durationError = 0;
-         numInits = 0;
-         numIdles = 0;
-         numTours = 0;
-         numErrors = 0;
-         numReloads = 0;
-         for (final String panoId : tourCounts.keySet())
-            {
-            tourCounts.put(panoId, 0);
-            }
-         activityMode = BritishMuseumConstants.ActivityMode.UNKNOWN;
+         stats.writeCurrentDayRow();
          }
       }
    }
@@ -0,0 +1,613 @@
+package org.createlab.log.event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * <p>
+ * The daily usage stats of the British Museum kiosks, computed from events in time order, which hands each day's row to
+ * a {@link RowWriter} as soon as the day is over.
+ * </p>
+ * <p>
+ * As with the {@link CmnhUsageStats}, the stats can also be computed for separate slices of the events (see
+ * {@link #createSlice()}), written with {@link #writeTo(DataOutput)} and read with {@link #readFrom(DataInput)}, and
+ * merged in order, in any grouping, with {@link #append(BritishMuseumUsageStats)}.  Here the state carried from one
+ * slice to the next is simpler: an event of a given activity mode only depends on the time of the most recent event of
+ * the same mode (which decides whether it starts a new period of that mode, or adds to the duration of the current
+ * one).  So a slice doesn't count the first event of each mode whose most recent event is before the slice, but keeps
+ * it, and it's counted when the slice is merged with the one before it.  Those events are all on the slice's first day,
+ * since a new day starts every mode afresh, and that day's counters are kept rather than written as a row, since they
+ * may continue a day from the previous slice.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class BritishMuseumUsageStats
+   {
+   /** Receives the rows of the stats as they're completed. */
+   interface RowWriter
+      {
+      void writeDayRow(@NotNull final String row);
+      }
+
+   @NotNull
+   static final String[] PANO_IDS = new String[]{"46694", "79105", "79156", "79221", "80073", "89586"};
+
+   private static final int NUM_ACTIVITY_MODES = BritishMuseumConstants.ActivityMode.values().length;
+
+   /** Returns the stats of a slice of the events which doesn't necessarily start at the beginning. */
+   @NotNull
+   static BritishMuseumUsageStats createSlice()
+      {
+      return new BritishMuseumUsageStats(null, true);
+      }
+
+   /**
+    * Reads the stats of a slice written by {@link #writeTo(DataOutput)}.
+    *
+    * @throws IOException if the stats can't be read
+    */
+   @NotNull
+   static BritishMuseumUsageStats readFrom(@NotNull final DataInput input) throws IOException
+      {
+      final BritishMuseumUsageStats stats = new BritishMuseumUsageStats(null, true);
+      stats.firstDate = Checkpoint.readNullableLong(input);
+      stats.timeOfFirstEvent = Checkpoint.readNullableLong(input);
+      stats.currentDate = Checkpoint.readNullableLong(input);
+      stats.timeOfEarliestEvent = Checkpoint.readNullableLong(input);
+      stats.timeOfLatestEvent = Checkpoint.readNullableLong(input);
+      for (int mode = 0; mode < NUM_ACTIVITY_MODES; mode++)
+         {
+         stats.isTimeOfMostRecentEventKnown[mode] = input.readBoolean();
+         stats.timesOfMostRecentEvents[mode] = Checkpoint.readNullableLong(input);
+         if (input.readBoolean())
+            {
+            stats.leadingEvents[mode] = new LeadingEvent(input.readLong(), input.readUTF());
+            }
+         }
+      stats.dayCounters.read(input);
+      try
+         {
+         stats.activityMode = BritishMuseumConstants.ActivityMode.valueOf(input.readUTF());
+         }
+      catch (IllegalArgumentException e)
+         {
+         throw new IOException("Unknown activity mode in the stats", e);
+         }
+      stats.isCurrentDayPartial = input.readBoolean();
+      if (input.readBoolean())
+         {
+         stats.firstDayCounters = new DayCounters();
+         stats.firstDayCounters.read(input);
+         stats.firstDayTimeOfLatestEvent = Checkpoint.readNullableLong(input);
+         }
+      final int numRows = input.readInt();
+      for (int i = 0; i < numRows; i++)
+         {
+         stats.dayRows.add(input.readUTF());
+         }
+      return stats;
+      }
+
+   /** Where the rows go, or <code>null</code> if they're kept in {@link #dayRows}. */
+   @Nullable
+   private final RowWriter rowWriter;
+
+   /** Whether these are the stats of a slice, which doesn't necessarily start at the beginning. */
+   private final boolean isSlice;
+
+   @NotNull
+   private final List<String> dayRows = new ArrayList<String>();
+
+   @NotNull
+   private final DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+   // the date and time of the first event, which a slice needs for merging with the slice before it
+   @Nullable
+   private Long firstDate = null;
+   @Nullable
+   private Long timeOfFirstEvent = null;
+
+   @Nullable
+   private Long currentDate = null;
+   @Nullable
+   private Long timeOfEarliestEvent = null;
+   @Nullable
+   private Long timeOfLatestEvent = null;
+
+   /** The time of the most recent event of each activity mode, indexed by {@link BritishMuseumConstants.ActivityMode#ordinal()}. */
+   @NotNull
+   private final Long[] timesOfMostRecentEvents = new Long[NUM_ACTIVITY_MODES];
+
+   /** Whether the time of the most recent event of each mode is known, which it isn't at the start of a slice. */
+   @NotNull
+   private final boolean[] isTimeOfMostRecentEventKnown = new boolean[NUM_ACTIVITY_MODES];
+
+   /** The first event of each mode whose most recent event was before the slice, which is counted when merging. */
+   @NotNull
+   private final LeadingEvent[] leadingEvents = new LeadingEvent[NUM_ACTIVITY_MODES];
+
+   @NotNull
+   private final DayCounters dayCounters = new DayCounters();
+
+   @NotNull
+   private BritishMuseumConstants.ActivityMode activityMode = BritishMuseumConstants.ActivityMode.UNKNOWN;
+
+   /** Whether the counters of the current day are missing the events before the slice. */
+   private boolean isCurrentDayPartial = false;
+
+   // the counters of the slice's first day, once it's over, if they were missing the events before the slice
+   @Nullable
+   private DayCounters firstDayCounters = null;
+   @Nullable
+   private Long firstDayTimeOfLatestEvent = null;
+
+   /** Creates the stats of all the events, which writes the rows to the given {@link RowWriter}. */
+   BritishMuseumUsageStats(@NotNull final RowWriter rowWriter)
+      {
+      this(rowWriter, false);
+      }
+
+   private BritishMuseumUsageStats(@Nullable final RowWriter rowWriter, final boolean isSlice)
+      {
+      this.rowWriter = rowWriter;
+      this.isSlice = isSlice;
+      for (int mode = 0; mode < NUM_ACTIVITY_MODES; mode++)
+         {
+         isTimeOfMostRecentEventKnown[mode] = !isSlice;
+         }
+      }
+
+   void processEvent(@NotNull final Long eventDate,
+                     final long eventTime,
+                     final int eventTypeId,
+                     @NotNull final String eventType,
+                     @NotNull final String eventParams)
+      {
+      if (firstDate == null)
+         {
+         firstDate = eventDate;
+         timeOfFirstEvent = eventTime;
+         }
+
+      // see whether we need to start a new day
+      if (!eventDate.equals(currentDate))
+         {
+         // close the day, unless this is the first record we've seen (in which case the currentDate is null)
+         if (currentDate != null)
+            {
+            closeDay();
+            }
+
+         startDay(eventDate, eventTime);
+         }
+      timeOfLatestEvent = eventTime;
+
+      // figure out what mode we're in
+      activityMode = BritishMuseumConstants.ACTIVITY_MODES_BY_TYPE_ID[eventTypeId];
+
+      switch (activityMode)
+         {
+         case INIT:
+            countEvent(activityMode, eventTime, eventParams);
+            setTimeOfMostRecentEvent(activityMode, eventTime);
+
+            if (BritishMuseumConstants.EVENT_INIT_BEGIN.equals(eventType))
+               {
+               // An init means that we need to reset the times for the other activity types
+               setTimeOfMostRecentEvent(BritishMuseumConstants.ActivityMode.ACTIVE, null);
+               setTimeOfMostRecentEvent(BritishMuseumConstants.ActivityMode.IDLE, null);
+               setTimeOfMostRecentEvent(BritishMuseumConstants.ActivityMode.ERROR, null);
+               }
+            else if (BritishMuseumConstants.EVENT_INIT_DONE.equals(eventType))
+               {
+               setTimeOfMostRecentEvent(activityMode, null);
+               }
+            break;
+         case ACTIVE:
+            countEvent(activityMode, eventTime, eventParams);
+            setTimeOfMostRecentEvent(activityMode, eventTime);
+
+            if (BritishMuseumConstants.EVENT_TOUR_END.equals(eventType))
+               {
+               setTimeOfMostRecentEvent(activityMode, null);
+               }
+            break;
+         case IDLE:
+            countEvent(activityMode, eventTime, eventParams);
+            setTimeOfMostRecentEvent(activityMode, eventTime);
+
+            if (BritishMuseumConstants.EVENT_IDLE_END.equals(eventType))
+               {
+               setTimeOfMostRecentEvent(activityMode, null);
+               }
+            break;
+         case ERROR:
+            countEvent(activityMode, eventTime, eventParams);
+            setTimeOfMostRecentEvent(activityMode, eventTime);
+
+            if (BritishMuseumConstants.EVENT_FLASH_WATCHDOG_ERROR_DETECTED.equals(eventType))
+               {
+               dayCounters.numErrors++;
+               }
+            else if (BritishMuseumConstants.EVENT_FLASH_WATCHDOG_FORCE_BROWSER_RELOAD.equals(eventType))
+               {
+               dayCounters.numReloads++;
+               setTimeOfMostRecentEvent(activityMode, null);
+               }
+            break;
+         case UNKNOWN:
+         default:
+            System.err.println("Unexpected activity mode [" + activityMode + "] for event: " + eventType);
+            break;
+         }
+      }
+
+   /**
+    * Counts the part of an event which depends on the most recent event of the same mode: whether it starts a new period
+    * of that mode, and the time since that most recent event.  If the most recent event might be before the slice, the
+    * event is kept, and counted when merging instead.
+    */
+   private void countEvent(@NotNull final BritishMuseumConstants.ActivityMode mode, final long eventTime, @NotNull final String eventParams)
+      {
+      if (isTimeOfMostRecentEventKnown[mode.ordinal()])
+         {
+         countEvent(mode, eventTime, eventParams, timesOfMostRecentEvents[mode.ordinal()]);
+         }
+      else
+         {
+         leadingEvents[mode.ordinal()] = new LeadingEvent(eventTime, eventParams);
+         }
+      }
+
+   private void countEvent(@NotNull final BritishMuseumConstants.ActivityMode mode,
+                           final long eventTime,
+                           @NotNull final String eventParams,
+                           @Nullable final Long timeOfMostRecentEvent)
+      {
+      switch (mode)
+         {
+         case INIT:
+            if (timeOfMostRecentEvent == null)
+               {
+               dayCounters.numInits++;
+               }
+            break;
+         case ACTIVE:
+            if (timeOfMostRecentEvent == null)
+               {
+               dayCounters.numTours++;
+               dayCounters.tourCounts.put(eventParams, dayCounters.tourCounts.get(eventParams) + 1);
+               }
+            break;
+         case IDLE:
+            if (timeOfMostRecentEvent == null)
+               {
+               dayCounters.numIdles++;
+               }
+            break;
+         default:
+            break;
+         }
+      dayCounters.durations[mode.ordinal()] += getElapsedTime(eventTime, timeOfMostRecentEvent);
+      }
+
+   private void setTimeOfMostRecentEvent(@NotNull final BritishMuseumConstants.ActivityMode mode, @Nullable final Long time)
+      {
+      timesOfMostRecentEvents[mode.ordinal()] = time;
+      isTimeOfMostRecentEventKnown[mode.ordinal()] = true;
+      }
+
+   private long getElapsedTime(final long currentEventTime, final Long previousEventTime)
+      {
+      return (previousEventTime == null) ? 0 : currentEventTime - previousEventTime;
+      }
+
+   /**
+    * Appends the stats of the given slice, which must start where these stats end, writing its rows to this
+    * {@link RowWriter} (or keeping them, if this is a slice too).  The given slice must not be used afterwards.
+    */
+   void append(@NotNull final BritishMuseumUsageStats slice)
+      {
+      if (slice.firstDate == null)
+         {
+         return;
+         }
+
+      // the slice's first day either continues the current day, or starts a new one
+      if (!slice.firstDate.equals(currentDate))
+         {
+         if (currentDate != null)
+            {
+            closeDay();
+            }
+         startDay(slice.firstDate, slice.timeOfFirstEvent);
+         }
+      if (firstDate == null)
+         {
+         firstDate = slice.firstDate;
+         timeOfFirstEvent = slice.timeOfFirstEvent;
+         }
+
+      // now count the slice's leading events (which are all on its first day), or pass them on if we don't know the
+      // most recent events of their modes either
+      for (int mode = 0; mode < NUM_ACTIVITY_MODES; mode++)
+         {
+         final LeadingEvent event = slice.leadingEvents[mode];
+         if (event != null)
+            {
+            if (isTimeOfMostRecentEventKnown[mode])
+               {
+               countEvent(BritishMuseumConstants.ActivityMode.values()[mode], event.time, event.params, timesOfMostRecentEvents[mode]);
+               }
+            else
+               {
+               leadingEvents[mode] = event;
+               }
+            }
+         if (slice.isTimeOfMostRecentEventKnown[mode])
+            {
+            timesOfMostRecentEvents[mode] = slice.timesOfMostRecentEvents[mode];
+            isTimeOfMostRecentEventKnown[mode] = true;
+            }
+         }
+
+      if (slice.firstDayCounters != null)
+         {
+         dayCounters.add(slice.firstDayCounters);
+         timeOfLatestEvent = slice.firstDayTimeOfLatestEvent;
+         closeDay();
+
+         currentDate = slice.currentDate;
+         timeOfEarliestEvent = slice.timeOfEarliestEvent;
+         dayCounters.reset();
+         isCurrentDayPartial = slice.isCurrentDayPartial;
+         }
+      dayCounters.add(slice.dayCounters);
+      for (final String row : slice.dayRows)
+         {
+         writeDayRow(row);
+         }
+
+      timeOfLatestEvent = slice.timeOfLatestEvent;
+      activityMode = slice.activityMode;
+      }
+
+   /** Writes the row for the current day, which might not be over yet. */
+   void writeCurrentDayRow()
+      {
+      writeDayRow(createDayRow());
+      }
+
+   /**
+    * Writes these stats to the given output, so that they can be read with {@link #readFrom(DataInput)}, e.g. by the
+    * machine which merges them with the stats of the other slices.  Any rows not yet written are included.
+    *
+    * @throws IOException if the stats can't be written
+    */
+   void writeTo(@NotNull final DataOutput output) throws IOException
+      {
+      Checkpoint.writeNullableLong(output, firstDate);
+      Checkpoint.writeNullableLong(output, timeOfFirstEvent);
+      Checkpoint.writeNullableLong(output, currentDate);
+      Checkpoint.writeNullableLong(output, timeOfEarliestEvent);
+      Checkpoint.writeNullableLong(output, timeOfLatestEvent);
+      for (int mode = 0; mode < NUM_ACTIVITY_MODES; mode++)
+         {
+         output.writeBoolean(isTimeOfMostRecentEventKnown[mode]);
+         Checkpoint.writeNullableLong(output, timesOfMostRecentEvents[mode]);
+         output.writeBoolean(leadingEvents[mode] != null);
+         if (leadingEvents[mode] != null)
+            {
+            output.writeLong(leadingEvents[mode].time);
+            output.writeUTF(leadingEvents[mode].params);
+            }
+         }
+      dayCounters.write(output);
+      output.writeUTF(activityMode.name());
+      output.writeBoolean(isCurrentDayPartial);
+      output.writeBoolean(firstDayCounters != null);
+      if (firstDayCounters != null)
+         {
+         firstDayCounters.write(output);
+         Checkpoint.writeNullableLong(output, firstDayTimeOfLatestEvent);
+         }
+      output.writeInt(dayRows.size());
+      for (final String row : dayRows)
+         {
+         output.writeUTF(row);
+         }
+      }
+
+   private void writeDayRow(@NotNull final String row)
+      {
+      if (rowWriter != null)
+         {
+         rowWriter.writeDayRow(row);
+         }
+      else
+         {
+         dayRows.add(row);
+         }
+      }
+
+   private void closeDay()
+      {
+      if (isCurrentDayPartial)
+         {
+         // the day's row can't be written until the counters from before the slice are added
+         firstDayCounters = new DayCounters();
+         firstDayCounters.add(dayCounters);
+         firstDayTimeOfLatestEvent = timeOfLatestEvent;
+         isCurrentDayPartial = false;
+         }
+      else
+         {
+         writeDayRow(createDayRow());
+         }
+      }
+
+   private void startDay(@NotNull final Long date, final long timeOfEarliestEvent)
+      {
+      // The first day of a slice may continue a day from before the slice, in which case the most recent events are
+      // still unknown.  Otherwise, every mode starts afresh.
+      final boolean isFirstDayOfSlice = isSlice && (currentDate == null);
+      currentDate = date;
+      this.timeOfEarliestEvent = timeOfEarliestEvent;
+      timeOfLatestEvent = null;
+      dayCounters.reset();
+      activityMode = BritishMuseumConstants.ActivityMode.UNKNOWN;
+      if (isFirstDayOfSlice)
+         {
+         isCurrentDayPartial = true;
+         }
+      else
+         {
+         for (int mode = 0; mode < NUM_ACTIVITY_MODES; mode++)
+            {
+            timesOfMostRecentEvents[mode] = null;
+            isTimeOfMostRecentEventKnown[mode] = true;
+            }
+         }
+      }
+
+   @NotNull
+   private String createDayRow()
+      {
+      final StringBuilder sb = new StringBuilder();
+
+      final DateTime currentDateJoda = new DateTime(currentDate, BritishMuseumConstants.GMT_TIME_ZONE);
+      final DateTime timeOfFirstEventJoda = new DateTime(timeOfEarliestEvent, BritishMuseumConstants.GMT_TIME_ZONE);
+      final DateTime timeOfLastEventJoda = new DateTime(timeOfLatestEvent, BritishMuseumConstants.GMT_TIME_ZONE);
+
+      sb.append(dateTimeFormatter.print(currentDateJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dateTimeFormatter.print(timeOfFirstEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dateTimeFormatter.print(timeOfLastEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(currentDate).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(timeOfEarliestEvent).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(timeOfLatestEvent).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.durations[BritishMuseumConstants.ActivityMode.INIT.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.durations[BritishMuseumConstants.ActivityMode.ACTIVE.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.durations[BritishMuseumConstants.ActivityMode.IDLE.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.durations[BritishMuseumConstants.ActivityMode.ERROR.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.numInits).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.numTours).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      for (int i = 0; i < PANO_IDS.length; i++)
+         {
+         sb.append(dayCounters.tourCounts.get(PANO_IDS[i])).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         }
+      sb.append(dayCounters.numIdles).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.numErrors).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.numReloads).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      return sb.toString();
+      }
+
+   /** An event whose effect depends on the most recent event of its mode before the slice, so it's counted when merging. */
+   private static final class LeadingEvent
+      {
+      private final long time;
+
+      @NotNull
+      private final String params;
+
+      private LeadingEvent(final long time, @NotNull final String params)
+         {
+         this.time = time;
+         this.params = params;
+         }
+      }
+
+   /** The counters of a day's row, which can be added together when a day is split across slices. */
+   private static final class DayCounters
+      {
+      /** Indexed by {@link BritishMuseumConstants.ActivityMode#ordinal()}. */
+      @NotNull
+      private final long[] durations = new long[NUM_ACTIVITY_MODES];
+
+      private int numInits = 0;
+      private int numIdles = 0;
+      private int numTours = 0;
+      private int numErrors = 0;
+      private int numReloads = 0;
+
+      @NotNull
+      private final Map<String, Integer> tourCounts = new HashMap<String, Integer>();
+
+      private DayCounters()
+         {
+         reset();
+         }
+
+      private void reset()
+         {
+         for (int mode = 0; mode < durations.length; mode++)
+            {
+            durations[mode] = 0;
+            }
+         numInits = 0;
+         numIdles = 0;
+         numTours = 0;
+         numErrors = 0;
+         numReloads = 0;
+         for (final String panoId : PANO_IDS)
+            {
+            tourCounts.put(panoId, 0);
+            }
+         }
+
+      private void add(@NotNull final DayCounters other)
+         {
+         for (int mode = 0; mode < durations.length; mode++)
+            {
+            durations[mode] += other.durations[mode];
+            }
+         numInits += other.numInits;
+         numIdles += other.numIdles;
+         numTours += other.numTours;
+         numErrors += other.numErrors;
+         numReloads += other.numReloads;
+         for (final String panoId : PANO_IDS)
+            {
+            tourCounts.put(panoId, tourCounts.get(panoId) + other.tourCounts.get(panoId));
+            }
+         }
+
+      private void write(@NotNull final DataOutput output) throws IOException
+         {
+         for (final long duration : durations)
+            {
+            output.writeLong(duration);
+            }
+         output.writeInt(numInits);
+         output.writeInt(numIdles);
+         output.writeInt(numTours);
+         output.writeInt(numErrors);
+         output.writeInt(numReloads);
+         Checkpoint.writeCounts(output, PANO_IDS, tourCounts);
+         }
+
+      private void read(@NotNull final DataInput input) throws IOException
+         {
+         for (int mode = 0; mode < durations.length; mode++)
+            {
+            durations[mode] = input.readLong();
+            }
+         numInits = input.readInt();
+         numIdles = input.readInt();
+         numTours = input.readInt();
+         numErrors = input.readInt();
+         numReloads = input.readInt();
+         Checkpoint.readCounts(input, PANO_IDS, tourCounts);
+         }
+      }
+   }
@@ -0,0 +1,19 @@
+package org.createlab.log.event;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A {@link LineProcessor} which can also accept lines as raw bytes, so that readers which work at the byte level (such
+ * as the {@link MappedLineReader}) don't need to decode every line into a {@link String} first.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+interface ByteLineProcessor extends LineProcessor
+   {
+   /**
+    * Processes the line contained in the given <code>bytes</code>, starting at <code>offset</code> and spanning
+    * <code>length</code> bytes.  The line terminator is not included.  The array is owned by the caller and may be
+    * reused as soon as this method returns, so implementations must not hold on to it.
+    */
+   void processLine(@NotNull final byte[] bytes, final int offset, final int length);
+   }
@@ -0,0 +1,239 @@
+package org.createlab.log.event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Records how far a {@link Checkpointable} processor got through a file, and the processor's state at that point.  The
+ * file is identified by its first few bytes (its fingerprint), so that a rotated file isn't mistaken for the one which
+ * was read.  Checkpoints are saved to a temporary file which then replaces the old checkpoint, so a crash while saving
+ * leaves the old checkpoint intact.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class Checkpoint
+   {
+   private static final int MAGIC = 0x45564350; // "EVCP"
+   private static final int VERSION = 1;
+
+   /** The number of bytes at the start of the file which are used to recognize it. */
+   private static final int FINGERPRINT_SIZE = 256;
+
+   /** Returns the saved checkpoint, or <code>null</code> if the checkpoint file doesn't exist (yet). */
+   @Nullable
+   static Checkpoint load(@NotNull final File checkpointFile) throws IOException
+      {
+      if (!checkpointFile.exists())
+         {
+         return null;
+         }
+
+      final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+      try
+         {
+         if (inputStream.readInt() != MAGIC)
+            {
+            throw new IOException("File [" + checkpointFile + "] is not a checkpoint");
+            }
+         final int version = inputStream.readInt();
+         if (version != VERSION)
+            {
+            throw new IOException("Unsupported version [" + version + "] of checkpoint file [" + checkpointFile + "]");
+            }
+         final String processorClassName = inputStream.readUTF();
+         final long position = inputStream.readLong();
+         final byte[] fingerprint = new byte[inputStream.readInt()];
+         inputStream.readFully(fingerprint);
+         final byte[] state = new byte[inputStream.readInt()];
+         inputStream.readFully(state);
+         return new Checkpoint(processorClassName, position, fingerprint, state);
+         }
+      finally
+         {
+         inputStream.close();
+         }
+      }
+
+   /** Creates a checkpoint of the given processor, which has processed the given file up to the given position. */
+   @NotNull
+   static Checkpoint create(@NotNull final Checkpointable processor, final long position, @NotNull final byte[] fingerprint) throws IOException
+      {
+      final ByteArrayOutputStream state = new ByteArrayOutputStream();
+      final DataOutputStream stateOutputStream = new DataOutputStream(state);
+      processor.saveCheckpoint(stateOutputStream);
+      stateOutputStream.close();
+      return new Checkpoint(processor.getClass().getName(), position, fingerprint, state.toByteArray());
+      }
+
+   /** Returns the fingerprint of the given file, which is simply its first few bytes. */
+   @NotNull
+   static byte[] readFingerprint(@NotNull final File file) throws IOException
+      {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try
+         {
+         final byte[] fingerprint = new byte[(int)Math.min(FINGERPRINT_SIZE, randomAccessFile.length())];
+         randomAccessFile.readFully(fingerprint);
+         return fingerprint;
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+      }
+
+   /** Writes the counts for the given keys, in the order of the keys. */
+   static <K> void writeCounts(@NotNull final DataOutput output, @NotNull final K[] keys, @NotNull final Map<K, Integer> counts) throws IOException
+      {
+      output.writeInt(keys.length);
+      for (final K key : keys)
+         {
+         output.writeInt(counts.get(key));
+         }
+      }
+
+   /** Reads the counts written by {@link #writeCounts(DataOutput, Object[], Map)} for the same keys. */
+   static <K> void readCounts(@NotNull final DataInput input, @NotNull final K[] keys, @NotNull final Map<K, Integer> counts) throws IOException
+      {
+      final int numKeys = input.readInt();
+      if (numKeys != keys.length)
+         {
+         throw new IOException("Expected [" + keys.length + "] counts in the checkpoint, but found [" + numKeys + "]");
+         }
+      for (final K key : keys)
+         {
+         counts.put(key, input.readInt());
+         }
+      }
+
+   /** Writes the given counts in the same format as {@link #writeCounts(DataOutput, Object[], Map)}. */
+   static void writeCounts(@NotNull final DataOutput output, @NotNull final int[] counts) throws IOException
+      {
+      output.writeInt(counts.length);
+      for (final int count : counts)
+         {
+         output.writeInt(count);
+         }
+      }
+
+   /** Reads the counts written by {@link #writeCounts(DataOutput, int[])} into an array of the same length. */
+   static void readCounts(@NotNull final DataInput input, @NotNull final int[] counts) throws IOException
+      {
+      final int numCounts = input.readInt();
+      if (numCounts != counts.length)
+         {
+         throw new IOException("Expected [" + counts.length + "] counts in the checkpoint, but found [" + numCounts + "]");
+         }
+      for (int i = 0; i < counts.length; i++)
+         {
+         counts[i] = input.readInt();
+         }
+      }
+
+   static void writeNullableLong(@NotNull final DataOutput output, @Nullable final Long value) throws IOException
+      {
+      output.writeBoolean(value != null);
+      if (value != null)
+         {
+         output.writeLong(value);
+         }
+      }
+
+   @Nullable
+   static Long readNullableLong(@NotNull final DataInput input) throws IOException
+      {
+      return input.readBoolean() ? input.readLong() : null;
+      }
+
+   @NotNull
+   private final String processorClassName;
+
+   private final long position;
+
+   @NotNull
+   private final byte[] fingerprint;
+
+   @NotNull
+   private final byte[] state;
+
+   private Checkpoint(@NotNull final String processorClassName, final long position, @NotNull final byte[] fingerprint, @NotNull final byte[] state)
+      {
+      this.processorClassName = processorClassName;
+      this.position = position;
+      this.fingerprint = fingerprint;
+      this.state = state;
+      }
+
+   /** Returns the position in the file up to which the processor had processed it. */
+   long getPosition()
+      {
+      return position;
+      }
+
+   /**
+    * Returns <code>true</code> if the given file is (still) the one which was read, i.e. it's at least as long as the
+    * position reached and it starts with the same bytes.
+    */
+   boolean isSameFile(@NotNull final File file) throws IOException
+      {
+      if (file.length() < position)
+         {
+         return false;
+         }
+      final byte[] currentFingerprint = readFingerprint(file);
+      return currentFingerprint.length >= fingerprint.length &&
+             Arrays.equals(fingerprint, Arrays.copyOf(currentFingerprint, fingerprint.length));
+      }
+
+   /** Restores the given processor to the saved state, failing if the checkpoint was saved by a different processor. */
+   void restore(@NotNull final Checkpointable processor) throws IOException
+      {
+      if (!processorClassName.equals(processor.getClass().getName()))
+         {
+         throw new IOException("The checkpoint was saved by [" + processorClassName + "], not [" + processor.getClass().getName() + "]");
+         }
+      processor.restoreCheckpoint(new DataInputStream(new ByteArrayInputStream(state)));
+      }
+
+   void save(@NotNull final File checkpointFile) throws IOException
+      {
+      final File tempFile = new File(checkpointFile.getPath() + ".tmp");
+      final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try
+         {
+         outputStream.writeInt(MAGIC);
+         outputStream.writeInt(VERSION);
+         outputStream.writeUTF(processorClassName);
+         outputStream.writeLong(position);
+         outputStream.writeInt(fingerprint.length);
+         outputStream.write(fingerprint);
+         outputStream.writeInt(state.length);
+         outputStream.write(state);
+         }
+      finally
+         {
+         outputStream.close();
+         }
+
+      // File.renameTo() won't replace an existing file on all platforms
+      if (!tempFile.renameTo(checkpointFile) && !(checkpointFile.delete() && tempFile.renameTo(checkpointFile)))
+         {
+         throw new IOException("Failed to replace checkpoint file [" + checkpointFile + "] with [" + tempFile + "]");
+         }
+      }
+   }
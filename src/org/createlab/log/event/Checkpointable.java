@@ -0,0 +1,24 @@
+package org.createlab.log.event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A processor whose in-progress state can be saved once it has processed part of a file, and restored by a later run,
+ * which then only needs to process whatever has since been appended to the file.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+interface Checkpointable
+   {
+   /** Saves the processor's state.  Called after the processor has finished with the lines read so far. */
+   void saveCheckpoint(@NotNull final DataOutput output) throws IOException;
+
+   /**
+    * Restores the state saved by {@link #saveCheckpoint(DataOutput)}.  Called before any lines are processed, and the
+    * processor must then carry on from the restored state (appending to its output files, rather than creating them).
+    */
+   void restoreCheckpoint(@NotNull final DataInput input) throws IOException;
+   }
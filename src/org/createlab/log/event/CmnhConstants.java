@@ -3,9 +3,7 @@ package org.createlab.log.event;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.TimeZone;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -57,22 +55,14 @@ final class CmnhConstants
       @Nullable
       private final List<String> paramNames;
 
-      private static final Map<String, EventType> EVENT_TYPES_BY_NAME;
-
-      static
-         {
-         final Map<String, EventType> eventTypesByName = new HashMap<String, EventType>(EventType.values().length);
-         for (final EventType eventType : EventType.values())
-            {
-            eventTypesByName.put(eventType.getName(), eventType);
-            }
-         EVENT_TYPES_BY_NAME = Collections.unmodifiableMap(eventTypesByName);
-         }
+      private static final EventType[] VALUES = values();
 
+      /** Looks the name up with the perfect hash of {@link #SUPPORTED_EVENT_TYPES}, in which each type's ID is its ordinal. */
       @Nullable
       public static EventType findByName(@Nullable final String name)
          {
-         return EVENT_TYPES_BY_NAME.get(name);
+         final int id = SUPPORTED_EVENT_TYPES.getId(name);
+         return (id >= 0) ? VALUES[id] : null;
          }
 
       public static boolean isSupportedType(@Nullable final String name)
@@ -113,6 +103,7 @@ final class CmnhConstants
       {
       SUPPORTED_EVENT_TYPES = new SupportedEventTypes();
 
+      // registered in declaration order, so that each type's ID is its ordinal
       for (final EventType eventType : EventType.values())
          {
          final List<String> paramNames = eventType.getParameterNames();
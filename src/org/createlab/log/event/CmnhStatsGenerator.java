@@ -1,44 +1,113 @@
 package org.createlab.log.event;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
 import static org.createlab.log.event.CmnhConstants.EventType;
 
 /**
+ * <p>
+ * Generates the daily usage stats (daily-usage-stats.csv) and session stats (session-stats.csv) of the CMNH kiosks from a
+ * sorted event log.
+ * </p>
+ * <p>
+ * With {@link #setNumThreads(int) more than one thread}, the events are partitioned by date, and the stats of each day
+ * are computed by a pool of worker threads as a separate slice (see {@link CmnhUsageStats}), while the events of the
+ * following days are still being read.  The slices are merged in date order, which reconciles the activity mode and
+ * session carried over from the day before, and writes the rows, so the output is identical to that of a serial run.
+ * At most two days per thread are held in memory at any one time.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
-public final class CmnhStatsGenerator extends BaseEventLogLineProcessor
+public final class CmnhStatsGenerator extends BaseEventLogLineProcessor implements Checkpointable
    {
+   private static final String DAILY_USAGE_STATS_FILENAME = "daily-usage-stats.csv";
+   private static final String SESSION_STATS_FILENAME = "session-stats.csv";
+
+   private static final int MAX_PENDING_DAYS_PER_THREAD = 2;
+
+   /** Created lazily, once the output directory is known. */
+   @Nullable
+   private DailyUsageStats eventProcessor = null;
+
+   private int numThreads = 1;
+
+   @Nullable
+   private ExecutorService pool = null;
+
+   /** The days whose stats are being computed, in date order. */
    @NotNull
-   private final DailyUsageStats eventProcessor = new DailyUsageStats();
+   private final LinkedList<Future<CmnhUsageStats>> pendingDays = new LinkedList<Future<CmnhUsageStats>>();
+
+   /** The events of the day being read, when computing the stats in parallel. */
+   @Nullable
+   private DayOfEvents currentDay = null;
 
+   /** The number of events of each type, indexed by {@link EventType#ordinal()}. */
    @NotNull
-   private final Map<EventType, Integer> eventTypeCounts = new HashMap<EventType, Integer>();
+   private final int[] eventTypeCounts = new int[EventType.values().length];
+
+   /**
+    * Sets the number of threads with which to compute the stats of different days in parallel, which must be done
+    * before processing any lines.  The default is 1, which computes the stats serially, on the calling thread, and
+    * writes each row as soon as its day or session is over.
+    */
+   void setNumThreads(final int numThreads)
+      {
+      this.numThreads = numThreads;
+      }
 
-   public CmnhStatsGenerator()
+   @Override
+   protected TimeZone getTimeZone()
       {
-      for (final EventType eventType : EventType.values())
+      return TimeZone.getTimeZone("GMT-5");
+      }
+
+   @NotNull
+   private DailyUsageStats getEventProcessor()
+      {
+      if (eventProcessor == null)
          {
-         eventTypeCounts.put(eventType, 0);
+         eventProcessor = new DailyUsageStats(getOutputFile(DAILY_USAGE_STATS_FILENAME), getOutputFile(SESSION_STATS_FILENAME));
          }
+      return eventProcessor;
       }
 
    @Override
    protected final void doBeforeProcessingLines()
       {
-      eventProcessor.beforeProcessingAnyEvents();
+      getEventProcessor().beforeProcessingAnyEvents();
+      if (numThreads > 1)
+         {
+         final AtomicInteger numThreadsCreated = new AtomicInteger(0);
+         pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+         {
+         @Override
+         public Thread newThread(@NotNull final Runnable runnable)
+            {
+            final Thread thread = new Thread(runnable, "CmnhStatsGenerator-" + numThreadsCreated.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+            }
+         });
+         }
       }
 
    @Override
@@ -50,8 +119,20 @@ public final class CmnhStatsGenerator extends BaseEventLogLineProcessor
       final EventType eventType = EventType.findByName(eventTypeName);
       if (eventType != null)
          {
-         eventTypeCounts.put(eventType, eventTypeCounts.get(eventType) + 1);
-         eventProcessor.processEvent(dateInMillis, eventTimeInMillis, eventType, eventParams);
+         eventTypeCounts[eventType.ordinal()]++;
+         if (pool == null)
+            {
+            getEventProcessor().processEvent(dateInMillis, eventTimeInMillis, eventType, eventParams);
+            }
+         else
+            {
+            if (currentDay == null || currentDay.date != dateInMillis)
+               {
+               submitCurrentDay();
+               currentDay = new DayOfEvents(dateInMillis);
+               }
+            currentDay.add(eventTimeInMillis, eventType, eventParams);
+            }
          }
       else
          {
@@ -59,133 +140,177 @@ public final class CmnhStatsGenerator extends BaseEventLogLineProcessor
          }
       }
 
+   private void submitCurrentDay()
+      {
+      if (currentDay != null)
+         {
+         if (pendingDays.size() >= numThreads * MAX_PENDING_DAYS_PER_THREAD)
+            {
+            mergeOldestDay();
+            }
+         pendingDays.add(pool.submit(currentDay));
+         currentDay = null;
+         }
+      }
+
+   /**
+    * Waits for the stats of the oldest pending day, and merges them into the stats, which writes its completed rows.
+    * Anything thrown while computing the day's stats is rethrown, just as it would have been by a serial run.
+    */
+   private void mergeOldestDay()
+      {
+      final CmnhUsageStats oldestDay;
+      try
+         {
+         oldestDay = pendingDays.removeFirst().get();
+         }
+      catch (InterruptedException e)
+         {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for the stats of a day to be computed", e);
+         }
+      catch (ExecutionException e)
+         {
+         final Throwable cause = e.getCause();
+         if (cause instanceof RuntimeException)
+            {
+            throw (RuntimeException)cause;
+            }
+         if (cause instanceof Error)
+            {
+            throw (Error)cause;
+            }
+         throw new IllegalStateException("Failed to compute the stats of a day", cause);
+         }
+      getEventProcessor().append(oldestDay);
+      }
+
    @Override
    public final void doAfterProcessingLines()
       {
-      eventProcessor.afterProcessingAnyEvents();
+      if (pool != null)
+         {
+         submitCurrentDay();
+         while (!pendingDays.isEmpty())
+            {
+            mergeOldestDay();
+            }
+         pool.shutdown();
+         pool = null;
+         }
+      getEventProcessor().afterProcessingAnyEvents();
 
-      for (final EventType eventType : eventTypeCounts.keySet())
+      for (final EventType eventType : EventType.values())
          {
-         final int count = eventTypeCounts.get(eventType);
-         System.out.println("Found [" + count + "] events for type [" + eventType + "]");
+         System.out.println("Found [" + eventTypeCounts[eventType.ordinal()] + "] events for type [" + eventType + "]");
          }
       }
 
-   private static final class DailyUsageStats extends CsvOutputEventProcessor
+   @Override
+   public void saveCheckpoint(@NotNull final DataOutput output) throws IOException
       {
-      private static final Logger LOG = Logger.getLogger(DailyUsageStats.class);
+      Checkpoint.writeCounts(output, eventTypeCounts);
+      getEventProcessor().saveCheckpoint(output);
+      }
 
-      @NotNull
-      private static final String[] INTEREST_POINT_IDS = new String[]{"ip1", "ip2", "ip3", "ip4", "ip5", "ip6", "ip7", "ip8", "ip9", "ip10", "ip11", "ip12", "ip13", "ip14"};
+   @Override
+   public void restoreCheckpoint(@NotNull final DataInput input) throws IOException
+      {
+      Checkpoint.readCounts(input, eventTypeCounts);
+      getEventProcessor().restoreCheckpoint(input);
+      }
 
-      // Including null in the THEME_IDS since null is a valid choice (no theme selected)
-      @NotNull
-      private static final String[] THEME_IDS = new String[]{"null", "theme0", "theme1", "theme2", "theme3", "theme4"};
+   /** The events of one day, whose stats are computed as a separate slice. */
+   private static final class DayOfEvents implements Callable<CmnhUsageStats>
+      {
+      private final long date;
 
-      @NotNull
-      private static final EventType[] INTERACTION_EVENTS = new EventType[]{EventType.MEDIA_PANEL_CLOSE,
-                                                                            EventType.MEDIA_PLAY,
-                                                                            EventType.MEDIA_PAUSE,
-                                                                            EventType.MEDIA_ENDED,
-                                                                            EventType.MEDIA_TIME_CHANGED,
-                                                                            EventType.NAV_RESET_HOME_VIEW,
-                                                                            EventType.THEMES_PANEL_DRAWER_OPEN,
-                                                                            EventType.THEMES_PANEL_DRAWER_CLOSE};
-      @NotNull
-      private static final String[] MEDIA_FILES = new String[]{"auroch_hunt.ogv",
-                                                               "onager_mother_and_foal.ogv",
-                                                               "hunting_dog_party.ogv",
-                                                               "aurochs_horns.ogv",
-                                                               "asian_onager.ogv",
-                                                               "cloaked_hunter.ogv",
-                                                               "aurochs.webm",
-                                                               "beard_3672.webm",
-                                                               "olsen_3649.webm",
-                                                               "abdulaziz_3736.webm",
-                                                               "khan_3745.webm",
-                                                               "beard_3670.webm"
-      };
+      private int size = 0;
 
       @NotNull
-      private static final File DAILY_USAGE_STATS_FILE = new File("daily-usage-stats.csv");
+      private long[] timesInMillis = new long[1024];
 
       @NotNull
-      private static final File SESSION_STATS_FILE = new File("session-stats.csv");
+      private EventType[] types = new EventType[1024];
 
       @NotNull
-      private final PrintStream sessionStatsPrintStream;
+      private String[] params = new String[1024];
 
-      private int sessionNumInterestPointSelections = 0;
-      private int sessionNumThemeSelections = 0;
-      private int sessionNumTaps = 0;
-      private int sessionNumAnimationStarts = 0;
-      private int sessionNumAnimationStops = 0;
-      private int sessionResetToHomeView = 0;
-
-      @NotNull
-      private final DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
-
-      @Nullable
-      private Long currentDate = null;
-      @Nullable
-      private Long timeOfEarliestEvent = null;
-      @Nullable
-      private Long timeOfLatestEvent = null;
-      private Long timeOfPreviousEvent = null;
+      private DayOfEvents(final long date)
+         {
+         this.date = date;
+         }
 
-      private int numInterestPointSelections = 0;
-      private int numThemeSelections = 0;
+      private void add(final long timeInMillis, @NotNull final EventType type, @NotNull final String eventParams)
+         {
+         if (size == timesInMillis.length)
+            {
+            timesInMillis = Arrays.copyOf(timesInMillis, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+            params = Arrays.copyOf(params, size * 2);
+            }
+         timesInMillis[size] = timeInMillis;
+         types[size] = type;
+         params[size] = eventParams;
+         size++;
+         }
 
-      @NotNull
-      private final Map<String, Integer> interestPointSelectionCounts = new HashMap<String, Integer>();
+      @Override
+      public CmnhUsageStats call()
+         {
+         final CmnhUsageStats stats = CmnhUsageStats.createSlice();
+         final Long dateInMillis = date;
+         for (int i = 0; i < size; i++)
+            {
+            stats.processEvent(dateInMillis, timesInMillis[i], types[i], params[i]);
+            }
+         return stats;
+         }
+      }
 
-      @NotNull
-      private final Map<String, Integer> themeSelectionCounts = new HashMap<String, Integer>();
+   private static final class DailyUsageStats extends CsvOutputEventProcessor implements Checkpointable, CmnhUsageStats.RowWriter
+      {
+      private static final Logger LOG = Logger.getLogger(DailyUsageStats.class);
 
       @NotNull
-      private final Map<CmnhConstants.ActivityMode, Integer> activityModeCounts = new HashMap<CmnhConstants.ActivityMode, Integer>();
+      private final File sessionStatsFile;
 
-      @NotNull
-      private final Map<CmnhConstants.ActivityMode, Long> activityModeDurations = new HashMap<CmnhConstants.ActivityMode, Long>();
+      @Nullable
+      private PrintStream sessionStatsPrintStream = null;
 
-      @NotNull
-      private final Map<EventType, Integer> interactionEventCounts = new HashMap<EventType, Integer>();
+      /** The length to which the session stats file is truncated before appending to it, or -1 if we're creating it. */
+      private long sessionStatsResumeFileLength = -1;
 
-      @NotNull
-      private final SortedMap<String, Integer> mediaPlayCounts = new TreeMap<String, Integer>();
+      // the lengths of the stats files, excluding the row for the current day, as of the end of processing
+      private long dailyUsageStatsFileLength = 0;
+      private long sessionStatsFileLength = 0;
 
       @NotNull
-      private CmnhConstants.ActivityMode activityMode = CmnhConstants.ActivityMode.UNKNOWN;
+      private final CmnhUsageStats stats = new CmnhUsageStats(this);
 
-      private DailyUsageStats()
+      private DailyUsageStats(@NotNull final File dailyUsageStatsFile, @NotNull final File sessionStatsFile)
          {
-         super(DAILY_USAGE_STATS_FILE);
+         super(dailyUsageStatsFile);
+         this.sessionStatsFile = sessionStatsFile;
+         }
 
-         if (SESSION_STATS_FILE.exists())
+      @Override
+      protected void doBeforeProcessingAnyEvents()
+         {
+         sessionStatsPrintStream = open(sessionStatsFile, sessionStatsResumeFileLength);
+         if (sessionStatsPrintStream == null)
             {
-            System.err.println("ERROR: File [" + SESSION_STATS_FILE + "] already exists!!! Aborting.");
+            LOG.error("Failed to open the session stats file [" + sessionStatsFile + "]");
+            System.err.println("ERROR: Could not create the session stats file [" + sessionStatsFile + "]. Aborting.");
             System.exit(1);
             }
 
-         PrintStream tempSessionStatsPrintStream = null;
-         try
+         // the headers have already been written if we're resuming from a checkpoint
+         if (isResuming())
             {
-            tempSessionStatsPrintStream = new PrintStream(SESSION_STATS_FILE);
-            }
-         catch (FileNotFoundException e)
-            {
-            LOG.error("FileNotFoundException while trying to generate the session stats file [" + SESSION_STATS_FILE + "]", e);
-            System.err.println("ERROR: Could not create the session stats file [" + SESSION_STATS_FILE + "]. Aborting.");
-            System.exit(1);
+            return;
             }
-         sessionStatsPrintStream = tempSessionStatsPrintStream;
 
-         resetStats(null);
-         }
-
-      @Override
-      protected void doBeforeProcessingAnyEvents()
-         {
          final StringBuilder sb = new StringBuilder();
 
          sb.append("date_formatted").append(CsvOutputEventProcessor.FIELD_DELIMITER);
@@ -208,22 +333,22 @@ public final class CmnhStatsGenerator extends BaseEventLogLineProcessor
          sb.append("num_theme_selections").append(CsvOutputEventProcessor.FIELD_DELIMITER);
          sb.append("num_interest_point_selections").append(CsvOutputEventProcessor.FIELD_DELIMITER);
 
-         for (final String themeId : THEME_IDS)
+         for (final String themeId : CmnhUsageStats.THEME_IDS)
             {
             sb.append("null".equals(themeId) ? "themeNone" : themeId).append(CsvOutputEventProcessor.FIELD_DELIMITER);
             }
 
-         for (final String interestPointId : INTEREST_POINT_IDS)
+         for (final String interestPointId : CmnhUsageStats.INTEREST_POINT_IDS)
             {
             sb.append(interestPointId).append(CsvOutputEventProcessor.FIELD_DELIMITER);
             }
 
-         for (final EventType eventType : INTERACTION_EVENTS)
+         for (final EventType eventType : CmnhUsageStats.INTERACTION_EVENTS)
             {
             sb.append(eventType.getName()).append(CsvOutputEventProcessor.FIELD_DELIMITER);
             }
 
-         for (final String mediaFile : MEDIA_FILES)
+         for (final String mediaFile : CmnhUsageStats.MEDIA_FILES)
             {
             sb.append("play_" + mediaFile).append(CsvOutputEventProcessor.FIELD_DELIMITER);
             }
@@ -254,340 +379,58 @@ public final class CmnhStatsGenerator extends BaseEventLogLineProcessor
          // not used
          }
 
-      private long sessionStartingTime = 0;
-      private long sessionEndingTime = 0;
-      private int sessionCount = 0;
-
       public void processEvent(@NotNull final Long eventDate,
                                final long eventTime,
                                @NotNull final EventType eventType,
                                @NotNull final String eventParams)
          {
-         // see whether we need to start a new day
-         if (!eventDate.equals(currentDate))
-            {
-            // write the stats, unless this is the first record we've seen (in which case the currentDate is null)
-            if (currentDate != null)
-               {
-               writeDaysStats();
-               }
-
-            // See whether an active session was ended because of a new day
-            if (activityMode.equals(CmnhConstants.ActivityMode.ACTIVE))
-               {
-               if (timeOfLatestEvent != null)
-                  {
-                  sessionEndingTime = timeOfLatestEvent;
-                  writeSessionStats();
-                  }
-               else
-                  {
-                  System.err.println("Session was apparently active active at the end of the day, but the timeOfLatestEvent is null.");
-                  }
-               }
-
-            resetStats(eventDate);
-            timeOfEarliestEvent = eventTime;
-            }
-         final long elapsedTimeSinceLastEvent = getElapsedTime(eventTime, timeOfLatestEvent);
-         timeOfPreviousEvent = timeOfLatestEvent;
-         timeOfLatestEvent = eventTime;
-
-         switch (eventType)
-            {
-            case INIT_START:
-               // When we hit an init-start, then the page has just loaded so we don't want to add the elapsed time to
-               // the previous mode, because there really WASN'T a previous mode.  The machine was either just powered
-               // on for the day, rebooted, or the page reloaded (due to either a manual reload or a browser crash and
-               // auto-restart by the watchdog script).  So, instead, we add the elapsed time to the UNKNOWN mode.
-               updateActivityModeDuration(CmnhConstants.ActivityMode.UNKNOWN, elapsedTimeSinceLastEvent);
-
-               // increment the INIT activity mode counter
-               incrementActivityModeCounter(CmnhConstants.ActivityMode.INIT);
-
-               // See whether an active session was ended because of a page reload
-               if (activityMode.equals(CmnhConstants.ActivityMode.ACTIVE))
-                  {
-                  sessionEndingTime = timeOfPreviousEvent;
-                  writeSessionStats();
-                  }
-
-               // We're now in INIT mode
-               activityMode = CmnhConstants.ActivityMode.INIT;
-               break;
-            case INIT_FINISH:
-
-               // init-finish always immediately follows an init-start, so we can simply add the elapsed time since the
-               // last event to the INIT mode duration tracker
-               updateActivityModeDuration(CmnhConstants.ActivityMode.INIT, elapsedTimeSinceLastEvent);
-
-               // We always go into IDLE mode at the end of init-finish.
-               activityMode = CmnhConstants.ActivityMode.IDLE;
-
-               resetSessionStats();
-
-               break;
-            case MEDIA_PANEL_CLOSE:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.MEDIA_PANEL_CLOSE);
-               break;
-            case MEDIA_PLAY:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.MEDIA_PLAY);
-               mediaPlayCounts.put(eventParams, mediaPlayCounts.get(eventParams) + 1);
-               break;
-            case MEDIA_PAUSE:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.MEDIA_PAUSE);
-               break;
-            case MEDIA_ENDED:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.MEDIA_ENDED);
-               break;
-            case MEDIA_TIME_CHANGED:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.MEDIA_TIME_CHANGED);
-               break;
-            case NAV_THEME_CHANGE:
-               numThemeSelections++;
-               sessionNumThemeSelections++;
-
-               themeSelectionCounts.put(eventParams, themeSelectionCounts.get(eventParams) + 1);
-
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               break;
-            case NAV_INTEREST_POINT:
-               numInterestPointSelections++;
-               sessionNumInterestPointSelections++;
-
-               interestPointSelectionCounts.put(eventParams, interestPointSelectionCounts.get(eventParams) + 1);
-
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               break;
-            case NAV_TAP:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               sessionNumTaps++;
-               break;
-            case NAV_RESET_HOME_VIEW:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.NAV_RESET_HOME_VIEW);
-               sessionResetToHomeView++;
-               break;
-            case NAV_MOVE_START:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               sessionNumAnimationStarts++;
-               break;
-            case NAV_MOVE_FINISH:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               sessionNumAnimationStops++;
-               break;
-            case THEMES_PANEL_DRAWER_OPEN:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.THEMES_PANEL_DRAWER_OPEN);
-               break;
-            case THEMES_PANEL_DRAWER_CLOSE:
-               updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
-               incrementInteractionEventCounter(EventType.THEMES_PANEL_DRAWER_CLOSE);
-               break;
-            case IDLE_SCREEN_VISIBLE:
-
-               // increment the IDLE activity mode counter
-               incrementActivityModeCounter(CmnhConstants.ActivityMode.IDLE);
-
-               // In order to get to the idle-screen-visible event, the kiosk must have been idle since the last event,
-               // so the correct thing to do is count the elapsed time since last event towards IDLE
-               updateActivityModeDuration(CmnhConstants.ActivityMode.IDLE, elapsedTimeSinceLastEvent);
-
-               // Going in to IDLE mode means when we were in ACTIVE mode means the active session has ended, so write
-               // out the session stats
-               if (activityMode.equals(CmnhConstants.ActivityMode.ACTIVE))
-                  {
-                  sessionEndingTime = timeOfPreviousEvent;
-                  writeSessionStats();
-                  }
-
-               // The idle screen being visible means we're back in IDLE mode
-               // (and actually have been idle for the past 90 seconds)
-               activityMode = CmnhConstants.ActivityMode.IDLE;
-
-               break;
-            case IDLE_SCREEN_HIDDEN:
-
-               // There are a few instances of two init-finish events in a row (probably due to people double-tapping
-               // the idle mode screen which triggers two init-finish events).  In those cases, go ahead and add the
-               // elapsed time to the IDLE mode, but don't count it as the beginning of a new ACTIVE mode period.
-               if (activityMode.equals(CmnhConstants.ActivityMode.IDLE))
-                  {
-                  // increment the ACTIVE activity mode counter
-                  incrementActivityModeCounter(CmnhConstants.ActivityMode.ACTIVE);
-                  sessionCount++;
-                  }
-               updateActivityModeDuration(CmnhConstants.ActivityMode.IDLE, elapsedTimeSinceLastEvent);
-
-               // The idle screen being hidden means we're back in ACTIVE mode.  Furthermore,
-               // this is the ONLY way we can get into ACTIVE mode.
-               activityMode = CmnhConstants.ActivityMode.ACTIVE;
-
-               // Record the starting time of this new session
-               sessionStartingTime = eventTime;
-
-               break;
-            }
-         }
-
-      private void updateActivityModeDuration(final CmnhConstants.ActivityMode mode, final long elapsedTimeSinceLastEvent)
-         {
-         activityModeDurations.put(mode, activityModeDurations.get(mode) + elapsedTimeSinceLastEvent);
+         stats.processEvent(eventDate, eventTime, eventType, eventParams);
          }
 
-      private void incrementActivityModeCounter(final CmnhConstants.ActivityMode mode)
+      /** Appends the stats of a slice of the events, which starts where the stats so far end. */
+      public void append(@NotNull final CmnhUsageStats slice)
          {
-         activityModeCounts.put(mode, activityModeCounts.get(mode) + 1);
+         stats.append(slice);
          }
 
-      private void incrementInteractionEventCounter(final EventType eventType)
+      @Override
+      public void writeDayRow(@NotNull final String row)
          {
-         interactionEventCounts.put(eventType, interactionEventCounts.get(eventType) + 1);
+         println(row);
          }
 
-      private long getElapsedTime(final long currentEventTime, final Long previousEventTime)
+      @Override
+      public void writeSessionRow(@NotNull final String row)
          {
-         return (previousEventTime == null) ? 0 : currentEventTime - previousEventTime;
+         sessionStatsPrintStream.println(row);
          }
 
       @Override
       public void doAfterProcessingAnyEvents()
          {
-         writeDaysStats();
+         // The current day might not be over yet, so remember where its row starts.  If we resume from a checkpoint, the
+         // row is removed, and written again once the day is over (or at the end of the next run).
+         dailyUsageStatsFileLength = getLength();
+         stats.writeCurrentDayRow();
 
+         sessionStatsFileLength = getLength(sessionStatsFile, sessionStatsPrintStream);
          sessionStatsPrintStream.close();
          }
 
-      private void writeSessionStats()
-         {
-         final StringBuilder sb = new StringBuilder();
-         sb.append(getDateAndTimesAsCsv(sessionStartingTime, sessionEndingTime));
-         sb.append(sessionEndingTime - sessionStartingTime).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-
-         sb.append(sessionNumInterestPointSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(sessionNumThemeSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(sessionNumTaps).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(sessionNumAnimationStarts).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(sessionNumAnimationStops).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(sessionResetToHomeView);
-
-         sessionStatsPrintStream.println(sb);
-
-         resetSessionStats();
-         }
-
-      private void writeDaysStats()
-         {
-         final StringBuilder sb = new StringBuilder();
-
-         sb.append(getDateAndTimesAsCsv(timeOfEarliestEvent, timeOfLatestEvent));
-
-         sb.append(timeOfLatestEvent - timeOfEarliestEvent).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(activityModeDurations.get(CmnhConstants.ActivityMode.INIT)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(activityModeDurations.get(CmnhConstants.ActivityMode.ACTIVE)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(activityModeDurations.get(CmnhConstants.ActivityMode.IDLE)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(activityModeDurations.get(CmnhConstants.ActivityMode.UNKNOWN)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-
-         sb.append(activityModeCounts.get(CmnhConstants.ActivityMode.INIT)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(activityModeCounts.get(CmnhConstants.ActivityMode.ACTIVE)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(activityModeCounts.get(CmnhConstants.ActivityMode.IDLE)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-
-         sb.append(numThemeSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(numInterestPointSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-
-         for (final String themeId : THEME_IDS)
-            {
-            sb.append(themeSelectionCounts.get(themeId)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-            }
-
-         for (final String interestPointId : INTEREST_POINT_IDS)
-            {
-            sb.append(interestPointSelectionCounts.get(interestPointId)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-            }
-
-         for (final EventType eventType : INTERACTION_EVENTS)
-            {
-            sb.append(interactionEventCounts.get(eventType)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-            }
-
-         for (final String mediaFile : MEDIA_FILES)
-            {
-            sb.append(mediaPlayCounts.get(mediaFile)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-            }
-
-         println(sb.toString());
-         }
-
-      private String getDateAndTimesAsCsv(final Long startingTime, final Long endingTime)
-         {
-         final StringBuilder sb = new StringBuilder();
-         final DateTime currentDateJoda = new DateTime(currentDate, CmnhConstants.CMNH_TIME_ZONE);
-         final DateTime timeOfFirstEventJoda = new DateTime(startingTime, CmnhConstants.CMNH_TIME_ZONE);
-         final DateTime timeOfLastEventJoda = new DateTime(endingTime, CmnhConstants.CMNH_TIME_ZONE);
-
-         sb.append(dateTimeFormatter.print(currentDateJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(dateTimeFormatter.print(timeOfFirstEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(dateTimeFormatter.print(timeOfLastEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(currentDate).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(startingTime).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-         sb.append(endingTime).append(CsvOutputEventProcessor.FIELD_DELIMITER);
-
-         return sb.toString();
-         }
-
-      private void resetStats(final Long date)
+      @Override
+      public void saveCheckpoint(@NotNull final DataOutput output) throws IOException
          {
-         currentDate = date;
-
-         timeOfEarliestEvent = null;
-         timeOfLatestEvent = null;
-
-         numInterestPointSelections = 0;
-         numThemeSelections = 0;
-
-         for (final String interestPointId : INTEREST_POINT_IDS)
-            {
-            interestPointSelectionCounts.put(interestPointId, 0);
-            }
-         for (final String themeId : THEME_IDS)
-            {
-            themeSelectionCounts.put(themeId, 0);
-            }
-         for (final CmnhConstants.ActivityMode mode : CmnhConstants.ActivityMode.values())
-            {
-            activityModeCounts.put(mode, 0);
-            activityModeDurations.put(mode, 0L);
-            }
-         for (final EventType eventType : INTERACTION_EVENTS)
-            {
-            interactionEventCounts.put(eventType, 0);
-            }
-         for (final String mediaFile : MEDIA_FILES)
-            {
-            mediaPlayCounts.put(mediaFile, 0);
-            }
-
-         activityMode = CmnhConstants.ActivityMode.UNKNOWN;
-
-         resetSessionStats();
+         output.writeLong(dailyUsageStatsFileLength);
+         output.writeLong(sessionStatsFileLength);
+         stats.saveCheckpoint(output);
          }
 
-      private void resetSessionStats()
+      @Override
+      public void restoreCheckpoint(@NotNull final DataInput input) throws IOException
          {
-         sessionStartingTime = 0;
-         sessionEndingTime = 0;
-
-         sessionNumInterestPointSelections = 0;
-         sessionNumThemeSelections = 0;
-         sessionNumTaps = 0;
-         sessionNumAnimationStarts = 0;
-         sessionNumAnimationStops = 0;
-         sessionResetToHomeView = 0;
+         resume(input.readLong());
+         sessionStatsResumeFileLength = input.readLong();
+         stats.restoreCheckpoint(input);
          }
       }
    }
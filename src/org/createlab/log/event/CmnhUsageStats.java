@@ -0,0 +1,906 @@
+package org.createlab.log.event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import static org.createlab.log.event.CmnhConstants.EventType;
+
+/**
+ * <p>
+ * The daily usage and session stats of the CMNH kiosks, computed from events in time order.  This tracks the kiosk's
+ * activity mode, the counters of the current day and of the current session, and hands each day's and each session's
+ * row to a {@link RowWriter} as soon as it's complete.
+ * </p>
+ * <p>
+ * The stats can also be computed for separate slices of the events (e.g. a day each, or a chunk of an event log each),
+ * on different threads or even different machines (see {@link #writeTo(DataOutput)}), and then merged in order with
+ * {@link #append(CmnhUsageStats)}.  Merging is associative, so slices may be merged in any grouping.  The catch is that
+ * the start of a slice depends on the state at the end of the slice before it: the activity mode (which decides where
+ * the time since the previous event is counted, and whether an event ends a session), and the counters of the day and
+ * of the session in progress.  So a slice created with {@link #createSlice()} only keeps its leading events, until its
+ * own events have decided both the activity mode and the session counters, or a new day has started (which resets
+ * everything).  From then on, nothing depends on the events before the slice, except that the counters of the first
+ * day are missing the events before the slice, so that day's row is kept as counters rather than written.  Merging
+ * replays the slice's leading events on top of the state at the end of the previous slice, adds the slice's counters
+ * for its first day, and then takes the slice's rows and state.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class CmnhUsageStats
+   {
+   /** Receives the rows of the stats as they're completed. */
+   interface RowWriter
+      {
+      void writeDayRow(@NotNull final String row);
+
+      void writeSessionRow(@NotNull final String row);
+      }
+
+   @NotNull
+   static final String[] INTEREST_POINT_IDS = new String[]{"ip1", "ip2", "ip3", "ip4", "ip5", "ip6", "ip7", "ip8", "ip9", "ip10", "ip11", "ip12", "ip13", "ip14"};
+
+   // Including null in the THEME_IDS since null is a valid choice (no theme selected)
+   @NotNull
+   static final String[] THEME_IDS = new String[]{"null", "theme0", "theme1", "theme2", "theme3", "theme4"};
+
+   @NotNull
+   static final EventType[] INTERACTION_EVENTS = new EventType[]{EventType.MEDIA_PANEL_CLOSE,
+                                                                 EventType.MEDIA_PLAY,
+                                                                 EventType.MEDIA_PAUSE,
+                                                                 EventType.MEDIA_ENDED,
+                                                                 EventType.MEDIA_TIME_CHANGED,
+                                                                 EventType.NAV_RESET_HOME_VIEW,
+                                                                 EventType.THEMES_PANEL_DRAWER_OPEN,
+                                                                 EventType.THEMES_PANEL_DRAWER_CLOSE};
+
+   /** The position of each event type in {@link #INTERACTION_EVENTS} (or -1), indexed by {@link EventType#ordinal()}. */
+   @NotNull
+   private static final int[] INTERACTION_EVENT_INDEXES = new int[EventType.values().length];
+
+   static
+      {
+      Arrays.fill(INTERACTION_EVENT_INDEXES, -1);
+      for (int i = 0; i < INTERACTION_EVENTS.length; i++)
+         {
+         INTERACTION_EVENT_INDEXES[INTERACTION_EVENTS[i].ordinal()] = i;
+         }
+      }
+
+   @NotNull
+   static final String[] MEDIA_FILES = new String[]{"auroch_hunt.ogv",
+                                                    "onager_mother_and_foal.ogv",
+                                                    "hunting_dog_party.ogv",
+                                                    "aurochs_horns.ogv",
+                                                    "asian_onager.ogv",
+                                                    "cloaked_hunter.ogv",
+                                                    "aurochs.webm",
+                                                    "beard_3672.webm",
+                                                    "olsen_3649.webm",
+                                                    "abdulaziz_3736.webm",
+                                                    "khan_3745.webm",
+                                                    "beard_3670.webm"
+   };
+
+   /** Returns the stats of a slice of the events which doesn't necessarily start at the beginning. */
+   @NotNull
+   static CmnhUsageStats createSlice()
+      {
+      return new CmnhUsageStats(null, false);
+      }
+
+   /**
+    * Reads the stats of a slice written by {@link #writeTo(DataOutput)}.
+    *
+    * @throws IOException if the stats can't be read
+    */
+   @NotNull
+   static CmnhUsageStats readFrom(@NotNull final DataInput input) throws IOException
+      {
+      final CmnhUsageStats stats = new CmnhUsageStats(null, input.readBoolean());
+      stats.isActivityModeKnown = input.readBoolean();
+      stats.areSessionCountersKnown = input.readBoolean();
+      final int numLeadingEvents = input.readInt();
+      for (int i = 0; i < numLeadingEvents; i++)
+         {
+         final long date = input.readLong();
+         final long time = input.readLong();
+         final EventType type = EventType.findByName(input.readUTF());
+         if (type == null)
+            {
+            throw new IOException("Unknown event type in the stats");
+            }
+         stats.leadingEvents.add(new LeadingEvent(date, time, type, input.readUTF()));
+         }
+      stats.restoreCheckpoint(input);
+      stats.isCurrentDayPartial = input.readBoolean();
+      if (input.readBoolean())
+         {
+         stats.firstDayCounters = new DayCounters();
+         stats.firstDayCounters.read(input);
+         stats.firstDayTimeOfLatestEvent = Checkpoint.readNullableLong(input);
+         }
+      readRows(input, stats.dayRows);
+      readRows(input, stats.sessionRows);
+      return stats;
+      }
+
+   private static void readRows(@NotNull final DataInput input, @NotNull final List<String> rows) throws IOException
+      {
+      final int numRows = input.readInt();
+      for (int i = 0; i < numRows; i++)
+         {
+         rows.add(input.readUTF());
+         }
+      }
+
+   private static void writeRows(@NotNull final DataOutput output, @NotNull final List<String> rows) throws IOException
+      {
+      output.writeInt(rows.size());
+      for (final String row : rows)
+         {
+         output.writeUTF(row);
+         }
+      }
+
+   /** Where the rows go, or <code>null</code> if they're kept in {@link #dayRows} and {@link #sessionRows}. */
+   @Nullable
+   private final RowWriter rowWriter;
+
+   @NotNull
+   private final List<String> dayRows = new ArrayList<String>();
+
+   @NotNull
+   private final List<String> sessionRows = new ArrayList<String>();
+
+   @NotNull
+   private final DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+   @Nullable
+   private Long currentDate = null;
+   @Nullable
+   private Long timeOfEarliestEvent = null;
+   @Nullable
+   private Long timeOfLatestEvent = null;
+   private Long timeOfPreviousEvent = null;
+
+   @NotNull
+   private final DayCounters dayCounters = new DayCounters();
+
+   @NotNull
+   private CmnhConstants.ActivityMode activityMode = CmnhConstants.ActivityMode.UNKNOWN;
+
+   private long sessionStartingTime = 0;
+   private long sessionEndingTime = 0;
+   private int sessionCount = 0;
+
+   private int sessionNumInterestPointSelections = 0;
+   private int sessionNumThemeSelections = 0;
+   private int sessionNumTaps = 0;
+   private int sessionNumAnimationStarts = 0;
+   private int sessionNumAnimationStops = 0;
+   private int sessionResetToHomeView = 0;
+
+   // The boundary with the events before the slice.  Until it's resolved, events are kept as leading events, and the
+   // state is only a guess (it starts as though the slice started at the beginning), whose known parts are tracked.
+   private boolean isBoundaryResolved;
+   private boolean isActivityModeKnown = false;
+   private boolean areSessionCountersKnown = false;
+
+   @NotNull
+   private final List<LeadingEvent> leadingEvents = new ArrayList<LeadingEvent>();
+
+   /** Whether the counters of the current day are missing the events before the slice. */
+   private boolean isCurrentDayPartial = false;
+
+   // the counters of the slice's first day, once it's over, if they were missing the events before the slice
+   @Nullable
+   private DayCounters firstDayCounters = null;
+   @Nullable
+   private Long firstDayTimeOfLatestEvent = null;
+
+   /** Creates the stats of all the events, which writes the rows to the given {@link RowWriter}. */
+   CmnhUsageStats(@NotNull final RowWriter rowWriter)
+      {
+      this(rowWriter, true);
+      }
+
+   private CmnhUsageStats(@Nullable final RowWriter rowWriter, final boolean isBoundaryResolved)
+      {
+      this.rowWriter = rowWriter;
+      this.isBoundaryResolved = isBoundaryResolved;
+      resetStats(null);
+      }
+
+   void processEvent(@NotNull final Long eventDate,
+                     final long eventTime,
+                     @NotNull final EventType eventType,
+                     @NotNull final String eventParams)
+      {
+      if (isBoundaryResolved)
+         {
+         update(eventDate, eventTime, eventType, eventParams);
+         }
+      else
+         {
+         processLeadingEvent(new LeadingEvent(eventDate, eventTime, eventType, eventParams));
+         }
+      }
+
+   private void processLeadingEvent(@NotNull final LeadingEvent event)
+      {
+      final boolean isNewDay = !leadingEvents.isEmpty() && !event.date.equals(currentDate);
+      final boolean wasActive = isActivityModeKnown && activityMode.equals(CmnhConstants.ActivityMode.ACTIVE);
+
+      leadingEvents.add(event);
+      update(event.date, event.time, event.type, event.params);
+
+      switch (event.type)
+         {
+         case INIT_START:
+         case IDLE_SCREEN_VISIBLE:
+            // these end the session (and so reset its counters) only if we already knew that it was active
+            areSessionCountersKnown |= wasActive;
+            isActivityModeKnown = true;
+            break;
+         case INIT_FINISH:
+            isActivityModeKnown = true;
+            areSessionCountersKnown = true;
+            break;
+         case IDLE_SCREEN_HIDDEN:
+            isActivityModeKnown = true;
+            break;
+         default:
+            break;
+         }
+
+      if (isNewDay || (isActivityModeKnown && areSessionCountersKnown))
+         {
+         // From here on, the state doesn't depend on the events before the slice, except for the counters of the
+         // current day, so start those again from zero.  They're added to the rest of the day's when merging.
+         isBoundaryResolved = true;
+         isCurrentDayPartial = true;
+         dayCounters.reset();
+         timeOfEarliestEvent = null;
+         sessionCount = 0;
+         }
+      }
+
+   private void update(@NotNull final Long eventDate,
+                       final long eventTime,
+                       @NotNull final EventType eventType,
+                       @NotNull final String eventParams)
+      {
+      // see whether we need to start a new day
+      if (!eventDate.equals(currentDate))
+         {
+         // close the day, unless this is the first record we've seen (in which case the currentDate is null)
+         if (currentDate != null)
+            {
+            closeDay();
+            }
+
+         // See whether an active session was ended because of a new day
+         if (activityMode.equals(CmnhConstants.ActivityMode.ACTIVE))
+            {
+            if (timeOfLatestEvent != null)
+               {
+               sessionEndingTime = timeOfLatestEvent;
+               writeSessionStats();
+               }
+            else
+               {
+               System.err.println("Session was apparently active active at the end of the day, but the timeOfLatestEvent is null.");
+               }
+            }
+
+         resetStats(eventDate);
+         timeOfEarliestEvent = eventTime;
+         }
+      final long elapsedTimeSinceLastEvent = getElapsedTime(eventTime, timeOfLatestEvent);
+      timeOfPreviousEvent = timeOfLatestEvent;
+      timeOfLatestEvent = eventTime;
+
+      switch (eventType)
+         {
+         case INIT_START:
+            // When we hit an init-start, then the page has just loaded so we don't want to add the elapsed time to
+            // the previous mode, because there really WASN'T a previous mode.  The machine was either just powered
+            // on for the day, rebooted, or the page reloaded (due to either a manual reload or a browser crash and
+            // auto-restart by the watchdog script).  So, instead, we add the elapsed time to the UNKNOWN mode.
+            updateActivityModeDuration(CmnhConstants.ActivityMode.UNKNOWN, elapsedTimeSinceLastEvent);
+
+            // increment the INIT activity mode counter
+            incrementActivityModeCounter(CmnhConstants.ActivityMode.INIT);
+
+            // See whether an active session was ended because of a page reload
+            if (activityMode.equals(CmnhConstants.ActivityMode.ACTIVE))
+               {
+               sessionEndingTime = timeOfPreviousEvent;
+               writeSessionStats();
+               }
+
+            // We're now in INIT mode
+            activityMode = CmnhConstants.ActivityMode.INIT;
+            break;
+         case INIT_FINISH:
+
+            // init-finish always immediately follows an init-start, so we can simply add the elapsed time since the
+            // last event to the INIT mode duration tracker
+            updateActivityModeDuration(CmnhConstants.ActivityMode.INIT, elapsedTimeSinceLastEvent);
+
+            // We always go into IDLE mode at the end of init-finish.
+            activityMode = CmnhConstants.ActivityMode.IDLE;
+
+            resetSessionStats();
+
+            break;
+         case MEDIA_PANEL_CLOSE:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.MEDIA_PANEL_CLOSE);
+            break;
+         case MEDIA_PLAY:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.MEDIA_PLAY);
+            dayCounters.mediaPlayCounts.put(eventParams, dayCounters.mediaPlayCounts.get(eventParams) + 1);
+            break;
+         case MEDIA_PAUSE:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.MEDIA_PAUSE);
+            break;
+         case MEDIA_ENDED:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.MEDIA_ENDED);
+            break;
+         case MEDIA_TIME_CHANGED:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.MEDIA_TIME_CHANGED);
+            break;
+         case NAV_THEME_CHANGE:
+            dayCounters.numThemeSelections++;
+            sessionNumThemeSelections++;
+
+            dayCounters.themeSelectionCounts.put(eventParams, dayCounters.themeSelectionCounts.get(eventParams) + 1);
+
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            break;
+         case NAV_INTEREST_POINT:
+            dayCounters.numInterestPointSelections++;
+            sessionNumInterestPointSelections++;
+
+            dayCounters.interestPointSelectionCounts.put(eventParams, dayCounters.interestPointSelectionCounts.get(eventParams) + 1);
+
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            break;
+         case NAV_TAP:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            sessionNumTaps++;
+            break;
+         case NAV_RESET_HOME_VIEW:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.NAV_RESET_HOME_VIEW);
+            sessionResetToHomeView++;
+            break;
+         case NAV_MOVE_START:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            sessionNumAnimationStarts++;
+            break;
+         case NAV_MOVE_FINISH:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            sessionNumAnimationStops++;
+            break;
+         case THEMES_PANEL_DRAWER_OPEN:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.THEMES_PANEL_DRAWER_OPEN);
+            break;
+         case THEMES_PANEL_DRAWER_CLOSE:
+            updateActivityModeDuration(activityMode, elapsedTimeSinceLastEvent);
+            incrementInteractionEventCounter(EventType.THEMES_PANEL_DRAWER_CLOSE);
+            break;
+         case IDLE_SCREEN_VISIBLE:
+
+            // increment the IDLE activity mode counter
+            incrementActivityModeCounter(CmnhConstants.ActivityMode.IDLE);
+
+            // In order to get to the idle-screen-visible event, the kiosk must have been idle since the last event,
+            // so the correct thing to do is count the elapsed time since last event towards IDLE
+            updateActivityModeDuration(CmnhConstants.ActivityMode.IDLE, elapsedTimeSinceLastEvent);
+
+            // Going in to IDLE mode means when we were in ACTIVE mode means the active session has ended, so write
+            // out the session stats
+            if (activityMode.equals(CmnhConstants.ActivityMode.ACTIVE))
+               {
+               sessionEndingTime = timeOfPreviousEvent;
+               writeSessionStats();
+               }
+
+            // The idle screen being visible means we're back in IDLE mode
+            // (and actually have been idle for the past 90 seconds)
+            activityMode = CmnhConstants.ActivityMode.IDLE;
+
+            break;
+         case IDLE_SCREEN_HIDDEN:
+
+            // There are a few instances of two init-finish events in a row (probably due to people double-tapping
+            // the idle mode screen which triggers two init-finish events).  In those cases, go ahead and add the
+            // elapsed time to the IDLE mode, but don't count it as the beginning of a new ACTIVE mode period.
+            if (activityMode.equals(CmnhConstants.ActivityMode.IDLE))
+               {
+               // increment the ACTIVE activity mode counter
+               incrementActivityModeCounter(CmnhConstants.ActivityMode.ACTIVE);
+               sessionCount++;
+               }
+            updateActivityModeDuration(CmnhConstants.ActivityMode.IDLE, elapsedTimeSinceLastEvent);
+
+            // The idle screen being hidden means we're back in ACTIVE mode.  Furthermore,
+            // this is the ONLY way we can get into ACTIVE mode.
+            activityMode = CmnhConstants.ActivityMode.ACTIVE;
+
+            // Record the starting time of this new session
+            sessionStartingTime = eventTime;
+
+            break;
+         }
+      }
+
+   private void updateActivityModeDuration(final CmnhConstants.ActivityMode mode, final long elapsedTimeSinceLastEvent)
+      {
+      dayCounters.activityModeDurations[mode.ordinal()] += elapsedTimeSinceLastEvent;
+      }
+
+   private void incrementActivityModeCounter(final CmnhConstants.ActivityMode mode)
+      {
+      dayCounters.activityModeCounts[mode.ordinal()]++;
+      }
+
+   private void incrementInteractionEventCounter(final EventType eventType)
+      {
+      dayCounters.interactionEventCounts[INTERACTION_EVENT_INDEXES[eventType.ordinal()]]++;
+      }
+
+   private long getElapsedTime(final long currentEventTime, final Long previousEventTime)
+      {
+      return (previousEventTime == null) ? 0 : currentEventTime - previousEventTime;
+      }
+
+   /**
+    * Appends the stats of the given slice, which must start where these stats end, writing its rows to this
+    * {@link RowWriter} (or keeping them, if this is a slice too).  The given slice must not be used afterwards.
+    */
+   void append(@NotNull final CmnhUsageStats slice)
+      {
+      // the slice's leading events depend on the state at the end of these stats, so replay them
+      for (final LeadingEvent event : slice.leadingEvents)
+         {
+         processEvent(event.date, event.time, event.type, event.params);
+         }
+      if (!slice.isBoundaryResolved)
+         {
+         return;
+         }
+
+      // We're now in the state the slice was in after its leading events, except that the slice started the counters
+      // of the current day again from zero.  So add the slice's counters for that day, and then carry on from the
+      // slice's state.
+      if (slice.firstDayCounters != null)
+         {
+         dayCounters.add(slice.firstDayCounters);
+         timeOfLatestEvent = slice.firstDayTimeOfLatestEvent;
+         closeDay();
+
+         currentDate = slice.currentDate;
+         timeOfEarliestEvent = slice.timeOfEarliestEvent;
+         dayCounters.reset();
+         isCurrentDayPartial = slice.isCurrentDayPartial;
+         }
+      dayCounters.add(slice.dayCounters);
+      for (final String row : slice.dayRows)
+         {
+         writeDayRow(row);
+         }
+      for (final String row : slice.sessionRows)
+         {
+         writeSessionRow(row);
+         }
+
+      timeOfLatestEvent = slice.timeOfLatestEvent;
+      timeOfPreviousEvent = slice.timeOfPreviousEvent;
+      activityMode = slice.activityMode;
+
+      sessionStartingTime = slice.sessionStartingTime;
+      sessionEndingTime = slice.sessionEndingTime;
+      sessionCount += slice.sessionCount;
+      sessionNumInterestPointSelections = slice.sessionNumInterestPointSelections;
+      sessionNumThemeSelections = slice.sessionNumThemeSelections;
+      sessionNumTaps = slice.sessionNumTaps;
+      sessionNumAnimationStarts = slice.sessionNumAnimationStarts;
+      sessionNumAnimationStops = slice.sessionNumAnimationStops;
+      sessionResetToHomeView = slice.sessionResetToHomeView;
+      }
+
+   /** Writes the row for the current day, which might not be over yet. */
+   void writeCurrentDayRow()
+      {
+      writeDayRow(createDayRow());
+      }
+
+   /**
+    * Writes these stats to the given output, so that they can be read with {@link #readFrom(DataInput)}, e.g. by the
+    * machine which merges them with the stats of the other slices.  Any rows not yet written are included.
+    *
+    * @throws IOException if the stats can't be written
+    */
+   void writeTo(@NotNull final DataOutput output) throws IOException
+      {
+      output.writeBoolean(isBoundaryResolved);
+      output.writeBoolean(isActivityModeKnown);
+      output.writeBoolean(areSessionCountersKnown);
+      output.writeInt(leadingEvents.size());
+      for (final LeadingEvent event : leadingEvents)
+         {
+         output.writeLong(event.date);
+         output.writeLong(event.time);
+         output.writeUTF(event.type.getName());
+         output.writeUTF(event.params);
+         }
+      saveCheckpoint(output);
+      output.writeBoolean(isCurrentDayPartial);
+      output.writeBoolean(firstDayCounters != null);
+      if (firstDayCounters != null)
+         {
+         firstDayCounters.write(output);
+         Checkpoint.writeNullableLong(output, firstDayTimeOfLatestEvent);
+         }
+      writeRows(output, dayRows);
+      writeRows(output, sessionRows);
+      }
+
+   /** Saves the state of the current day and session (but not the rows) in the format of the CmnhStatsGenerator's checkpoints. */
+   void saveCheckpoint(@NotNull final DataOutput output) throws IOException
+      {
+      Checkpoint.writeNullableLong(output, currentDate);
+      Checkpoint.writeNullableLong(output, timeOfEarliestEvent);
+      Checkpoint.writeNullableLong(output, timeOfLatestEvent);
+      Checkpoint.writeNullableLong(output, timeOfPreviousEvent);
+
+      dayCounters.write(output);
+      output.writeUTF(activityMode.name());
+
+      // the open session, if any
+      output.writeLong(sessionStartingTime);
+      output.writeLong(sessionEndingTime);
+      output.writeInt(sessionCount);
+      output.writeInt(sessionNumInterestPointSelections);
+      output.writeInt(sessionNumThemeSelections);
+      output.writeInt(sessionNumTaps);
+      output.writeInt(sessionNumAnimationStarts);
+      output.writeInt(sessionNumAnimationStops);
+      output.writeInt(sessionResetToHomeView);
+      }
+
+   /** Restores the state saved by {@link #saveCheckpoint(DataOutput)}. */
+   void restoreCheckpoint(@NotNull final DataInput input) throws IOException
+      {
+      currentDate = Checkpoint.readNullableLong(input);
+      timeOfEarliestEvent = Checkpoint.readNullableLong(input);
+      timeOfLatestEvent = Checkpoint.readNullableLong(input);
+      timeOfPreviousEvent = Checkpoint.readNullableLong(input);
+
+      dayCounters.read(input);
+      try
+         {
+         activityMode = CmnhConstants.ActivityMode.valueOf(input.readUTF());
+         }
+      catch (IllegalArgumentException e)
+         {
+         throw new IOException("Unknown activity mode in the checkpoint", e);
+         }
+
+      sessionStartingTime = input.readLong();
+      sessionEndingTime = input.readLong();
+      sessionCount = input.readInt();
+      sessionNumInterestPointSelections = input.readInt();
+      sessionNumThemeSelections = input.readInt();
+      sessionNumTaps = input.readInt();
+      sessionNumAnimationStarts = input.readInt();
+      sessionNumAnimationStops = input.readInt();
+      sessionResetToHomeView = input.readInt();
+      }
+
+   private void writeDayRow(@NotNull final String row)
+      {
+      if (rowWriter != null)
+         {
+         rowWriter.writeDayRow(row);
+         }
+      else
+         {
+         dayRows.add(row);
+         }
+      }
+
+   private void writeSessionRow(@NotNull final String row)
+      {
+      if (rowWriter != null)
+         {
+         rowWriter.writeSessionRow(row);
+         }
+      else
+         {
+         sessionRows.add(row);
+         }
+      }
+
+   private void writeSessionStats()
+      {
+      // the rows written while processing leading events are only a guess, and are written when they're replayed
+      if (isBoundaryResolved)
+         {
+         final StringBuilder sb = new StringBuilder();
+         sb.append(getDateAndTimesAsCsv(sessionStartingTime, sessionEndingTime));
+         sb.append(sessionEndingTime - sessionStartingTime).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+
+         sb.append(sessionNumInterestPointSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         sb.append(sessionNumThemeSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         sb.append(sessionNumTaps).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         sb.append(sessionNumAnimationStarts).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         sb.append(sessionNumAnimationStops).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         sb.append(sessionResetToHomeView);
+
+         writeSessionRow(sb.toString());
+         }
+
+      resetSessionStats();
+      }
+
+   private void closeDay()
+      {
+      if (isCurrentDayPartial)
+         {
+         // the day's row can't be written until the counters from before the slice are added
+         firstDayCounters = new DayCounters();
+         firstDayCounters.add(dayCounters);
+         firstDayTimeOfLatestEvent = timeOfLatestEvent;
+         isCurrentDayPartial = false;
+         }
+      else if (isBoundaryResolved)
+         {
+         writeDayRow(createDayRow());
+         }
+      }
+
+   @NotNull
+   private String createDayRow()
+      {
+      final StringBuilder sb = new StringBuilder();
+
+      sb.append(getDateAndTimesAsCsv(timeOfEarliestEvent, timeOfLatestEvent));
+
+      sb.append(timeOfLatestEvent - timeOfEarliestEvent).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.activityModeDurations[CmnhConstants.ActivityMode.INIT.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.activityModeDurations[CmnhConstants.ActivityMode.ACTIVE.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.activityModeDurations[CmnhConstants.ActivityMode.IDLE.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.activityModeDurations[CmnhConstants.ActivityMode.UNKNOWN.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+
+      sb.append(dayCounters.activityModeCounts[CmnhConstants.ActivityMode.INIT.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.activityModeCounts[CmnhConstants.ActivityMode.ACTIVE.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.activityModeCounts[CmnhConstants.ActivityMode.IDLE.ordinal()]).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+
+      sb.append(dayCounters.numThemeSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dayCounters.numInterestPointSelections).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+
+      for (final String themeId : THEME_IDS)
+         {
+         sb.append(dayCounters.themeSelectionCounts.get(themeId)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         }
+
+      for (final String interestPointId : INTEREST_POINT_IDS)
+         {
+         sb.append(dayCounters.interestPointSelectionCounts.get(interestPointId)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         }
+
+      for (final int count : dayCounters.interactionEventCounts)
+         {
+         sb.append(count).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         }
+
+      for (final String mediaFile : MEDIA_FILES)
+         {
+         sb.append(dayCounters.mediaPlayCounts.get(mediaFile)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+         }
+
+      return sb.toString();
+      }
+
+   private String getDateAndTimesAsCsv(final Long startingTime, final Long endingTime)
+      {
+      final StringBuilder sb = new StringBuilder();
+      final DateTime currentDateJoda = new DateTime(currentDate, CmnhConstants.CMNH_TIME_ZONE);
+      final DateTime timeOfFirstEventJoda = new DateTime(startingTime, CmnhConstants.CMNH_TIME_ZONE);
+      final DateTime timeOfLastEventJoda = new DateTime(endingTime, CmnhConstants.CMNH_TIME_ZONE);
+
+      sb.append(dateTimeFormatter.print(currentDateJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dateTimeFormatter.print(timeOfFirstEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(dateTimeFormatter.print(timeOfLastEventJoda)).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(currentDate).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(startingTime).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+      sb.append(endingTime).append(CsvOutputEventProcessor.FIELD_DELIMITER);
+
+      return sb.toString();
+      }
+
+   private void resetStats(final Long date)
+      {
+      currentDate = date;
+
+      timeOfEarliestEvent = null;
+      timeOfLatestEvent = null;
+
+      dayCounters.reset();
+
+      activityMode = CmnhConstants.ActivityMode.UNKNOWN;
+
+      resetSessionStats();
+      }
+
+   private void resetSessionStats()
+      {
+      sessionStartingTime = 0;
+      sessionEndingTime = 0;
+
+      sessionNumInterestPointSelections = 0;
+      sessionNumThemeSelections = 0;
+      sessionNumTaps = 0;
+      sessionNumAnimationStarts = 0;
+      sessionNumAnimationStops = 0;
+      sessionResetToHomeView = 0;
+      }
+
+   /** An event whose effect depends on the state before the slice, so it's replayed when the slice is merged. */
+   private static final class LeadingEvent
+      {
+      @NotNull
+      private final Long date;
+
+      private final long time;
+
+      @NotNull
+      private final EventType type;
+
+      @NotNull
+      private final String params;
+
+      private LeadingEvent(@NotNull final Long date, final long time, @NotNull final EventType type, @NotNull final String params)
+         {
+         this.date = date;
+         this.time = time;
+         this.type = type;
+         this.params = params;
+         }
+      }
+
+   /** The counters of a day's row, which can be added together when a day is split across slices. */
+   private static final class DayCounters
+      {
+      private int numInterestPointSelections = 0;
+      private int numThemeSelections = 0;
+
+      @NotNull
+      private final Map<String, Integer> interestPointSelectionCounts = new HashMap<String, Integer>();
+
+      @NotNull
+      private final Map<String, Integer> themeSelectionCounts = new HashMap<String, Integer>();
+
+      /** Indexed by {@link CmnhConstants.ActivityMode#ordinal()}. */
+      @NotNull
+      private final int[] activityModeCounts = new int[CmnhConstants.ActivityMode.values().length];
+
+      /** Indexed by {@link CmnhConstants.ActivityMode#ordinal()}. */
+      @NotNull
+      private final long[] activityModeDurations = new long[CmnhConstants.ActivityMode.values().length];
+
+      /** Indexed by the event type's position in {@link #INTERACTION_EVENTS}. */
+      @NotNull
+      private final int[] interactionEventCounts = new int[INTERACTION_EVENTS.length];
+
+      @NotNull
+      private final SortedMap<String, Integer> mediaPlayCounts = new TreeMap<String, Integer>();
+
+      private DayCounters()
+         {
+         reset();
+         }
+
+      private void reset()
+         {
+         numInterestPointSelections = 0;
+         numThemeSelections = 0;
+
+         for (final String interestPointId : INTEREST_POINT_IDS)
+            {
+            interestPointSelectionCounts.put(interestPointId, 0);
+            }
+         for (final String themeId : THEME_IDS)
+            {
+            themeSelectionCounts.put(themeId, 0);
+            }
+         Arrays.fill(activityModeCounts, 0);
+         Arrays.fill(activityModeDurations, 0);
+         Arrays.fill(interactionEventCounts, 0);
+         for (final String mediaFile : MEDIA_FILES)
+            {
+            mediaPlayCounts.put(mediaFile, 0);
+            }
+         }
+
+      private void add(@NotNull final DayCounters other)
+         {
+         numInterestPointSelections += other.numInterestPointSelections;
+         numThemeSelections += other.numThemeSelections;
+         add(interestPointSelectionCounts, other.interestPointSelectionCounts);
+         add(themeSelectionCounts, other.themeSelectionCounts);
+         for (int i = 0; i < activityModeCounts.length; i++)
+            {
+            activityModeCounts[i] += other.activityModeCounts[i];
+            activityModeDurations[i] += other.activityModeDurations[i];
+            }
+         for (int i = 0; i < interactionEventCounts.length; i++)
+            {
+            interactionEventCounts[i] += other.interactionEventCounts[i];
+            }
+         add(mediaPlayCounts, other.mediaPlayCounts);
+         }
+
+      private static void add(@NotNull final Map<String, Integer> counts, @NotNull final Map<String, Integer> otherCounts)
+         {
+         for (final Map.Entry<String, Integer> entry : otherCounts.entrySet())
+            {
+            final Integer count = counts.get(entry.getKey());
+            counts.put(entry.getKey(), (count == null) ? entry.getValue() : count + entry.getValue());
+            }
+         }
+
+      private void write(@NotNull final DataOutput output) throws IOException
+         {
+         output.writeInt(numInterestPointSelections);
+         output.writeInt(numThemeSelections);
+         Checkpoint.writeCounts(output, INTEREST_POINT_IDS, interestPointSelectionCounts);
+         Checkpoint.writeCounts(output, THEME_IDS, themeSelectionCounts);
+         Checkpoint.writeCounts(output, activityModeCounts);
+         for (final long duration : activityModeDurations)
+            {
+            output.writeLong(duration);
+            }
+         Checkpoint.writeCounts(output, interactionEventCounts);
+         Checkpoint.writeCounts(output, MEDIA_FILES, mediaPlayCounts);
+         }
+
+      private void read(@NotNull final DataInput input) throws IOException
+         {
+         numInterestPointSelections = input.readInt();
+         numThemeSelections = input.readInt();
+         Checkpoint.readCounts(input, INTEREST_POINT_IDS, interestPointSelectionCounts);
+         Checkpoint.readCounts(input, THEME_IDS, themeSelectionCounts);
+         Checkpoint.readCounts(input, activityModeCounts);
+         for (int i = 0; i < activityModeDurations.length; i++)
+            {
+            activityModeDurations[i] = input.readLong();
+            }
+         Checkpoint.readCounts(input, interactionEventCounts);
+         Checkpoint.readCounts(input, MEDIA_FILES, mediaPlayCounts);
+         }
+      }
+   }
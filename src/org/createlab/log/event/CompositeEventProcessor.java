@@ -0,0 +1,48 @@
+package org.createlab.log.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An {@link EventProcessor} which passes every event on to each of a list of other {@link EventProcessor}s, in order.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class CompositeEventProcessor implements EventProcessor
+   {
+   @NotNull
+   private final List<EventProcessor> eventProcessors;
+
+   CompositeEventProcessor(@NotNull final List<EventProcessor> eventProcessors)
+      {
+      this.eventProcessors = new ArrayList<EventProcessor>(eventProcessors);
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      for (final EventProcessor eventProcessor : eventProcessors)
+         {
+         eventProcessor.beforeProcessingAnyEvents();
+         }
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      for (final EventProcessor eventProcessor : eventProcessors)
+         {
+         eventProcessor.processEvent(event);
+         }
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      for (final EventProcessor eventProcessor : eventProcessors)
+         {
+         eventProcessor.afterProcessingAnyEvents();
+         }
+      }
+   }
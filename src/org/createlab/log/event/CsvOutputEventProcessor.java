@@ -1,11 +1,18 @@
 package org.createlab.log.event;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
@@ -17,9 +24,14 @@ abstract class CsvOutputEventProcessor implements EventProcessor
    {
    private static final Logger LOG = Logger.getLogger(CsvOutputEventProcessor.class);
 
+   private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
    @NotNull
    private final DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
 
+   @NotNull
+   private final DateTimeFormatter dayFormatter = DateTimeFormat.forPattern("yyyy-MM-dd ");
+
    @NotNull
    public static final String FIELD_DELIMITER = ",";
 
@@ -29,30 +41,186 @@ abstract class CsvOutputEventProcessor implements EventProcessor
    @Nullable
    private PrintStream printStream;
 
+   /** Only used when writing asynchronously (see {@link #setAsynchronous(boolean)}), in which case there's no printStream. */
+   @Nullable
+   private AsynchronousFileWriter asynchronousFileWriter;
+
+   private boolean isAsynchronous = false;
+
+   private boolean isIndexed = false;
+
+   /** Only used when the file is indexed (see {@link #setIndexed(boolean)}). */
+   @Nullable
+   private EventLogIndex.Builder indexBuilder;
+
+   /** Counts the bytes written to the file, so that each row's offset is known, when indexing without writing asynchronously. */
+   @Nullable
+   private PositionTrackingOutputStream positionTrackingOutputStream;
+
+   /** The length to which the file is truncated before appending to it, or -1 if we're creating a new file. */
+   private long resumeFileLength = -1;
+
+   /** Reused for every event's parameters when writing asynchronously. */
+   @NotNull
+   private final StringBuilder parameters = new StringBuilder();
+
+   // The formatted date column, which only changes once a day, and the formatted date part of the time column, which is
+   // cached by local day.  Both are cached along with the time zone they were formatted in.
+   @Nullable
+   private DateTimeZone formattedDateTimeZone = null;
+   private long formattedDateInMillis = 0;
+   @Nullable
+   private byte[] formattedDate = null;
+   @Nullable
+   private DateTimeZone formattedDayTimeZone = null;
+   private long formattedLocalDay = 0;
+   @Nullable
+   private byte[] formattedDay = null;
+
    protected CsvOutputEventProcessor(@NotNull final File file)
       {
       this.file = file;
-      if (file.exists())
+      }
+
+   /**
+    * Opens the given file for writing, aborting if it already exists.  Or, when resuming from a checkpoint (i.e. the
+    * <code>resumeFileLength</code> isn't negative), opens it for appending instead, after truncating it to the length it
+    * had when the checkpoint was saved.  That discards anything written after the checkpoint (such as the row for a day
+    * which hadn't ended yet), which will be written again.
+    */
+   @Nullable
+   static PrintStream open(@NotNull final File file, final long resumeFileLength)
+      {
+      final FileOutputStream outputStream = openOutputStream(file, resumeFileLength);
+      return (outputStream == null) ? null : new PrintStream(outputStream);
+      }
+
+   /** Opens the given file in the same way as {@link #open(File, long)}, but returns the bare {@link FileOutputStream}. */
+   @Nullable
+   private static FileOutputStream openOutputStream(@NotNull final File file, final long resumeFileLength)
+      {
+      try
          {
-         System.err.println("ERROR: File [" + file + "] already exists!!! Aborting.");
-         System.exit(1);
+         if (resumeFileLength < 0)
+            {
+            if (file.exists())
+               {
+               System.err.println("ERROR: File [" + file + "] already exists!!! Aborting.");
+               System.exit(1);
+               }
+            return new FileOutputStream(file);
+            }
+
+         if (file.length() < resumeFileLength)
+            {
+            System.err.println("ERROR: File [" + file + "] is shorter than when the checkpoint was saved!!! Aborting.");
+            System.exit(1);
+            }
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+         try
+            {
+            randomAccessFile.setLength(resumeFileLength);
+            }
+         finally
+            {
+            randomAccessFile.close();
+            }
+         return new FileOutputStream(file, true);
          }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to open file [" + file + "]", e);
+         }
+      return null;
+      }
+
+   /** Returns the current length of the given file, after flushing everything written to it so far. */
+   static long getLength(@NotNull final File file, @Nullable final PrintStream printStream)
+      {
+      if (printStream != null)
+         {
+         printStream.flush();
+         }
+      return file.length();
+      }
+
+   /**
+    * Appends to the file, after truncating it to the given length, instead of creating a new one.  Must be called before
+    * {@link #beforeProcessingAnyEvents()}.
+    */
+   final void resume(final long fileLength)
+      {
+      resumeFileLength = fileLength;
+      }
+
+   /**
+    * Writes the file on a dedicated thread (see {@link AsynchronousFileWriter}), so that whoever is producing the events
+    * never waits for the disk.  Events are formatted straight into reusable byte buffers, rather than into a new String
+    * per event, with the date column (which only changes once a day) formatted just once.  Must be called before
+    * {@link #beforeProcessingAnyEvents()}.
+    */
+   final void setAsynchronous(final boolean isAsynchronous)
+      {
+      this.isAsynchronous = isAsynchronous;
+      }
+
+   /**
+    * Builds an {@link EventLogIndex} of the rows written by {@link #processEvent(Event)}, and saves it next to the file
+    * once it's closed.  The events must be given in time order.  Must be called before
+    * {@link #beforeProcessingAnyEvents()}, and is ignored when {@link #resume(long) resuming}, since the rows already in
+    * the file weren't indexed.
+    */
+   final void setIndexed(final boolean isIndexed)
+      {
+      this.isIndexed = isIndexed;
+      }
+
+   /** Returns <code>true</code> if we're appending to the file (see {@link #resume(long)}) rather than creating it. */
+   protected final boolean isResuming()
+      {
+      return resumeFileLength >= 0;
+      }
+
+   /** Returns the current length of the file, after flushing everything written to it so far. */
+   protected final long getLength()
+      {
+      if (asynchronousFileWriter != null)
+         {
+         asynchronousFileWriter.flush();
+         }
+      return getLength(file, printStream);
       }
 
    @Override
    public final void beforeProcessingAnyEvents()
       {
-      try
+      indexBuilder = (isIndexed && !isResuming()) ? new EventLogIndex.Builder(file) : null;
+      positionTrackingOutputStream = null;
+      if (isAsynchronous)
          {
-         printStream = new PrintStream(file);
+         final FileOutputStream outputStream = openOutputStream(file, resumeFileLength);
+         if (outputStream != null)
+            {
+            asynchronousFileWriter = new AsynchronousFileWriter(file, outputStream.getChannel());
+            }
          }
-      catch (IOException e)
+      else if (indexBuilder != null)
+         {
+         final FileOutputStream outputStream = openOutputStream(file, resumeFileLength);
+         if (outputStream != null)
+            {
+            positionTrackingOutputStream = new PositionTrackingOutputStream(outputStream);
+            printStream = new PrintStream(positionTrackingOutputStream);
+            }
+         }
+      else
          {
-         LOG.error("IOException while trying to open a PrintStream for file [" + file + "]", e);
+         printStream = open(file, resumeFileLength);
          }
       doBeforeProcessingAnyEvents();
       }
 
+   /** Called after the file is opened.  Does nothing by default.  This is where subclasses write their header, unless {@link #isResuming()}. */
    protected void doBeforeProcessingAnyEvents()
       {
       // do nothing
@@ -61,6 +229,16 @@ abstract class CsvOutputEventProcessor implements EventProcessor
    @Override
    public void processEvent(@NotNull final Event event)
       {
+      if (indexBuilder != null)
+         {
+         indexBuilder.addRow(getPosition(), event.getTimeInMillis());
+         }
+      if (asynchronousFileWriter != null)
+         {
+         writeEvent(event, asynchronousFileWriter);
+         return;
+         }
+
       final StringBuilder sb = new StringBuilder();
       sb.append(dateTimeFormatter.print(event.getDate()));
       sb.append(FIELD_DELIMITER);
@@ -77,8 +255,85 @@ abstract class CsvOutputEventProcessor implements EventProcessor
       printStream.println(sb.toString());
       }
 
+   /** Returns the number of bytes written to the file so far, which is where the next row will start. */
+   private long getPosition()
+      {
+      if (asynchronousFileWriter != null)
+         {
+         return asynchronousFileWriter.getNumberOfBytesAppended();
+         }
+      return (positionTrackingOutputStream == null) ? 0 : positionTrackingOutputStream.position;
+      }
+
+   /** Writes the same line as {@link #processEvent(Event)} would otherwise print, but without creating any Strings. */
+   private void writeEvent(@NotNull final Event event, @NotNull final AsynchronousFileWriter writer)
+      {
+      final DateTimeZone timeZone = event.getTimeZone();
+      if (formattedDate == null || event.getDateInMillis() != formattedDateInMillis || timeZone != formattedDateTimeZone)
+         {
+         formattedDate = toBytes(dateTimeFormatter.print(new DateTime(event.getDateInMillis(), timeZone)));
+         formattedDateInMillis = event.getDateInMillis();
+         formattedDateTimeZone = timeZone;
+         }
+      writer.append(formattedDate);
+      writer.append(FIELD_DELIMITER);
+      writeTime(event.getTimeInMillis(), timeZone, writer);
+      writer.append(FIELD_DELIMITER);
+      writer.append(event.getDateInMillis());
+      writer.append(FIELD_DELIMITER);
+      writer.append(event.getTimeInMillis());
+      writer.append(FIELD_DELIMITER);
+      writer.append(event.getType());
+      writer.append(FIELD_DELIMITER);
+      parameters.setLength(0);
+      appendEventParameters(event, parameters);
+      writer.append(parameters);
+      writer.appendLineSeparator();
+      }
+
+   /**
+    * Writes the given time as the {@link #dateTimeFormatter} would, but only using Joda to format the date part, once a
+    * day.  The time of day is computed from the local time, just as Joda's ISO chronology does.
+    */
+   private void writeTime(final long timeInMillis, @NotNull final DateTimeZone timeZone, @NotNull final AsynchronousFileWriter writer)
+      {
+      final long localMillis = timeInMillis + timeZone.getOffset(timeInMillis);
+      long localDay = localMillis / MILLIS_PER_DAY;
+      if (localMillis < 0 && localDay * MILLIS_PER_DAY != localMillis)
+         {
+         localDay--;
+         }
+      if (formattedDay == null || localDay != formattedLocalDay || timeZone != formattedDayTimeZone)
+         {
+         formattedDay = toBytes(dayFormatter.print(new DateTime(timeInMillis, timeZone)));
+         formattedLocalDay = localDay;
+         formattedDayTimeZone = timeZone;
+         }
+      final int millisOfDay = (int)(localMillis - localDay * MILLIS_PER_DAY);
+      writer.append(formattedDay);
+      writer.appendZeroPadded(millisOfDay / (60 * 60 * 1000), 2);
+      writer.append(':');
+      writer.appendZeroPadded((millisOfDay / (60 * 1000)) % 60, 2);
+      writer.append(':');
+      writer.appendZeroPadded((millisOfDay / 1000) % 60, 2);
+      writer.append('.');
+      writer.appendZeroPadded(millisOfDay % 1000, 3);
+      }
+
+   @NotNull
+   private static byte[] toBytes(@NotNull final String s)
+      {
+      return s.getBytes(Charset.defaultCharset());
+      }
+
    protected final boolean println(final String s)
       {
+      if (asynchronousFileWriter != null)
+         {
+         asynchronousFileWriter.append(s);
+         asynchronousFileWriter.appendLineSeparator();
+         return true;
+         }
       if (printStream != null)
          {
          printStream.println(s);
@@ -104,10 +359,52 @@ abstract class CsvOutputEventProcessor implements EventProcessor
          {
          printStream.close();
          }
+      if (asynchronousFileWriter != null)
+         {
+         try
+            {
+            asynchronousFileWriter.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close file [" + file + "]", e);
+            }
+         asynchronousFileWriter = null;
+         }
+      if (indexBuilder != null)
+         {
+         indexBuilder.save(file.length());
+         indexBuilder = null;
+         }
       }
 
    protected void doAfterProcessingAnyEvents()
       {
       // do nothing
       }
+
+   /** Passes bytes straight through to the file, counting them as they go. */
+   private static final class PositionTrackingOutputStream extends FilterOutputStream
+      {
+      private long position = 0;
+
+      private PositionTrackingOutputStream(@NotNull final OutputStream outputStream)
+         {
+         super(outputStream);
+         }
+
+      @Override
+      public void write(final int b) throws IOException
+         {
+         out.write(b);
+         position++;
+         }
+
+      @Override
+      public void write(@NotNull final byte[] bytes, final int offset, final int length) throws IOException
+         {
+         out.write(bytes, offset, length);
+         position += length;
+         }
+      }
    }
@@ -0,0 +1,70 @@
+package org.createlab.log.event;
+
+import org.jetbrains.annotations.NotNull;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+/**
+ * Computes the time (in millis) of the midnight which starts the day containing a given time, in a given time zone.
+ * Consecutive events almost always fall on the same day, so the bounds of the most recently computed day are cached
+ * and the (comparatively expensive) Joda calculation only happens when the day changes.  Safe for use by multiple
+ * threads at once.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class DayBoundaryCalculator
+   {
+   @NotNull
+   private final DateTimeZone timeZone;
+
+   @NotNull
+   private volatile DayRange cachedDayRange = new DayRange(0, 0);
+
+   DayBoundaryCalculator(@NotNull final DateTimeZone timeZone)
+      {
+      this.timeZone = timeZone;
+      }
+
+   @NotNull
+   DateTimeZone getTimeZone()
+      {
+      return timeZone;
+      }
+
+   /** Returns the millis of the midnight at the start of the day containing the given time. */
+   long getDateInMillis(final long timeInMillis)
+      {
+      DayRange dayRange = cachedDayRange;
+      if (!dayRange.contains(timeInMillis))
+         {
+         final LocalDate date = new LocalDate(timeInMillis, timeZone);
+         dayRange = new DayRange(getMidnight(date), getMidnight(date.plusDays(1)));
+         cachedDayRange = dayRange;
+         }
+      return dayRange.start;
+      }
+
+   private long getMidnight(@NotNull final LocalDate date)
+      {
+      return new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), 0, 0, 0, 0, timeZone).getMillis();
+      }
+
+   /** Immutable, so it can be safely shared between threads. */
+   private static final class DayRange
+      {
+      private final long start;
+      private final long end;
+
+      private DayRange(final long start, final long end)
+         {
+         this.start = start;
+         this.end = end;
+         }
+
+      private boolean contains(final long timeInMillis)
+         {
+         return start <= timeInMillis && timeInMillis < end;
+         }
+      }
+   }
@@ -0,0 +1,166 @@
+package org.createlab.log.event;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Spots repeats of an event (according to {@link Event#equals(Object)}), such as those caused by a kiosk's browser
+ * retrying a request, or by a reverse proxy replaying one, as long as the repeat's time is within a given horizon of
+ * the latest event time seen so far.  An event is only a repeat of one sent by the same kiosk, if its kiosk is known
+ * (see {@link Event#getKiosk()}), since two kiosks can send the same event in the same millisecond.
+ * </p>
+ * <p>
+ * The events seen are kept in hash sets, in buckets by their time, and the buckets which fall behind the horizon are
+ * thrown away, so only the events of the last horizon or so are ever in memory, no matter how many events there are.
+ * Since an event and its repeats have the same time, only the one bucket for that time needs to be checked.  Unlike a
+ * Bloom filter, this never mistakes an event for a repeat of another.  An event older than the horizon can't be
+ * checked, so it's never considered a repeat.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class DuplicateEventFilter
+   {
+   /** The horizon is split into this many buckets, so that at most one more bucket's worth of events is kept than needed. */
+   private static final int NUM_BUCKETS_PER_HORIZON = 4;
+
+   private final long horizonInMillis;
+   private final long bucketWidthInMillis;
+
+   @NotNull
+   private final TreeMap<Long, Set<Object>> buckets = new TreeMap<Long, Set<Object>>();
+
+   // The latest bucket, which most events go in, so that it needn't be looked up for each of them.
+   private long latestBucketIndex = Long.MIN_VALUE;
+   @Nullable
+   private Set<Object> latestBucket = null;
+
+   /** Buckets before this one have been thrown away. */
+   private long oldestBucketIndex = Long.MIN_VALUE;
+
+   private long numDuplicates = 0;
+
+   /** The number of repeats found for each kiosk, for events whose kiosk is known. */
+   @NotNull
+   private final SortedMap<String, Long> numDuplicatesByKiosk = new TreeMap<String, Long>();
+
+   /** Creates a filter which spots repeats up to <code>horizonInMillis</code> milliseconds older than the latest event. */
+   DuplicateEventFilter(final long horizonInMillis)
+      {
+      this.horizonInMillis = horizonInMillis;
+      this.bucketWidthInMillis = Math.max(1, horizonInMillis / NUM_BUCKETS_PER_HORIZON);
+      }
+
+   /**
+    * Returns <code>true</code> (and counts it) if the given event is a repeat of one given to this method before.
+    * Otherwise, remembers the event, and returns <code>false</code>.
+    */
+   boolean isDuplicate(@NotNull final Event event)
+      {
+      final long bucketIndex = event.getTimeInMillis() / bucketWidthInMillis;
+      final Set<Object> bucket;
+      if (bucketIndex == latestBucketIndex)
+         {
+         bucket = latestBucket;
+         }
+      else if (bucketIndex > latestBucketIndex)
+         {
+         bucket = new HashSet<Object>();
+         buckets.put(bucketIndex, bucket);
+         latestBucketIndex = bucketIndex;
+         latestBucket = bucket;
+
+         // forget the buckets which are now entirely behind the horizon
+         oldestBucketIndex = Math.max(oldestBucketIndex, (event.getTimeInMillis() - horizonInMillis) / bucketWidthInMillis);
+         buckets.headMap(oldestBucketIndex).clear();
+         }
+      else if (bucketIndex < oldestBucketIndex)
+         {
+         // too old to check
+         return false;
+         }
+      else
+         {
+         final Set<Object> existingBucket = buckets.get(bucketIndex);
+         if (existingBucket == null)
+            {
+            bucket = new HashSet<Object>();
+            buckets.put(bucketIndex, bucket);
+            }
+         else
+            {
+            bucket = existingBucket;
+            }
+         }
+
+      final String kiosk = event.getKiosk();
+      if (bucket.add((kiosk == null) ? event : new KioskEvent(kiosk, event)))
+         {
+         return false;
+         }
+      numDuplicates++;
+      if (kiosk != null)
+         {
+         final Long numDuplicatesForKiosk = numDuplicatesByKiosk.get(kiosk);
+         numDuplicatesByKiosk.put(kiosk, (numDuplicatesForKiosk == null) ? 1 : numDuplicatesForKiosk + 1);
+         }
+      return true;
+      }
+
+   /** Returns the number of repeats found so far. */
+   long getNumDuplicates()
+      {
+      return numDuplicates;
+      }
+
+   /** Returns the number of repeats found so far for each kiosk, for the events whose kiosk is known. */
+   @NotNull
+   Map<String, Long> getNumDuplicatesByKiosk()
+      {
+      return numDuplicatesByKiosk;
+      }
+
+   /** An event, together with the kiosk which sent it, since {@link Event#equals(Object)} ignores the kiosk. */
+   private static final class KioskEvent
+      {
+      @NotNull
+      private final String kiosk;
+
+      @NotNull
+      private final Event event;
+
+      private KioskEvent(@NotNull final String kiosk, @NotNull final Event event)
+         {
+         this.kiosk = kiosk;
+         this.event = event;
+         }
+
+      @Override
+      public boolean equals(final Object o)
+         {
+         if (this == o)
+            {
+            return true;
+            }
+         if (o == null || getClass() != o.getClass())
+            {
+            return false;
+            }
+
+         final KioskEvent that = (KioskEvent)o;
+         return kiosk.equals(that.kiosk) && event.equals(that.event);
+         }
+
+      @Override
+      public int hashCode()
+         {
+         return 31 * kiosk.hashCode() + event.hashCode();
+         }
+      }
+   }
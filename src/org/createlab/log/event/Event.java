@@ -1,5 +1,6 @@
 package org.createlab.log.event;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,24 +18,47 @@ final class Event implements Comparable<Event>
    @NotNull
    private final String type;
 
+   /** The types in which {@link #typeId} is this event's type's ID, or <code>null</code> if it wasn't looked up when parsed. */
+   @Nullable
+   private final SupportedEventTypes supportedEventTypes;
+
+   private final int typeId;
+
    private final long dateInMillis;
 
-   @NotNull
-   private final Long timeInMillis;
+   private final long timeInMillis;
 
    @NotNull
-   private final DateTime date;
-   @NotNull
-   private final DateTime time;
+   private final DateTimeZone timeZone;
 
-   @NotNull
-   private final Map<String, String> params = new HashMap<String, String>();
+   /** Created lazily, since most consumers only ever need the millis. */
+   @Nullable
+   private DateTime date = null;
+
+   /** Created lazily, since most consumers only ever need the millis. */
+   @Nullable
+   private DateTime time = null;
+
+   /** The parameters, unless they're kept in their raw form in {@link #queryParameters} instead. */
+   @Nullable
+   private final Map<String, String> params;
+
+   /** The parameters in the raw form in which they were parsed, or <code>null</code> if they're in {@link #params}. */
+   @Nullable
+   private final QueryParameters queryParameters;
+
+   /** The kiosk which sent this event, or <code>null</code> if it wasn't identified when parsed (see {@link KioskKey}). */
+   @Nullable
+   private final String kiosk;
 
    Event(@NotNull final String type, final long timeInMillis, @NotNull final Map<String, String> params, final TimeZone timeZone)
       {
       this.type = type;
+      this.supportedEventTypes = null;
+      this.typeId = -1;
       this.timeInMillis = timeInMillis;
-      this.time = new DateTime(timeInMillis, DateTimeZone.forTimeZone(timeZone));
+      this.timeZone = DateTimeZone.forTimeZone(timeZone);
+      this.time = new DateTime(timeInMillis, this.timeZone);
       this.date = new DateTime(time.getYear(),
                                time.getMonthOfYear(),
                                time.getDayOfMonth(),
@@ -42,10 +66,88 @@ final class Event implements Comparable<Event>
                                0,
                                0,
                                0,
-                               DateTimeZone.forTimeZone(timeZone));
+                               this.timeZone);
 
       this.dateInMillis = date.getMillis();
+      this.params = new HashMap<String, String>();
       this.params.putAll(params);
+      this.queryParameters = null;
+      this.kiosk = null;
+      }
+
+   /**
+    * Creates an event whose date has already been computed (e.g. by a {@link DayBoundaryCalculator}).  The given
+    * <code>params</code> map is NOT copied, so the caller must not modify it afterwards.
+    */
+   Event(@NotNull final String type, final long timeInMillis, final long dateInMillis, @NotNull final Map<String, String> params, @NotNull final DateTimeZone timeZone)
+      {
+      this(type, null, -1, timeInMillis, dateInMillis, params, timeZone);
+      }
+
+   /**
+    * Creates an event whose type has already been looked up in the given {@link SupportedEventTypes}, where its ID is
+    * <code>typeId</code>, so that {@link #getTypeId(SupportedEventTypes)} needn't look it up again.  Otherwise, the same
+    * as the constructor above.
+    */
+   Event(@NotNull final String type,
+         @Nullable final SupportedEventTypes supportedEventTypes,
+         final int typeId,
+         final long timeInMillis,
+         final long dateInMillis,
+         @NotNull final Map<String, String> params,
+         @NotNull final DateTimeZone timeZone)
+      {
+      this(type, supportedEventTypes, typeId, timeInMillis, dateInMillis, params, timeZone, null);
+      }
+
+   /** The same as the constructor above, but for an event sent by the given kiosk. */
+   Event(@NotNull final String type,
+         @Nullable final SupportedEventTypes supportedEventTypes,
+         final int typeId,
+         final long timeInMillis,
+         final long dateInMillis,
+         @NotNull final Map<String, String> params,
+         @NotNull final DateTimeZone timeZone,
+         @Nullable final String kiosk)
+      {
+      this(type, supportedEventTypes, typeId, timeInMillis, dateInMillis, params, null, timeZone, kiosk);
+      }
+
+   /**
+    * The same as the constructor above, but with the parameters in the raw form in which they were parsed, so that they
+    * needn't be decoded until (and unless) they're asked for.
+    */
+   Event(@NotNull final String type,
+         @Nullable final SupportedEventTypes supportedEventTypes,
+         final int typeId,
+         final long timeInMillis,
+         final long dateInMillis,
+         @NotNull final QueryParameters queryParameters,
+         @NotNull final DateTimeZone timeZone,
+         @Nullable final String kiosk)
+      {
+      this(type, supportedEventTypes, typeId, timeInMillis, dateInMillis, null, queryParameters, timeZone, kiosk);
+      }
+
+   private Event(@NotNull final String type,
+                 @Nullable final SupportedEventTypes supportedEventTypes,
+                 final int typeId,
+                 final long timeInMillis,
+                 final long dateInMillis,
+                 @Nullable final Map<String, String> params,
+                 @Nullable final QueryParameters queryParameters,
+                 @NotNull final DateTimeZone timeZone,
+                 @Nullable final String kiosk)
+      {
+      this.type = type;
+      this.supportedEventTypes = supportedEventTypes;
+      this.typeId = typeId;
+      this.timeInMillis = timeInMillis;
+      this.dateInMillis = dateInMillis;
+      this.timeZone = timeZone;
+      this.params = params;
+      this.queryParameters = queryParameters;
+      this.kiosk = kiosk;
       }
 
    /**
@@ -54,10 +156,9 @@ final class Event implements Comparable<Event>
    @Override
    public int compareTo(final Event event)
       {
-      final int timeComparison = timeInMillis.compareTo(event.timeInMillis);
-      if (timeComparison != 0)
+      if (timeInMillis != event.timeInMillis)
          {
-         return timeComparison;
+         return (timeInMillis < event.timeInMillis) ? -1 : 1;
          }
 
       final int typeComparison = type.compareTo(event.type);
@@ -75,6 +176,15 @@ final class Event implements Comparable<Event>
       return type;
       }
 
+   /**
+    * Returns the ID of this event's type in the given {@link SupportedEventTypes}, or -1 if it isn't one of them.  That's
+    * free if the event was parsed with those types, and a perfect hash lookup otherwise.
+    */
+   int getTypeId(@NotNull final SupportedEventTypes supportedEventTypes)
+      {
+      return (supportedEventTypes == this.supportedEventTypes) ? typeId : supportedEventTypes.getId(type);
+      }
+
    public long getTimeInMillis()
       {
       return timeInMillis;
@@ -88,19 +198,60 @@ final class Event implements Comparable<Event>
    @NotNull
    public DateTime getDate()
       {
+      if (date == null)
+         {
+         date = new DateTime(dateInMillis, timeZone);
+         }
       return date;
       }
 
    @NotNull
    public DateTime getTime()
       {
+      if (time == null)
+         {
+         time = new DateTime(timeInMillis, timeZone);
+         }
       return time;
       }
 
+   @NotNull
+   DateTimeZone getTimeZone()
+      {
+      return timeZone;
+      }
+
    @Nullable
    public String getParameterValue(@NotNull final String parameterName)
       {
-      return params.get(parameterName);
+      return (queryParameters == null) ? params.get(parameterName) : queryParameters.get(parameterName);
+      }
+
+   /**
+    * Returns the kiosk which sent this event, or <code>null</code> if it wasn't identified when parsed.  The kiosk isn't
+    * part of the event's identity, so it's ignored by {@link #equals(Object)} and {@link #compareTo(Event)}.
+    */
+   @Nullable
+   String getKiosk()
+      {
+      return kiosk;
+      }
+
+   /**
+    * Returns an unmodifiable view of all of this event's parameters.  If they're still in their raw form, they're all
+    * decoded into a new map every time, so callers which only need a few should use {@link #getParameterValue(String)}.
+    */
+   @NotNull
+   Map<String, String> getParameters()
+      {
+      return (queryParameters == null) ? Collections.unmodifiableMap(params) : queryParameters.toMap();
+      }
+
+   /** Returns the parameters in the raw form in which they were parsed, or <code>null</code> if they were given as a map. */
+   @Nullable
+   QueryParameters getQueryParameters()
+      {
+      return queryParameters;
       }
 
    /**
@@ -137,15 +288,16 @@ final class Event implements Comparable<Event>
 
       final Event event = (Event)o;
 
-      if (!params.equals(event.params))
+      // compare the parameters last, since that means decoding them
+      if (timeInMillis != event.timeInMillis)
          {
          return false;
          }
-      if (!timeInMillis.equals(event.timeInMillis))
+      if (!type.equals(event.type))
          {
          return false;
          }
-      if (!type.equals(event.type))
+      if (!getParameters().equals(event.getParameters()))
          {
          return false;
          }
@@ -157,8 +309,8 @@ final class Event implements Comparable<Event>
    public int hashCode()
       {
       int result = type.hashCode();
-      result = 31 * result + timeInMillis.hashCode();
-      result = 31 * result + params.hashCode();
+      result = 31 * result + (int)(timeInMillis ^ (timeInMillis >>> 32));
+      result = 31 * result + ((queryParameters == null) ? params.hashCode() : queryParameters.mapHashCode());
       return result;
       }
 
@@ -169,7 +321,11 @@ final class Event implements Comparable<Event>
       sb.append("Event");
       sb.append("{type='").append(type).append('\'');
       sb.append(", timeInMillis=").append(timeInMillis);
-      sb.append(", params=").append(params);
+      sb.append(", params=").append(getParameters());
+      if (kiosk != null)
+         {
+         sb.append(", kiosk='").append(kiosk).append('\'');
+         }
       sb.append('}');
       return sb.toString();
       }
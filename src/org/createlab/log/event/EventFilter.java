@@ -0,0 +1,142 @@
+package org.createlab.log.event;
+
+import java.util.Collection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Selects the events to process by their time (at or after a <i>from</i> time and before a <i>to</i> time) and,
+ * optionally, their type.  The checks work on the raw bytes of an access log line or the characters of an event log
+ * line as well as on parsed values, so that readers can reject a line before creating anything for it (see
+ * {@link EventRequestScanner} and {@link BaseEventLogLineProcessor}).
+ * </p>
+ * <p>
+ * Instances are immutable, so they're safe to share between threads.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class EventFilter
+   {
+   /** Accepts every event. */
+   static final EventFilter ALL = new EventFilter(Long.MIN_VALUE, Long.MAX_VALUE, null);
+
+   private final long fromTimeInMillis;
+   private final long toTimeInMillis;
+
+   /** The names of the accepted types, or <code>null</code> if all types are accepted. */
+   @Nullable
+   private final String[] types;
+
+   /** The bytes of {@link #types}, for comparing them to the bytes of a line. */
+   @Nullable
+   private final byte[][] typeBytes;
+
+   /**
+    * Creates a filter which accepts the events at or after <code>fromTimeInMillis</code> and before
+    * <code>toTimeInMillis</code> whose type is one of the given ones, or of any type if <code>types</code> is
+    * <code>null</code>.
+    */
+   EventFilter(final long fromTimeInMillis, final long toTimeInMillis, @Nullable final Collection<String> types)
+      {
+      this.fromTimeInMillis = fromTimeInMillis;
+      this.toTimeInMillis = toTimeInMillis;
+      if (types == null)
+         {
+         this.types = null;
+         this.typeBytes = null;
+         }
+      else
+         {
+         this.types = types.toArray(new String[types.size()]);
+         this.typeBytes = new byte[this.types.length][];
+         for (int i = 0; i < this.types.length; i++)
+            {
+            typeBytes[i] = this.types[i].getBytes();
+            }
+         }
+      }
+
+   /** Returns <code>true</code> if this filter accepts every event. */
+   boolean isAll()
+      {
+      return types == null && fromTimeInMillis == Long.MIN_VALUE && toTimeInMillis == Long.MAX_VALUE;
+      }
+
+   boolean accepts(final long eventTimeInMillis, @NotNull final String eventType)
+      {
+      return isTimeAccepted(eventTimeInMillis) && isTypeAccepted(eventType);
+      }
+
+   boolean isTimeAccepted(final long eventTimeInMillis)
+      {
+      return eventTimeInMillis >= fromTimeInMillis && eventTimeInMillis < toTimeInMillis;
+      }
+
+   boolean isTypeAccepted(@NotNull final String eventType)
+      {
+      if (types == null)
+         {
+         return true;
+         }
+      for (final String type : types)
+         {
+         if (type.equals(eventType))
+            {
+            return true;
+            }
+         }
+      return false;
+      }
+
+   /** Returns <code>true</code> if the given range of bytes is the name of an accepted type. */
+   boolean isTypeAccepted(@NotNull final byte[] bytes, final int start, final int end)
+      {
+      if (typeBytes == null)
+         {
+         return true;
+         }
+      for (final byte[] type : typeBytes)
+         {
+         if (isEqual(bytes, start, end, type))
+            {
+            return true;
+            }
+         }
+      return false;
+      }
+
+   /** Returns <code>true</code> if the given range of characters is the name of an accepted type. */
+   boolean isTypeAccepted(@NotNull final String s, final int start, final int end)
+      {
+      if (types == null)
+         {
+         return true;
+         }
+      for (final String type : types)
+         {
+         if (type.length() == end - start && s.regionMatches(start, type, 0, type.length()))
+            {
+            return true;
+            }
+         }
+      return false;
+      }
+
+   private static boolean isEqual(@NotNull final byte[] bytes, final int start, final int end, @NotNull final byte[] target)
+      {
+      if (end - start != target.length)
+         {
+         return false;
+         }
+      for (int i = 0; i < target.length; i++)
+         {
+         if (bytes[start + i] != target[i])
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+   }
@@ -0,0 +1,364 @@
+package org.createlab.log.event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * A sparse index of a sorted event log, saved next to it (e.g. event-log.csv.idx), which lets a time range be read
+ * without reading the rest of the file.  The event log is divided into blocks of (by default) 64 KB, and for the first
+ * row starting in each block, the index records its time and its offset in the file.  Since the event log is sorted,
+ * the rows in a time range all lie between the last block starting before the range and the first block starting after
+ * it, so reading a range takes time proportional to the range (plus at most two blocks), not to the file.
+ * </p>
+ * <p>
+ * Rows in a binary event log can't be decoded without the state of the {@link BinaryEventLogReader} (the previous
+ * row's time and date, and the event types seen so far), so for those the index also records that state at the start
+ * of each block, and the names of all the event types in the order in which they appear.
+ * </p>
+ * <p>
+ * The index is only written if the rows really were in time order, and it records the length of the event log, so an
+ * index which no longer matches its event log (e.g. because the event log was appended to since) is ignored.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class EventLogIndex
+   {
+   private static final Logger LOG = Logger.getLogger(EventLogIndex.class);
+
+   private static final int MAGIC = 0x45564958; // "EVIX"
+   private static final int VERSION = 1;
+
+   static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+   private static final String FILENAME_EXTENSION = ".idx";
+
+   /** Returns the file in which the index of the given event log is saved. */
+   @NotNull
+   static File getIndexFile(@NotNull final File eventLog)
+      {
+      return new File(eventLog.getPath() + FILENAME_EXTENSION);
+      }
+
+   /**
+    * Returns the index of the given event log, or <code>null</code> if it doesn't have one, or it doesn't match the event
+    * log, or it can't be read.
+    */
+   @Nullable
+   static EventLogIndex load(@NotNull final File eventLog)
+      {
+      final File indexFile = getIndexFile(eventLog);
+      if (!indexFile.exists())
+         {
+         return null;
+         }
+
+      try
+         {
+         final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+         try
+            {
+            if (inputStream.readInt() != MAGIC)
+               {
+               throw new IOException("File [" + indexFile + "] is not an event log index");
+               }
+            final int version = inputStream.readInt();
+            if (version != VERSION)
+               {
+               throw new IOException("Unsupported version [" + version + "] of event log index [" + indexFile + "]");
+               }
+            final long eventLogLength = inputStream.readLong();
+            if (eventLogLength != eventLog.length())
+               {
+               LOG.info("Ignoring the index [" + indexFile + "] since its event log has changed since it was written");
+               return null;
+               }
+            final List<String> types = new ArrayList<String>();
+            final int numTypes = inputStream.readInt();
+            for (int i = 0; i < numTypes; i++)
+               {
+               types.add(inputStream.readUTF());
+               }
+            final EventLogIndex index = new EventLogIndex(eventLogLength, types, inputStream.readInt());
+            for (int block = 0; block < index.numBlocks; block++)
+               {
+               index.firstTimesInMillis[block] = inputStream.readLong();
+               index.offsets[block] = inputStream.readLong();
+               index.previousTimesInMillis[block] = inputStream.readLong();
+               index.previousDatesInMillis[block] = inputStream.readLong();
+               index.numTypesSeen[block] = inputStream.readInt();
+               }
+            return index;
+            }
+         finally
+            {
+            inputStream.close();
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to read the event log index [" + indexFile + "]", e);
+         }
+      return null;
+      }
+
+   private final long eventLogLength;
+
+   @NotNull
+   private final List<String> types;
+
+   private final int numBlocks;
+
+   @NotNull
+   private final long[] firstTimesInMillis;
+
+   @NotNull
+   private final long[] offsets;
+
+   @NotNull
+   private final long[] previousTimesInMillis;
+
+   @NotNull
+   private final long[] previousDatesInMillis;
+
+   @NotNull
+   private final int[] numTypesSeen;
+
+   private EventLogIndex(final long eventLogLength, @NotNull final List<String> types, final int numBlocks)
+      {
+      this.eventLogLength = eventLogLength;
+      this.types = Collections.unmodifiableList(types);
+      this.numBlocks = numBlocks;
+      firstTimesInMillis = new long[numBlocks];
+      offsets = new long[numBlocks];
+      previousTimesInMillis = new long[numBlocks];
+      previousDatesInMillis = new long[numBlocks];
+      numTypesSeen = new int[numBlocks];
+      }
+
+   /** Returns the number of indexed blocks, which is zero if the event log has no rows. */
+   int getNumberOfBlocks()
+      {
+      return numBlocks;
+      }
+
+   /**
+    * Returns the block from which to start reading the rows at or after the given time, which is the last block whose
+    * first row is before that time (or the first block, if there isn't one).
+    */
+   int findStartBlock(final long fromTimeInMillis)
+      {
+      // find the first block starting at or after the time, then back up one
+      return Math.max(0, findFirstBlockAtOrAfter(fromTimeInMillis) - 1);
+      }
+
+   /**
+    * Returns the block at which to stop reading the rows before the given time, which is the first block whose first row
+    * is at or after that time (or the number of blocks, if there isn't one).
+    */
+   int findEndBlock(final long toTimeInMillis)
+      {
+      return findFirstBlockAtOrAfter(toTimeInMillis);
+      }
+
+   private int findFirstBlockAtOrAfter(final long timeInMillis)
+      {
+      int low = 0;
+      int high = numBlocks;
+      while (low < high)
+         {
+         final int middle = (low + high) >>> 1;
+         if (firstTimesInMillis[middle] < timeInMillis)
+            {
+            low = middle + 1;
+            }
+         else
+            {
+            high = middle;
+            }
+         }
+      return low;
+      }
+
+   /** Returns the offset in the event log of the first row of the given block, or the event log's length for the block after the last. */
+   long getOffset(final int block)
+      {
+      return (block < numBlocks) ? offsets[block] : eventLogLength;
+      }
+
+   /** Returns the time of the row before the given block, which a binary event log's first time delta is relative to. */
+   long getPreviousTimeInMillis(final int block)
+      {
+      return previousTimesInMillis[block];
+      }
+
+   /** Returns the date of the row before the given block, which a binary event log's first date delta is relative to. */
+   long getPreviousDateInMillis(final int block)
+      {
+      return previousDatesInMillis[block];
+      }
+
+   /** Returns the event types which a binary event log has introduced before the given block, in order of appearance. */
+   @NotNull
+   List<String> getTypesSeen(final int block)
+      {
+      return types.subList(0, numTypesSeen[block]);
+      }
+
+   /**
+    * Builds the index of an event log as it's written.  The writer calls {@link #addRow} for every row, just before
+    * writing it, and {@link #save(long)} once the event log is closed.
+    */
+   static final class Builder
+      {
+      @NotNull
+      private final File eventLog;
+
+      private final int blockSize;
+
+      private int numBlocks = 0;
+
+      @NotNull
+      private long[] firstTimesInMillis = new long[64];
+
+      @NotNull
+      private long[] offsets = new long[64];
+
+      @NotNull
+      private long[] previousTimesInMillis = new long[64];
+
+      @NotNull
+      private long[] previousDatesInMillis = new long[64];
+
+      @NotNull
+      private int[] numTypesSeen = new int[64];
+
+      /** The offset at which the next block starts. */
+      private long nextBlockOffset = 0;
+
+      private long previousTimeInMillis = Long.MIN_VALUE;
+      private boolean isSorted = true;
+
+      Builder(@NotNull final File eventLog)
+         {
+         this(eventLog, DEFAULT_BLOCK_SIZE);
+         }
+
+      Builder(@NotNull final File eventLog, final int blockSize)
+         {
+         this.eventLog = eventLog;
+         this.blockSize = blockSize;
+         }
+
+      /** Records a row of a CSV event log, which will be written at the given offset. */
+      void addRow(final long offset, final long timeInMillis)
+         {
+         addRow(offset, timeInMillis, 0, 0, 0);
+         }
+
+      /**
+       * Records a row of a binary event log, which will be written at the given offset, along with the time and date of
+       * the row before it, and the number of event types introduced before it.
+       */
+      void addRow(final long offset, final long timeInMillis, final long previousRowTimeInMillis, final long previousRowDateInMillis, final int numTypes)
+         {
+         if (timeInMillis < previousTimeInMillis)
+            {
+            isSorted = false;
+            }
+         previousTimeInMillis = timeInMillis;
+
+         if (offset >= nextBlockOffset)
+            {
+            if (numBlocks == offsets.length)
+               {
+               final int capacity = numBlocks * 2;
+               firstTimesInMillis = Arrays.copyOf(firstTimesInMillis, capacity);
+               offsets = Arrays.copyOf(offsets, capacity);
+               previousTimesInMillis = Arrays.copyOf(previousTimesInMillis, capacity);
+               previousDatesInMillis = Arrays.copyOf(previousDatesInMillis, capacity);
+               numTypesSeen = Arrays.copyOf(numTypesSeen, capacity);
+               }
+            firstTimesInMillis[numBlocks] = timeInMillis;
+            offsets[numBlocks] = offset;
+            previousTimesInMillis[numBlocks] = previousRowTimeInMillis;
+            previousDatesInMillis[numBlocks] = previousRowDateInMillis;
+            numTypesSeen[numBlocks] = numTypes;
+            numBlocks++;
+            nextBlockOffset = (offset / blockSize + 1) * blockSize;
+            }
+         }
+
+      /** Saves the index of a CSV event log, which is now the given length. */
+      void save(final long eventLogLength)
+         {
+         save(eventLogLength, Collections.<String>emptyList());
+         }
+
+      /**
+       * Saves the index of an event log, which is now the given length, and (if it's a binary event log) has the given
+       * event types, in the order in which they appear.  If the rows weren't in time order, the index would be no use,
+       * so it isn't saved (and any old one is deleted).
+       */
+      void save(final long eventLogLength, @NotNull final List<String> types)
+         {
+         final File indexFile = getIndexFile(eventLog);
+         if (!isSorted)
+            {
+            System.err.println("WARNING: Not writing the index [" + indexFile + "] since the rows of the event log [" + eventLog + "] aren't in time order.");
+            if (indexFile.exists() && !indexFile.delete())
+               {
+               LOG.error("Failed to delete the old index [" + indexFile + "]");
+               }
+            return;
+            }
+
+         try
+            {
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            try
+               {
+               outputStream.writeInt(MAGIC);
+               outputStream.writeInt(VERSION);
+               outputStream.writeLong(eventLogLength);
+               outputStream.writeInt(types.size());
+               for (final String type : types)
+                  {
+                  outputStream.writeUTF(type);
+                  }
+               outputStream.writeInt(numBlocks);
+               for (int block = 0; block < numBlocks; block++)
+                  {
+                  outputStream.writeLong(firstTimesInMillis[block]);
+                  outputStream.writeLong(offsets[block]);
+                  outputStream.writeLong(previousTimesInMillis[block]);
+                  outputStream.writeLong(previousDatesInMillis[block]);
+                  outputStream.writeInt(numTypesSeen[block]);
+                  }
+               }
+            finally
+               {
+               outputStream.close();
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to write the event log index [" + indexFile + "]", e);
+            }
+         }
+      }
+   }
@@ -0,0 +1,43 @@
+package org.createlab.log.event;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adapts a {@link BaseEventLogLineProcessor} (such as a stats generator) into an {@link EventProcessor}, so that it can
+ * be given events directly instead of reading them from an event log.  The processor sees exactly the same values it
+ * would have parsed from the event log written by an {@link EventLogProducer}.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class EventLogLineProcessorAdapter implements EventProcessor
+   {
+   @NotNull
+   private final BaseEventLogLineProcessor eventLogLineProcessor;
+
+   @NotNull
+   private final SupportedEventTypes supportedEventTypes;
+
+   EventLogLineProcessorAdapter(@NotNull final BaseEventLogLineProcessor eventLogLineProcessor, @NotNull final SupportedEventTypes supportedEventTypes)
+      {
+      this.eventLogLineProcessor = eventLogLineProcessor;
+      this.supportedEventTypes = supportedEventTypes;
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      eventLogLineProcessor.preProcess();
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      eventLogLineProcessor.processEvent(event, supportedEventTypes.getParameterValuesAsString(event));
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      eventLogLineProcessor.postProcess();
+      }
+   }
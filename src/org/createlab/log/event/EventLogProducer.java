@@ -1,47 +1,324 @@
 package org.createlab.log.event;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
-class EventLogProducer extends BaseApacheLogLineProcessor
+class EventLogProducer extends BaseApacheLogLineProcessor implements Checkpointable
    {
+   private static final String EVENT_LOG_FILENAME = "event-log.csv";
+   private static final String BINARY_EVENT_LOG_FILENAME = "event-log.bin";
+
+   /** The directory in which each kiosk's output files are written, in a subdirectory named after the kiosk. */
    @NotNull
-   private final EventProcessor eventProcessor;
+   private static final File KIOSKS_DIRECTORY = new File("kiosks");
+
+   /** Creates a stats generator for each kiosk, writing its output files in the given directory. */
+   interface StatsGeneratorFactory
+      {
+      @NotNull
+      BaseEventLogLineProcessor create(@NotNull final File outputDirectory);
+      }
 
+   @Nullable
+   private EventProcessor eventProcessor = null;
+
+   @Nullable
+   private CsvOutputEventProcessor eventLogOutputEventProcessor = null;
+
+   /** The length to which the event log is truncated before appending to it, or -1 if we're creating it. */
+   private long eventLogResumeFileLength = -1;
+
+   /** The number of events of each type, indexed by type ID. */
    @NotNull
-   private final Map<String, Integer> countsByType = new HashMap<String, Integer>();
+   private final int[] countsByTypeId;
 
    @NotNull
    private final SupportedEventTypes supportedEventTypes;
 
+   private boolean isSortingEnabled = false;
+   private long sortMemoryBudgetInBytes = SortingEventProcessor.DEFAULT_MEMORY_BUDGET_IN_BYTES;
+
+   /** The maximum lateness of the events being reordered, or -1 if they aren't. */
+   private long reorderMaxLatenessInMillis = -1;
+
+   /** The horizon within which repeated events are dropped, or -1 if they aren't. */
+   private long deduplicationHorizonInMillis = -1;
+
+   @Nullable
+   private DuplicateEventFilter duplicateEventFilter = null;
+
+   @Nullable
+   private BaseEventLogLineProcessor statsGenerator = null;
+   private boolean isEventLogEnabled = true;
+   private boolean isBinaryEventLogEnabled = false;
+   private boolean isAsynchronousWritingEnabled = false;
+
+   @Nullable
+   private KioskKey kioskKey = null;
+
+   @Nullable
+   private StatsGeneratorFactory statsGeneratorFactory = null;
+
+   @Nullable
+   private PipelineMetrics writeMetrics = null;
+
    EventLogProducer(@NotNull final SupportedEventTypes supportedEventTypes)
       {
       this.supportedEventTypes = supportedEventTypes;
-      eventProcessor = new EventLogOutputEventProcessor(supportedEventTypes);
-      for (final String eventType : this.supportedEventTypes.getSupportedEventTypeNames())
-         {
-         countsByType.put(eventType, 0);
-         }
+      countsByTypeId = new int[supportedEventTypes.getNumberOfEventTypes()];
+      }
+
+   /**
+    * Sorts the events (by time, then type) before writing them to the event log, so that the event log no longer needs
+    * to be sorted before being given to a stats generator.  Events are sorted in memory until their estimated size
+    * exceeds the given memory budget, and then spilled to disk and merged.  A sorted event log is also indexed (see
+    * {@link EventLogIndex}), so that a time range can be read from it without reading the whole file.
+    */
+   final void setSortingEnabled(final long memoryBudgetInBytes)
+      {
+      isSortingEnabled = true;
+      sortMemoryBudgetInBytes = memoryBudgetInBytes;
+      }
+
+   /**
+    * Sorts the events (by time, then type) as they go by, instead of all at once, for access logs whose events are only
+    * slightly out of order: each event is held back until events up to the given number of milliseconds later than it
+    * have been seen (see {@link ReorderingEventProcessor}).  Unlike {@link #setSortingEnabled(long)}, the events are
+    * passed on as they go, so this also works when following a live access log.  Events which arrive later than that
+    * can't be put in order, so they're dropped (and counted).  The event log is indexed, as when sorting.
+    */
+   final void setReorderingEnabled(final long maxLatenessInMillis)
+      {
+      reorderMaxLatenessInMillis = maxLatenessInMillis;
+      }
+
+   /**
+    * Drops the repeats of each event (see {@link Event#equals(Object)}), e.g. from a kiosk's browser retrying a request,
+    * which are no older than the given number of milliseconds behind the latest event seen so far (see
+    * {@link DuplicateEventFilter}).  Repeats are dropped before they're counted or passed on to anything else, and the
+    * number dropped is printed at the end.
+    */
+   final void setDeduplicationHorizon(final long horizonInMillis)
+      {
+      deduplicationHorizonInMillis = horizonInMillis;
+      }
+
+   /**
+    * Passes the events straight to the given stats generator, in memory, instead of the stats generator having to parse
+    * them back out of a sorted event log.  Writing the event log becomes optional.  Stats generators expect their events
+    * in time order, so this is normally combined with {@link #setSortingEnabled(long)}.  The exception is when following
+    * a live access log, where events already arrive (almost) in time order, and sorting would hold them all back until
+    * the end.
+    */
+   final void setStatsGenerator(@NotNull final BaseEventLogLineProcessor statsGenerator, final boolean isEventLogEnabled)
+      {
+      this.statsGenerator = statsGenerator;
+      this.isEventLogEnabled = isEventLogEnabled;
+      }
+
+   /**
+    * Writes the event log in the compact binary format of the {@link BinaryEventLogWriter} (to event-log.bin) instead of
+    * as CSV.  Stats generators read either format.  Binary event logs can't be sorted with <code>sort</code>, so this
+    * is normally combined with sorting.
+    */
+   final void setBinaryEventLogEnabled(final boolean isBinaryEventLogEnabled)
+      {
+      this.isBinaryEventLogEnabled = isBinaryEventLogEnabled;
+      }
+
+   /**
+    * Writes the (CSV) event log on a dedicated thread, so that parsing never waits for the disk.  See
+    * {@link CsvOutputEventProcessor#setAsynchronous(boolean)}.
+    */
+   final void setAsynchronousWritingEnabled(final boolean isAsynchronousWritingEnabled)
+      {
+      this.isAsynchronousWritingEnabled = isAsynchronousWritingEnabled;
+      }
+
+   /**
+    * Handles the events of each kiosk separately, for when one Apache server collects the events of several kiosks,
+    * identifying the kiosk which sent each event by the given key.  Each kiosk gets its own event log and (if there's a
+    * stats generator) stats, in its own directory under <code>kiosks</code> (e.g.
+    * <code>kiosks/10.0.0.1/daily-usage-stats.csv</code>), written by its own processors, which run concurrently (see
+    * {@link PerKioskEventProcessor}).  If there's a stats generator, the given factory creates one for each kiosk.
+    * When sorting, all the events are sorted together, and then handed to the kiosks.
+    */
+   final void setPerKiosk(@NotNull final KioskKey kioskKey, @Nullable final StatsGeneratorFactory statsGeneratorFactory)
+      {
+      this.kioskKey = kioskKey;
+      this.statsGeneratorFactory = statsGeneratorFactory;
+      }
+
+   /** Records the time spent writing the event log in the given metrics.  Must be called before {@link #preProcess()}. */
+   final void setWriteMetrics(@Nullable final PipelineMetrics writeMetrics)
+      {
+      this.writeMetrics = writeMetrics;
+      }
+
+   @Nullable
+   @Override
+   final KioskKey getKioskKey()
+      {
+      return kioskKey;
+      }
+
+   @NotNull
+   @Override
+   final SupportedEventTypes getSupportedEventTypes()
+      {
+      return supportedEventTypes;
       }
 
    @Override
    protected final void doBeforeProcessingLines()
       {
+      duplicateEventFilter = (deduplicationHorizonInMillis < 0) ? null : new DuplicateEventFilter(deduplicationHorizonInMillis);
+      eventProcessor = createEventProcessor();
       eventProcessor.beforeProcessingAnyEvents();
       }
 
+   @NotNull
+   private EventProcessor createEventProcessor()
+      {
+      eventLogOutputEventProcessor = null;
+      final EventProcessor destination;
+      if (kioskKey == null)
+         {
+         destination = createDestination(null, statsGenerator);
+         }
+      else
+         {
+         destination = new PerKioskEventProcessor(new PerKioskEventProcessor.Factory()
+         {
+         @NotNull
+         @Override
+         public EventProcessor create(@NotNull final String kiosk)
+            {
+            final File outputDirectory = new File(KIOSKS_DIRECTORY, toDirectoryName(kiosk));
+            if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+               {
+               System.err.println("ERROR: Could not create the directory [" + outputDirectory + "] for kiosk [" + kiosk + "]. Aborting.");
+               System.exit(1);
+               }
+            return createDestination(outputDirectory, (statsGeneratorFactory == null) ? null : statsGeneratorFactory.create(outputDirectory));
+            }
+         }, Runtime.getRuntime().availableProcessors());
+         }
+
+      if (isSortingEnabled)
+         {
+         return new SortingEventProcessor(destination, sortMemoryBudgetInBytes, getTimeZone());
+         }
+      if (isReorderingEnabled())
+         {
+         return new ReorderingEventProcessor(destination, reorderMaxLatenessInMillis);
+         }
+      return destination;
+      }
+
+   /**
+    * Creates the processors which write the event log and pass the events to the stats generator (if any), writing their
+    * files in the given directory, or in the current directory if it's <code>null</code>.
+    */
+   @NotNull
+   private EventProcessor createDestination(@Nullable final File outputDirectory, @Nullable final BaseEventLogLineProcessor statsGenerator)
+      {
+      final List<EventProcessor> eventProcessors = new ArrayList<EventProcessor>();
+      if (isEventLogEnabled)
+         {
+         if (isBinaryEventLogEnabled)
+            {
+            final BinaryEventLogWriter binaryEventLogWriter = new BinaryEventLogWriter(new File(outputDirectory, BINARY_EVENT_LOG_FILENAME), supportedEventTypes);
+            binaryEventLogWriter.setIndexed(isSortingEnabled || isReorderingEnabled());
+            eventProcessors.add(timeWrites(binaryEventLogWriter));
+            }
+         else
+            {
+            final CsvOutputEventProcessor eventLogWriter = new EventLogOutputEventProcessor(new File(outputDirectory, EVENT_LOG_FILENAME), supportedEventTypes);
+            if (kioskKey == null)
+               {
+               // only a single event log can be resumed from a checkpoint
+               eventLogOutputEventProcessor = eventLogWriter;
+               if (eventLogResumeFileLength >= 0)
+                  {
+                  eventLogWriter.resume(eventLogResumeFileLength);
+                  }
+               }
+            eventLogWriter.setAsynchronous(isAsynchronousWritingEnabled);
+            eventLogWriter.setIndexed(isSortingEnabled || isReorderingEnabled());
+            eventProcessors.add(timeWrites(eventLogWriter));
+            }
+         }
+      if (statsGenerator != null)
+         {
+         eventProcessors.add(new EventLogLineProcessorAdapter(statsGenerator, supportedEventTypes));
+         }
+
+      return (eventProcessors.size() == 1) ? eventProcessors.get(0) : new CompositeEventProcessor(eventProcessors);
+      }
+
+   private boolean isReorderingEnabled()
+      {
+      return reorderMaxLatenessInMillis >= 0;
+      }
+
+   @NotNull
+   private EventProcessor timeWrites(@NotNull final EventProcessor eventLogWriter)
+      {
+      return (writeMetrics == null) ? eventLogWriter : writeMetrics.timeWrites(eventLogWriter);
+      }
+
+   /**
+    * Returns the name of the directory for the given kiosk's output files.  Letters, digits, hyphens and (except at the
+    * start) dots are kept, and every other byte of the name's UTF-8 encoding, including an underscore, is replaced by an
+    * underscore and its two hex digits (e.g. "a/b" becomes "a_2Fb", and "a_b" becomes "a_5Fb"), so no two kiosks ever
+    * share a directory.
+    */
+   @NotNull
+   private static String toDirectoryName(@NotNull final String kiosk)
+      {
+      if (kiosk.length() == 0)
+         {
+         return "_";
+         }
+      final StringBuilder name = new StringBuilder();
+      for (final byte b : kiosk.getBytes(Charset.forName("UTF-8")))
+         {
+         if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-' || (b == '.' && name.length() > 0))
+            {
+            name.append((char)b);
+            }
+         else
+            {
+            name.append('_').append(String.format("%02X", b & 0xFF));
+            }
+         }
+      return name.toString();
+      }
+
    @Override
    protected final void processEvent(@NotNull final Event event)
       {
-      if (this.supportedEventTypes.getSupportedEventTypeNames().contains(event.getType()))
+      if (duplicateEventFilter != null && duplicateEventFilter.isDuplicate(event))
          {
-         countsByType.put(event.getType(), countsByType.get(event.getType()) + 1);
+         return;
+         }
+
+      final int typeId = event.getTypeId(supportedEventTypes);
+      if (typeId >= 0)
+         {
+         countsByTypeId[typeId]++;
          eventProcessor.processEvent(event);
          }
       else
@@ -55,37 +332,86 @@ class EventLogProducer extends BaseApacheLogLineProcessor
       {
       eventProcessor.afterProcessingAnyEvents();
 
-      for (final String eventType : countsByType.keySet())
+      for (int typeId = 0; typeId < countsByTypeId.length; typeId++)
+         {
+         System.out.println("Found [" + countsByTypeId[typeId] + "] events for type [" + supportedEventTypes.getName(typeId) + "]");
+         }
+      if (duplicateEventFilter != null)
+         {
+         System.out.println("Dropped [" + duplicateEventFilter.getNumDuplicates() + "] duplicate events");
+         for (final Map.Entry<String, Long> entry : duplicateEventFilter.getNumDuplicatesByKiosk().entrySet())
+            {
+            System.out.println("Dropped [" + entry.getValue() + "] duplicate events from kiosk [" + entry.getKey() + "]");
+            }
+         }
+      }
+
+   /**
+    * Returns <code>true</code> if this producer's state can be saved in a checkpoint, which it can as long as it isn't
+    * writing a binary event log or handling each kiosk separately, and its stats generator (if any) is
+    * {@link Checkpointable} too.
+    */
+   final boolean isCheckpointable()
+      {
+      return !(isEventLogEnabled && isBinaryEventLogEnabled) && kioskKey == null && (statsGenerator == null || statsGenerator instanceof Checkpointable);
+      }
+
+   @Override
+   public final void saveCheckpoint(@NotNull final DataOutput output) throws IOException
+      {
+      output.writeInt(countsByTypeId.length);
+      for (int typeId = 0; typeId < countsByTypeId.length; typeId++)
+         {
+         output.writeUTF(supportedEventTypes.getName(typeId));
+         output.writeInt(countsByTypeId[typeId]);
+         }
+      output.writeLong(eventLogOutputEventProcessor == null ? -1 : eventLogOutputEventProcessor.getLength());
+      output.writeBoolean(statsGenerator != null);
+      if (statsGenerator instanceof Checkpointable)
          {
-         final int count = countsByType.get(eventType);
-         System.out.println("Found [" + count + "] events for type [" + eventType + "]");
+         ((Checkpointable)statsGenerator).saveCheckpoint(output);
+         }
+      }
+
+   @Override
+   public final void restoreCheckpoint(@NotNull final DataInput input) throws IOException
+      {
+      final int numTypes = input.readInt();
+      for (int i = 0; i < numTypes; i++)
+         {
+         final int typeId = supportedEventTypes.getId(input.readUTF());
+         final int count = input.readInt();
+         if (typeId >= 0)
+            {
+            countsByTypeId[typeId] = count;
+            }
+         }
+      eventLogResumeFileLength = input.readLong();
+      if (input.readBoolean() != (statsGenerator != null))
+         {
+         throw new IOException("The checkpoint was saved " + (statsGenerator == null ? "with" : "without") + " a stats generator, so it can't be resumed " + (statsGenerator == null ? "without" : "with") + " one");
+         }
+      if (statsGenerator instanceof Checkpointable)
+         {
+         ((Checkpointable)statsGenerator).restoreCheckpoint(input);
          }
       }
 
    private static final class EventLogOutputEventProcessor extends CsvOutputEventProcessor
       {
-      @NotNull
-      private static final File FILE = new File("event-log.csv");
       private final SupportedEventTypes supportedEventTypes;
 
-      private EventLogOutputEventProcessor(final SupportedEventTypes supportedEventTypes)
+      private EventLogOutputEventProcessor(@NotNull final File file, final SupportedEventTypes supportedEventTypes)
          {
-         super(FILE);
+         super(file);
          this.supportedEventTypes = supportedEventTypes;
          }
 
       @Override
       protected void appendEventParameters(@NotNull final Event event, @NotNull final StringBuilder stringBuilder)
          {
-         final List<String> parameterList = this.supportedEventTypes.getParameterList(event.getType());
-         if (!parameterList.isEmpty())
-            {
-            // We know there's never more than one because we defined them above
-            final String parameterName = parameterList.get(0);
-
-            // no need to append the field delimiter first since the superclass has already done it for us
-            stringBuilder.append(event.getParameterValue(parameterName));
-            }
+         // no need to append the field delimiter first since the superclass has already done it for us
+         stringBuilder.append(this.supportedEventTypes.getParameterValuesAsString(event));
          }
       }
    }
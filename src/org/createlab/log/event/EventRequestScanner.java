@@ -0,0 +1,333 @@
+package org.createlab.log.event;
+
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Finds the event request in a line of an Apache access log and parses it into an {@link Event}, in a single forward
+ * pass over the line's bytes and without using regular expressions.  The results are identical to those of the
+ * <code>^.*event\.json\?(.*)&amp;_=.*$</code> regex followed by <code>split("&amp;")</code> and
+ * <code>split("=")</code> which this class replaces.  In particular:
+ * </p>
+ * <ul>
+ *    <li>the query string starts after the last occurrence of <code>event.json?</code> which is followed by a
+ *    <code>&amp;_=</code>, and ends at the last occurrence of <code>&amp;_=</code> (the cache buster)</li>
+ *    <li>trailing empty parameters are ignored, but empty parameters elsewhere are kept (with an empty name)</li>
+ *    <li>a parameter's value ends at the next <code>=</code>, and is <code>null</code> if there's nothing but
+ *    <code>=</code> characters after the name</li>
+ * </ul>
+ * <p>
+ * The one intentional difference is that a parameter consisting only of <code>=</code> characters is treated as an
+ * empty name with a <code>null</code> value, rather than causing an {@link ArrayIndexOutOfBoundsException}.
+ * </p>
+ * <p>
+ * Only the type and time are decoded.  The other parameters are kept in their raw form (see {@link QueryParameters}),
+ * and are only decoded if and when they're asked for.
+ * </p>
+ * <p>
+ * The type and time are checked against the {@link EventFilter} as soon as they're found, straight from the line's
+ * bytes, and a line whose event the filter rejects is dropped there and then, before anything is created for it.  The
+ * type and time usually come first, so that's usually before even the table of the other parameters is created.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class EventRequestScanner
+   {
+   private static final byte[] EVENT_REQUEST_BYTES = new byte[]{'e', 'v', 'e', 'n', 't', '.', 'j', 's', 'o', 'n', '?'};
+   private static final byte[] CACHE_BUSTER_BYTES = new byte[]{'&', '_', '='};
+   private static final byte[] TYPE_BYTES = BaseApacheLogLineProcessor.EVENT_PARAMETER_TYPE_NAME.getBytes();
+   private static final byte[] TIME_BYTES = BaseApacheLogLineProcessor.EVENT_PARAMETER_TIME_NAME.getBytes();
+
+   /** The longest string of digits which is guaranteed to fit in a long. */
+   private static final int MAX_FAST_PATH_DIGITS = 18;
+
+   /**
+    * Returns the {@link Event} contained in the given line, or <code>null</code> if the line doesn't contain one.  Lines
+    * without an <code>event.json?</code> request (e.g. requests for static assets) are rejected after a single
+    * substring search.  If <code>supportedEventTypes</code> is given, the event's type is looked up in it straight from
+    * the line's bytes, and a supported type's name is shared rather than copied.  If a <code>kioskKey</code> is given, the
+    * event also records the kiosk which sent it (see {@link Event#getKiosk()}).  If a <code>recorder</code> is given,
+    * it's told when the line has been parsed and the event is about to be built.  Returns <code>null</code> if the
+    * <code>filter</code> rejects the event.
+    *
+    * @throws NumberFormatException if the line contains a <code>time</code> parameter which isn't a valid long (unless
+    * the filter has already rejected the event by its type)
+    */
+   @Nullable
+   static Event scan(@NotNull final byte[] bytes,
+                     final int offset,
+                     final int length,
+                     @NotNull final DayBoundaryCalculator dayBoundaryCalculator,
+                     @Nullable final SupportedEventTypes supportedEventTypes,
+                     @Nullable final KioskKey kioskKey,
+                     @NotNull final EventFilter filter,
+                     @Nullable final PipelineMetrics.Recorder recorder)
+      {
+      final int end = offset + length;
+      final int firstEventRequest = indexOf(bytes, offset, end, EVENT_REQUEST_BYTES);
+      if (firstEventRequest < 0)
+         {
+         return null;
+         }
+
+      // Find the query string.  It starts after the last "event.json?" which is followed by a "&_=", and ends at the
+      // last "&_=".  Neither string can overlap itself or the other, so we can skip past each match.
+      int candidateQueryStart = -1;
+      int queryStart = -1;
+      int queryEnd = -1;
+      int i = firstEventRequest;
+      while (i < end)
+         {
+         final byte b = bytes[i];
+         if (b == 'e' && regionMatches(bytes, i, end, EVENT_REQUEST_BYTES))
+            {
+            i += EVENT_REQUEST_BYTES.length;
+            candidateQueryStart = i;
+            }
+         else if (b == '&' && candidateQueryStart >= 0 && regionMatches(bytes, i, end, CACHE_BUSTER_BYTES))
+            {
+            queryStart = candidateQueryStart;
+            queryEnd = i;
+            i += CACHE_BUSTER_BYTES.length;
+            }
+         else
+            {
+            i++;
+            }
+         }
+
+      if (queryStart < 0)
+         {
+         return null;
+         }
+
+      // trailing empty parameters are ignored
+      while (queryEnd > queryStart && bytes[queryEnd - 1] == '&')
+         {
+         queryEnd--;
+         }
+      if (queryEnd == queryStart)
+         {
+         return null;
+         }
+
+      // There's one parameter more than there are '&' characters.  The event only keeps the query string from the first
+      // parameter which isn't the type or time onwards (which, since those usually come first, is usually just the ones
+      // it keeps), and the offsets are relative to its start, so the table is only created once that parameter is found,
+      // with room for it and the ones after it.
+      int numParameters = 1;
+      for (int j = queryStart; j < queryEnd; j++)
+         {
+         if (bytes[j] == '&')
+            {
+            numParameters++;
+            }
+         }
+      int[] parameterOffsets = null;
+      int numParameterOffsets = 0;
+      int keptStart = -1;
+      int parameterIndex = 0;
+      String eventType = null;
+      int eventTypeId = -1;
+      long eventTimeInMillis = -1;
+      String kiosk = null;
+      int parameterStart = queryStart;
+      while (parameterStart <= queryEnd)
+         {
+         int parameterEnd = parameterStart;
+         while (parameterEnd < queryEnd && bytes[parameterEnd] != '&')
+            {
+            parameterEnd++;
+            }
+
+         // the name ends at the first '=', and the value ends at the second one
+         int nameEnd = parameterStart;
+         while (nameEnd < parameterEnd && bytes[nameEnd] != '=')
+            {
+            nameEnd++;
+            }
+         final int valueStart = nameEnd + 1;
+         int valueEnd = valueStart;
+         while (valueEnd < parameterEnd && bytes[valueEnd] != '=')
+            {
+            valueEnd++;
+            }
+
+         // the value is only null if there's nothing but '=' characters after the name
+         boolean hasValue = false;
+         for (int j = valueStart; j < parameterEnd && !hasValue; j++)
+            {
+            hasValue = (bytes[j] != '=');
+            }
+
+         if (regionEquals(bytes, parameterStart, nameEnd, TYPE_BYTES))
+            {
+            if (hasValue)
+               {
+               if (!filter.isTypeAccepted(bytes, valueStart, valueEnd) && !containsParameter(bytes, parameterEnd, queryEnd, TYPE_BYTES))
+                  {
+                  return null;
+                  }
+               eventTypeId = (supportedEventTypes == null) ? -1 : supportedEventTypes.getId(bytes, valueStart, valueEnd);
+               eventType = (eventTypeId >= 0) ? supportedEventTypes.getName(eventTypeId) : new String(bytes, valueStart, valueEnd - valueStart);
+               }
+            }
+         else if (regionEquals(bytes, parameterStart, nameEnd, TIME_BYTES))
+            {
+            if (hasValue)
+               {
+               eventTimeInMillis = parseLong(bytes, valueStart, valueEnd);
+               if (!filter.isTimeAccepted(eventTimeInMillis) && !containsParameter(bytes, parameterEnd, queryEnd, TIME_BYTES))
+                  {
+                  return null;
+                  }
+               }
+            }
+         else
+            {
+            if (parameterOffsets == null)
+               {
+               parameterOffsets = new int[(numParameters - parameterIndex) * QueryParameters.NUM_OFFSETS_PER_PARAMETER];
+               keptStart = parameterStart;
+               }
+            parameterOffsets[numParameterOffsets++] = parameterStart - keptStart;
+            parameterOffsets[numParameterOffsets++] = nameEnd - keptStart;
+            parameterOffsets[numParameterOffsets++] = hasValue ? valueStart - keptStart : -1;
+            parameterOffsets[numParameterOffsets++] = hasValue ? valueEnd - keptStart : -1;
+            if (kioskKey != null && hasValue && kioskKey.isParameterName(bytes, parameterStart, nameEnd))
+               {
+               kiosk = kioskKey.share(new String(bytes, valueStart, valueEnd - valueStart));
+               }
+            }
+
+         parameterStart = parameterEnd + 1;
+         parameterIndex++;
+         }
+
+      // a later type or time parameter may have replaced one which was accepted by one which isn't
+      if (eventType != null && eventTimeInMillis >= 0 && filter.accepts(eventTimeInMillis, eventType))
+         {
+         if (recorder != null)
+            {
+            recorder.startEventBuild();
+            }
+         if (kioskKey != null && kioskKey.isClientAddress())
+            {
+            // the client address is the first field of the line
+            int clientAddressEnd = offset;
+            while (clientAddressEnd < firstEventRequest && bytes[clientAddressEnd] != ' ')
+               {
+               clientAddressEnd++;
+               }
+            kiosk = kioskKey.share(new String(bytes, offset, clientAddressEnd - offset));
+            }
+         final QueryParameters eventParameters;
+         if (parameterOffsets == null)
+            {
+            eventParameters = QueryParameters.EMPTY;
+            }
+         else
+            {
+            eventParameters = new QueryParameters(Arrays.copyOfRange(bytes, keptStart, queryEnd),
+                                                  parameterOffsets,
+                                                  numParameterOffsets / QueryParameters.NUM_OFFSETS_PER_PARAMETER);
+            }
+         return new Event(eventType,
+                          (eventTypeId >= 0) ? supportedEventTypes : null,
+                          eventTypeId,
+                          eventTimeInMillis,
+                          dayBoundaryCalculator.getDateInMillis(eventTimeInMillis),
+                          eventParameters,
+                          dayBoundaryCalculator.getTimeZone(),
+                          kiosk);
+         }
+      return null;
+      }
+
+   /**
+    * Returns <code>true</code> if the query string from <code>start</code> (the end of a parameter) to <code>end</code>
+    * contains another parameter with the given name, which would replace the value of the one before it.
+    */
+   private static boolean containsParameter(@NotNull final byte[] bytes, final int start, final int end, @NotNull final byte[] name)
+      {
+      for (int i = start; i < end; i++)
+         {
+         if (bytes[i] == '&')
+            {
+            final int nameEnd = i + 1 + name.length;
+            if (regionMatches(bytes, i + 1, end, name) && (nameEnd == end || bytes[nameEnd] == '=' || bytes[nameEnd] == '&'))
+               {
+               return true;
+               }
+            }
+         }
+      return false;
+      }
+
+   /** Parses the given range as a long, with the same results (and exceptions) as {@link Long#parseLong(String)}. */
+   private static long parseLong(@NotNull final byte[] bytes, final int start, final int end)
+      {
+      final int numDigits = end - start;
+      if (numDigits > 0 && numDigits <= MAX_FAST_PATH_DIGITS)
+         {
+         long value = 0;
+         int i = start;
+         while (i < end && bytes[i] >= '0' && bytes[i] <= '9')
+            {
+            value = value * 10 + (bytes[i] - '0');
+            i++;
+            }
+         if (i == end)
+            {
+            return value;
+            }
+         }
+
+      // let Long.parseLong() deal with signs, overflow and errors
+      return Long.parseLong(new String(bytes, start, numDigits));
+      }
+
+   /** Returns the index of the first occurrence of the <code>target</code> in the given range, or -1 if there is none. */
+   static int indexOf(@NotNull final byte[] bytes, final int start, final int end, @NotNull final byte[] target)
+      {
+      final byte first = target[0];
+      final int max = end - target.length;
+      for (int i = start; i <= max; i++)
+         {
+         if (bytes[i] == first && regionMatches(bytes, i, end, target))
+            {
+            return i;
+            }
+         }
+      return -1;
+      }
+
+   private static boolean regionMatches(@NotNull final byte[] bytes, final int start, final int end, @NotNull final byte[] target)
+      {
+      if (end - start < target.length)
+         {
+         return false;
+         }
+      for (int i = 0; i < target.length; i++)
+         {
+         if (bytes[start + i] != target[i])
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   private static boolean regionEquals(@NotNull final byte[] bytes, final int start, final int end, @NotNull final byte[] target)
+      {
+      return (end - start == target.length) && regionMatches(bytes, start, end, target);
+      }
+
+   private EventRequestScanner()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,624 @@
+package org.createlab.log.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTimeZone;
+
+/**
+ * <p>
+ * Holds parsed events in memory, column by column, so that they can be scanned and aggregated (or replayed into a stats
+ * generator) as many times as needed without reparsing the logs.  Each event is a row across a handful of primitive
+ * arrays: its time, its type's ID in the {@link SupportedEventTypes}, its date (dictionary-encoded, since there are
+ * only as many distinct dates as days), and one dictionary-encoded column per parameter name.  An event therefore
+ * takes 12 bytes plus 4 per parameter column (e.g. 24 bytes for the CMNH event types), compared to several hundred for
+ * an {@link Event} with its map of parameters, and a scan is a sequential pass over a few arrays.
+ * </p>
+ * <p>
+ * Events are added as an {@link EventProcessor} (e.g. as the destination of an {@link EventLogProducer}'s events), or
+ * from an event log through the {@link BaseEventLogLineProcessor} returned by {@link #createLoader()}.  Events of
+ * types which aren't supported are skipped, as the {@link EventLogProducer} would skip them.  If the events weren't
+ * added in time order, {@link #sort()} puts them in the same order as sorting {@link Event}s would.
+ * </p>
+ * <p>
+ * The store isn't thread safe while events are being added or sorted, but any number of threads may scan it at once
+ * after that.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class EventStore implements EventProcessor
+   {
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /** The dictionary id of a missing (or <code>null</code>) parameter value. */
+   static final int NULL_VALUE_ID = -1;
+
+   /** Visits rows of the store, by index, e.g. calling {@link EventStore#getTimeInMillis(int)} for each. */
+   interface RowVisitor
+      {
+      void visit(final int row);
+      }
+
+   @NotNull
+   private final SupportedEventTypes supportedEventTypes;
+
+   @NotNull
+   private final DateTimeZone timeZone;
+
+   /** The position of each type (by ID) when the types are sorted by name, which is how {@link Event}s are ordered. */
+   @NotNull
+   private final int[] typeRanks;
+
+   /** The parameter columns of each type (by ID), in the order of the type's parameter names. */
+   @NotNull
+   private final int[][] parameterColumnIndexesByTypeId;
+
+   @NotNull
+   private final List<DictionaryColumn> parameterColumns = new ArrayList<DictionaryColumn>();
+
+   @NotNull
+   private final Map<String, DictionaryColumn> parameterColumnsByName = new HashMap<String, DictionaryColumn>();
+
+   private int size = 0;
+
+   @NotNull
+   private long[] timesInMillis = new long[INITIAL_CAPACITY];
+
+   @NotNull
+   private int[] typeIds = new int[INITIAL_CAPACITY];
+
+   @NotNull
+   private int[] dateIds = new int[INITIAL_CAPACITY];
+
+   @NotNull
+   private long[] dates = new long[16];
+   private int numDates = 0;
+
+   /** The id of the most recently added date, since consecutive events almost always share a date. */
+   private int previousDateId = -1;
+
+   private boolean isSorted = true;
+   private int numUnsupportedEvents = 0;
+
+   EventStore(@NotNull final SupportedEventTypes supportedEventTypes, @NotNull final DateTimeZone timeZone)
+      {
+      this.supportedEventTypes = supportedEventTypes;
+      this.timeZone = timeZone;
+
+      final int numTypes = supportedEventTypes.getNumberOfEventTypes();
+      final Integer[] typeIdsByName = new Integer[numTypes];
+      for (int typeId = 0; typeId < numTypes; typeId++)
+         {
+         typeIdsByName[typeId] = typeId;
+         }
+      Arrays.sort(typeIdsByName, new Comparator<Integer>()
+      {
+      @Override
+      public int compare(final Integer typeId1, final Integer typeId2)
+         {
+         return supportedEventTypes.getName(typeId1).compareTo(supportedEventTypes.getName(typeId2));
+         }
+      });
+      typeRanks = new int[numTypes];
+      for (int rank = 0; rank < numTypes; rank++)
+         {
+         typeRanks[typeIdsByName[rank]] = rank;
+         }
+
+      parameterColumnIndexesByTypeId = new int[numTypes][];
+      for (int typeId = 0; typeId < numTypes; typeId++)
+         {
+         final List<String> parameterNames = supportedEventTypes.getParameterList(supportedEventTypes.getName(typeId));
+         parameterColumnIndexesByTypeId[typeId] = new int[parameterNames.size()];
+         for (int i = 0; i < parameterNames.size(); i++)
+            {
+            DictionaryColumn column = parameterColumnsByName.get(parameterNames.get(i));
+            if (column == null)
+               {
+               column = new DictionaryColumn(parameterNames.get(i), parameterColumns.size());
+               parameterColumns.add(column);
+               parameterColumnsByName.put(column.name, column);
+               }
+            parameterColumnIndexesByTypeId[typeId][i] = column.index;
+            }
+         }
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      // nothing to do, since events are added to whatever is already in the store
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      final int typeId = event.getTypeId(supportedEventTypes);
+      if (typeId < 0)
+         {
+         numUnsupportedEvents++;
+         return;
+         }
+      final int row = addRow(event.getDateInMillis(), event.getTimeInMillis(), typeId);
+      for (final int columnIndex : parameterColumnIndexesByTypeId[typeId])
+         {
+         final DictionaryColumn column = parameterColumns.get(columnIndex);
+         column.set(row, event.getParameterValue(column.name));
+         }
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      // nothing to do
+      }
+
+   /**
+    * Returns a processor which adds the events in an event log (e.g. given to a {@link LineReader}, or to a
+    * {@link BinaryEventLogReader}) to this store.  The event log's param column is stored as the value of the type's
+    * first (and only) parameter, so {@link #replay(BaseEventLogLineProcessor)} passes on exactly what was read.
+    */
+   @NotNull
+   BaseEventLogLineProcessor createLoader()
+      {
+      return new BaseEventLogLineProcessor()
+      {
+      @Override
+      protected void processEvent(final long dateInMillis, final long eventTimeInMillis, @NotNull final String eventType, @NotNull final String eventParams)
+         {
+         final int typeId = supportedEventTypes.getId(eventType);
+         if (typeId < 0)
+            {
+            numUnsupportedEvents++;
+            return;
+            }
+         final int row = addRow(dateInMillis, eventTimeInMillis, typeId);
+         final int[] columnIndexes = parameterColumnIndexesByTypeId[typeId];
+         if (columnIndexes.length > 0)
+            {
+            parameterColumns.get(columnIndexes[0]).set(row, eventParams);
+            }
+         }
+      };
+      }
+
+   private int addRow(final long dateInMillis, final long timeInMillis, final int typeId)
+      {
+      if (size == timesInMillis.length)
+         {
+         // after trimToSize(), the store may be empty (or hold just one event), so don't grow by too little
+         final int capacity = Math.max(size + (size >> 1), INITIAL_CAPACITY);
+         timesInMillis = Arrays.copyOf(timesInMillis, capacity);
+         typeIds = Arrays.copyOf(typeIds, capacity);
+         dateIds = Arrays.copyOf(dateIds, capacity);
+         }
+      if (size > 0 && isSorted)
+         {
+         isSorted = compareRows(size - 1, timeInMillis, typeId) <= 0;
+         }
+
+      final int row = size++;
+      timesInMillis[row] = timeInMillis;
+      typeIds[row] = typeId;
+      dateIds[row] = getDateId(dateInMillis);
+      for (final DictionaryColumn column : parameterColumns)
+         {
+         column.ensureCapacity(timesInMillis.length);
+         column.valueIds[row] = NULL_VALUE_ID;
+         }
+      return row;
+      }
+
+   private int getDateId(final long dateInMillis)
+      {
+      if (previousDateId >= 0 && dates[previousDateId] == dateInMillis)
+         {
+         return previousDateId;
+         }
+      for (int dateId = numDates - 1; dateId >= 0; dateId--)
+         {
+         if (dates[dateId] == dateInMillis)
+            {
+            previousDateId = dateId;
+            return dateId;
+            }
+         }
+      if (numDates == dates.length)
+         {
+         dates = Arrays.copyOf(dates, numDates * 2);
+         }
+      dates[numDates] = dateInMillis;
+      previousDateId = numDates++;
+      return previousDateId;
+      }
+
+   /** Compares the given row to an event with the given time and type, in the same way as {@link Event#compareTo(Event)}. */
+   private int compareRows(final int row, final long timeInMillis, final int typeId)
+      {
+      if (timesInMillis[row] != timeInMillis)
+         {
+         return (timesInMillis[row] < timeInMillis) ? -1 : 1;
+         }
+      return typeRanks[typeIds[row]] - typeRanks[typeId];
+      }
+
+   /** Returns the number of events in the store. */
+   int size()
+      {
+      return size;
+      }
+
+   /** Returns the number of events which weren't added because their types aren't supported. */
+   int getNumberOfUnsupportedEvents()
+      {
+      return numUnsupportedEvents;
+      }
+
+   @NotNull
+   SupportedEventTypes getSupportedEventTypes()
+      {
+      return supportedEventTypes;
+      }
+
+   /** Returns <code>true</code> if the events are in time order (and then type order, as {@link Event}s sort). */
+   boolean isSorted()
+      {
+      return isSorted;
+      }
+
+   long getTimeInMillis(final int row)
+      {
+      return timesInMillis[row];
+      }
+
+   long getDateInMillis(final int row)
+      {
+      return dates[dateIds[row]];
+      }
+
+   int getTypeId(final int row)
+      {
+      return typeIds[row];
+      }
+
+   /** Returns the value of the given parameter for the given row, or <code>null</code> if it doesn't have one. */
+   @Nullable
+   String getParameterValue(final int row, @NotNull final String parameterName)
+      {
+      final DictionaryColumn column = parameterColumnsByName.get(parameterName);
+      return (column == null) ? null : column.getValue(column.valueIds[row]);
+      }
+
+   /**
+    * Returns the given parameter's distinct values, indexed by the ids returned by {@link #getParameterValueId(int, int)}
+    * and counted by {@link #countByParameterValue(String, int)}, or <code>null</code> if no type has that parameter.
+    */
+   @Nullable
+   List<String> getParameterValues(@NotNull final String parameterName)
+      {
+      final DictionaryColumn column = parameterColumnsByName.get(parameterName);
+      return (column == null) ? null : new ArrayList<String>(column.values);
+      }
+
+   /** Returns the index of the given parameter's column, for use with {@link #getParameterValueId(int, int)}, or -1. */
+   int getParameterColumnIndex(@NotNull final String parameterName)
+      {
+      final DictionaryColumn column = parameterColumnsByName.get(parameterName);
+      return (column == null) ? -1 : column.index;
+      }
+
+   /** Returns the dictionary id of the given row's value in the given parameter column, or {@link #NULL_VALUE_ID}. */
+   int getParameterValueId(final int row, final int parameterColumnIndex)
+      {
+      return parameterColumns.get(parameterColumnIndex).valueIds[row];
+      }
+
+   /** Recreates the {@link Event} in the given row, with only the parameters it has values for. */
+   @NotNull
+   Event getEvent(final int row)
+      {
+      final int typeId = typeIds[row];
+      final Map<String, String> parameters = new HashMap<String, String>();
+      for (final int columnIndex : parameterColumnIndexesByTypeId[typeId])
+         {
+         final DictionaryColumn column = parameterColumns.get(columnIndex);
+         final int valueId = column.valueIds[row];
+         if (valueId != NULL_VALUE_ID)
+            {
+            parameters.put(column.name, column.getValue(valueId));
+            }
+         }
+      return new Event(supportedEventTypes.getName(typeId), supportedEventTypes, typeId, timesInMillis[row], dates[dateIds[row]], parameters, timeZone);
+      }
+
+   /** Visits every row, in order. */
+   void scan(@NotNull final RowVisitor visitor)
+      {
+      for (int row = 0; row < size; row++)
+         {
+         visitor.visit(row);
+         }
+      }
+
+   /**
+    * Visits the rows whose times are at least <code>fromTimeInMillis</code> and less than <code>toTimeInMillis</code>,
+    * in order.  If the store is sorted, only those rows are touched.
+    */
+   void scan(final long fromTimeInMillis, final long toTimeInMillis, @NotNull final RowVisitor visitor)
+      {
+      if (isSorted)
+         {
+         final int end = findFirstRowAtOrAfter(toTimeInMillis);
+         for (int row = findFirstRowAtOrAfter(fromTimeInMillis); row < end; row++)
+            {
+            visitor.visit(row);
+            }
+         }
+      else
+         {
+         for (int row = 0; row < size; row++)
+            {
+            if (timesInMillis[row] >= fromTimeInMillis && timesInMillis[row] < toTimeInMillis)
+               {
+               visitor.visit(row);
+               }
+            }
+         }
+      }
+
+   /** Returns the number of events of each type, indexed by type ID. */
+   @NotNull
+   int[] countByTypeId()
+      {
+      final int[] counts = new int[supportedEventTypes.getNumberOfEventTypes()];
+      for (int row = 0; row < size; row++)
+         {
+         counts[typeIds[row]]++;
+         }
+      return counts;
+      }
+
+   /** Returns the number of events of each type (indexed by type ID) on each date. */
+   @NotNull
+   SortedMap<Long, int[]> countByDateAndTypeId()
+      {
+      final int[][] countsByDateId = new int[numDates][supportedEventTypes.getNumberOfEventTypes()];
+      for (int row = 0; row < size; row++)
+         {
+         countsByDateId[dateIds[row]][typeIds[row]]++;
+         }
+      final SortedMap<Long, int[]> counts = new TreeMap<Long, int[]>();
+      for (int dateId = 0; dateId < numDates; dateId++)
+         {
+         counts.put(dates[dateId], countsByDateId[dateId]);
+         }
+      return counts;
+      }
+
+   /**
+    * Returns the number of events of the given type with each value of the given parameter, indexed by the value's id
+    * (see {@link #getParameterValues(String)}), or an empty array if no type has that parameter.
+    */
+   @NotNull
+   int[] countByParameterValue(@NotNull final String parameterName, final int typeId)
+      {
+      final DictionaryColumn column = parameterColumnsByName.get(parameterName);
+      if (column == null)
+         {
+         return new int[0];
+         }
+      final int[] counts = new int[column.values.size()];
+      final int[] valueIds = column.valueIds;
+      for (int row = 0; row < size; row++)
+         {
+         if (typeIds[row] == typeId && valueIds[row] != NULL_VALUE_ID)
+            {
+            counts[valueIds[row]]++;
+            }
+         }
+      return counts;
+      }
+
+   /**
+    * Feeds every event to the given event log processor (such as a stats generator), exactly as if it were reading them
+    * from the event log written by an {@link EventLogProducer}.  The processor can be given the same events again and
+    * again, so long as its output files are moved out of the way in between.
+    */
+   void replay(@NotNull final BaseEventLogLineProcessor eventLogLineProcessor)
+      {
+      eventLogLineProcessor.preProcess();
+      for (int row = 0; row < size; row++)
+         {
+         final int typeId = typeIds[row];
+         final int[] columnIndexes = parameterColumnIndexesByTypeId[typeId];
+
+         // the event log's param column is the value of the type's first (and only) parameter, as a String
+         final String eventParams;
+         if (columnIndexes.length == 0)
+            {
+            eventParams = "";
+            }
+         else
+            {
+            final DictionaryColumn column = parameterColumns.get(columnIndexes[0]);
+            eventParams = String.valueOf(column.getValue(column.valueIds[row]));
+            }
+         eventLogLineProcessor.processEventRecord(dates[dateIds[row]], timesInMillis[row], supportedEventTypes.getName(typeId), eventParams);
+         }
+      eventLogLineProcessor.postProcess();
+      }
+
+   /** Feeds every event, as an {@link Event}, to the given processor. */
+   void replay(@NotNull final EventProcessor eventProcessor)
+      {
+      eventProcessor.beforeProcessingAnyEvents();
+      for (int row = 0; row < size; row++)
+         {
+         eventProcessor.processEvent(getEvent(row));
+         }
+      eventProcessor.afterProcessingAnyEvents();
+      }
+
+   /** Sorts the events by time, and then by type, as {@link Event}s sort, unless they're already sorted. */
+   void sort()
+      {
+      if (isSorted)
+         {
+         return;
+         }
+
+      // sort a permutation of the rows (stably, as Collections.sort would sort Events), then apply it to every column
+      int[] rows = new int[size];
+      for (int row = 0; row < size; row++)
+         {
+         rows[row] = row;
+         }
+      int[] scratch = new int[size];
+      for (int width = 1; width < size; width *= 2)
+         {
+         for (int start = 0; start < size; start += 2 * width)
+            {
+            merge(rows, scratch, start, Math.min(start + width, size), Math.min(start + 2 * width, size));
+            }
+         final int[] sorted = scratch;
+         scratch = rows;
+         rows = sorted;
+         }
+
+      final long[] sortedTimes = new long[timesInMillis.length];
+      final int[] sortedTypeIds = new int[typeIds.length];
+      final int[] sortedDateIds = new int[dateIds.length];
+      for (int i = 0; i < size; i++)
+         {
+         sortedTimes[i] = timesInMillis[rows[i]];
+         sortedTypeIds[i] = typeIds[rows[i]];
+         sortedDateIds[i] = dateIds[rows[i]];
+         }
+      timesInMillis = sortedTimes;
+      typeIds = sortedTypeIds;
+      dateIds = sortedDateIds;
+      for (final DictionaryColumn column : parameterColumns)
+         {
+         final int[] sortedValueIds = new int[column.valueIds.length];
+         for (int i = 0; i < size; i++)
+            {
+            sortedValueIds[i] = column.valueIds[rows[i]];
+            }
+         column.valueIds = sortedValueIds;
+         }
+      isSorted = true;
+      }
+
+   /** Merges the sorted runs of rows [start, middle) and [middle, end) from <code>source</code> into <code>destination</code>. */
+   private void merge(@NotNull final int[] source, @NotNull final int[] destination, final int start, final int middle, final int end)
+      {
+      int left = start;
+      int right = middle;
+      for (int i = start; i < end; i++)
+         {
+         if (left < middle && (right >= end || compareRows(source[left], timesInMillis[source[right]], typeIds[source[right]]) <= 0))
+            {
+            destination[i] = source[left++];
+            }
+         else
+            {
+            destination[i] = source[right++];
+            }
+         }
+      }
+
+   /** Returns the first row whose time is at least the given time (or the size, if there isn't one), if sorted. */
+   private int findFirstRowAtOrAfter(final long timeInMillis)
+      {
+      int low = 0;
+      int high = size;
+      while (low < high)
+         {
+         final int middle = (low + high) >>> 1;
+         if (timesInMillis[middle] < timeInMillis)
+            {
+            low = middle + 1;
+            }
+         else
+            {
+            high = middle;
+            }
+         }
+      return low;
+      }
+
+   /** Releases any spare capacity, once all the events have been added. */
+   void trimToSize()
+      {
+      timesInMillis = Arrays.copyOf(timesInMillis, size);
+      typeIds = Arrays.copyOf(typeIds, size);
+      dateIds = Arrays.copyOf(dateIds, size);
+      for (final DictionaryColumn column : parameterColumns)
+         {
+         column.valueIds = Arrays.copyOf(column.valueIds, size);
+         }
+      }
+
+   /** A column of strings, stored as ids into a dictionary of the distinct values. */
+   private static final class DictionaryColumn
+      {
+      @NotNull
+      private final String name;
+
+      private final int index;
+
+      @NotNull
+      private int[] valueIds = new int[INITIAL_CAPACITY];
+
+      @NotNull
+      private final List<String> values = new ArrayList<String>();
+
+      @NotNull
+      private final Map<String, Integer> valueIdsByValue = new HashMap<String, Integer>();
+
+      private DictionaryColumn(@NotNull final String name, final int index)
+         {
+         this.name = name;
+         this.index = index;
+         }
+
+      private void ensureCapacity(final int capacity)
+         {
+         if (valueIds.length < capacity)
+            {
+            valueIds = Arrays.copyOf(valueIds, capacity);
+            }
+         }
+
+      private void set(final int row, @Nullable final String value)
+         {
+         if (value == null)
+            {
+            valueIds[row] = NULL_VALUE_ID;
+            return;
+            }
+         Integer valueId = valueIdsByValue.get(value);
+         if (valueId == null)
+            {
+            valueId = values.size();
+            values.add(value);
+            valueIdsByValue.put(value, valueId);
+            }
+         valueIds[row] = valueId;
+         }
+
+      @Nullable
+      private String getValue(final int valueId)
+         {
+         return (valueId == NULL_VALUE_ID) ? null : values.get(valueId);
+         }
+      }
+   }
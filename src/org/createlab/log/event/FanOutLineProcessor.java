@@ -0,0 +1,299 @@
+package org.createlab.log.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Lets several {@link BaseApacheLogLineProcessor}s share a single read of an access log: each line is read and parsed
+ * once, by this processor, and the resulting {@link Event}s are handed to all of them, in batches, just as the
+ * {@link ParallelLineReader} hands over events parsed by its workers.  Since it's a {@link BaseApacheLogLineProcessor}
+ * itself, it works with all the readers.  The processors must all use the same time zone, since that determines the
+ * events' dates.
+ * </p>
+ * <p>
+ * Normally the processors are called one after another on the reading thread.  In asynchronous mode, each one instead
+ * runs on its own thread, behind a bounded queue of batches, so a slow processor only holds up the others once it has
+ * fallen a whole queue behind.  Either way, {@link LineProcessor#preProcess()} and {@link LineProcessor#postProcess()}
+ * are called on the calling thread, in order, so any summaries they print come out in the same order every time.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class FanOutLineProcessor extends BaseApacheLogLineProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(FanOutLineProcessor.class);
+
+   private static final int NUM_EVENTS_PER_BATCH = 1024;
+   private static final int MAX_PENDING_BATCHES = 16;
+
+   @NotNull
+   private final List<BaseApacheLogLineProcessor> lineProcessors;
+
+   private final boolean isAsynchronous;
+
+   @NotNull
+   private final List<AsynchronousProcessor> asynchronousProcessors = new ArrayList<AsynchronousProcessor>();
+
+   @NotNull
+   private List<Event> batch = new ArrayList<Event>(NUM_EVENTS_PER_BATCH);
+
+   /** The number of lines whose events have already been handed over. */
+   private int numLinesDispatched = 0;
+
+   /**
+    * Creates a processor which hands the events of each line to all of the given processors (which must all have the
+    * same time zone), on their own threads if <code>isAsynchronous</code> is <code>true</code>.
+    */
+   FanOutLineProcessor(@NotNull final List<BaseApacheLogLineProcessor> lineProcessors, final boolean isAsynchronous)
+      {
+      if (lineProcessors.isEmpty())
+         {
+         throw new IllegalArgumentException("At least one LineProcessor is required");
+         }
+      for (final BaseApacheLogLineProcessor lineProcessor : lineProcessors)
+         {
+         if (!lineProcessor.getTimeZone().hasSameRules(lineProcessors.get(0).getTimeZone()))
+            {
+            throw new IllegalArgumentException("The LineProcessors must all use the same time zone, but [" + lineProcessor.getClass().getName() + "] uses [" + lineProcessor.getTimeZone().getID() + "] and [" + lineProcessors.get(0).getClass().getName() + "] uses [" + lineProcessors.get(0).getTimeZone().getID() + "]");
+            }
+         }
+      this.lineProcessors = new ArrayList<BaseApacheLogLineProcessor>(lineProcessors);
+      this.isAsynchronous = isAsynchronous;
+      }
+
+   @NotNull
+   List<BaseApacheLogLineProcessor> getLineProcessors()
+      {
+      return Collections.unmodifiableList(lineProcessors);
+      }
+
+   @Override
+   protected TimeZone getTimeZone()
+      {
+      return lineProcessors.get(0).getTimeZone();
+      }
+
+   /** Returns the event types of the first processor which has any (an event's type ID is only used with the same types). */
+   @Nullable
+   @Override
+   SupportedEventTypes getSupportedEventTypes()
+      {
+      for (final BaseApacheLogLineProcessor lineProcessor : lineProcessors)
+         {
+         final SupportedEventTypes supportedEventTypes = lineProcessor.getSupportedEventTypes();
+         if (supportedEventTypes != null)
+            {
+            return supportedEventTypes;
+            }
+         }
+      return null;
+      }
+
+   /** Returns the kiosk key of the first processor which has one. */
+   @Nullable
+   @Override
+   KioskKey getKioskKey()
+      {
+      for (final BaseApacheLogLineProcessor lineProcessor : lineProcessors)
+         {
+         final KioskKey kioskKey = lineProcessor.getKioskKey();
+         if (kioskKey != null)
+            {
+            return kioskKey;
+            }
+         }
+      return null;
+      }
+
+   @Override
+   protected void doBeforeProcessingLines()
+      {
+      batch = new ArrayList<Event>(NUM_EVENTS_PER_BATCH);
+      numLinesDispatched = 0;
+      asynchronousProcessors.clear();
+      for (final BaseApacheLogLineProcessor lineProcessor : lineProcessors)
+         {
+         lineProcessor.preProcess();
+         if (isAsynchronous)
+            {
+            asynchronousProcessors.add(new AsynchronousProcessor(lineProcessor));
+            }
+         }
+      }
+
+   @Override
+   protected void processEvent(@NotNull final Event event)
+      {
+      batch.add(event);
+      if (batch.size() == NUM_EVENTS_PER_BATCH)
+         {
+         dispatchBatch();
+         }
+      }
+
+   @Override
+   protected void doAfterProcessingLines()
+      {
+      dispatchBatch();
+      if (isAsynchronous)
+         {
+         for (final AsynchronousProcessor asynchronousProcessor : asynchronousProcessors)
+            {
+            asynchronousProcessor.finish();
+            }
+         }
+      for (int i = 0; i < lineProcessors.size(); i++)
+         {
+         final BaseApacheLogLineProcessor lineProcessor = lineProcessors.get(i);
+         final Throwable failure = isAsynchronous ? asynchronousProcessors.get(i).failure : null;
+         if (failure == null)
+            {
+            lineProcessor.postProcess();
+            }
+         else
+            {
+            System.err.println("ERROR: [" + lineProcessor.getClass().getName() + "] failed, so its output is incomplete: " + failure);
+            }
+         }
+      }
+
+   /** Hands the current batch, along with the number of lines it came from, to every processor. */
+   private void dispatchBatch()
+      {
+      final int numLines = getNumberOfLinesProcessed() - numLinesDispatched;
+      numLinesDispatched += numLines;
+      if (isAsynchronous)
+         {
+         for (final AsynchronousProcessor asynchronousProcessor : asynchronousProcessors)
+            {
+            asynchronousProcessor.put(new Batch(numLines, batch));
+            }
+
+         // the processors now own that batch
+         batch = new ArrayList<Event>(NUM_EVENTS_PER_BATCH);
+         }
+      else
+         {
+         for (final BaseApacheLogLineProcessor lineProcessor : lineProcessors)
+            {
+            lineProcessor.processParsedEvents(numLines, batch);
+            }
+         batch.clear();
+         }
+      }
+
+   /** Some events, and the number of lines they were parsed from. */
+   private static final class Batch
+      {
+      /** Marks the end of the batches. */
+      private static final Batch END = new Batch(0, Collections.<Event>emptyList());
+
+      private final int numLines;
+
+      @NotNull
+      private final List<Event> events;
+
+      private Batch(final int numLines, @NotNull final List<Event> events)
+         {
+         this.numLines = numLines;
+         this.events = events;
+         }
+      }
+
+   /**
+    * Runs a processor on its own thread, feeding it batches from a bounded queue.  If the processor fails, the rest of
+    * its batches are discarded (so the reading thread never blocks on a queue which nothing is draining), and the
+    * failure is reported when it's finished.
+    */
+   private static final class AsynchronousProcessor implements Runnable
+      {
+      @NotNull
+      private final BaseApacheLogLineProcessor lineProcessor;
+
+      @NotNull
+      private final BlockingQueue<Batch> batches = new ArrayBlockingQueue<Batch>(MAX_PENDING_BATCHES);
+
+      @NotNull
+      private final Thread thread;
+
+      /** Only read once the thread has been joined. */
+      @Nullable
+      private Throwable failure = null;
+
+      private AsynchronousProcessor(@NotNull final BaseApacheLogLineProcessor lineProcessor)
+         {
+         this.lineProcessor = lineProcessor;
+         thread = new Thread(this, "FanOutLineProcessor-" + lineProcessor.getClass().getSimpleName());
+         thread.setDaemon(true);
+         thread.start();
+         }
+
+      @Override
+      public void run()
+         {
+         try
+            {
+            while (true)
+               {
+               final Batch batch = batches.take();
+               if (batch == Batch.END)
+                  {
+                  return;
+                  }
+               if (failure == null)
+                  {
+                  try
+                     {
+                     lineProcessor.processParsedEvents(batch.numLines, batch.events);
+                     }
+                  catch (Throwable t)
+                     {
+                     LOG.error("Throwable caught while [" + lineProcessor.getClass().getName() + "] was processing events", t);
+                     failure = t;
+                     }
+                  }
+               }
+            }
+         catch (InterruptedException e)
+            {
+            failure = e;
+            }
+         }
+
+      private void put(@NotNull final Batch batch)
+         {
+         try
+            {
+            batches.put(batch);
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("InterruptedException while waiting to hand events to [" + lineProcessor.getClass().getName() + "]", e);
+            Thread.currentThread().interrupt();
+            }
+         }
+
+      /** Waits for the processor to process all the batches it has been given. */
+      private void finish()
+         {
+         put(Batch.END);
+         try
+            {
+            thread.join();
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("InterruptedException while waiting for [" + lineProcessor.getClass().getName() + "] to finish", e);
+            Thread.currentThread().interrupt();
+            }
+         }
+      }
+   }
@@ -0,0 +1,296 @@
+package org.createlab.log.event;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Reads a file which is still being written to (such as Apache's access.log), like <code>tail -F</code>.  Every line
+ * already in the file is handed to the {@link LineProcessor}, and then the file is polled for new lines until
+ * {@link #stop()} is called.  A line is only handed over once its terminator has been written, so the processor never
+ * sees a partially-written line.  Memory use is bounded by the length of the longest line, no matter how long this runs.
+ * </p>
+ * <p>
+ * Log rotation is detected whenever there's nothing new to read: if the file is now shorter than the position we've
+ * read up to (it was truncated, or renamed and replaced by a new file), or its first few bytes are no longer the ones
+ * we read (it was replaced, and the new file has already grown past our position), then whatever is left of the old
+ * file is handed over and reading starts again at the beginning of the new one.  While the file is missing (i.e.
+ * between being renamed and recreated), we simply keep waiting.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class FollowingLineReader
+   {
+   private static final Logger LOG = Logger.getLogger(FollowingLineReader.class);
+
+   public static final long DEFAULT_POLL_INTERVAL_MILLIS = 500;
+
+   private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+   /** The number of bytes at the start of the file which are compared to detect that it has been replaced. */
+   private static final int FINGERPRINT_SIZE = 256;
+
+   @NotNull
+   private final File file;
+
+   private final long pollIntervalMillis;
+
+   private volatile boolean isStopRequested = false;
+
+   @Nullable
+   private RandomAccessFile randomAccessFile = null;
+
+   /** The position in the file up to which we've read. */
+   private long position = 0;
+
+   /** The first bytes of the file we're reading, used to recognize it. */
+   @NotNull
+   private byte[] fingerprint = new byte[0];
+
+   /** Holds the partial line at the end of what we've read so far (at the start of the buffer), plus newly read bytes. */
+   @NotNull
+   private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+   private int numBufferedBytes = 0;
+   private boolean willSkipLineFeed = false;
+
+   public FollowingLineReader(@NotNull final File file)
+      {
+      this(file, DEFAULT_POLL_INTERVAL_MILLIS);
+      }
+
+   public FollowingLineReader(@NotNull final File file, final long pollIntervalMillis)
+      {
+      this.file = file;
+      this.pollIntervalMillis = pollIntervalMillis;
+      }
+
+   /**
+    * Hands every line in the file to the given {@link LineProcessor}, and keeps handing it new lines as they're written
+    * until {@link #stop()} is called (or the reading thread is interrupted), at which point
+    * {@link LineProcessor#postProcess()} is called and this method returns.
+    */
+   public void read(@NotNull final LineProcessor lineProcessor)
+      {
+      read(lineProcessor, 0);
+      }
+
+   /**
+    * Like {@link #read(LineProcessor)}, but starts at the given position, which must be the start of a line (e.g. one
+    * previously returned by {@link #getPosition()}).
+    */
+   public void read(@NotNull final LineProcessor lineProcessor, final long startPosition)
+      {
+      final ByteLineProcessor byteLineProcessor = (lineProcessor instanceof ByteLineProcessor) ? (ByteLineProcessor)lineProcessor : null;
+
+      lineProcessor.preProcess();
+      try
+         {
+         open(startPosition);
+         while (!isStopRequested)
+            {
+            if (!readLines(lineProcessor, byteLineProcessor))
+               {
+               if (isRotated())
+                  {
+                  LOG.info("File [" + file + "] was rotated or truncated after reading [" + position + "] bytes, so starting again from the beginning");
+                  handlePartialLine(lineProcessor, byteLineProcessor);
+                  close();
+                  open(0);
+                  }
+               else
+                  {
+                  Thread.sleep(pollIntervalMillis);
+                  }
+               }
+            }
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException caught while trying to open file [" + file + "]", e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read file [" + file + "]", e);
+         }
+      catch (InterruptedException ignored)
+         {
+         LOG.info("Interrupted while waiting for file [" + file + "] to grow, so no longer following it");
+         }
+      finally
+         {
+         close();
+         }
+      lineProcessor.postProcess();
+      }
+
+   /**
+    * Asks the reader to stop following the file.  Safe to call from any thread (e.g. a shutdown hook).  The reader stops
+    * within one poll interval, once it has finished with the lines it has already read.
+    */
+   public void stop()
+      {
+      isStopRequested = true;
+      }
+
+   /**
+    * Returns the position just after the last line which has been handed to the processor, which is where a later read
+    * should start in order to carry on where this one left off.
+    */
+   public long getPosition()
+      {
+      return position - numBufferedBytes;
+      }
+
+   /** Returns the first few bytes of the file currently being read, which can be used to recognize it later. */
+   @NotNull
+   byte[] getFingerprint()
+      {
+      return fingerprint.clone();
+      }
+
+   private void open(final long startPosition) throws IOException
+      {
+      randomAccessFile = new RandomAccessFile(file, "r");
+
+      // the fingerprint is always the first min(FINGERPRINT_SIZE, position) bytes of the file
+      fingerprint = new byte[(int)Math.min(FINGERPRINT_SIZE, startPosition)];
+      randomAccessFile.readFully(fingerprint);
+      randomAccessFile.seek(startPosition);
+      position = startPosition;
+      numBufferedBytes = 0;
+      willSkipLineFeed = false;
+      }
+
+   private void close()
+      {
+      if (randomAccessFile != null)
+         {
+         try
+            {
+            randomAccessFile.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException caught while trying to close file [" + file + "]", e);
+            }
+         randomAccessFile = null;
+         }
+      }
+
+   /**
+    * Reads whatever has been appended to the file since the last read, and hands every complete line to the processor.
+    * Returns <code>false</code> if there was nothing new to read.
+    */
+   private boolean readLines(@NotNull final LineProcessor lineProcessor, final ByteLineProcessor byteLineProcessor) throws IOException
+      {
+      if (numBufferedBytes == buffer.length)
+         {
+         // the partial line fills the buffer, so make room for the rest of it
+         buffer = Arrays.copyOf(buffer, buffer.length * 2);
+         }
+
+      final int numBytesRead = randomAccessFile.read(buffer, numBufferedBytes, buffer.length - numBufferedBytes);
+      if (numBytesRead <= 0)
+         {
+         return false;
+         }
+      if (fingerprint.length < FINGERPRINT_SIZE)
+         {
+         // the fingerprint is everything we've read so far, up to FINGERPRINT_SIZE bytes
+         final int numFingerprintBytes = Math.min(FINGERPRINT_SIZE - fingerprint.length, numBytesRead);
+         final byte[] newFingerprint = Arrays.copyOf(fingerprint, fingerprint.length + numFingerprintBytes);
+         System.arraycopy(buffer, numBufferedBytes, newFingerprint, fingerprint.length, numFingerprintBytes);
+         fingerprint = newFingerprint;
+         }
+      position += numBytesRead;
+
+      // treat \n, \r and \r\n as line terminators, just like BufferedReader.readLine() does, remembering whether the
+      // last byte was a \r in case its \n is at the start of the next read
+      final int end = numBufferedBytes + numBytesRead;
+      int lineStart = 0;
+      for (int i = numBufferedBytes; i < end; i++)
+         {
+         final byte b = buffer[i];
+         if (b == '\n' && willSkipLineFeed)
+            {
+            lineStart = i + 1;
+            }
+         else if (b == '\n' || b == '\r')
+            {
+            MappedLineReader.handleLine(lineProcessor, byteLineProcessor, buffer, lineStart, i - lineStart);
+            lineStart = i + 1;
+            }
+         willSkipLineFeed = (b == '\r');
+         }
+
+      // keep the partial line (if any) for next time
+      numBufferedBytes = end - lineStart;
+      System.arraycopy(buffer, lineStart, buffer, 0, numBufferedBytes);
+      return true;
+      }
+
+   /** Hands over the unterminated line at the end of a file which is about to be abandoned, if there is one. */
+   private void handlePartialLine(@NotNull final LineProcessor lineProcessor, final ByteLineProcessor byteLineProcessor)
+      {
+      if (numBufferedBytes > 0)
+         {
+         MappedLineReader.handleLine(lineProcessor, byteLineProcessor, buffer, 0, numBufferedBytes);
+         numBufferedBytes = 0;
+         }
+      }
+
+   /** Returns <code>true</code> if the file we're reading has been truncated or replaced by another file. */
+   private boolean isRotated() throws IOException
+      {
+      if (!file.exists())
+         {
+         // probably renamed, but not yet recreated
+         return false;
+         }
+      if (file.length() < position)
+         {
+         return true;
+         }
+      if (fingerprint.length > 0)
+         {
+         final RandomAccessFile currentFile;
+         try
+            {
+            currentFile = new RandomAccessFile(file, "r");
+            }
+         catch (FileNotFoundException ignored)
+            {
+            // it went away again since we checked
+            return false;
+            }
+         try
+            {
+            if (currentFile.length() < fingerprint.length)
+               {
+               return false;
+               }
+            final byte[] currentFingerprint = new byte[fingerprint.length];
+            currentFile.readFully(currentFingerprint);
+            return !Arrays.equals(fingerprint, currentFingerprint);
+            }
+         catch (EOFException ignored)
+            {
+            // it was truncated since we checked, so we'll notice next time
+            return false;
+            }
+         finally
+            {
+            currentFile.close();
+            }
+         }
+      return false;
+      }
+   }
@@ -0,0 +1,85 @@
+package org.createlab.log.event;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Identifies the kiosk which sent an event, when one Apache server collects the events of several kiosks: either by the
+ * client address of the request (the first field of each line of the access log), or by the value of one of the event's
+ * parameters (for kiosks which name themselves, e.g. because they're behind a proxy).
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class KioskKey
+   {
+   /** The kiosk of any events which don't say which kiosk sent them (e.g. because they don't have the parameter). */
+   static final String UNKNOWN_KIOSK = "unknown";
+
+   /** Identifies kiosks by the client address of their requests. */
+   static final KioskKey CLIENT_ADDRESS = new KioskKey(null);
+
+   /** Returns a key which identifies kiosks by the value of the event parameter with the given name. */
+   @NotNull
+   static KioskKey forParameter(@NotNull final String parameterName)
+      {
+      return new KioskKey(parameterName);
+      }
+
+   @Nullable
+   private final String parameterName;
+
+   @Nullable
+   private final byte[] parameterNameBytes;
+
+   /** The name of every kiosk seen so far, so that each event can share its kiosk's name rather than keep its own copy. */
+   @NotNull
+   private final ConcurrentMap<String, String> kiosks = new ConcurrentHashMap<String, String>();
+
+   private KioskKey(@Nullable final String parameterName)
+      {
+      this.parameterName = parameterName;
+      this.parameterNameBytes = (parameterName == null) ? null : parameterName.getBytes();
+      }
+
+   /** Returns <code>true</code> if kiosks are identified by the client address of their requests. */
+   boolean isClientAddress()
+      {
+      return parameterName == null;
+      }
+
+   /** Returns <code>true</code> if the given range of bytes is the name of the parameter which identifies kiosks. */
+   boolean isParameterName(@NotNull final byte[] bytes, final int start, final int end)
+      {
+      if (parameterNameBytes == null || end - start != parameterNameBytes.length)
+         {
+         return false;
+         }
+      for (int i = 0; i < parameterNameBytes.length; i++)
+         {
+         if (bytes[start + i] != parameterNameBytes[i])
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   /**
+    * Returns the shared copy of the given kiosk name.  There are only ever a few kiosks, so this keeps their names from
+    * adding to the size of every event (e.g. while the events are being sorted).
+    */
+   @NotNull
+   String share(@NotNull final String kiosk)
+      {
+      final String sharedKiosk = kiosks.putIfAbsent(kiosk, kiosk);
+      return (sharedKiosk == null) ? kiosk : sharedKiosk;
+      }
+
+   @Override
+   public String toString()
+      {
+      return (parameterName == null) ? "client address" : "parameter [" + parameterName + "]";
+      }
+   }
@@ -1,12 +1,20 @@
 package org.createlab.log.event;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.SortedSet;
+import java.util.TimeZone;
 import java.util.TreeSet;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.ISODateTimeFormat;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -16,48 +24,361 @@ public final class LogFileProcessor
    private static final Logger LOG = Logger.getLogger(LogFileProcessor.class);
 
    private static final String OPTION_PRINT_TYPES = "--list-event-types";
+   private static final String OPTION_MAPPED = "--mmap";
+   private static final String OPTION_THREADS = "--threads";
+   private static final String OPTION_SORT = "--sort";
+   private static final String OPTION_SORT_MEMORY = "--sort-memory";
+   private static final String OPTION_REORDER = "--reorder";
+   private static final String OPTION_DEDUP = "--dedup";
+   private static final String OPTION_STATS = "--stats";
+   private static final String OPTION_WRITE_EVENT_LOG = "--write-event-log";
+   private static final String OPTION_BINARY = "--binary";
+   private static final String OPTION_FOLLOW = "--follow";
+   private static final String OPTION_CHECKPOINT = "--checkpoint";
+   private static final String OPTION_ASYNC = "--async";
+   private static final String OPTION_ASYNC_WRITE = "--async-write";
+   private static final String OPTION_FROM = "--from";
+   private static final String OPTION_TO = "--to";
+   private static final String OPTION_TYPES = "--types";
+   private static final String OPTION_PER_KIOSK = "--per-kiosk";
+   private static final String OPTION_KIOSK_PARAM = "--kiosk-param";
+   private static final String OPTION_PROGRESS = "--progress";
+
+   /** Separates the class names when several LineProcessors share a single read of the file. */
+   private static final String LINE_PROCESSOR_CLASS_NAME_SEPARATOR = ",";
+
+   /** Separates the event types given to the {@link #OPTION_TYPES} option. */
+   private static final String EVENT_TYPE_SEPARATOR = ",";
+
+   private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+   private static final long MILLIS_PER_SECOND = 1000;
+
+   private boolean isMemoryMappingEnabled = false;
+   private int numThreads = 1;
+   private boolean isSortingEnabled = false;
+   private long sortMemoryBudgetInBytes = SortingEventProcessor.DEFAULT_MEMORY_BUDGET_IN_BYTES;
+   private long reorderMaxLatenessInMillis = -1;
+   private long deduplicationHorizonInMillis = -1;
+   @Nullable
+   private String statsGeneratorClassName = null;
+   private boolean isEventLogEnabled = false;
+   private boolean isBinaryEventLogEnabled = false;
+   private boolean isFollowing = false;
+   @Nullable
+   private File checkpointFile = null;
+   private boolean isAsynchronous = false;
+   private boolean isAsynchronousWritingEnabled = false;
+   // The times given to the --from and --to options, which are parsed once the line processor's time zone is known.
+   @Nullable
+   private String fromTime = null;
+   @Nullable
+   private String toTime = null;
+
+   private long fromTimeInMillis = Long.MIN_VALUE;
+   private long toTimeInMillis = Long.MAX_VALUE;
+   @Nullable
+   private List<String> eventTypes = null;
+   @Nullable
+   private KioskKey kioskKey = null;
+   private int progressIntervalInSeconds = 0;
 
    public static void main(final String[] args)
       {
       if (args == null || args.length < 2)
          {
-         System.err.println();
-         System.err.println("Usage: java -jar event-parser.jar LINE_PROCESSOR_CLASS_NAME FILENAME [--list-event-types]");
-         System.err.println();
-         System.err.println("   --list-event-types            Prints a list of all the event types found in FILENAME");
-         System.err.println();
+         printUsage();
          }
       else
          {
-         final String logLineProcessorClassName = args[0];
-         final String eventLogFilename = args[1];
-         final File logFile = new File(eventLogFilename);
+         final String[] logLineProcessorClassNames = args[0].split(LINE_PROCESSOR_CLASS_NAME_SEPARATOR);
+
+         // everything up to the first option is a file, directory or glob
+         final List<String> logFilenames = new ArrayList<String>();
+         int firstOptionIndex = 1;
+         while (firstOptionIndex < args.length && !args[firstOptionIndex].startsWith("--"))
+            {
+            logFilenames.add(args[firstOptionIndex++]);
+            }
+         final List<File> logFiles = LogFiles.find(logFilenames);
+         final File unreadableLogFile = findUnreadableFile(logFiles);
 
-         if (logFile.exists() && logFile.canRead())
+         if (logFiles.isEmpty())
+            {
+            System.err.println("ERROR: No files found matching " + logFilenames + ".  Aborting.");
+            }
+         else if (unreadableLogFile == null)
             {
             final LogFileProcessor logFileProcessor = new LogFileProcessor();
-            if (args.length == 2)
+            boolean willListEventTypes = false;
+            for (int i = firstOptionIndex; i < args.length; i++)
                {
-               final LineProcessor lineProcessor = instantiateLogLineProcessor(logLineProcessorClassName);
-               if (lineProcessor == null)
+               if (OPTION_PRINT_TYPES.equals(args[i]))
+                  {
+                  willListEventTypes = true;
+                  }
+               else if (OPTION_MAPPED.equals(args[i]))
+                  {
+                  logFileProcessor.setMemoryMappingEnabled(true);
+                  }
+               else if (OPTION_THREADS.equals(args[i]) && i + 1 < args.length && isPositiveInteger(args[i + 1]))
+                  {
+                  logFileProcessor.setNumThreads(Integer.parseInt(args[++i]));
+                  }
+               else if (OPTION_SORT.equals(args[i]))
+                  {
+                  logFileProcessor.setSortingEnabled(true);
+                  }
+               else if (OPTION_SORT_MEMORY.equals(args[i]) && i + 1 < args.length && isPositiveInteger(args[i + 1]))
+                  {
+                  logFileProcessor.setSortingEnabled(true);
+                  logFileProcessor.setSortMemoryBudgetInBytes(Integer.parseInt(args[++i]) * BYTES_PER_MEGABYTE);
+                  }
+               else if (OPTION_REORDER.equals(args[i]) && i + 1 < args.length && isPositiveInteger(args[i + 1]))
+                  {
+                  logFileProcessor.setReorderMaxLatenessInMillis(Integer.parseInt(args[++i]) * MILLIS_PER_SECOND);
+                  }
+               else if (OPTION_DEDUP.equals(args[i]) && i + 1 < args.length && isPositiveInteger(args[i + 1]))
+                  {
+                  logFileProcessor.setDeduplicationHorizonInMillis(Integer.parseInt(args[++i]) * MILLIS_PER_SECOND);
+                  }
+               else if (OPTION_STATS.equals(args[i]) && i + 1 < args.length)
+                  {
+                  logFileProcessor.setStatsGeneratorClassName(args[++i]);
+                  }
+               else if (OPTION_WRITE_EVENT_LOG.equals(args[i]))
+                  {
+                  logFileProcessor.setEventLogEnabled(true);
+                  }
+               else if (OPTION_BINARY.equals(args[i]))
+                  {
+                  logFileProcessor.setBinaryEventLogEnabled(true);
+                  }
+               else if (OPTION_FOLLOW.equals(args[i]))
+                  {
+                  logFileProcessor.setFollowing(true);
+                  }
+               else if (OPTION_CHECKPOINT.equals(args[i]) && i + 1 < args.length)
+                  {
+                  logFileProcessor.setCheckpointFile(new File(args[++i]));
+                  }
+               else if (OPTION_ASYNC.equals(args[i]))
                   {
-                  System.err.println("ERROR: Failed to instantiate the LineProcessor [" + logLineProcessorClassName + "]");
+                  logFileProcessor.setAsynchronous(true);
+                  }
+               else if (OPTION_ASYNC_WRITE.equals(args[i]))
+                  {
+                  logFileProcessor.setAsynchronousWritingEnabled(true);
+                  }
+               else if ((OPTION_FROM.equals(args[i]) || OPTION_TO.equals(args[i])) && i + 1 < args.length)
+                  {
+                  // only check it for now, since a date is in the line processor's time zone, which isn't known yet
+                  if (parseTime(args[i + 1], DateTimeZone.UTC) == null)
+                     {
+                     System.err.println("ERROR: Invalid time [" + args[i + 1] + "] for the " + args[i] + " option");
+                     printUsage();
+                     return;
+                     }
+                  if (OPTION_FROM.equals(args[i]))
+                     {
+                     logFileProcessor.setFromTime(args[i + 1]);
+                     }
+                  else
+                     {
+                     logFileProcessor.setToTime(args[i + 1]);
+                     }
+                  i++;
+                  }
+               else if (OPTION_TYPES.equals(args[i]) && i + 1 < args.length)
+                  {
+                  logFileProcessor.setEventTypes(Arrays.asList(args[++i].split(EVENT_TYPE_SEPARATOR)));
+                  }
+               else if (OPTION_PER_KIOSK.equals(args[i]))
+                  {
+                  logFileProcessor.setKioskKey(KioskKey.CLIENT_ADDRESS);
+                  }
+               else if (OPTION_KIOSK_PARAM.equals(args[i]) && i + 1 < args.length)
+                  {
+                  logFileProcessor.setKioskKey(KioskKey.forParameter(args[++i]));
+                  }
+               else if (OPTION_PROGRESS.equals(args[i]) && i + 1 < args.length && isPositiveInteger(args[i + 1]))
+                  {
+                  logFileProcessor.setProgressIntervalInSeconds(Integer.parseInt(args[++i]));
                   }
                else
                   {
-                  logFileProcessor.parse(logFile, lineProcessor);
+                  System.err.println("ERROR: Unknown option [" + args[i] + "]");
+                  printUsage();
+                  return;
                   }
                }
-            else if (args[2].equals(OPTION_PRINT_TYPES))
+
+            if (willListEventTypes && !areLineProcessorClassNames(logLineProcessorClassNames))
                {
-               logFileProcessor.listEventTypes(logFile);
+               // just list the event types
+               logFileProcessor.listEventTypes(logFiles);
+               }
+            else
+               {
+               final List<LineProcessor> lineProcessors = new ArrayList<LineProcessor>();
+               for (final String logLineProcessorClassName : logLineProcessorClassNames)
+                  {
+                  final LineProcessor lineProcessor = instantiateLogLineProcessor(logLineProcessorClassName);
+                  if (lineProcessor == null)
+                     {
+                     System.err.println("ERROR: Failed to instantiate the LineProcessor [" + logLineProcessorClassName + "]");
+                     return;
+                     }
+                  lineProcessors.add(lineProcessor);
+                  }
+
+               // list the event types as well, during the same read
+               if (willListEventTypes && lineProcessors.get(0) instanceof BaseApacheLogLineProcessor)
+                  {
+                  lineProcessors.add(new EventTypeLister(((BaseApacheLogLineProcessor)lineProcessors.get(0)).getTimeZone()));
+                  }
+
+               final LineProcessor lineProcessor = logFileProcessor.combine(lineProcessors);
+               if (lineProcessor != null)
+                  {
+                  logFileProcessor.parse(logFiles, lineProcessor);
+                  }
                }
             }
          else
             {
-            System.err.println("ERROR: Cannot read file [" + logFile + "].  Aborting.");
+            System.err.println("ERROR: Cannot read file [" + unreadableLogFile + "].  Aborting.");
+            }
+         }
+      }
+
+   private static void printUsage()
+      {
+      System.err.println();
+      System.err.println("Usage: java -jar event-parser.jar LINE_PROCESSOR_CLASS_NAME[,LINE_PROCESSOR_CLASS_NAME...] FILENAME... [--list-event-types] [--mmap] [--threads N] [--sort] [--sort-memory MB] [--reorder SECONDS] [--dedup SECONDS] [--stats STATS_GENERATOR_CLASS_NAME [--write-event-log]] [--binary] [--follow] [--checkpoint CHECKPOINT_FILE] [--async] [--async-write] [--from TIME] [--to TIME] [--types TYPE[,TYPE...]] [--per-kiosk] [--kiosk-param NAME] [--progress SECONDS]");
+      System.err.println();
+      System.err.println("   LINE_PROCESSOR_CLASS_NAME,... Several comma-separated Apache access log processors share a single read of the file:");
+      System.err.println("                                 each line is parsed once, and its event is handed to all of them");
+      System.err.println("   FILENAME...                   One or more files, directories or globs (e.g. 'logs/access.log*').  Rotated logs");
+      System.err.println("                                 are read oldest first, gzipped files are decompressed, and the events of");
+      System.err.println("                                 multiple Apache access logs are parsed in parallel and merged by time");
+      System.err.println("   --list-event-types            Prints a list of all the event types found in FILENAME (during the same read, if");
+      System.err.println("                                 LINE_PROCESSOR_CLASS_NAME is an Apache access log processor)");
+      System.err.println("   --mmap                        Reads FILENAME through memory-mapped windows instead of a BufferedReader");
+      System.err.println("   --threads N                   Parses chunks of an Apache access log with N threads (implies --mmap).  For the");
+      System.err.println("                                 CmnhStatsGenerator, computes the stats of up to N days at once instead");
+      System.err.println("   --sort                        Writes the event log sorted by time, so it can be given straight to a stats generator");
+      System.err.println("   --sort-memory MB              Sorts with at most MB megabytes of events in memory before spilling to disk (implies --sort)");
+      System.err.println("   --reorder SECONDS             Sorts the events as they go by instead of all at once (also when following a file, or");
+      System.err.println("                                 with --stats), for logs whose events are at most SECONDS seconds out of order.  Only");
+      System.err.println("                                 the last SECONDS seconds of events are held in memory, and any events later than that");
+      System.err.println("                                 are dropped, and counted");
+      System.err.println("   --dedup SECONDS               Drops repeated events (with the same type, time and parameters, and with --per-kiosk");
+      System.err.println("                                 the same kiosk, e.g. from retried requests) whose time is within SECONDS seconds of");
+      System.err.println("                                 the latest event, and prints how many were dropped (from each kiosk, with");
+      System.err.println("                                 --per-kiosk).  Only the last SECONDS seconds of events are held in memory.");
+      System.err.println("   --stats STATS_GENERATOR_CLASS_NAME");
+      System.err.println("                                 Sorts the events and passes them straight to the given stats generator, in memory,");
+      System.err.println("                                 without writing the event log (unless --write-event-log is also specified)");
+      System.err.println("   --write-event-log             Also writes the (sorted) event log when used with --stats");
+      System.err.println("   --binary                      Writes the event log in a compact binary format (event-log.bin) instead of CSV.");
+      System.err.println("                                 Stats generators detect and read binary event logs automatically");
+      System.err.println("   --follow                      Keeps reading FILENAME as it grows (handling log rotation) until interrupted.  Events");
+      System.err.println("                                 are passed on as they arrive, without sorting, so stats are written as each day or");
+      System.err.println("                                 session closes");
+      System.err.println("   --checkpoint CHECKPOINT_FILE  Resumes from the checkpoint (if it exists), processing only what has been appended to");
+      System.err.println("                                 FILENAME since, then saves a new checkpoint.  Output files are appended to");
+      System.err.println("   --async                       Runs each access log processor on its own thread, behind a bounded queue, so that");
+      System.err.println("                                 parsing and the processors all run in parallel, and a slow one doesn't hold up the rest");
+      System.err.println("   --async-write                 Writes the CSV event log on its own thread, in large batches, so that parsing never");
+      System.err.println("                                 waits for the disk");
+      System.err.println("   --from TIME                   Only processes the events at or after TIME, which is either an ISO date or date and time");
+      System.err.println("                                 (e.g. 2012-11-20 or 2012-11-20T09:00, in the museum's time zone, in which the days are");
+      System.err.println("                                 defined, unless it has an offset) or milliseconds since the epoch.  Access log lines");
+      System.err.println("                                 outside the range are skipped as soon as their time is found, before their event is");
+      System.err.println("                                 created.  A sorted event log written with --sort is indexed, so only the events in the");
+      System.err.println("                                 range are read");
+      System.err.println("   --to TIME                     Only processes the events before TIME (see --from)");
+      System.err.println("   --types TYPE[,TYPE...]        Only processes the events of the given types, skipping the other lines as soon as their");
+      System.err.println("                                 type is found, as for --from and --to");
+      System.err.println("   --per-kiosk                   Handles the events of each kiosk (i.e. client address) separately, and concurrently,");
+      System.err.println("                                 writing each kiosk's event log and stats in its own directory under kiosks");
+      System.err.println("   --kiosk-param NAME            Identifies each event's kiosk by the value of its NAME parameter instead of its");
+      System.err.println("                                 client address (implies --per-kiosk)");
+      System.err.println("   --progress SECONDS            Prints the progress (lines/s, MB/s, percent done and ETA, and the number of lines with");
+      System.err.println("                                 and without an event) every SECONDS seconds, and the time spent in each stage at the");
+      System.err.println("                                 end.  Only for Apache access log processors, which also publish these (and the number");
+      System.err.println("                                 of events of each type) as the JMX MBean " + PipelineMetrics.OBJECT_NAME);
+      System.err.println();
+      }
+
+   @Nullable
+   private static File findUnreadableFile(@NotNull final List<File> files)
+      {
+      for (final File file : files)
+         {
+         if (!file.exists() || !file.canRead())
+            {
+            return file;
+            }
+         }
+      return null;
+      }
+
+   /**
+    * Parses the given ISO date, or date and time (in the given time zone, unless it has an offset), or number of
+    * milliseconds since the epoch, or returns <code>null</code> if it's none of those.
+    */
+   @Nullable
+   private static Long parseTime(@NotNull final String s, @NotNull final DateTimeZone timeZone)
+      {
+      try
+         {
+         return Long.parseLong(s);
+         }
+      catch (NumberFormatException ignored)
+         {
+         // not millis, so try parsing it as a date
+         }
+      try
+         {
+         return ISODateTimeFormat.dateTimeParser().withZone(timeZone).parseMillis(s);
+         }
+      catch (IllegalArgumentException ignored)
+         {
+         return null;
+         }
+      }
+
+   private static boolean isPositiveInteger(@NotNull final String s)
+      {
+      try
+         {
+         return Integer.parseInt(s) > 0;
+         }
+      catch (NumberFormatException ignored)
+         {
+         return false;
+         }
+      }
+
+   /** Returns <code>true</code> if all the given names are the names of {@link LineProcessor} classes. */
+   private static boolean areLineProcessorClassNames(@NotNull final String[] classNames)
+      {
+      for (final String className : classNames)
+         {
+         try
+            {
+            if (!LineProcessor.class.isAssignableFrom(Class.forName(className)))
+               {
+               return false;
+               }
+            }
+         catch (ClassNotFoundException ignored)
+            {
+            return false;
             }
          }
+      return true;
       }
 
    private static LineProcessor instantiateLogLineProcessor(final String logLineProcessorClassName)
@@ -103,38 +424,709 @@ public final class LogFileProcessor
       return null;
       }
 
-   private void listEventTypes(@NotNull final File logFile)
+   private void listEventTypes(@NotNull final List<File> logFiles)
       {
-      LOG.debug("LogFileProcessor.printTypes(" + logFile + ")");
-      final SortedSet<String> types = new TreeSet<String>();
+      LOG.debug("LogFileProcessor.printTypes(" + logFiles + ")");
+      read(logFiles, new EventTypeLister(null));
+      }
 
-      final LineReader lineReader = new LineReader(logFile);
-      lineReader.read(
-            new BaseApacheLogLineProcessor()
+   /**
+    * Returns the given processor, or, if there are several (or they're to be run asynchronously), a
+    * {@link FanOutLineProcessor} which hands the events of each line to all of them.  Returns <code>null</code> (after
+    * reporting why) if they can't share a read.
+    */
+   @Nullable
+   private LineProcessor combine(@NotNull final List<LineProcessor> lineProcessors)
+      {
+      if (lineProcessors.size() == 1 && !isAsynchronous)
+         {
+         return lineProcessors.get(0);
+         }
+
+      final List<BaseApacheLogLineProcessor> apacheLogLineProcessors = new ArrayList<BaseApacheLogLineProcessor>();
+      int numEventLogProducers = 0;
+      for (final LineProcessor lineProcessor : lineProcessors)
+         {
+         if (!(lineProcessor instanceof BaseApacheLogLineProcessor))
             {
-            @Override
-            protected void processEvent(@NotNull Event event)
+            System.err.println("ERROR: Only Apache access log processors can share a read of the file (or use the " + OPTION_ASYNC + " option), but [" + lineProcessor.getClass().getName() + "] isn't one.  Aborting.");
+            return null;
+            }
+         if (lineProcessor instanceof EventLogProducer)
+            {
+            numEventLogProducers++;
+            }
+         apacheLogLineProcessors.add((BaseApacheLogLineProcessor)lineProcessor);
+         }
+      if (numEventLogProducers > 1)
+         {
+         System.err.println("ERROR: Only one event log producer can share a read of the file, since they'd all write the same event log.  Aborting.");
+         return null;
+         }
+
+      try
+         {
+         return new FanOutLineProcessor(apacheLogLineProcessors, isAsynchronous);
+         }
+      catch (IllegalArgumentException e)
+         {
+         System.err.println("ERROR: " + e.getMessage() + ".  Aborting.");
+         return null;
+         }
+      }
+
+   /** Returns the time zone in which the given line processor's days are defined, or <code>null</code> if it has none. */
+   @Nullable
+   private static TimeZone getTimeZone(@NotNull final LineProcessor lineProcessor)
+      {
+      if (lineProcessor instanceof BaseApacheLogLineProcessor)
+         {
+         return ((BaseApacheLogLineProcessor)lineProcessor).getTimeZone();
+         }
+      if (lineProcessor instanceof BaseEventLogLineProcessor)
+         {
+         return ((BaseEventLogLineProcessor)lineProcessor).getTimeZone();
+         }
+      return null;
+      }
+
+   /** Warns of any of the event types given to the {@link #OPTION_TYPES} option which aren't among the given supported ones. */
+   private void warnOfUnsupportedEventTypes(@Nullable final SupportedEventTypes supportedEventTypes)
+      {
+      if (supportedEventTypes != null && eventTypes != null)
+         {
+         for (final String eventType : eventTypes)
+            {
+            if (!supportedEventTypes.isEventTypeSupported(eventType))
+               {
+               System.err.println("WARNING: [" + eventType + "] isn't a supported event type, so no events of that type will be found.");
+               }
+            }
+         }
+      }
+
+   /**
+    * Returns the event log producer which the options for the event log apply to: the given processor itself, or the one
+    * among those sharing a read with a {@link FanOutLineProcessor}.
+    */
+   @Nullable
+   private static EventLogProducer findEventLogProducer(@NotNull final LineProcessor lineProcessor)
+      {
+      if (lineProcessor instanceof FanOutLineProcessor)
+         {
+         for (final LineProcessor sharingLineProcessor : ((FanOutLineProcessor)lineProcessor).getLineProcessors())
+            {
+            if (sharingLineProcessor instanceof EventLogProducer)
+               {
+               return (EventLogProducer)sharingLineProcessor;
+               }
+            }
+         }
+      return (lineProcessor instanceof EventLogProducer) ? (EventLogProducer)lineProcessor : null;
+      }
+
+   private void parse(@NotNull final List<File> logFiles, final LineProcessor lineProcessor)
+      {
+      LOG.debug("LogFileProcessor.parse(" + logFiles + ")");
+      if (!isSinglePlainFile(logFiles) && (isFollowing || checkpointFile != null))
+         {
+         System.err.println("ERROR: The " + OPTION_FOLLOW + " and " + OPTION_CHECKPOINT + " options can only be used with a single, uncompressed file.  Aborting.");
+         return;
+         }
+
+      // dates without an offset are in the time zone in which the line processor's days are defined
+      final TimeZone timeZone = getTimeZone(lineProcessor);
+      final DateTimeZone dateTimeZone = (timeZone == null) ? DateTimeZone.UTC : DateTimeZone.forTimeZone(timeZone);
+      if (fromTime != null)
+         {
+         fromTimeInMillis = parseTime(fromTime, dateTimeZone);
+         }
+      if (toTime != null)
+         {
+         toTimeInMillis = parseTime(toTime, dateTimeZone);
+         }
+
+      final EventFilter eventFilter = new EventFilter(fromTimeInMillis, toTimeInMillis, eventTypes);
+      if (!eventFilter.isAll())
+         {
+         if (lineProcessor instanceof BaseEventLogLineProcessor)
+            {
+            ((BaseEventLogLineProcessor)lineProcessor).setEventFilter(eventFilter);
+            }
+         else if (lineProcessor instanceof BaseApacheLogLineProcessor)
+            {
+            // the lines are filtered as they're parsed, before any events are created
+            ((BaseApacheLogLineProcessor)lineProcessor).setEventFilter(eventFilter);
+            warnOfUnsupportedEventTypes(((BaseApacheLogLineProcessor)lineProcessor).getSupportedEventTypes());
+            }
+         else
+            {
+            System.err.println("WARNING: Only access log and event log processors can be limited to a time range or event types, so ignoring the " + OPTION_FROM + ", " + OPTION_TO + " and " + OPTION_TYPES + " options.");
+            fromTimeInMillis = Long.MIN_VALUE;
+            toTimeInMillis = Long.MAX_VALUE;
+            }
+         }
+
+      if (lineProcessor instanceof CmnhStatsGenerator && enableParallelStats((CmnhStatsGenerator)lineProcessor))
+         {
+         // the event log itself is still read serially
+         numThreads = 1;
+         }
+
+      final EventLogProducer eventLogProducer = findEventLogProducer(lineProcessor);
+      if (statsGeneratorClassName != null)
+         {
+         final LineProcessor statsGenerator = instantiateLogLineProcessor(statsGeneratorClassName);
+         if (eventLogProducer == null)
+            {
+            System.err.println("ERROR: Only event log producers can pass their events to a stats generator.  Aborting.");
+            return;
+            }
+         if (!(statsGenerator instanceof BaseEventLogLineProcessor))
+            {
+            System.err.println("ERROR: Failed to instantiate the stats generator [" + statsGeneratorClassName + "].  Aborting.");
+            return;
+            }
+         eventLogProducer.setStatsGenerator((BaseEventLogLineProcessor)statsGenerator, isEventLogEnabled);
+         if (statsGenerator instanceof CmnhStatsGenerator)
+            {
+            enableParallelStats((CmnhStatsGenerator)statsGenerator);
+            }
+
+         // stats generators need their events in time order, unless we're following a live log (see below)
+         isSortingEnabled = true;
+         }
+      if (kioskKey != null)
+         {
+         if (eventLogProducer == null)
+            {
+            System.err.println("ERROR: Only event log producers can handle the events of each kiosk separately.  Aborting.");
+            return;
+            }
+         if (checkpointFile != null)
+            {
+            System.err.println("ERROR: The state of each kiosk can't be saved in a checkpoint, so the " + OPTION_CHECKPOINT + " option can't be used with the " + OPTION_PER_KIOSK + " or " + OPTION_KIOSK_PARAM + " options.  Aborting.");
+            return;
+            }
+         eventLogProducer.setPerKiosk(kioskKey, (statsGeneratorClassName == null) ? null : new KioskStatsGeneratorFactory(statsGeneratorClassName));
+         }
+      if (reorderMaxLatenessInMillis >= 0)
+         {
+         if (eventLogProducer != null)
+            {
+            // reordering takes the place of sorting, and passes the events on as they go, so it works when following too
+            eventLogProducer.setReorderingEnabled(reorderMaxLatenessInMillis);
+            isSortingEnabled = false;
+            }
+         else
+            {
+            System.err.println("WARNING: Only event log producers can sort their output, so ignoring the " + OPTION_REORDER + " option.");
+            }
+         }
+      if (deduplicationHorizonInMillis >= 0)
+         {
+         if (eventLogProducer != null)
+            {
+            eventLogProducer.setDeduplicationHorizon(deduplicationHorizonInMillis);
+            }
+         else
+            {
+            System.err.println("WARNING: Only event log producers can drop duplicate events, so ignoring the " + OPTION_DEDUP + " option.");
+            }
+         }
+      if (isFollowing && isSortingEnabled)
+         {
+         // Sorting would hold back every event until we stop following the file, so pass the events on as they arrive,
+         // which is (almost) time order anyway.
+         if (statsGeneratorClassName == null)
+            {
+            System.err.println("WARNING: Events can't be sorted while following a file, so ignoring the " + OPTION_SORT + " option.");
+            }
+         isSortingEnabled = false;
+         }
+      if (isBinaryEventLogEnabled)
+         {
+         if (eventLogProducer != null)
+            {
+            eventLogProducer.setBinaryEventLogEnabled(true);
+            }
+         else
+            {
+            System.err.println("WARNING: Only event log producers write an event log, so ignoring the " + OPTION_BINARY + " option.");
+            }
+         }
+      if (isAsynchronousWritingEnabled)
+         {
+         if (eventLogProducer != null)
+            {
+            eventLogProducer.setAsynchronousWritingEnabled(true);
+            }
+         else
+            {
+            System.err.println("WARNING: Only event log producers write an event log, so ignoring the " + OPTION_ASYNC_WRITE + " option.");
+            }
+         }
+      if (isSortingEnabled)
+         {
+         if (eventLogProducer != null)
+            {
+            eventLogProducer.setSortingEnabled(sortMemoryBudgetInBytes);
+            }
+         else
+            {
+            System.err.println("WARNING: Only event log producers can sort their output, so ignoring the " + OPTION_SORT + " option.");
+            }
+         }
+      if (checkpointFile != null)
+         {
+         final File logFile = logFiles.get(0);
+         if (!(lineProcessor instanceof Checkpointable) ||
+             (lineProcessor instanceof EventLogProducer && !((EventLogProducer)lineProcessor).isCheckpointable()))
+            {
+            System.err.println("ERROR: The state of [" + lineProcessor.getClass().getName() + "] (or its stats generator or binary event log) can't be saved in a checkpoint.  Aborting.");
+            return;
+            }
+         if (BinaryEventLogReader.isBinaryEventLog(logFile))
+            {
+            System.err.println("ERROR: Binary event logs can't be read with the " + OPTION_CHECKPOINT + " option.  Aborting.");
+            return;
+            }
+         if (numThreads > 1)
+            {
+            System.err.println("WARNING: Files are read serially when using a checkpoint, so ignoring the " + OPTION_THREADS + " option.");
+            numThreads = 1;
+            }
+         }
+
+      final PipelineMetrics metrics = createMetrics(logFiles, lineProcessor, eventLogProducer);
+      try
+         {
+         if (checkpointFile == null)
+            {
+            read(logFiles, lineProcessor);
+            }
+         else
+            {
+            readWithCheckpoint(logFiles.get(0), lineProcessor, metrics);
+            }
+         }
+      finally
+         {
+         if (metrics != null)
+            {
+            metrics.stopReporting();
+            metrics.unregister();
+            }
+         }
+      }
+
+   /**
+    * Creates and registers the metrics of an Apache access log processor (and its event log producer, if any), and
+    * starts printing its progress if asked to.  Returns <code>null</code> for other processors, which don't have any.
+    */
+   @Nullable
+   private PipelineMetrics createMetrics(@NotNull final List<File> logFiles, @NotNull final LineProcessor lineProcessor, @Nullable final EventLogProducer eventLogProducer)
+      {
+      if (!(lineProcessor instanceof BaseApacheLogLineProcessor))
+         {
+         if (progressIntervalInSeconds > 0)
+            {
+            System.err.println("WARNING: Only Apache access log processors can report their progress, so ignoring the " + OPTION_PROGRESS + " option.");
+            }
+         return null;
+         }
+
+      final PipelineMetrics metrics = new PipelineMetrics();
+      ((BaseApacheLogLineProcessor)lineProcessor).setMetrics(metrics);
+      if (eventLogProducer != null)
+         {
+         eventLogProducer.setWriteMetrics(metrics);
+         }
+
+      // the size of a growing or compressed file says nothing about how much there is left to read
+      long totalBytes = isFollowing ? -1 : 0;
+      for (final File logFile : logFiles)
+         {
+         totalBytes = (totalBytes < 0 || LogFiles.isGzipped(logFile)) ? -1 : totalBytes + logFile.length();
+         }
+      metrics.setTotalBytes(totalBytes);
+
+      metrics.register();
+      if (progressIntervalInSeconds > 0)
+         {
+         metrics.startReporting(progressIntervalInSeconds);
+         }
+      return metrics;
+      }
+
+   /**
+    * Has the given stats generator compute the stats of several days at once, if more than one thread was requested,
+    * and returns whether it does.  It doesn't when following a file, since each day's rows would only be written once
+    * the day is over, nor when using a checkpoint, since files are then read serially.
+    */
+   private boolean enableParallelStats(@NotNull final CmnhStatsGenerator statsGenerator)
+      {
+      if (numThreads > 1 && !isFollowing && checkpointFile == null)
+         {
+         statsGenerator.setNumThreads(numThreads);
+         return true;
+         }
+      return false;
+      }
+
+   /**
+    * Restores the processor's state from the checkpoint (if there is one), reads the file from the position recorded in
+    * the checkpoint, and then saves a new checkpoint.  If the file no longer starts with the same bytes as the one which
+    * was checkpointed, it's assumed to have been rotated, and is read from the beginning (but still with the restored
+    * state).
+    */
+   private void readWithCheckpoint(@NotNull final File logFile, @NotNull final LineProcessor lineProcessor, @Nullable final PipelineMetrics metrics)
+      {
+      final Checkpointable checkpointable = (Checkpointable)lineProcessor;
+      try
+         {
+         long startPosition = 0;
+         final Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+         if (checkpoint != null)
+            {
+            checkpoint.restore(checkpointable);
+            if (checkpoint.isSameFile(logFile))
+               {
+               startPosition = checkpoint.getPosition();
+               }
+            else
+               {
+               System.err.println("WARNING: File [" + logFile + "] doesn't start with the same bytes as when the checkpoint was saved, so assuming it was rotated and reading it from the beginning.");
+               }
+            LOG.info("Resuming from checkpoint [" + checkpointFile + "] at position [" + startPosition + "] of file [" + logFile + "]");
+            }
+         if (metrics != null && metrics.getTotalBytes() >= 0)
+            {
+            metrics.setTotalBytes(logFile.length() - startPosition);
+            }
+
+         final long endPosition;
+         final byte[] fingerprint;
+         if (isFollowing)
+            {
+            final FollowingLineReader followingLineReader = follow(logFile, lineProcessor, startPosition);
+            endPosition = followingLineReader.getPosition();
+            fingerprint = followingLineReader.getFingerprint();
+            }
+         else
+            {
+            fingerprint = Checkpoint.readFingerprint(logFile);
+            endPosition = new MappedLineReader(logFile).read(lineProcessor, startPosition);
+            }
+
+         if (endPosition >= 0)
+            {
+            Checkpoint.create(checkpointable, endPosition, fingerprint).save(checkpointFile);
+            LOG.info("Saved checkpoint [" + checkpointFile + "] at position [" + endPosition + "] of file [" + logFile + "]");
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to load or save the checkpoint [" + checkpointFile + "]", e);
+         System.err.println("ERROR: Failed to load or save the checkpoint [" + checkpointFile + "].  Aborting.");
+         }
+      }
+
+   private void setMemoryMappingEnabled(final boolean isMemoryMappingEnabled)
+      {
+      this.isMemoryMappingEnabled = isMemoryMappingEnabled;
+      }
+
+   private void setSortingEnabled(final boolean isSortingEnabled)
+      {
+      this.isSortingEnabled = isSortingEnabled;
+      }
+
+   private void setStatsGeneratorClassName(final String statsGeneratorClassName)
+      {
+      this.statsGeneratorClassName = statsGeneratorClassName;
+      }
+
+   private void setEventLogEnabled(final boolean isEventLogEnabled)
+      {
+      this.isEventLogEnabled = isEventLogEnabled;
+      }
+
+   private void setBinaryEventLogEnabled(final boolean isBinaryEventLogEnabled)
+      {
+      this.isBinaryEventLogEnabled = isBinaryEventLogEnabled;
+      }
+
+   private void setFollowing(final boolean isFollowing)
+      {
+      this.isFollowing = isFollowing;
+      }
+
+   private void setCheckpointFile(@NotNull final File checkpointFile)
+      {
+      this.checkpointFile = checkpointFile;
+      }
+
+   private void setAsynchronous(final boolean isAsynchronous)
+      {
+      this.isAsynchronous = isAsynchronous;
+      }
+
+   private void setAsynchronousWritingEnabled(final boolean isAsynchronousWritingEnabled)
+      {
+      this.isAsynchronousWritingEnabled = isAsynchronousWritingEnabled;
+      }
+
+   private void setFromTime(@NotNull final String fromTime)
+      {
+      this.fromTime = fromTime;
+      }
+
+   private void setToTime(@NotNull final String toTime)
+      {
+      this.toTime = toTime;
+      }
+
+   private void setEventTypes(@NotNull final List<String> eventTypes)
+      {
+      this.eventTypes = eventTypes;
+      }
+
+   private void setKioskKey(@NotNull final KioskKey kioskKey)
+      {
+      this.kioskKey = kioskKey;
+      }
+
+   private void setProgressIntervalInSeconds(final int progressIntervalInSeconds)
+      {
+      this.progressIntervalInSeconds = progressIntervalInSeconds;
+      }
+
+   private boolean isTimeRangeSet()
+      {
+      return fromTimeInMillis != Long.MIN_VALUE || toTimeInMillis != Long.MAX_VALUE;
+      }
+
+   private void setSortMemoryBudgetInBytes(final long sortMemoryBudgetInBytes)
+      {
+      this.sortMemoryBudgetInBytes = sortMemoryBudgetInBytes;
+      }
+
+   private void setReorderMaxLatenessInMillis(final long reorderMaxLatenessInMillis)
+      {
+      this.reorderMaxLatenessInMillis = reorderMaxLatenessInMillis;
+      }
+
+   private void setDeduplicationHorizonInMillis(final long deduplicationHorizonInMillis)
+      {
+      this.deduplicationHorizonInMillis = deduplicationHorizonInMillis;
+      }
+
+   private void setNumThreads(final int numThreads)
+      {
+      this.numThreads = numThreads;
+      }
+
+   private static boolean isSinglePlainFile(@NotNull final List<File> logFiles)
+      {
+      return logFiles.size() == 1 && !LogFiles.isGzipped(logFiles.get(0));
+      }
+
+   private void read(@NotNull final List<File> logFiles, @NotNull final LineProcessor lineProcessor)
+      {
+      if (isSinglePlainFile(logFiles))
+         {
+         read(logFiles.get(0), lineProcessor);
+         }
+      else
+         {
+         if (lineProcessor instanceof BaseEventLogLineProcessor)
+            {
+            for (final File logFile : logFiles)
                {
-               types.add(event.getType());
+               if (!LogFiles.isGzipped(logFile) && BinaryEventLogReader.isBinaryEventLog(logFile))
+                  {
+                  System.err.println("ERROR: Binary event logs can only be read one at a time, but [" + logFile + "] is one of several files.  Aborting.");
+                  return;
+                  }
                }
+            }
+         if (numThreads > 1 || isMemoryMappingEnabled)
+            {
+            System.err.println("WARNING: Ignoring the " + OPTION_THREADS + " and " + OPTION_MAPPED + " options, since multiple or gzipped files are read by a pool of threads of their own.");
+            }
+         new MultiFileReader(logFiles).read(lineProcessor);
+         }
+      }
+
+   private void read(@NotNull final File logFile, @NotNull final LineProcessor lineProcessor)
+      {
+      if (lineProcessor instanceof BaseEventLogLineProcessor && isTimeRangeSet() && !isFollowing && readIndexedTimeRange(logFile, (BaseEventLogLineProcessor)lineProcessor))
+         {
+         return;
+         }
+
+      if (lineProcessor instanceof BaseEventLogLineProcessor && BinaryEventLogReader.isBinaryEventLog(logFile))
+         {
+         new BinaryEventLogReader(logFile).read((BaseEventLogLineProcessor)lineProcessor);
+         }
+      else if (isFollowing)
+         {
+         follow(logFile, lineProcessor, 0);
+         }
+      else if (numThreads > 1)
+         {
+         if (lineProcessor instanceof BaseApacheLogLineProcessor)
+            {
+            new ParallelLineReader(logFile, numThreads).read((BaseApacheLogLineProcessor)lineProcessor);
+            }
+         else
+            {
+            System.err.println("WARNING: Only Apache access logs can be parsed in parallel, so ignoring the " + OPTION_THREADS + " option.");
+            numThreads = 1;
+            read(logFile, lineProcessor);
+            }
+         }
+      else if (isMemoryMappingEnabled)
+         {
+         new MappedLineReader(logFile).read(lineProcessor);
+         }
+      else
+         {
+         new LineReader(logFile).read(lineProcessor);
+         }
+      }
+
+   /**
+    * Reads only the blocks of the event log which contain the time range, as found in its {@link EventLogIndex}.  The
+    * processor itself skips the rows outside the range in the first and last blocks.  Returns <code>false</code>
+    * (without reading anything) if the event log doesn't have an index.
+    */
+   private boolean readIndexedTimeRange(@NotNull final File logFile, @NotNull final BaseEventLogLineProcessor eventLogLineProcessor)
+      {
+      final EventLogIndex index = EventLogIndex.load(logFile);
+      if (index == null)
+         {
+         LOG.info("No index found for [" + logFile + "], so reading the whole file to find the events in the time range");
+         return false;
+         }
+      if (index.getNumberOfBlocks() == 0)
+         {
+         return false;
+         }
+
+      final int startBlock = index.findStartBlock(fromTimeInMillis);
+      final int endBlock = Math.max(startBlock, index.findEndBlock(toTimeInMillis));
+      LOG.debug("LogFileProcessor.readIndexedTimeRange(" + logFile + "): reading blocks [" + startBlock + ", " + endBlock + ") of [" + index.getNumberOfBlocks() + "]");
+      if (BinaryEventLogReader.isBinaryEventLog(logFile))
+         {
+         new BinaryEventLogReader(logFile).read(eventLogLineProcessor,
+                                                index.getOffset(startBlock),
+                                                index.getOffset(endBlock),
+                                                index.getPreviousTimeInMillis(startBlock),
+                                                index.getPreviousDateInMillis(startBlock),
+                                                index.getTypesSeen(startBlock));
+         }
+      else
+         {
+         new MappedLineReader(logFile).read(eventLogLineProcessor, index.getOffset(startBlock), index.getOffset(endBlock));
+         }
+      return true;
+      }
+
+   /**
+    * Follows the given file, starting at the given position, until the JVM is asked to shut down (e.g. with Ctrl-C), at
+    * which point the reader is stopped and the shutdown waits for the processor to finish writing its output (and for
+    * the checkpoint to be saved, if there is one).
+    */
+   @NotNull
+   private FollowingLineReader follow(@NotNull final File logFile, @NotNull final LineProcessor lineProcessor, final long startPosition)
+      {
+      if (numThreads > 1 || isMemoryMappingEnabled)
+         {
+         System.err.println("WARNING: Ignoring the " + OPTION_THREADS + " and " + OPTION_MAPPED + " options, since they can't be used while following a file.");
+         }
 
+      final FollowingLineReader followingLineReader = new FollowingLineReader(logFile);
+      final Thread readingThread = Thread.currentThread();
+      Runtime.getRuntime().addShutdownHook(
+            new Thread()
+            {
             @Override
-            public void doAfterProcessingLines()
+            public void run()
                {
-               System.out.println("Number of lines processed       = " + getNumberOfLinesProcessed());
+               followingLineReader.stop();
+               try
+                  {
+                  readingThread.join();
+                  }
+               catch (InterruptedException e)
+                  {
+                  LOG.error("InterruptedException while waiting for the processing of file [" + logFile + "] to finish", e);
+                  }
                }
             });
+      followingLineReader.read(lineProcessor, startPosition);
+      return followingLineReader;
+      }
 
-      for (final String type : types)
+   /** Creates a new instance of the stats generator for each kiosk, writing its output files in the kiosk's directory. */
+   private static final class KioskStatsGeneratorFactory implements EventLogProducer.StatsGeneratorFactory
+      {
+      @NotNull
+      private final String statsGeneratorClassName;
+
+      private KioskStatsGeneratorFactory(@NotNull final String statsGeneratorClassName)
          {
-         System.out.println(type);
+         this.statsGeneratorClassName = statsGeneratorClassName;
+         }
+
+      @NotNull
+      @Override
+      public BaseEventLogLineProcessor create(@NotNull final File outputDirectory)
+         {
+         // the class has already been instantiated once, so it won't fail now
+         final BaseEventLogLineProcessor statsGenerator = (BaseEventLogLineProcessor)instantiateLogLineProcessor(statsGeneratorClassName);
+         statsGenerator.setOutputDirectory(outputDirectory);
+         return statsGenerator;
          }
       }
 
-   private void parse(@NotNull final File logFile, final LineProcessor lineProcessor)
+   /** Collects the types of all the events, and prints them (sorted) at the end. */
+   private static final class EventTypeLister extends BaseApacheLogLineProcessor
       {
-      LOG.debug("LogFileProcessor.parse(" + logFile + ")");
-      final LineReader lineReader = new LineReader(logFile);
-      lineReader.read(lineProcessor);
+      @Nullable
+      private final TimeZone timeZone;
+
+      @NotNull
+      private final SortedSet<String> types = new TreeSet<String>();
+
+      /** Parses dates in the given time zone (which doesn't affect the types), or the default one if <code>null</code>. */
+      private EventTypeLister(@Nullable final TimeZone timeZone)
+         {
+         this.timeZone = timeZone;
+         }
+
+      @Override
+      protected TimeZone getTimeZone()
+         {
+         return (timeZone == null) ? super.getTimeZone() : timeZone;
+         }
+
+      @Override
+      protected void processEvent(@NotNull final Event event)
+         {
+         types.add(event.getType());
+         }
+
+      @Override
+      public void doAfterProcessingLines()
+         {
+         System.out.println("Number of lines processed       = " + getNumberOfLinesProcessed());
+         for (final String type : types)
+            {
+            System.out.println(type);
+            }
+         }
       }
    }
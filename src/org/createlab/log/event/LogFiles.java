@@ -0,0 +1,160 @@
+package org.createlab.log.event;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Finds the log files named on the command line, and opens them (decompressing them if they're gzipped).  Each name may
+ * be a file, a directory (meaning every non-hidden file in it) or a glob such as <code>logs/access.log*</code>.  The
+ * files are returned in the order in which they were written: grouped by base name, with rotated files from oldest
+ * (e.g. <code>access.log.9.gz</code>) to newest (<code>access.log</code>).
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class LogFiles
+   {
+   private static final String GZIP_EXTENSION = ".gz";
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+   /** Matches the name of a (possibly rotated) log file, e.g. "access.log", "access.log.1" or "access.log.2.gz". */
+   private static final Pattern ROTATED_FILE_NAME_PATTERN = Pattern.compile("^(.*?)(?:\\.(\\d+))?(?:\\.gz)?$");
+
+   private static final Comparator<File> ROTATION_ORDER = new Comparator<File>()
+   {
+   @Override
+   public int compare(final File file1, final File file2)
+      {
+      final int comparison = getRotationBase(file1).compareTo(getRotationBase(file2));
+      if (comparison != 0)
+         {
+         return comparison;
+         }
+
+      final Matcher matcher1 = ROTATED_FILE_NAME_PATTERN.matcher(file1.getName());
+      final Matcher matcher2 = ROTATED_FILE_NAME_PATTERN.matcher(file2.getName());
+      matcher1.matches();
+      matcher2.matches();
+
+      // higher rotation numbers are older, and an unrotated file is the newest of all
+      final long rotation1 = (matcher1.group(2) == null) ? -1 : Long.parseLong(matcher1.group(2));
+      final long rotation2 = (matcher2.group(2) == null) ? -1 : Long.parseLong(matcher2.group(2));
+      return (rotation1 > rotation2) ? -1 : ((rotation1 == rotation2) ? file1.compareTo(file2) : 1);
+      }
+   };
+
+   /** Returns the files with the given names (expanding directories and globs), in the order in which they were written. */
+   @NotNull
+   static List<File> find(@NotNull final List<String> names)
+      {
+      final List<File> files = new ArrayList<File>();
+      for (final String name : names)
+         {
+         final File file = new File(name);
+         if (file.isDirectory())
+            {
+            addFiles(files, file, null);
+            }
+         else if (!file.exists() && (file.getName().indexOf('*') >= 0 || file.getName().indexOf('?') >= 0))
+            {
+            final File directory = (file.getParentFile() == null) ? new File(".") : file.getParentFile();
+            addFiles(files, directory, globToPattern(file.getName()));
+            }
+         else
+            {
+            files.add(file);
+            }
+         }
+      Collections.sort(files, ROTATION_ORDER);
+      return files;
+      }
+
+   /**
+    * Returns the file the given file is a rotation of (e.g. <code>logs/access.log</code> for
+    * <code>logs/access.log.2.gz</code>), or the file itself if it isn't one.
+    */
+   @NotNull
+   static File getRotationBase(@NotNull final File file)
+      {
+      final Matcher matcher = ROTATED_FILE_NAME_PATTERN.matcher(file.getName());
+      matcher.matches();
+      return new File(file.getParentFile(), matcher.group(1));
+      }
+
+   static boolean isGzipped(@NotNull final File file)
+      {
+      return file.getName().endsWith(GZIP_EXTENSION);
+      }
+
+   /** Opens the given file for reading, decompressing it on the fly if it's gzipped. */
+   @NotNull
+   static InputStream open(@NotNull final File file) throws IOException
+      {
+      final InputStream inputStream = new FileInputStream(file);
+      try
+         {
+         return isGzipped(file) ? new GZIPInputStream(inputStream, IO_BUFFER_SIZE) : new BufferedInputStream(inputStream, IO_BUFFER_SIZE);
+         }
+      catch (IOException e)
+         {
+         inputStream.close();
+         throw e;
+         }
+      }
+
+   private static void addFiles(@NotNull final List<File> files, @NotNull final File directory, final Pattern namePattern)
+      {
+      final File[] filesInDirectory = directory.listFiles();
+      if (filesInDirectory != null)
+         {
+         for (final File file : filesInDirectory)
+            {
+            if (file.isFile() && !file.isHidden() && (namePattern == null || namePattern.matcher(file.getName()).matches()))
+               {
+               files.add(file);
+               }
+            }
+         }
+      }
+
+   /** Converts a glob containing <code>*</code> and <code>?</code> wildcards into a regular expression. */
+   @NotNull
+   private static Pattern globToPattern(@NotNull final String glob)
+      {
+      final StringBuilder regex = new StringBuilder();
+      int literalStart = 0;
+      for (int i = 0; i < glob.length(); i++)
+         {
+         final char c = glob.charAt(i);
+         if (c == '*' || c == '?')
+            {
+            if (i > literalStart)
+               {
+               regex.append(Pattern.quote(glob.substring(literalStart, i)));
+               }
+            regex.append(c == '*' ? ".*" : ".");
+            literalStart = i + 1;
+            }
+         }
+      if (literalStart < glob.length())
+         {
+         regex.append(Pattern.quote(glob.substring(literalStart)));
+         }
+      return Pattern.compile(regex.toString());
+      }
+
+   private LogFiles()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,264 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An alternative to the {@link LineReader} which memory-maps the file in large windows and finds line terminators at
+ * the byte level.  Lines are handed to {@link ByteLineProcessor}s as raw bytes, without ever being decoded into a
+ * {@link String}.  Other {@link LineProcessor}s still receive a {@link String}, decoded with the platform charset just
+ * like the {@link LineReader} does.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class MappedLineReader
+   {
+   private static final Logger LOG = Logger.getLogger(MappedLineReader.class);
+
+   public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+   private static final int INITIAL_LINE_BUFFER_SIZE = 4096;
+
+   @NotNull
+   private final File file;
+
+   private final int windowSize;
+
+   public MappedLineReader(@NotNull final File file)
+      {
+      this(file, DEFAULT_WINDOW_SIZE);
+      }
+
+   public MappedLineReader(@NotNull final File file, final int windowSize)
+      {
+      this.file = file;
+      this.windowSize = windowSize;
+      }
+
+   public void read(@NotNull final LineProcessor lineProcessor)
+      {
+      try
+         {
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+         try
+            {
+            final FileChannel channel = randomAccessFile.getChannel();
+            lineProcessor.preProcess();
+            readLines(channel, 0, channel.size(), windowSize, lineProcessor);
+            lineProcessor.postProcess();
+            }
+         finally
+            {
+            randomAccessFile.close();
+            }
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException caught while trying to open file [" + file + "]", e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read file [" + file + "]", e);
+         }
+      }
+
+   /**
+    * Like {@link #read(LineProcessor)}, but only reads the lines between the given positions, the first of which must
+    * be the start of a line, and the second either the start of a line or the end of the file.
+    */
+   public void read(@NotNull final LineProcessor lineProcessor, final long startPosition, final long endPosition)
+      {
+      try
+         {
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+         try
+            {
+            final FileChannel channel = randomAccessFile.getChannel();
+            lineProcessor.preProcess();
+            readLines(channel, startPosition, Math.min(endPosition, channel.size()), windowSize, lineProcessor);
+            lineProcessor.postProcess();
+            }
+         finally
+            {
+            randomAccessFile.close();
+            }
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException caught while trying to open file [" + file + "]", e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read file [" + file + "]", e);
+         }
+      }
+
+   /**
+    * Like {@link #read(LineProcessor)}, but starts at the given position (which must be the start of a line), and stops
+    * after the last line feed in the file, so that a line which is still being written is left for next time.  Returns
+    * the position reached, which is where the next read should start, or -1 if the file couldn't be read.
+    */
+   public long read(@NotNull final LineProcessor lineProcessor, final long startPosition)
+      {
+      try
+         {
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+         try
+            {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long endPosition = findEndOfLastLine(channel, startPosition, channel.size());
+            lineProcessor.preProcess();
+            readLines(channel, startPosition, endPosition, windowSize, lineProcessor);
+            lineProcessor.postProcess();
+            return endPosition;
+            }
+         finally
+            {
+            randomAccessFile.close();
+            }
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException caught while trying to open file [" + file + "]", e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read file [" + file + "]", e);
+         }
+      return -1;
+      }
+
+   /** Returns the position just after the last line feed between <code>start</code> and <code>end</code>, or <code>start</code> if there isn't one. */
+   private static long findEndOfLastLine(@NotNull final FileChannel channel, final long start, final long end) throws IOException
+      {
+      final ByteBuffer buffer = ByteBuffer.allocate(INITIAL_LINE_BUFFER_SIZE);
+      long bufferEnd = end;
+      while (bufferEnd > start)
+         {
+         final long bufferStart = Math.max(start, bufferEnd - buffer.capacity());
+         buffer.clear();
+         buffer.limit((int)(bufferEnd - bufferStart));
+         while (buffer.hasRemaining() && channel.read(buffer, bufferStart + buffer.position()) > 0)
+            {
+            // keep reading until the buffer is full
+            }
+         for (int i = buffer.position() - 1; i >= 0; i--)
+            {
+            if (buffer.get(i) == '\n')
+               {
+               return bufferStart + i + 1;
+               }
+            }
+         bufferEnd = bufferStart;
+         }
+      return start;
+      }
+
+   /**
+    * Hands every line in the given byte range of the <code>channel</code> to the given {@link LineProcessor}, mapping at
+    * most <code>windowSize</code> bytes at a time (unless a single line is longer than that).  The <code>start</code>
+    * must be the beginning of a line, and <code>end</code> is treated as the end of the file, so the last line in the
+    * range need not have a terminator.  Does not call {@link LineProcessor#preProcess()} or
+    * {@link LineProcessor#postProcess()}.
+    */
+   static void readLines(@NotNull final FileChannel channel,
+                         final long start,
+                         final long end,
+                         final int windowSize,
+                         @NotNull final LineProcessor lineProcessor) throws IOException
+      {
+      final ByteLineProcessor byteLineProcessor = (lineProcessor instanceof ByteLineProcessor) ? (ByteLineProcessor)lineProcessor : null;
+
+      byte[] lineBuffer = new byte[INITIAL_LINE_BUFFER_SIZE];
+      boolean willSkipLineFeed = false;
+      long windowStart = start;
+      int mapSize = windowSize;
+
+      while (windowStart < end)
+         {
+         final int currentWindowSize = (int)Math.min(mapSize, end - windowStart);
+         final boolean isLastWindow = (windowStart + currentWindowSize == end);
+         final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, currentWindowSize);
+
+         int lineStart = 0;
+         for (int i = 0; i < currentWindowSize; i++)
+            {
+            final byte b = window.get(i);
+
+            // treat \n, \r and \r\n as line terminators, just like BufferedReader.readLine() does
+            if (b == '\n' && willSkipLineFeed)
+               {
+               lineStart = i + 1;
+               }
+            else if (b == '\n' || b == '\r')
+               {
+               final int length = i - lineStart;
+               if (lineBuffer.length < length)
+                  {
+                  lineBuffer = new byte[Math.max(length, lineBuffer.length * 2)];
+                  }
+               window.position(lineStart);
+               window.get(lineBuffer, 0, length);
+               handleLine(lineProcessor, byteLineProcessor, lineBuffer, 0, length);
+               lineStart = i + 1;
+               }
+            willSkipLineFeed = (b == '\r');
+            }
+
+         if (isLastWindow)
+            {
+            // the last line may not have a terminator
+            final int length = currentWindowSize - lineStart;
+            if (length > 0)
+               {
+               if (lineBuffer.length < length)
+                  {
+                  lineBuffer = new byte[length];
+                  }
+               window.position(lineStart);
+               window.get(lineBuffer, 0, length);
+               handleLine(lineProcessor, byteLineProcessor, lineBuffer, 0, length);
+               }
+            windowStart = end;
+            }
+         else if (lineStart == 0)
+            {
+            // the line is longer than the window, so try again with a bigger window
+            mapSize = (int)Math.min((long)mapSize * 2, Integer.MAX_VALUE);
+            }
+         else
+            {
+            // start the next window at the beginning of the partial line at the end of this one
+            windowStart += lineStart;
+            mapSize = windowSize;
+            }
+         }
+      }
+
+   /**
+    * Hands the given line to the {@link ByteLineProcessor} if there is one, otherwise decodes it (with the platform
+    * charset) and hands it to the {@link LineProcessor}.
+    */
+   static void handleLine(@NotNull final LineProcessor lineProcessor,
+                          final ByteLineProcessor byteLineProcessor,
+                          @NotNull final byte[] bytes,
+                          final int offset,
+                          final int length)
+      {
+      if (byteLineProcessor == null)
+         {
+         lineProcessor.processLine(new String(bytes, offset, length));
+         }
+      else
+         {
+         byteLineProcessor.processLine(bytes, offset, length);
+         }
+      }
+   }
@@ -0,0 +1,438 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Reads several log files (any of which may be gzipped) as if they were one.  For an Apache access log
+ * {@link BaseApacheLogLineProcessor}, the files are split into groups of the rotations of the same log (which never
+ * overlap in time), and a pool of worker threads (no more than there are processors) decompresses the files of each
+ * group in turn and parses their lines into {@link Event}s, so that decompression and parsing of different logs happen
+ * in parallel with each other and with the processing of the events.  The events of the different groups are then
+ * merged by time (using a heap keyed on the next event of each group, with ties going to the group which comes first)
+ * and handed to the processor on the calling thread.  At most a few thousand events per group are buffered ahead of the
+ * merge, so memory use doesn't depend on the size of the files, nor on how many times a log has been rotated.
+ * </p>
+ * <p>
+ * Any other {@link LineProcessor} simply gets the lines of each file in turn, in the order in which the files were
+ * given.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class MultiFileReader
+   {
+   private static final Logger LOG = Logger.getLogger(MultiFileReader.class);
+
+   private static final int NUM_EVENTS_PER_CHUNK = 1024;
+   private static final int MAX_PENDING_CHUNKS_PER_GROUP = 4;
+
+   @NotNull
+   private final List<File> files;
+
+   public MultiFileReader(@NotNull final List<File> files)
+      {
+      this.files = new ArrayList<File>(files);
+      }
+
+   public void read(@NotNull final LineProcessor lineProcessor)
+      {
+      if (lineProcessor instanceof BaseApacheLogLineProcessor)
+         {
+         readEvents((BaseApacheLogLineProcessor)lineProcessor);
+         }
+      else
+         {
+         readLines(lineProcessor);
+         }
+      }
+
+   private void readLines(@NotNull final LineProcessor lineProcessor)
+      {
+      final ByteLineProcessor byteLineProcessor = (lineProcessor instanceof ByteLineProcessor) ? (ByteLineProcessor)lineProcessor : null;
+      lineProcessor.preProcess();
+      for (final File file : files)
+         {
+         try
+            {
+            final InputStream inputStream = LogFiles.open(file);
+            try
+               {
+               final StreamLineReader streamLineReader = new StreamLineReader(inputStream);
+               while (streamLineReader.next())
+                  {
+                  MappedLineReader.handleLine(lineProcessor, byteLineProcessor, streamLineReader.getBuffer(), streamLineReader.getLineOffset(), streamLineReader.getLineLength());
+                  }
+               }
+            finally
+               {
+               inputStream.close();
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException caught while trying to read file [" + file + "]", e);
+            return;
+            }
+         }
+      lineProcessor.postProcess();
+      }
+
+   private void readEvents(@NotNull final BaseApacheLogLineProcessor lineProcessor)
+      {
+      final List<List<File>> groups = groupRotations(files);
+      final ExecutorService executor = Executors.newFixedThreadPool(Math.min(Math.max(groups.size(), 1), Runtime.getRuntime().availableProcessors()), new WorkerThreadFactory());
+      try
+         {
+         final List<GroupParser> groupParsers = new ArrayList<GroupParser>();
+         for (final List<File> group : groups)
+            {
+            final GroupParser groupParser = new GroupParser(group, lineProcessor, executor);
+            groupParsers.add(groupParser);
+            groupParser.schedule();
+            }
+
+         lineProcessor.preProcess();
+         final PriorityQueue<GroupCursor> heap = new PriorityQueue<GroupCursor>(Math.max(groups.size(), 1));
+         int numLines = 0;
+         for (int i = 0; i < groupParsers.size(); i++)
+            {
+            final GroupCursor cursor = new GroupCursor(groupParsers.get(i), i);
+            if (cursor.advance())
+               {
+               heap.add(cursor);
+               }
+            numLines += cursor.takeNumberOfLinesRead();
+            }
+
+         final List<Event> events = new ArrayList<Event>(NUM_EVENTS_PER_CHUNK);
+         while (!heap.isEmpty())
+            {
+            final GroupCursor cursor = heap.poll();
+            events.add(cursor.getCurrentEvent());
+            if (cursor.advance())
+               {
+               heap.add(cursor);
+               }
+            numLines += cursor.takeNumberOfLinesRead();
+
+            if (events.size() == NUM_EVENTS_PER_CHUNK)
+               {
+               lineProcessor.processParsedEvents(numLines, events);
+               events.clear();
+               numLines = 0;
+               }
+            }
+         lineProcessor.processParsedEvents(numLines, events);
+         lineProcessor.postProcess();
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read the files " + files, e);
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("InterruptedException caught while waiting for the files " + files + " to be parsed", e);
+         }
+      finally
+         {
+         executor.shutdownNow();
+         }
+      }
+
+   /**
+    * Splits the given files (which must be in the order returned by {@link LogFiles#find(List)}) into groups of the
+    * rotations of the same log, each in the order in which they were written.
+    */
+   @NotNull
+   private static List<List<File>> groupRotations(@NotNull final List<File> files)
+      {
+      final List<List<File>> groups = new ArrayList<List<File>>();
+      File previousBase = null;
+      for (final File file : files)
+         {
+         final File base = LogFiles.getRotationBase(file);
+         if (!base.equals(previousBase))
+            {
+            groups.add(new ArrayList<File>());
+            previousBase = base;
+            }
+         groups.get(groups.size() - 1).add(file);
+         }
+      return groups;
+      }
+
+   /** Creates daemon threads, so that an abandoned merge doesn't keep the JVM running. */
+   private static final class WorkerThreadFactory implements ThreadFactory
+      {
+      @NotNull
+      private final AtomicInteger numThreads = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(@NotNull final Runnable runnable)
+         {
+         final Thread thread = new Thread(runnable, "MultiFileReader-" + numThreads.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+         }
+      }
+
+   /** A chunk of events parsed from a group of files, or the end of the group (or the error which ended it). */
+   private static final class Chunk
+      {
+      @NotNull
+      private final List<Event> events;
+      private final int numLines;
+      private final boolean isEndOfGroup;
+      @Nullable
+      private final Throwable throwable;
+
+      private Chunk(@NotNull final List<Event> events, final int numLines, final boolean isEndOfGroup, @Nullable final Throwable throwable)
+         {
+         this.events = events;
+         this.numLines = numLines;
+         this.isEndOfGroup = isEndOfGroup;
+         this.throwable = throwable;
+         }
+      }
+
+   /**
+    * Decompresses and parses the files of a group, one after another, handing the events to the merge in chunks.  Each
+    * run on the pool parses a single chunk, and the parser is only rescheduled while its queue has room, so it never
+    * blocks a thread which another group's parser could be using.
+    */
+   private static final class GroupParser implements Runnable
+      {
+      @NotNull
+      private final List<File> files;
+
+      @NotNull
+      private final BaseApacheLogLineProcessor parser;
+
+      @NotNull
+      private final ExecutorService executor;
+
+      @NotNull
+      private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(MAX_PENDING_CHUNKS_PER_GROUP);
+
+      // Only used by the run in progress, and handed from one run to the next by the executor.
+      private int nextFileIndex = 0;
+      @Nullable
+      private File file = null;
+      @Nullable
+      private InputStream inputStream = null;
+      @Nullable
+      private StreamLineReader streamLineReader = null;
+
+      /** Whether a run is submitted or in progress, guarded by <code>this</code>. */
+      private boolean isScheduled = false;
+      private boolean isFinished = false;
+
+      private GroupParser(@NotNull final List<File> files, @NotNull final BaseApacheLogLineProcessor parser, @NotNull final ExecutorService executor)
+         {
+         this.files = files;
+         this.parser = parser;
+         this.executor = executor;
+         }
+
+      /** Submits a run, unless one is already submitted or in progress, or the group is finished, or its queue is full. */
+      private synchronized void schedule()
+         {
+         if (!isScheduled && !isFinished && chunks.remainingCapacity() > 0)
+            {
+            isScheduled = true;
+            try
+               {
+               executor.execute(this);
+               }
+            catch (RejectedExecutionException ignored)
+               {
+               // the merge has been abandoned, so just stop
+               }
+            }
+         }
+
+      @Override
+      public void run()
+         {
+         Chunk chunk;
+         try
+            {
+            chunk = parseChunk();
+            }
+         catch (Throwable t)
+            {
+            // anything (even an OutOfMemoryError) must still end the merge rather than leave it waiting forever
+            closeQuietly();
+            chunk = new Chunk(Collections.<Event>emptyList(), 0, true, t);
+            }
+
+         // there's always room, since a run is only scheduled when there is
+         chunks.add(chunk);
+         synchronized (this)
+            {
+            isScheduled = false;
+            isFinished = chunk.isEndOfGroup;
+            }
+         schedule();
+         }
+
+      @NotNull
+      private Chunk parseChunk() throws IOException
+         {
+         final List<Event> events = new ArrayList<Event>(NUM_EVENTS_PER_CHUNK);
+         int numLines = 0;
+         final PipelineMetrics.Recorder recorder = parser.createParsingRecorder();
+         try
+            {
+            while (events.size() < NUM_EVENTS_PER_CHUNK)
+               {
+               if (streamLineReader == null)
+                  {
+                  if (nextFileIndex == files.size())
+                     {
+                     return new Chunk(events, numLines, true, null);
+                     }
+                  file = files.get(nextFileIndex++);
+                  inputStream = LogFiles.open(file);
+                  streamLineReader = new StreamLineReader(inputStream);
+                  }
+
+               if (streamLineReader.next())
+                  {
+                  numLines++;
+                  final Event event = parser.parseEvent(streamLineReader.getBuffer(), streamLineReader.getLineOffset(), streamLineReader.getLineLength(), recorder);
+                  if (event != null)
+                     {
+                     events.add(event);
+                     }
+                  }
+               else
+                  {
+                  final InputStream finishedInputStream = inputStream;
+                  inputStream = null;
+                  streamLineReader = null;
+                  finishedInputStream.close();
+                  }
+               }
+            return new Chunk(events, numLines, false, null);
+            }
+         finally
+            {
+            if (recorder != null)
+               {
+               recorder.publish();
+               }
+            }
+         }
+
+      private void closeQuietly()
+         {
+         streamLineReader = null;
+         if (inputStream != null)
+            {
+            try
+               {
+               inputStream.close();
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException caught while trying to close file [" + file + "]", e);
+               }
+            inputStream = null;
+            }
+         }
+      }
+
+   /** Iterates over the events of a group of files, in the order in which the group's {@link GroupParser} produced them. */
+   private static final class GroupCursor implements Comparable<GroupCursor>
+      {
+      @NotNull
+      private final GroupParser groupParser;
+
+      private final int groupIndex;
+
+      @Nullable
+      private Chunk chunk = null;
+      private int eventIndex = 0;
+      private int numLinesRead = 0;
+
+      @Nullable
+      private Event currentEvent = null;
+
+      private GroupCursor(@NotNull final GroupParser groupParser, final int groupIndex)
+         {
+         this.groupParser = groupParser;
+         this.groupIndex = groupIndex;
+         }
+
+      /** Moves to the next event, returning <code>false</code> if there are no more. */
+      private boolean advance() throws IOException, InterruptedException
+         {
+         while (chunk == null || eventIndex >= chunk.events.size())
+            {
+            if (chunk != null && chunk.isEndOfGroup)
+               {
+               currentEvent = null;
+               return false;
+               }
+            chunk = groupParser.chunks.take();
+            groupParser.schedule();
+            eventIndex = 0;
+            numLinesRead += chunk.numLines;
+            if (chunk.throwable instanceof Error)
+               {
+               throw (Error)chunk.throwable;
+               }
+            if (chunk.throwable != null)
+               {
+               // e.g. a malformed event time
+               throw new IOException("Failed to read file [" + groupParser.file + "]", chunk.throwable);
+               }
+            }
+         currentEvent = chunk.events.get(eventIndex++);
+         return true;
+         }
+
+      @NotNull
+      private Event getCurrentEvent()
+         {
+         return currentEvent;
+         }
+
+      /** Returns the number of lines read since the last call, so that the line count can be passed on with the events. */
+      private int takeNumberOfLinesRead()
+         {
+         final int numLines = numLinesRead;
+         numLinesRead = 0;
+         return numLines;
+         }
+
+      @Override
+      public int compareTo(final GroupCursor that)
+         {
+         final int comparison = currentEvent.compareTo(that.currentEvent);
+         if (comparison != 0)
+            {
+            return comparison;
+            }
+         return (groupIndex < that.groupIndex) ? -1 : ((groupIndex == that.groupIndex) ? 0 : 1);
+         }
+      }
+   }
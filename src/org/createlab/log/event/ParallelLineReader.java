@@ -0,0 +1,258 @@
+package org.createlab.log.event;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads a file with a pool of worker threads by splitting it into chunks of roughly <code>chunkSize</code> bytes, each
+ * of which ends just after a line feed.  Each worker memory-maps its chunk and parses the lines into {@link Event}s
+ * with {@link BaseApacheLogLineProcessor#parseEvent(byte[], int, int)}.  The parsed chunks are handed back to the
+ * {@link BaseApacheLogLineProcessor} on the calling thread, in file order, so the processor sees exactly the same
+ * sequence of events it would have seen had the file been read serially.  At most two chunks per thread are in flight
+ * at any one time, so memory use doesn't depend on the size of the file.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class ParallelLineReader
+   {
+   private static final Logger LOG = Logger.getLogger(ParallelLineReader.class);
+
+   public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+   private static final int MAX_PENDING_CHUNKS_PER_THREAD = 2;
+   private static final int BOUNDARY_SEARCH_BUFFER_SIZE = 4096;
+
+   @NotNull
+   private final File file;
+
+   private final int numThreads;
+
+   private final int chunkSize;
+
+   public ParallelLineReader(@NotNull final File file, final int numThreads)
+      {
+      this(file, numThreads, DEFAULT_CHUNK_SIZE);
+      }
+
+   public ParallelLineReader(@NotNull final File file, final int numThreads, final int chunkSize)
+      {
+      this.file = file;
+      this.numThreads = numThreads;
+      this.chunkSize = chunkSize;
+      }
+
+   public void read(@NotNull final BaseApacheLogLineProcessor lineProcessor)
+      {
+      final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try
+         {
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+         try
+            {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long fileSize = channel.size();
+            final int maxPendingChunks = numThreads * MAX_PENDING_CHUNKS_PER_THREAD;
+            final LinkedList<Future<ParsedChunk>> pendingChunks = new LinkedList<Future<ParsedChunk>>();
+
+            lineProcessor.preProcess();
+            long chunkStart = 0;
+            while (chunkStart < fileSize || !pendingChunks.isEmpty())
+               {
+               // keep the workers busy
+               while (chunkStart < fileSize && pendingChunks.size() < maxPendingChunks)
+                  {
+                  final long chunkEnd = findChunkEnd(channel, chunkStart + chunkSize, fileSize);
+                  pendingChunks.add(executor.submit(new ChunkParser(channel, chunkStart, chunkEnd, lineProcessor)));
+                  chunkStart = chunkEnd;
+                  }
+
+               // hand the oldest chunk to the line processor, waiting for it to finish if necessary
+               final ParsedChunk parsedChunk = pendingChunks.removeFirst().get();
+               lineProcessor.processParsedEvents(parsedChunk.getNumberOfLinesProcessed(), parsedChunk.getEvents());
+               }
+            lineProcessor.postProcess();
+            }
+         finally
+            {
+            randomAccessFile.close();
+            }
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException caught while trying to open file [" + file + "]", e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException caught while trying to read file [" + file + "]", e);
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("InterruptedException caught while waiting for a chunk of file [" + file + "] to be parsed", e);
+         }
+      catch (ExecutionException e)
+         {
+         // fail just as a serial read would have
+         final Throwable cause = e.getCause();
+         if (cause instanceof RuntimeException)
+            {
+            throw (RuntimeException)cause;
+            }
+         if (cause instanceof Error)
+            {
+            throw (Error)cause;
+            }
+         LOG.error("Exception caught while parsing a chunk of file [" + file + "]", cause);
+         }
+      finally
+         {
+         executor.shutdownNow();
+         }
+      }
+
+   /**
+    * Returns the position just after the first line feed at or after <code>position</code> - 1, or the
+    * <code>fileSize</code> if there isn't one.  Ending chunks after a line feed guarantees that every chunk starts at
+    * the beginning of a line, and that a \r\n pair is never split across two chunks.
+    */
+   private static long findChunkEnd(@NotNull final FileChannel channel, final long position, final long fileSize) throws IOException
+      {
+      if (position >= fileSize)
+         {
+         return fileSize;
+         }
+
+      final ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SEARCH_BUFFER_SIZE);
+      long bufferStart = position - 1;
+      while (bufferStart < fileSize)
+         {
+         buffer.clear();
+         final int numBytesRead = channel.read(buffer, bufferStart);
+         if (numBytesRead <= 0)
+            {
+            break;
+            }
+         for (int i = 0; i < numBytesRead; i++)
+            {
+            if (buffer.get(i) == '\n')
+               {
+               return bufferStart + i + 1;
+               }
+            }
+         bufferStart += numBytesRead;
+         }
+      return fileSize;
+      }
+
+   private static final class ChunkParser implements Callable<ParsedChunk>
+      {
+      @NotNull
+      private final FileChannel channel;
+      private final long start;
+      private final long end;
+      @NotNull
+      private final BaseApacheLogLineProcessor parser;
+
+      private ChunkParser(@NotNull final FileChannel channel, final long start, final long end, @NotNull final BaseApacheLogLineProcessor parser)
+         {
+         this.channel = channel;
+         this.start = start;
+         this.end = end;
+         this.parser = parser;
+         }
+
+      @Override
+      public ParsedChunk call() throws IOException
+         {
+         final ParsedChunk parsedChunk = new ParsedChunk(parser);
+         MappedLineReader.readLines(channel, start, end, (int)Math.min(end - start, MappedLineReader.DEFAULT_WINDOW_SIZE), parsedChunk);
+         parsedChunk.publishMetrics();
+         return parsedChunk;
+         }
+      }
+
+   /** Collects the events parsed from a single chunk.  Only ever used by one thread at a time. */
+   private static final class ParsedChunk implements ByteLineProcessor
+      {
+      @NotNull
+      private final BaseApacheLogLineProcessor parser;
+
+      @NotNull
+      private final List<Event> events = new ArrayList<Event>();
+
+      private int numLines = 0;
+
+      @Nullable
+      private final PipelineMetrics.Recorder recorder;
+
+      private ParsedChunk(@NotNull final BaseApacheLogLineProcessor parser)
+         {
+         this.parser = parser;
+         this.recorder = parser.createParsingRecorder();
+         }
+
+      @Override
+      public void processLine(@NotNull final byte[] bytes, final int offset, final int length)
+         {
+         numLines++;
+         final Event event = parser.parseEvent(bytes, offset, length, recorder);
+         if (event != null)
+            {
+            events.add(event);
+            }
+         }
+
+      @Override
+      public void processLine(@NotNull final String line)
+         {
+         final byte[] bytes = line.getBytes();
+         processLine(bytes, 0, bytes.length);
+         }
+
+      @Override
+      public void preProcess()
+         {
+         // nothing to do
+         }
+
+      @Override
+      public void postProcess()
+         {
+         // nothing to do
+         }
+
+      @Override
+      public int getNumberOfLinesProcessed()
+         {
+         return numLines;
+         }
+
+      private void publishMetrics()
+         {
+         if (recorder != null)
+            {
+            recorder.publish();
+            }
+         }
+
+      @NotNull
+      private List<Event> getEvents()
+         {
+         return events;
+         }
+      }
+   }
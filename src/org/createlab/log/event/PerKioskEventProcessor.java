@@ -0,0 +1,251 @@
+package org.createlab.log.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * An {@link EventProcessor} which demultiplexes the events of several kiosks sharing an Apache server, handing each
+ * kiosk's events (see {@link Event#getKiosk()}) to its own {@link EventProcessor}, which is created the first time the
+ * kiosk is seen.  A single processor would mix the kiosks up, e.g. taking one kiosk's idle screen as the end of another
+ * kiosk's session.  Events which don't say which kiosk sent them go to the {@link KioskKey#UNKNOWN_KIOSK unknown} kiosk.
+ * </p>
+ * <p>
+ * The kiosks' processors run concurrently, on a fixed pool of threads shared by all of them, so dozens of kiosks don't
+ * need dozens of threads.  Events are handed over in batches, and each kiosk's batches are processed one at a time, in
+ * order, so each processor sees its kiosk's events in the order in which they were given, just as if it were the only
+ * one.  The number of batches waiting to be processed is bounded, so once the processors fall too far behind, whoever is
+ * giving them events waits for them to catch up.  {@link #afterProcessingAnyEvents()} waits for them all to finish, and
+ * then calls {@link EventProcessor#afterProcessingAnyEvents()} for each kiosk on the calling thread, in order of kiosk,
+ * so any summaries they print come out in the same order every time.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class PerKioskEventProcessor implements EventProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(PerKioskEventProcessor.class);
+
+   private static final int NUM_EVENTS_PER_BATCH = 1024;
+   private static final int MAX_PENDING_BATCHES_PER_THREAD = 8;
+
+   /** The number of batches a kiosk processes before letting the other kiosks have its thread. */
+   private static final int MAX_BATCHES_PER_TURN = 4;
+
+   /** Creates the processor for each kiosk. */
+   interface Factory
+      {
+      @NotNull
+      EventProcessor create(@NotNull final String kiosk);
+      }
+
+   @NotNull
+   private final Factory factory;
+
+   private final int numThreads;
+
+   /** Only ever touched by the thread giving us the events. */
+   @NotNull
+   private final Map<String, Kiosk> kiosks = new HashMap<String, Kiosk>();
+
+   @Nullable
+   private ExecutorService executor = null;
+
+   /** One permit for each batch which may be waiting to be processed. */
+   @NotNull
+   private final Semaphore pendingBatchPermits;
+
+   private final int maxPendingBatches;
+
+   /** Creates a processor which creates each kiosk's processor with the given factory, and runs them on <code>numThreads</code> threads. */
+   PerKioskEventProcessor(@NotNull final Factory factory, final int numThreads)
+      {
+      this.factory = factory;
+      this.numThreads = numThreads;
+      maxPendingBatches = numThreads * MAX_PENDING_BATCHES_PER_THREAD;
+      pendingBatchPermits = new Semaphore(maxPendingBatches);
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      kiosks.clear();
+      final AtomicInteger numThreadsCreated = new AtomicInteger(0);
+      executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+      {
+      @Override
+      public Thread newThread(@NotNull final Runnable runnable)
+         {
+         final Thread thread = new Thread(runnable, "PerKioskEventProcessor-" + numThreadsCreated.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+         }
+      });
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      final String name = (event.getKiosk() == null) ? KioskKey.UNKNOWN_KIOSK : event.getKiosk();
+      Kiosk kiosk = kiosks.get(name);
+      if (kiosk == null)
+         {
+         kiosk = new Kiosk(name, factory.create(name));
+         kiosk.eventProcessor.beforeProcessingAnyEvents();
+         kiosks.put(name, kiosk);
+         }
+      kiosk.add(event);
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      for (final Kiosk kiosk : kiosks.values())
+         {
+         kiosk.dispatchBatch();
+         }
+
+      // once all the permits are back, every batch has been processed
+      pendingBatchPermits.acquireUninterruptibly(maxPendingBatches);
+      pendingBatchPermits.release(maxPendingBatches);
+      executor.shutdown();
+      try
+         {
+         executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("InterruptedException while waiting for the kiosks' threads to finish", e);
+         Thread.currentThread().interrupt();
+         }
+      executor = null;
+
+      for (final Kiosk kiosk : new TreeMap<String, Kiosk>(kiosks).values())
+         {
+         System.out.println("Found [" + kiosk.numEvents + "] events for kiosk [" + kiosk.name + "]");
+         if (kiosk.failure == null)
+            {
+            kiosk.eventProcessor.afterProcessingAnyEvents();
+            }
+         else
+            {
+            System.err.println("ERROR: Processing the events of kiosk [" + kiosk.name + "] failed, so its output is incomplete: " + kiosk.failure);
+            }
+         }
+      }
+
+   /**
+    * A kiosk's processor and the batches of events waiting for it.  Whenever it has batches waiting, it's scheduled to
+    * run on one of the threads (but never more than one at once), where it processes them in order.
+    */
+   private final class Kiosk implements Runnable
+      {
+      @NotNull
+      private final String name;
+
+      @NotNull
+      private final EventProcessor eventProcessor;
+
+      /** The batch being filled, which is only touched by the thread giving us the events. */
+      @NotNull
+      private List<Event> batch = new ArrayList<Event>(NUM_EVENTS_PER_BATCH);
+
+      private int numEvents = 0;
+
+      @NotNull
+      private final ConcurrentLinkedQueue<List<Event>> pendingBatches = new ConcurrentLinkedQueue<List<Event>>();
+
+      @NotNull
+      private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+      /** Only read once all the batches have been processed. */
+      @Nullable
+      private volatile Throwable failure = null;
+
+      private Kiosk(@NotNull final String name, @NotNull final EventProcessor eventProcessor)
+         {
+         this.name = name;
+         this.eventProcessor = eventProcessor;
+         }
+
+      private void add(@NotNull final Event event)
+         {
+         numEvents++;
+         batch.add(event);
+         if (batch.size() == NUM_EVENTS_PER_BATCH)
+            {
+            dispatchBatch();
+            }
+         }
+
+      /** Hands the current batch to the kiosk's thread, first waiting for a permit if too many batches are pending. */
+      private void dispatchBatch()
+         {
+         if (!batch.isEmpty())
+            {
+            pendingBatchPermits.acquireUninterruptibly();
+            pendingBatches.add(batch);
+            batch = new ArrayList<Event>(NUM_EVENTS_PER_BATCH);
+            schedule();
+            }
+         }
+
+      private void schedule()
+         {
+         if (isScheduled.compareAndSet(false, true))
+            {
+            executor.execute(this);
+            }
+         }
+
+      @Override
+      public void run()
+         {
+         for (int i = 0; i < MAX_BATCHES_PER_TURN; i++)
+            {
+            final List<Event> events = pendingBatches.poll();
+            if (events == null)
+               {
+               break;
+               }
+            if (failure == null)
+               {
+               try
+                  {
+                  for (final Event event : events)
+                     {
+                     eventProcessor.processEvent(event);
+                     }
+                  }
+               catch (Throwable t)
+                  {
+                  LOG.error("Throwable caught while processing the events of kiosk [" + name + "]", t);
+                  failure = t;
+                  }
+               }
+            pendingBatchPermits.release();
+            }
+
+         // a batch may have been added after we stopped looking, but before we were unscheduled
+         isScheduled.set(false);
+         if (!pendingBatches.isEmpty())
+            {
+            schedule();
+            }
+         }
+      }
+   }
@@ -0,0 +1,693 @@
+package org.createlab.log.event;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Counts the lines, bytes and events of a run, and how long each stage of the pipeline takes, and publishes them as an
+ * MXBean (see {@link PipelineMetricsMXBean}) and, optionally, as a progress line printed every few seconds.
+ * </p>
+ * <p>
+ * The counting is cheap enough to always be left on.  Each thread which reads lines or events counts them in its own
+ * {@link Recorder}, in plain fields, and only adds them to the shared (atomic) counters every
+ * {@link #SAMPLE_INTERVAL} lines or so.  Rather than reading the clock several times for every line, the stages are only
+ * timed for one line in every {@link #SAMPLE_INTERVAL} (on average), and the totals are estimated from that sample.
+ * Likewise for the time spent writing the event log (see {@link #timeWrites(EventProcessor)}).  The lines between
+ * samples are counted at random, so that the sample can't fall into step with any pattern in the log, such as a kiosk
+ * which always sends the same few events in the same order.  The exception is events which are handed over in
+ * batches, e.g. by the {@link ParallelLineReader}, whose processing is timed one batch at a time instead.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class PipelineMetrics implements PipelineMetricsMXBean
+   {
+   private static final Logger LOG = Logger.getLogger(PipelineMetrics.class);
+
+   static final String OBJECT_NAME = "org.createlab.log.event:type=PipelineMetrics";
+
+   /** On average, one line (or written event) in every this many is timed, and the counts are published this often. */
+   static final int SAMPLE_INTERVAL = 16;
+
+   private static final double NANOS_PER_SECOND = 1000000000.0;
+   private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+   /** The stages of the pipeline which are timed. */
+   enum Stage
+      {
+      READ("read"),
+      PARSE("parse"),
+      EVENT_BUILD("event build"),
+      EVENT_PROCESSOR("event processor"),
+      WRITE("write");
+
+      @NotNull
+      private final String name;
+
+      private Stage(@NotNull final String name)
+         {
+         this.name = name;
+         }
+
+      @Override
+      public String toString()
+         {
+         return name;
+         }
+      }
+
+   private final long startNanos = System.nanoTime();
+
+   @NotNull
+   private final AtomicLong numLines = new AtomicLong(0);
+
+   @NotNull
+   private final AtomicLong numBytes = new AtomicLong(0);
+
+   @NotNull
+   private final AtomicLong numMatchedLines = new AtomicLong(0);
+
+   /** The estimated total time spent in each stage, indexed by {@link Stage#ordinal()}. */
+   @NotNull
+   private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+
+   @NotNull
+   private final ConcurrentMap<String, AtomicLong> countsByType = new ConcurrentHashMap<String, AtomicLong>();
+
+   private volatile long totalBytes = -1;
+
+   @Nullable
+   private ObjectName objectName = null;
+
+   private boolean isUnregistered = false;
+
+   @Nullable
+   private ScheduledExecutorService progressReporter = null;
+
+   // Where the previous progress line left off, so that it can show the current rates.  Only touched by the reporter.
+   private long previousReportNanos = startNanos;
+   private long previousReportNumLines = 0;
+   private long previousReportNumBytes = 0;
+
+   /** Sets the number of bytes there are to read in total, or -1 if that isn't known. */
+   void setTotalBytes(final long totalBytes)
+      {
+      this.totalBytes = totalBytes;
+      }
+
+   /**
+    * Creates a recorder for a single thread to count lines and events with.  If <code>isProcessingLines</code> is
+    * <code>false</code>, the thread only parses the lines, and their events are processed elsewhere.
+    */
+   @NotNull
+   Recorder createRecorder(final boolean isProcessingLines)
+      {
+      return new Recorder(isProcessingLines);
+      }
+
+   /** Returns a processor which passes the events on to the given event log writer, recording how long it takes. */
+   @NotNull
+   EventProcessor timeWrites(@NotNull final EventProcessor eventLogWriter)
+      {
+      return new WriteTimingEventProcessor(eventLogWriter);
+      }
+
+   /**
+    * Registers these metrics with the platform MBean server, under {@link #OBJECT_NAME}.  That's done on a daemon thread,
+    * since starting up the MBean server takes a few hundred milliseconds, which there's no need for the run to wait for.
+    */
+   void register()
+      {
+      final Thread registrationThread = new Thread(new Runnable()
+      {
+      @Override
+      public void run()
+         {
+         registerNow();
+         }
+      }, "PipelineMetrics-registration");
+      registrationThread.setDaemon(true);
+      registrationThread.start();
+      }
+
+   private synchronized void registerNow()
+      {
+      if (isUnregistered)
+         {
+         // the run finished before the MBean server was even up
+         return;
+         }
+      try
+         {
+         final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+         final ObjectName name = new ObjectName(OBJECT_NAME);
+         mBeanServer.registerMBean(this, name);
+         objectName = name;
+         }
+      catch (JMException e)
+         {
+         LOG.error("JMException while trying to register the MBean [" + OBJECT_NAME + "]", e);
+         }
+      }
+
+   synchronized void unregister()
+      {
+      isUnregistered = true;
+      if (objectName != null)
+         {
+         try
+            {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+         catch (JMException e)
+            {
+            LOG.error("JMException while trying to unregister the MBean [" + objectName + "]", e);
+            }
+         objectName = null;
+         }
+      }
+
+   /** Prints a progress line to stderr every <code>intervalInSeconds</code> seconds, until {@link #stopReporting()} is called. */
+   void startReporting(final int intervalInSeconds)
+      {
+      progressReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+      @Override
+      public Thread newThread(@NotNull final Runnable runnable)
+         {
+         final Thread thread = new Thread(runnable, "PipelineMetrics-progress");
+         thread.setDaemon(true);
+         return thread;
+         }
+      });
+      progressReporter.scheduleAtFixedRate(new Runnable()
+      {
+      @Override
+      public void run()
+         {
+         System.err.println(formatProgress());
+         }
+      }, intervalInSeconds, intervalInSeconds, TimeUnit.SECONDS);
+      }
+
+   /** Stops printing the progress line, and prints a final one, along with the time spent in each stage. */
+   void stopReporting()
+      {
+      if (progressReporter != null)
+         {
+         progressReporter.shutdown();
+         try
+            {
+            progressReporter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("InterruptedException while waiting for the progress reporter to stop", e);
+            Thread.currentThread().interrupt();
+            }
+         progressReporter = null;
+
+         // the final line shows the rates of the whole run
+         previousReportNanos = startNanos;
+         previousReportNumLines = 0;
+         previousReportNumBytes = 0;
+         System.err.println(formatProgress());
+         final StringBuilder sb = new StringBuilder("PROGRESS: Time per line:");
+         for (final Stage stage : Stage.values())
+            {
+            sb.append(stage == Stage.READ ? " " : ", ").append(stage).append(' ').append(Math.round(getNanosPerLine(stage))).append(" ns");
+            }
+         System.err.println(sb);
+         }
+      }
+
+   /** Returns the progress line, with the rates since the previous one.  Only called by the reporter (or once it has stopped). */
+   @NotNull
+   private String formatProgress()
+      {
+      final long now = System.nanoTime();
+      final long lines = numLines.get();
+      final long bytes = numBytes.get();
+      final double seconds = Math.max(now - previousReportNanos, 1) / NANOS_PER_SECOND;
+      final StringBuilder sb = new StringBuilder("PROGRESS: ");
+      sb.append(lines).append(" lines");
+      final double percentDone = getPercentDone();
+      if (percentDone >= 0)
+         {
+         sb.append(String.format(" (%.1f%%", percentDone));
+         final long secondsRemaining = getEstimatedSecondsRemaining();
+         if (secondsRemaining >= 0)
+            {
+            sb.append(String.format(", ETA %d:%02d:%02d", secondsRemaining / 3600, (secondsRemaining / 60) % 60, secondsRemaining % 60));
+            }
+         sb.append(')');
+         }
+      sb.append(", ").append(Math.round((lines - previousReportNumLines) / seconds)).append(" lines/s");
+      sb.append(String.format(", %.1f MB/s", (bytes - previousReportNumBytes) / seconds / BYTES_PER_MEGABYTE));
+      final long matchedLines = numMatchedLines.get();
+      sb.append(", ").append(matchedLines).append(" matched, ").append(Math.max(lines - matchedLines, 0)).append(" not matched");
+      previousReportNanos = now;
+      previousReportNumLines = lines;
+      previousReportNumBytes = bytes;
+      return sb.toString();
+      }
+
+   @NotNull
+   private AtomicLong getCountOfType(@NotNull final String type)
+      {
+      final AtomicLong count = countsByType.get(type);
+      if (count != null)
+         {
+         return count;
+         }
+      final AtomicLong newCount = new AtomicLong(0);
+      final AtomicLong existingCount = countsByType.putIfAbsent(type, newCount);
+      return (existingCount == null) ? newCount : existingCount;
+      }
+
+   private double getNanosPerLine(@NotNull final Stage stage)
+      {
+      final long lines = numLines.get();
+      return (lines == 0) ? 0 : (double)stageNanos.get(stage.ordinal()) / lines;
+      }
+
+   private double getElapsedSeconds()
+      {
+      return Math.max(System.nanoTime() - startNanos, 1) / NANOS_PER_SECOND;
+      }
+
+   @Override
+   public long getElapsedMillis()
+      {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      }
+
+   @Override
+   public long getLinesRead()
+      {
+      return numLines.get();
+      }
+
+   @Override
+   public long getBytesRead()
+      {
+      return numBytes.get();
+      }
+
+   @Override
+   public long getTotalBytes()
+      {
+      return totalBytes;
+      }
+
+   @Override
+   public long getMatchedLines()
+      {
+      return numMatchedLines.get();
+      }
+
+   @Override
+   public long getNonMatchedLines()
+      {
+      // the lines are counted when they're read, but (when parsed in parallel) the events only once they're processed
+      return Math.max(numLines.get() - numMatchedLines.get(), 0);
+      }
+
+   @Override
+   public double getLinesPerSecond()
+      {
+      return numLines.get() / getElapsedSeconds();
+      }
+
+   @Override
+   public double getBytesPerSecond()
+      {
+      return numBytes.get() / getElapsedSeconds();
+      }
+
+   @Override
+   public double getPercentDone()
+      {
+      final long total = totalBytes;
+      return (total <= 0) ? -1 : Math.min(100.0 * numBytes.get() / total, 100.0);
+      }
+
+   @Override
+   public long getEstimatedSecondsRemaining()
+      {
+      final long total = totalBytes;
+      final double bytesPerSecond = getBytesPerSecond();
+      if (total <= 0 || bytesPerSecond <= 0)
+         {
+         return -1;
+         }
+      return Math.round(Math.max(total - numBytes.get(), 0) / bytesPerSecond);
+      }
+
+   @Override
+   public Map<String, Long> getEventCountsByType()
+      {
+      final Map<String, Long> counts = new TreeMap<String, Long>();
+      for (final Map.Entry<String, AtomicLong> entry : countsByType.entrySet())
+         {
+         counts.put(entry.getKey(), entry.getValue().get());
+         }
+      return counts;
+      }
+
+   @Override
+   public double getReadNanosPerLine()
+      {
+      return getNanosPerLine(Stage.READ);
+      }
+
+   @Override
+   public double getParseNanosPerLine()
+      {
+      return getNanosPerLine(Stage.PARSE);
+      }
+
+   @Override
+   public double getEventBuildNanosPerLine()
+      {
+      return getNanosPerLine(Stage.EVENT_BUILD);
+      }
+
+   @Override
+   public double getEventProcessorNanosPerLine()
+      {
+      return getNanosPerLine(Stage.EVENT_PROCESSOR);
+      }
+
+   @Override
+   public double getWriteNanosPerLine()
+      {
+      return getNanosPerLine(Stage.WRITE);
+      }
+
+   /**
+    * <p>
+    * Counts the lines and events seen by a single thread, and times the stages of every {@link #SAMPLE_INTERVAL}th line,
+    * adding them all to the metrics on every such line (and whenever {@link #publish()} is called).  For each line,
+    * {@link #startLine(int)}, {@link #endParse()} and {@link #endLine()} must be called in that order, with
+    * {@link #startEventBuild()} called (by the {@link EventRequestScanner}) in between the first two if the line
+    * contains an event, and {@link #recordEvent(Event, SupportedEventTypes)} called for that event.
+    * </p>
+    * <p>
+    * The time to read a line is the time between the end of the previous line and the start of this one, so it's timed
+    * for the line after each sampled one.
+    * </p>
+    */
+   final class Recorder
+      {
+      private final boolean isProcessingLines;
+
+      @NotNull
+      private final Sampler sampler = new Sampler();
+
+      private boolean isSampling = false;
+      private long sampleWeight = 0;
+      private long previousSampleWeight = 0;
+      private boolean isBuildingEvent = false;
+      private boolean wasPreviousLineSampled = false;
+      private long lineStartNanos = 0;
+      private long eventBuildStartNanos = 0;
+      private long processingStartNanos = 0;
+      private long previousLineEndNanos = 0;
+
+      private long numLinesToPublish = 0;
+      private long numBytesToPublish = 0;
+      private long numMatchedLinesToPublish = 0;
+
+      @NotNull
+      private final long[] stageNanosToPublish = new long[Stage.values().length];
+
+      /** The types whose IDs index the counts below, or <code>null</code> if none have been seen yet. */
+      @Nullable
+      private SupportedEventTypes supportedEventTypes = null;
+
+      @NotNull
+      private long[] countsByTypeIdToPublish = new long[0];
+
+      @NotNull
+      private AtomicLong[] countsByTypeId = new AtomicLong[0];
+
+      /** The counts of the types without an ID. */
+      @NotNull
+      private final Map<String, long[]> countsByOtherTypeToPublish = new HashMap<String, long[]>();
+
+      private Recorder(final boolean isProcessingLines)
+         {
+         this.isProcessingLines = isProcessingLines;
+         }
+
+      /** Counts a line of the given number of bytes (including its terminator), and starts timing it if it's sampled. */
+      void startLine(final int numBytes)
+         {
+         numLinesToPublish++;
+         numBytesToPublish += numBytes;
+         if (wasPreviousLineSampled)
+            {
+            wasPreviousLineSampled = false;
+            stageNanosToPublish[Stage.READ.ordinal()] += (System.nanoTime() - previousLineEndNanos) * previousSampleWeight;
+            }
+         if (sampler.isNextSampled())
+            {
+            isSampling = true;
+            sampleWeight = sampler.getWeight();
+            isBuildingEvent = false;
+            lineStartNanos = System.nanoTime();
+            }
+         }
+
+      /** Marks the end of parsing the line and the start of building its event. */
+      void startEventBuild()
+         {
+         if (isSampling)
+            {
+            isBuildingEvent = true;
+            eventBuildStartNanos = System.nanoTime();
+            }
+         }
+
+      /** Marks the end of parsing the line (and building its event), and the start of processing the event. */
+      void endParse()
+         {
+         if (isSampling)
+            {
+            final long now = System.nanoTime();
+            if (isBuildingEvent)
+               {
+               stageNanosToPublish[Stage.PARSE.ordinal()] += (eventBuildStartNanos - lineStartNanos) * sampleWeight;
+               stageNanosToPublish[Stage.EVENT_BUILD.ordinal()] += (now - eventBuildStartNanos) * sampleWeight;
+               }
+            else
+               {
+               stageNanosToPublish[Stage.PARSE.ordinal()] += (now - lineStartNanos) * sampleWeight;
+               }
+            processingStartNanos = now;
+            }
+         }
+
+      /** Counts the given event, which was found in a line. */
+      void recordEvent(@NotNull final Event event, @Nullable final SupportedEventTypes supportedEventTypes)
+         {
+         numMatchedLinesToPublish++;
+         if (supportedEventTypes != null)
+            {
+            if (supportedEventTypes != this.supportedEventTypes)
+               {
+               publish();
+               this.supportedEventTypes = supportedEventTypes;
+               countsByTypeIdToPublish = new long[supportedEventTypes.getNumberOfEventTypes()];
+               countsByTypeId = new AtomicLong[countsByTypeIdToPublish.length];
+               }
+            final int typeId = event.getTypeId(supportedEventTypes);
+            if (typeId >= 0 && typeId < countsByTypeIdToPublish.length)
+               {
+               countsByTypeIdToPublish[typeId]++;
+               return;
+               }
+            }
+         final long[] count = countsByOtherTypeToPublish.get(event.getType());
+         if (count == null)
+            {
+            countsByOtherTypeToPublish.put(event.getType(), new long[]{1});
+            }
+         else
+            {
+            count[0]++;
+            }
+         }
+
+      /** Marks the end of the line, and publishes the counts if it was sampled. */
+      void endLine()
+         {
+         if (isSampling)
+            {
+            isSampling = false;
+            if (isProcessingLines)
+               {
+               stageNanosToPublish[Stage.EVENT_PROCESSOR.ordinal()] += (System.nanoTime() - processingStartNanos) * sampleWeight;
+               }
+            publish();
+            wasPreviousLineSampled = true;
+            previousSampleWeight = sampleWeight;
+            previousLineEndNanos = System.nanoTime();
+            }
+         }
+
+      /** Adds the time spent processing a batch of events (which isn't sampled, since it's only timed once per batch). */
+      void addEventProcessorNanos(final long nanos)
+         {
+         stageNanosToPublish[Stage.EVENT_PROCESSOR.ordinal()] += nanos;
+         }
+
+      /** Adds everything counted since the last time to the metrics. */
+      void publish()
+         {
+         numLines.addAndGet(numLinesToPublish);
+         numBytes.addAndGet(numBytesToPublish);
+         numMatchedLines.addAndGet(numMatchedLinesToPublish);
+         numLinesToPublish = 0;
+         numBytesToPublish = 0;
+         numMatchedLinesToPublish = 0;
+         for (int i = 0; i < stageNanosToPublish.length; i++)
+            {
+            if (stageNanosToPublish[i] != 0)
+               {
+               stageNanos.addAndGet(i, stageNanosToPublish[i]);
+               stageNanosToPublish[i] = 0;
+               }
+            }
+         for (int typeId = 0; typeId < countsByTypeIdToPublish.length; typeId++)
+            {
+            if (countsByTypeIdToPublish[typeId] != 0)
+               {
+               if (countsByTypeId[typeId] == null)
+                  {
+                  countsByTypeId[typeId] = getCountOfType(supportedEventTypes.getName(typeId));
+                  }
+               countsByTypeId[typeId].addAndGet(countsByTypeIdToPublish[typeId]);
+               countsByTypeIdToPublish[typeId] = 0;
+               }
+            }
+         for (final Map.Entry<String, long[]> entry : countsByOtherTypeToPublish.entrySet())
+            {
+            if (entry.getValue()[0] != 0)
+               {
+               getCountOfType(entry.getKey()).addAndGet(entry.getValue()[0]);
+               entry.getValue()[0] = 0;
+               }
+            }
+         }
+      }
+
+   /**
+    * Times a sample of the events written to the event log, and all of opening and closing it.  Events are only ever
+    * given to it by one thread at a time.
+    */
+   private final class WriteTimingEventProcessor implements EventProcessor
+      {
+      @NotNull
+      private final EventProcessor eventLogWriter;
+
+      @NotNull
+      private final Sampler sampler = new Sampler();
+
+      private WriteTimingEventProcessor(@NotNull final EventProcessor eventLogWriter)
+         {
+         this.eventLogWriter = eventLogWriter;
+         }
+
+      @Override
+      public void beforeProcessingAnyEvents()
+         {
+         final long startNanos = System.nanoTime();
+         eventLogWriter.beforeProcessingAnyEvents();
+         stageNanos.addAndGet(Stage.WRITE.ordinal(), System.nanoTime() - startNanos);
+         }
+
+      @Override
+      public void processEvent(@NotNull final Event event)
+         {
+         if (sampler.isNextSampled())
+            {
+            final long startNanos = System.nanoTime();
+            eventLogWriter.processEvent(event);
+            stageNanos.addAndGet(Stage.WRITE.ordinal(), (System.nanoTime() - startNanos) * sampler.getWeight());
+            }
+         else
+            {
+            eventLogWriter.processEvent(event);
+            }
+         }
+
+      @Override
+      public void afterProcessingAnyEvents()
+         {
+         final long startNanos = System.nanoTime();
+         eventLogWriter.afterProcessingAnyEvents();
+         stageNanos.addAndGet(Stage.WRITE.ordinal(), System.nanoTime() - startNanos);
+         }
+      }
+
+   /**
+    * Decides which lines (or events) to time: one after a random number of them, between 1 and
+    * <code>2 * SAMPLE_INTERVAL - 1</code>.  Each sample stands for the lines since the previous one, so it's weighted by
+    * their number.
+    */
+   private static final class Sampler
+      {
+      /** The state of a xorshift generator, which must never be zero. */
+      private int random = (int)System.nanoTime() | 1;
+
+      private int numUntilSample = nextInterval();
+      private int interval = numUntilSample;
+      private int weight = 0;
+
+      /** Returns <code>true</code> if the next line (or event) should be timed. */
+      private boolean isNextSampled()
+         {
+         if (--numUntilSample > 0)
+            {
+            return false;
+            }
+         weight = interval;
+         interval = nextInterval();
+         numUntilSample = interval;
+         return true;
+         }
+
+      /** Returns the number of lines (or events) the current sample stands for. */
+      private int getWeight()
+         {
+         return weight;
+         }
+
+      private int nextInterval()
+         {
+         random ^= random << 13;
+         random ^= random >>> 17;
+         random ^= random << 5;
+         return 1 + (random >>> 1) % (2 * SAMPLE_INTERVAL - 1);
+         }
+      }
+   }
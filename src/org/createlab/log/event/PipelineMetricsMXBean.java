@@ -0,0 +1,62 @@
+package org.createlab.log.event;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link PipelineMetrics}, through which JMX clients (such as <code>jconsole</code>) can
+ * watch the progress of a run.  The rates are averages since the start of the run, and the time spent in each stage is
+ * the average per line read, estimated from a sample of the lines.  When the lines are parsed by several threads, their
+ * stages overlap, so their times can add up to more than the time per line of the run as a whole.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public interface PipelineMetricsMXBean
+   {
+   /** Returns the number of milliseconds since the run started. */
+   long getElapsedMillis();
+
+   long getLinesRead();
+
+   /** Returns the number of bytes of the lines read so far, including their line terminators. */
+   long getBytesRead();
+
+   /** Returns the number of bytes there are to read in total, or -1 if that isn't known (e.g. when following a file). */
+   long getTotalBytes();
+
+   /** Returns the number of lines which contained an event. */
+   long getMatchedLines();
+
+   /** Returns the number of lines which didn't contain an event (e.g. requests for static assets). */
+   long getNonMatchedLines();
+
+   double getLinesPerSecond();
+
+   double getBytesPerSecond();
+
+   /** Returns the percentage of the bytes which have been read, or -1 if the total isn't known. */
+   double getPercentDone();
+
+   /** Returns the estimated number of seconds until all the bytes have been read, or -1 if that isn't known. */
+   long getEstimatedSecondsRemaining();
+
+   /** Returns the number of events of each type found so far. */
+   Map<String, Long> getEventCountsByType();
+
+   /** Returns the time spent reading each line (i.e. finding it in the file), in nanoseconds. */
+   double getReadNanosPerLine();
+
+   /** Returns the time spent finding and splitting up the event request in each line, in nanoseconds. */
+   double getParseNanosPerLine();
+
+   /** Returns the time spent creating each line's {@link Event} (if it had one), in nanoseconds. */
+   double getEventBuildNanosPerLine();
+
+   /**
+    * Returns the time spent handing each line's event to the processor(s), in nanoseconds, which includes writing its
+    * output if that's done on the same thread.
+    */
+   double getEventProcessorNanosPerLine();
+
+   /** Returns the time spent writing each line's event to the event log, in nanoseconds. */
+   double getWriteNanosPerLine();
+   }
@@ -0,0 +1,248 @@
+package org.createlab.log.event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * The parameters of an event, kept as the raw bytes of the query string they were parsed from, along with a table of
+ * where each parameter's name and value start and end.  A value is only decoded into a {@link String} when it's asked
+ * for, so the parameters nobody reads (which, for the event log, is all but at most one of them) never are.
+ * </p>
+ * <p>
+ * The query string is copied out of the line, since the readers reuse their buffers, but that's a single small array
+ * (plus the offset table), rather than a map entry and two strings per parameter.  Looking up a parameter compares
+ * names byte by byte, scanning the (few) parameters from last to first, so that, as in a map, the last of several
+ * parameters with the same name wins.  Instances are immutable, so they're safe to share between threads.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class QueryParameters
+   {
+   /** The number of entries in the offset table for each parameter: the start and end of its name, and of its value. */
+   static final int NUM_OFFSETS_PER_PARAMETER = 4;
+
+   /** No parameters at all, which is shared by all the events which only have a type and time. */
+   static final QueryParameters EMPTY = new QueryParameters(new byte[0], new int[0], 0);
+
+   /** The bytes of (the part of) the query string containing the parameters. */
+   @NotNull
+   private final byte[] bytes;
+
+   /**
+    * The start and end (in {@link #bytes}) of each parameter's name, followed by the start and end of its value, or
+    * <code>-1</code> and <code>-1</code> if it has none.  May be longer than needed.
+    */
+   @NotNull
+   private final int[] offsets;
+
+   /** The number of entries of {@link #offsets} which are used. */
+   private final int numOffsets;
+
+   /**
+    * Creates the parameters in the given query string, whose names and values are at the given offsets (see
+    * {@link #NUM_OFFSETS_PER_PARAMETER}), of which only the first <code>numParameters</code> are used.  The arrays are
+    * NOT copied, so the caller must not modify them afterwards.
+    */
+   QueryParameters(@NotNull final byte[] bytes, @NotNull final int[] offsets, final int numParameters)
+      {
+      this.bytes = bytes;
+      this.offsets = offsets;
+      this.numOffsets = numParameters * NUM_OFFSETS_PER_PARAMETER;
+      }
+
+   /** Returns the number of parameters, including any repeated ones. */
+   int size()
+      {
+      return numOffsets / NUM_OFFSETS_PER_PARAMETER;
+      }
+
+   /** Returns the value of the parameter with the given name, or <code>null</code> if it has no value or there is no such parameter. */
+   @Nullable
+   String get(@NotNull final String name)
+      {
+      for (int i = numOffsets - NUM_OFFSETS_PER_PARAMETER; i >= 0; i -= NUM_OFFSETS_PER_PARAMETER)
+         {
+         if (isName(offsets[i], offsets[i + 1], name))
+            {
+            return decode(offsets[i + 2], offsets[i + 3]);
+            }
+         }
+      return null;
+      }
+
+   /** Returns all the parameters as a new (unmodifiable) map, with the same contents and iteration order as the parser's map used to have. */
+   @NotNull
+   Map<String, String> toMap()
+      {
+      final Map<String, String> map = new HashMap<String, String>();
+      for (int i = 0; i < numOffsets; i += NUM_OFFSETS_PER_PARAMETER)
+         {
+         map.put(decode(offsets[i], offsets[i + 1]), decode(offsets[i + 2], offsets[i + 3]));
+         }
+      return Collections.unmodifiableMap(map);
+      }
+
+   /**
+    * Returns the same as <code>toMap().hashCode()</code>, but without creating the map, nor (for ASCII names and values,
+    * whose hash can be computed straight from the bytes) any strings.
+    */
+   int mapHashCode()
+      {
+      // a map's hash code is the sum of its entries' (the name's hash XOR the value's), and the last parameter with a given name wins
+      int hashCode = 0;
+      for (int i = 0; i < numOffsets; i += NUM_OFFSETS_PER_PARAMETER)
+         {
+         if (!isNameRepeatedAfter(i))
+            {
+            hashCode += hashCode(offsets[i], offsets[i + 1]) ^ hashCode(offsets[i + 2], offsets[i + 3]);
+            }
+         }
+      return hashCode;
+      }
+
+   /** Returns a rough estimate of the heap used by these parameters. */
+   long estimateSizeInBytes()
+      {
+      return bytes.length + 4 * offsets.length;
+      }
+
+   /** Writes these parameters in their raw form, so that {@link #read(DataInput)} can read them back without decoding them. */
+   void write(@NotNull final DataOutput output) throws IOException
+      {
+      output.writeInt(bytes.length);
+      output.write(bytes);
+      output.writeInt(size());
+      for (int i = 0; i < numOffsets; i++)
+         {
+         output.writeInt(offsets[i]);
+         }
+      }
+
+   /** Reads parameters written by {@link #write(DataOutput)}. */
+   @NotNull
+   static QueryParameters read(@NotNull final DataInput input) throws IOException
+      {
+      final byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      final int numParameters = input.readInt();
+      final int[] offsets = new int[numParameters * NUM_OFFSETS_PER_PARAMETER];
+      for (int i = 0; i < offsets.length; i++)
+         {
+         offsets[i] = input.readInt();
+         }
+      return new QueryParameters(bytes, offsets, numParameters);
+      }
+
+   /** Returns <code>true</code> if the given range of {@link #bytes} decodes to the given name. */
+   private boolean isName(final int start, final int end, @NotNull final String name)
+      {
+      if (end - start != name.length())
+         {
+         // a name containing non-ASCII characters could still match, since their encodings are longer than they are
+         return !isAscii(name) && name.equals(decode(start, end));
+         }
+      for (int i = start; i < end; i++)
+         {
+         final byte b = bytes[i];
+         if (b < 0)
+            {
+            return name.equals(decode(start, end));
+            }
+         if (b != name.charAt(i - start))
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   /** Returns <code>true</code> if a parameter after the one whose offsets start at index <code>i</code> has the same name. */
+   private boolean isNameRepeatedAfter(final int i)
+      {
+      final int start = offsets[i];
+      final int end = offsets[i + 1];
+      for (int j = i + NUM_OFFSETS_PER_PARAMETER; j < numOffsets; j += NUM_OFFSETS_PER_PARAMETER)
+         {
+         if (isSameBytes(start, end, offsets[j], offsets[j + 1]) ||
+             (!(isAscii(start, end) && isAscii(offsets[j], offsets[j + 1])) && decode(start, end).equals(decode(offsets[j], offsets[j + 1]))))
+            {
+            return true;
+            }
+         }
+      return false;
+      }
+
+   /** Returns the {@link String#hashCode()} of the given range of {@link #bytes} once decoded, or 0 if it's <code>null</code>. */
+   private int hashCode(final int start, final int end)
+      {
+      if (start < 0)
+         {
+         return 0;
+         }
+      int hash = 0;
+      for (int i = start; i < end; i++)
+         {
+         final byte b = bytes[i];
+         if (b < 0)
+            {
+            return decode(start, end).hashCode();
+            }
+         hash = 31 * hash + b;
+         }
+      return hash;
+      }
+
+   private boolean isSameBytes(final int start1, final int end1, final int start2, final int end2)
+      {
+      if (end1 - start1 != end2 - start2)
+         {
+         return false;
+         }
+      for (int i = 0; i < end1 - start1; i++)
+         {
+         if (bytes[start1 + i] != bytes[start2 + i])
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   private boolean isAscii(final int start, final int end)
+      {
+      for (int i = start; i < end; i++)
+         {
+         if (bytes[i] < 0)
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   private static boolean isAscii(@NotNull final String s)
+      {
+      for (int i = 0; i < s.length(); i++)
+         {
+         if (s.charAt(i) >= 0x80)
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   @Nullable
+   private String decode(final int start, final int end)
+      {
+      return (start < 0) ? null : new String(bytes, start, end - start);
+      }
+   }
@@ -0,0 +1,188 @@
+package org.createlab.log.event;
+
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * An {@link EventProcessor} which puts events which are only slightly out of order (according to
+ * {@link Event#compareTo(Event)}) back in order before passing them on to another {@link EventProcessor}.  Apache writes
+ * lines in the order the requests arrive, so the times the kiosks put in their events are only out of order by a few
+ * seconds of network jitter, and there's no need to sort the whole file (as the {@link SortingEventProcessor} does).
+ * </p>
+ * <p>
+ * Events are held in a min-heap until the <i>watermark</i>, which trails the latest event time seen so far by the
+ * maximum lateness, passes their time, and are then passed on, so only the events of the last few seconds are ever in
+ * memory.  An event which arrives after an event which should come after it has already been passed on (i.e. which is
+ * later than the maximum lateness allows for) can't be put in order, so it's dropped, and counted.  Events which
+ * compare as equal are passed on in the order in which they arrived, as when sorting.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class ReorderingEventProcessor implements EventProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(ReorderingEventProcessor.class);
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   @NotNull
+   private final EventProcessor eventProcessor;
+
+   private final long maxLatenessInMillis;
+
+   // The heap, as parallel arrays of the events and the order in which they arrived (to break ties, keeping it stable).
+   @NotNull
+   private Event[] events = new Event[INITIAL_CAPACITY];
+
+   @NotNull
+   private long[] arrivals = new long[INITIAL_CAPACITY];
+
+   private int size = 0;
+   private long numEventsArrived = 0;
+   private long latestTimeInMillis = Long.MIN_VALUE;
+
+   /** The last event passed on, which all events still to come must not compare as less than. */
+   @Nullable
+   private Event lastEventPassedOn = null;
+
+   private long numLateEvents = 0;
+   private long maxLatenessOfLateEventsInMillis = 0;
+   private int maxSize = 0;
+
+   ReorderingEventProcessor(@NotNull final EventProcessor eventProcessor, final long maxLatenessInMillis)
+      {
+      this.eventProcessor = eventProcessor;
+      this.maxLatenessInMillis = maxLatenessInMillis;
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      Arrays.fill(events, 0, size, null);
+      size = 0;
+      numEventsArrived = 0;
+      latestTimeInMillis = Long.MIN_VALUE;
+      lastEventPassedOn = null;
+      numLateEvents = 0;
+      maxLatenessOfLateEventsInMillis = 0;
+      maxSize = 0;
+      eventProcessor.beforeProcessingAnyEvents();
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      if (lastEventPassedOn != null && event.compareTo(lastEventPassedOn) < 0)
+         {
+         numLateEvents++;
+         maxLatenessOfLateEventsInMillis = Math.max(maxLatenessOfLateEventsInMillis, latestTimeInMillis - event.getTimeInMillis());
+         return;
+         }
+
+      add(event);
+      if (event.getTimeInMillis() > latestTimeInMillis)
+         {
+         latestTimeInMillis = event.getTimeInMillis();
+
+         // pass on everything the watermark has passed
+         final long watermarkInMillis = latestTimeInMillis - maxLatenessInMillis;
+         while (size > 0 && events[0].getTimeInMillis() < watermarkInMillis)
+            {
+            passOn(removeFirst());
+            }
+         }
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      LOG.debug("ReorderingEventProcessor.afterProcessingAnyEvents(): passing on the last [" + size + "] events (at most [" + maxSize + "] were held at once)");
+      while (size > 0)
+         {
+         passOn(removeFirst());
+         }
+
+      if (numLateEvents > 0)
+         {
+         System.err.println("WARNING: Dropped [" + numLateEvents + "] events which arrived more than " + maxLatenessInMillis + " ms late (the latest by " + maxLatenessOfLateEventsInMillis + " ms), so they couldn't be put in order.");
+         }
+
+      eventProcessor.afterProcessingAnyEvents();
+      }
+
+   private void passOn(@NotNull final Event event)
+      {
+      lastEventPassedOn = event;
+      eventProcessor.processEvent(event);
+      }
+
+   private void add(@NotNull final Event event)
+      {
+      if (size == events.length)
+         {
+         events = Arrays.copyOf(events, size * 2);
+         arrivals = Arrays.copyOf(arrivals, size * 2);
+         }
+
+      // sift up
+      final long arrival = numEventsArrived++;
+      int i = size++;
+      while (i > 0)
+         {
+         final int parent = (i - 1) >>> 1;
+         if (!isLess(event, arrival, events[parent], arrivals[parent]))
+            {
+            break;
+            }
+         events[i] = events[parent];
+         arrivals[i] = arrivals[parent];
+         i = parent;
+         }
+      events[i] = event;
+      arrivals[i] = arrival;
+      maxSize = Math.max(maxSize, size);
+      }
+
+   @NotNull
+   private Event removeFirst()
+      {
+      final Event first = events[0];
+      final int last = --size;
+      final Event event = events[last];
+      final long arrival = arrivals[last];
+      events[last] = null;
+
+      // sift the last event down from the top
+      if (last > 0)
+         {
+         int i = 0;
+         int child;
+         while ((child = 2 * i + 1) < last)
+            {
+            if (child + 1 < last && isLess(events[child + 1], arrivals[child + 1], events[child], arrivals[child]))
+               {
+               child++;
+               }
+            if (!isLess(events[child], arrivals[child], event, arrival))
+               {
+               break;
+               }
+            events[i] = events[child];
+            arrivals[i] = arrivals[child];
+            i = child;
+            }
+         events[i] = event;
+         arrivals[i] = arrival;
+         }
+      return first;
+      }
+
+   private static boolean isLess(@NotNull final Event event1, final long arrival1, @NotNull final Event event2, final long arrival2)
+      {
+      final int comparison = event1.compareTo(event2);
+      return comparison < 0 || (comparison == 0 && arrival1 < arrival2);
+      }
+   }
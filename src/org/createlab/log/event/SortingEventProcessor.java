@@ -0,0 +1,441 @@
+package org.createlab.log.event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTimeZone;
+
+/**
+ * An {@link EventProcessor} which sorts the events it's given (according to {@link Event#compareTo(Event)}) before
+ * passing them on to another {@link EventProcessor}.  Events are buffered in memory until their estimated size exceeds
+ * the memory budget, at which point the buffer is sorted and spilled to a temporary file as a sorted run.  Once all the
+ * events have been seen, the runs are merged with a heap and handed to the downstream processor in order.  The sort is
+ * stable, so events which compare as equal are passed on in the order in which they arrived.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class SortingEventProcessor implements EventProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(SortingEventProcessor.class);
+
+   public static final long DEFAULT_MEMORY_BUDGET_IN_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+   /** The maximum number of runs merged at once, to keep the number of open files reasonable. */
+   private static final int MAX_MERGE_FAN_IN = 128;
+
+   /** Rough estimate of the heap used by an {@link Event} (and its map of parameters), not counting its strings. */
+   private static final int ESTIMATED_EVENT_OVERHEAD_IN_BYTES = 400;
+
+   /** Rough estimate of the heap used by an {@link Event} whose parameters are raw, not counting its strings or parameters. */
+   private static final int ESTIMATED_RAW_EVENT_OVERHEAD_IN_BYTES = 150;
+
+   /** Rough estimate of the heap used by a {@link String}, not counting its characters. */
+   private static final int ESTIMATED_STRING_OVERHEAD_IN_BYTES = 48;
+
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+   @NotNull
+   private final EventProcessor eventProcessor;
+
+   private final long memoryBudgetInBytes;
+
+   @NotNull
+   private final DateTimeZone timeZone;
+
+   @NotNull
+   private final List<Event> buffer = new ArrayList<Event>();
+
+   private long bufferSizeInBytes = 0;
+
+   @NotNull
+   private final List<Run> runs = new ArrayList<Run>();
+
+   SortingEventProcessor(@NotNull final EventProcessor eventProcessor, final long memoryBudgetInBytes, @NotNull final TimeZone timeZone)
+      {
+      this.eventProcessor = eventProcessor;
+      this.memoryBudgetInBytes = memoryBudgetInBytes;
+      this.timeZone = DateTimeZone.forTimeZone(timeZone);
+      }
+
+   @Override
+   public void beforeProcessingAnyEvents()
+      {
+      buffer.clear();
+      bufferSizeInBytes = 0;
+      runs.clear();
+      eventProcessor.beforeProcessingAnyEvents();
+      }
+
+   @Override
+   public void processEvent(@NotNull final Event event)
+      {
+      buffer.add(event);
+      bufferSizeInBytes += estimateSizeInBytes(event);
+      if (bufferSizeInBytes > memoryBudgetInBytes)
+         {
+         try
+            {
+            spill();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to spill a sorted run of [" + buffer.size() + "] events to disk", e);
+            throw new IllegalStateException("Failed to spill a sorted run of events to disk", e);
+            }
+         }
+      }
+
+   @Override
+   public void afterProcessingAnyEvents()
+      {
+      Collections.sort(buffer);
+      try
+         {
+         if (runs.isEmpty())
+            {
+            // everything fit in memory, so there's nothing to merge
+            for (final Event event : buffer)
+               {
+               eventProcessor.processEvent(event);
+               }
+            }
+         else
+            {
+            LOG.debug("SortingEventProcessor.afterProcessingAnyEvents(): merging [" + runs.size() + "] sorted runs and [" + buffer.size() + "] buffered events");
+
+            // merge groups of runs until there are few enough to merge in one final pass
+            while (runs.size() >= MAX_MERGE_FAN_IN)
+               {
+               final List<Run> group = new ArrayList<Run>(runs.subList(0, MAX_MERGE_FAN_IN));
+               runs.subList(0, MAX_MERGE_FAN_IN).clear();
+               final RunWriter runWriter = new RunWriter();
+               merge(group, runWriter);
+
+               // the merged run replaces the oldest runs, so put it first to keep the sort stable
+               runs.add(0, runWriter.close());
+               }
+
+            final List<Run> finalRuns = new ArrayList<Run>(runs);
+            finalRuns.add(new Run(buffer));
+            merge(finalRuns, eventProcessor);
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to merge the sorted runs", e);
+         throw new IllegalStateException("Failed to merge the sorted runs of events", e);
+         }
+      finally
+         {
+         for (final Run run : runs)
+            {
+            run.delete();
+            }
+         runs.clear();
+         buffer.clear();
+         bufferSizeInBytes = 0;
+         }
+
+      eventProcessor.afterProcessingAnyEvents();
+      }
+
+   private void spill() throws IOException
+      {
+      Collections.sort(buffer);
+      final RunWriter runWriter = new RunWriter();
+      for (final Event event : buffer)
+         {
+         runWriter.processEvent(event);
+         }
+      runs.add(runWriter.close());
+      LOG.debug("SortingEventProcessor.spill(): spilled run [" + runs.size() + "] of [" + buffer.size() + "] events");
+
+      buffer.clear();
+      bufferSizeInBytes = 0;
+      }
+
+   /**
+    * Merges the given runs into the given {@link EventProcessor}, deleting the runs when done.  Ties between runs are
+    * broken by the order of the runs in the list, which keeps the sort stable.
+    */
+   private void merge(@NotNull final List<Run> runsToMerge, @NotNull final EventProcessor destination) throws IOException
+      {
+      final PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(runsToMerge.size());
+      try
+         {
+         for (int i = 0; i < runsToMerge.size(); i++)
+            {
+            final RunCursor cursor = new RunCursor(runsToMerge.get(i), i);
+            if (cursor.advance())
+               {
+               heap.add(cursor);
+               }
+            }
+
+         while (!heap.isEmpty())
+            {
+            final RunCursor cursor = heap.poll();
+            destination.processEvent(cursor.getCurrentEvent());
+            if (cursor.advance())
+               {
+               heap.add(cursor);
+               }
+            }
+         }
+      finally
+         {
+         for (final Run run : runsToMerge)
+            {
+            run.delete();
+            }
+         }
+      }
+
+   private static long estimateSizeInBytes(@NotNull final Event event)
+      {
+      final QueryParameters queryParameters = event.getQueryParameters();
+      if (queryParameters != null)
+         {
+         return ESTIMATED_RAW_EVENT_OVERHEAD_IN_BYTES + estimateSizeInBytes(event.getType()) + queryParameters.estimateSizeInBytes();
+         }
+
+      long size = ESTIMATED_EVENT_OVERHEAD_IN_BYTES + estimateSizeInBytes(event.getType());
+      for (final Map.Entry<String, String> parameter : event.getParameters().entrySet())
+         {
+         size += estimateSizeInBytes(parameter.getKey()) + estimateSizeInBytes(parameter.getValue());
+         }
+      return size;
+      }
+
+   private static long estimateSizeInBytes(@Nullable final String s)
+      {
+      return (s == null) ? 0 : ESTIMATED_STRING_OVERHEAD_IN_BYTES + 2 * s.length();
+      }
+
+   /** Writes a sorted run to a temporary file. */
+   private final class RunWriter implements EventProcessor
+      {
+      @NotNull
+      private final File file;
+
+      @NotNull
+      private final DataOutputStream outputStream;
+
+      private long numEvents = 0;
+
+      private RunWriter() throws IOException
+         {
+         file = File.createTempFile("event-sort-run-", ".tmp");
+         file.deleteOnExit();
+         outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE));
+         }
+
+      @Override
+      public void beforeProcessingAnyEvents()
+         {
+         // nothing to do
+         }
+
+      @Override
+      public void processEvent(@NotNull final Event event)
+         {
+         try
+            {
+            outputStream.writeUTF(event.getType());
+            outputStream.writeLong(event.getTimeInMillis());
+            outputStream.writeLong(event.getDateInMillis());
+
+            // raw parameters are written as they are, so they needn't be decoded just to be sorted
+            final QueryParameters queryParameters = event.getQueryParameters();
+            outputStream.writeBoolean(queryParameters != null);
+            if (queryParameters != null)
+               {
+               queryParameters.write(outputStream);
+               }
+            else
+               {
+               final Map<String, String> parameters = event.getParameters();
+               outputStream.writeInt(parameters.size());
+               for (final Map.Entry<String, String> parameter : parameters.entrySet())
+                  {
+                  outputStream.writeUTF(parameter.getKey());
+                  outputStream.writeBoolean(parameter.getValue() != null);
+                  if (parameter.getValue() != null)
+                     {
+                     outputStream.writeUTF(parameter.getValue());
+                     }
+                  }
+               }
+            outputStream.writeBoolean(event.getKiosk() != null);
+            if (event.getKiosk() != null)
+               {
+               outputStream.writeUTF(event.getKiosk());
+               }
+            numEvents++;
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to write an event to the sorted run file [" + file + "]", e);
+            throw new IllegalStateException("Failed to write to the sorted run file [" + file + "]", e);
+            }
+         }
+
+      @Override
+      public void afterProcessingAnyEvents()
+         {
+         // nothing to do
+         }
+
+      @NotNull
+      private Run close() throws IOException
+         {
+         outputStream.close();
+         return new Run(file, numEvents);
+         }
+      }
+
+   /** A sorted run of events, either in a temporary file or (for the final, unspilled buffer) in memory. */
+   private static final class Run
+      {
+      @Nullable
+      private final File file;
+
+      @Nullable
+      private final List<Event> events;
+
+      private final long numEvents;
+
+      private Run(@NotNull final File file, final long numEvents)
+         {
+         this.file = file;
+         this.events = null;
+         this.numEvents = numEvents;
+         }
+
+      private Run(@NotNull final List<Event> events)
+         {
+         this.file = null;
+         this.events = events;
+         this.numEvents = events.size();
+         }
+
+      private void delete()
+         {
+         if (file != null && file.exists() && !file.delete())
+            {
+            LOG.error("Failed to delete the sorted run file [" + file + "]");
+            }
+         }
+      }
+
+   /** Iterates over the events in a {@link Run}. */
+   private final class RunCursor implements Comparable<RunCursor>
+      {
+      @Nullable
+      private final DataInputStream inputStream;
+
+      @Nullable
+      private final Iterator<Event> iterator;
+
+      private final int runIndex;
+
+      private long numEventsRemaining;
+
+      @Nullable
+      private Event currentEvent = null;
+
+      private RunCursor(@NotNull final Run run, final int runIndex) throws IOException
+         {
+         this.runIndex = runIndex;
+         this.numEventsRemaining = run.numEvents;
+         if (run.file != null)
+            {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), IO_BUFFER_SIZE));
+            iterator = null;
+            }
+         else
+            {
+            inputStream = null;
+            iterator = run.events.iterator();
+            }
+         }
+
+      /** Moves to the next event, returning <code>false</code> (and closing the run) if there are no more. */
+      private boolean advance() throws IOException
+         {
+         if (numEventsRemaining <= 0)
+            {
+            currentEvent = null;
+            if (inputStream != null)
+               {
+               inputStream.close();
+               }
+            return false;
+            }
+
+         numEventsRemaining--;
+         if (iterator != null)
+            {
+            currentEvent = iterator.next();
+            }
+         else
+            {
+            final String type = inputStream.readUTF();
+            final long timeInMillis = inputStream.readLong();
+            final long dateInMillis = inputStream.readLong();
+            if (inputStream.readBoolean())
+               {
+               final QueryParameters queryParameters = QueryParameters.read(inputStream);
+               final String kiosk = inputStream.readBoolean() ? inputStream.readUTF() : null;
+               currentEvent = new Event(type, null, -1, timeInMillis, dateInMillis, queryParameters, timeZone, kiosk);
+               }
+            else
+               {
+               final int numParameters = inputStream.readInt();
+               final Map<String, String> parameters = new HashMap<String, String>();
+               for (int i = 0; i < numParameters; i++)
+                  {
+                  final String key = inputStream.readUTF();
+                  parameters.put(key, inputStream.readBoolean() ? inputStream.readUTF() : null);
+                  }
+               final String kiosk = inputStream.readBoolean() ? inputStream.readUTF() : null;
+               currentEvent = new Event(type, null, -1, timeInMillis, dateInMillis, parameters, timeZone, kiosk);
+               }
+            }
+         return true;
+         }
+
+      @NotNull
+      private Event getCurrentEvent()
+         {
+         return currentEvent;
+         }
+
+      @Override
+      public int compareTo(final RunCursor that)
+         {
+         final int comparison = currentEvent.compareTo(that.currentEvent);
+         if (comparison != 0)
+            {
+            return comparison;
+            }
+         return (runIndex < that.runIndex) ? -1 : ((runIndex == that.runIndex) ? 0 : 1);
+         }
+      }
+   }
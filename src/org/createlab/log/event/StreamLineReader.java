@@ -0,0 +1,124 @@
+package org.createlab.log.event;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Splits an {@link InputStream} (such as a {@link java.util.zip.GZIPInputStream}) into lines at the byte level, without
+ * decoding them into {@link String}s.  Like <code>BufferedReader.readLine()</code>, \n, \r and \r\n are all treated as
+ * line terminators, and the last line need not have one.  Each call to {@link #next()} makes the next line available in
+ * the {@link #getBuffer() buffer}, where it stays valid until the following call.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class StreamLineReader
+   {
+   private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+   @NotNull
+   private final InputStream inputStream;
+
+   @NotNull
+   private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+   /** The unconsumed bytes are those in [position, limit). */
+   private int position = 0;
+   private int limit = 0;
+
+   private boolean isEndOfStream = false;
+   private boolean willSkipLineFeed = false;
+
+   private int lineOffset = 0;
+   private int lineLength = 0;
+
+   StreamLineReader(@NotNull final InputStream inputStream)
+      {
+      this.inputStream = inputStream;
+      }
+
+   /** Moves to the next line, returning <code>false</code> if there are no more. */
+   boolean next() throws IOException
+      {
+      int i = position;
+      while (true)
+         {
+         // skip the \n of a \r\n pair, even if the pair was split across two reads
+         if (willSkipLineFeed && position < limit)
+            {
+            if (buffer[position] == '\n')
+               {
+               position++;
+               i = position;
+               }
+            willSkipLineFeed = false;
+            }
+
+         for (; i < limit; i++)
+            {
+            final byte b = buffer[i];
+            if (b == '\n' || b == '\r')
+               {
+               lineOffset = position;
+               lineLength = i - position;
+               position = i + 1;
+               willSkipLineFeed = (b == '\r');
+               return true;
+               }
+            }
+
+         if (isEndOfStream)
+            {
+            if (position < limit)
+               {
+               // the last line doesn't have a terminator
+               lineOffset = position;
+               lineLength = limit - position;
+               position = limit;
+               return true;
+               }
+            return false;
+            }
+
+         // no terminator in what we have, so read some more, first moving the partial line to the start of the buffer
+         final int numPartialLineBytes = limit - position;
+         if (position > 0)
+            {
+            System.arraycopy(buffer, position, buffer, 0, numPartialLineBytes);
+            position = 0;
+            limit = numPartialLineBytes;
+            }
+         else if (limit == buffer.length)
+            {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+         i = limit;
+         final int numBytesRead = inputStream.read(buffer, limit, buffer.length - limit);
+         if (numBytesRead < 0)
+            {
+            isEndOfStream = true;
+            }
+         else
+            {
+            limit += numBytesRead;
+            }
+         }
+      }
+
+   @NotNull
+   byte[] getBuffer()
+      {
+      return buffer;
+      }
+
+   int getLineOffset()
+      {
+      return lineOffset;
+      }
+
+   int getLineLength()
+      {
+      return lineLength;
+      }
+   }
@@ -1,6 +1,8 @@
 package org.createlab.log.event;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -10,47 +12,298 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
+ * <p>
+ * The event types a producer or stats generator knows about, and the parameters of each.  Each type is also given a
+ * dense int ID (in the order in which the types are registered), so that per-type state can be kept in plain arrays
+ * rather than maps.  IDs are looked up with a perfect hash of the type names: a table at least twice the size of the
+ * number of types, and a multiplier chosen (once, when the types are registered) so that no two names share a slot.  A
+ * lookup is then just a hash of the name, one multiply and shift, and a single comparison to reject unknown names,
+ * either from a String or straight from the bytes of an access log line.  Names with the same hash code (e.g. "Aa" and
+ * "BB") would share a slot whatever the multiplier, so only the first of them gets one, and the rest are looked up in a
+ * map, but only when a name's hash code matches that of its slot.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
 final class SupportedEventTypes
    {
    private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>());
 
+   /** The golden ratio, as a 32-bit fraction, which is a good first multiplier for multiplicative hashing. */
+   private static final int INITIAL_HASH_MULTIPLIER = 0x9E3779B9;
+   private static final int NUM_HASH_MULTIPLIERS_PER_TABLE_SIZE = 10000;
+
    @NotNull
    private final Map<String, List<String>> parameterNamesByEventType = new HashMap<String, List<String>>();
 
+   @NotNull
+   private final Set<String> supportedEventTypeNames = Collections.unmodifiableSet(parameterNamesByEventType.keySet());
+
+   /** The event type names, indexed by ID. */
+   @NotNull
+   private final List<String> names = new ArrayList<String>();
+
+   /** The event types' parameter names, indexed by ID. */
+   @NotNull
+   private final List<List<String>> parameterLists = new ArrayList<List<String>>();
+
+   // The perfect hash table, which is rebuilt whenever a type is registered.  A slot's bytes are null if it's empty, or
+   // its name isn't ASCII (in which case it can only be found by looking up the name as a String).
+   private int hashMultiplier = INITIAL_HASH_MULTIPLIER;
+   private int hashShift = 31;
+   @NotNull
+   private String[] namesBySlot = new String[2];
+   @NotNull
+   private byte[][] nameBytesBySlot = new byte[2][];
+   @NotNull
+   private int[] idsBySlot = new int[2];
+   @NotNull
+   private int[] hashesBySlot = new int[2];
+
+   /** The IDs of the names whose hash code is the same as an earlier name's, or <code>null</code> if there are none. */
+   @Nullable
+   private Map<String, Integer> idsOfCollidingNames = null;
+
    public void registerEventType(@NotNull final String eventType)
       {
-      parameterNamesByEventType.put(eventType, EMPTY_LIST);
+      registerEventType(eventType, EMPTY_LIST);
       }
 
    public void registerEventType(@NotNull final String eventType, @NotNull final List<String> parameterList)
       {
-      parameterNamesByEventType.put(eventType, Collections.unmodifiableList(new ArrayList<String>(parameterList)));
+      final List<String> parameterNames = parameterList.isEmpty() ? EMPTY_LIST : Collections.unmodifiableList(new ArrayList<String>(parameterList));
+      parameterNamesByEventType.put(eventType, parameterNames);
+      final int id = names.indexOf(eventType);
+      if (id >= 0)
+         {
+         parameterLists.set(id, parameterNames);
+         }
+      else
+         {
+         names.add(eventType);
+         parameterLists.add(parameterNames);
+         buildPerfectHash();
+         }
       }
 
    public boolean isEventTypeSupported(@Nullable final String eventType)
       {
-      if (eventType != null)
+      return getId(eventType) >= 0;
+      }
+
+   /** Returns the number of supported event types, which is one more than the largest ID. */
+   int getNumberOfEventTypes()
+      {
+      return names.size();
+      }
+
+   /** Returns the ID of the given event type, or -1 if it isn't supported. */
+   int getId(@Nullable final String eventType)
+      {
+      if (eventType == null)
+         {
+         return -1;
+         }
+      final int hash = eventType.hashCode();
+      final int slot = getSlot(hash);
+      if (eventType.equals(namesBySlot[slot]))
+         {
+         return idsBySlot[slot];
+         }
+      return isCollision(hash, slot) ? getIdOfCollidingName(eventType) : -1;
+      }
+
+   /**
+    * Returns the ID of the event type whose (ASCII) name is in the given range of bytes, or -1 if it isn't supported,
+    * without creating a String.  For ASCII, this hash is the same as {@link String#hashCode()}.
+    */
+   int getId(@NotNull final byte[] bytes, final int start, final int end)
+      {
+      int hash = 0;
+      for (int i = start; i < end; i++)
+         {
+         hash = 31 * hash + (bytes[i] & 0xFF);
+         }
+      final int slot = getSlot(hash);
+      final byte[] nameBytes = nameBytesBySlot[slot];
+      if (nameBytes != null && isEqual(nameBytes, bytes, start, end))
          {
-         return parameterNamesByEventType.containsKey(eventType);
+         return idsBySlot[slot];
          }
-      return false;
+      return isCollision(hash, slot) ? getIdOfCollidingName(new String(bytes, start, end - start, Charset.forName("US-ASCII"))) : -1;
+      }
+
+   private static boolean isEqual(@NotNull final byte[] nameBytes, @NotNull final byte[] bytes, final int start, final int end)
+      {
+      if (nameBytes.length != end - start)
+         {
+         return false;
+         }
+      for (int i = 0; i < nameBytes.length; i++)
+         {
+         if (nameBytes[i] != bytes[start + i])
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   /** Returns <code>true</code> if there are colliding names, and the given hash is that of the name in the given slot. */
+   private boolean isCollision(final int hash, final int slot)
+      {
+      return idsOfCollidingNames != null && namesBySlot[slot] != null && hashesBySlot[slot] == hash;
+      }
+
+   private int getIdOfCollidingName(@NotNull final String eventType)
+      {
+      final Integer id = idsOfCollidingNames.get(eventType);
+      return (id == null) ? -1 : id;
+      }
+
+   /** Returns the name of the event type with the given ID. */
+   @NotNull
+   String getName(final int id)
+      {
+      return names.get(id);
       }
 
    @NotNull
    public List<String> getParameterList(@Nullable final String eventType)
       {
-      if (eventType != null && isEventTypeSupported(eventType))
+      final int id = getId(eventType);
+      return (id >= 0) ? parameterLists.get(id) : EMPTY_LIST;
+      }
+
+   /**
+    * Returns the given event's parameter values as they appear in the param column of the event log.  Currently, that's
+    * simply the value of its first (and only) parameter, or the empty string if its type doesn't have any parameters.
+    */
+   @NotNull
+   public String getParameterValuesAsString(@NotNull final Event event)
+      {
+      final int id = event.getTypeId(this);
+      final List<String> parameterList = (id >= 0) ? parameterLists.get(id) : EMPTY_LIST;
+      if (parameterList.isEmpty())
          {
-         return parameterNamesByEventType.get(eventType);
+         return "";
          }
-      return EMPTY_LIST;
+
+      // We know there's never more than one because we defined them in the constants classes
+      return String.valueOf(event.getParameterValue(parameterList.get(0)));
       }
 
    public Set<String> getSupportedEventTypeNames()
       {
-      return Collections.unmodifiableSet(parameterNamesByEventType.keySet());
+      return supportedEventTypeNames;
+      }
+
+   private int getSlot(final int hash)
+      {
+      return (hash * hashMultiplier) >>> hashShift;
+      }
+
+   /**
+    * Finds a table size and multiplier for which every name gets its own slot, trying larger tables if no multiplier
+    * works.  With so few types, the first table size almost always works within a few tries.
+    */
+   private void buildPerfectHash()
+      {
+      int numBits = 1;
+      while ((1 << numBits) < 2 * names.size())
+         {
+         numBits++;
+         }
+
+      // names with the same hash code get the same slot whatever the multiplier, so only the first of them gets one
+      final Map<Integer, Integer> idsByHash = new HashMap<Integer, Integer>();
+      Map<String, Integer> collidingIds = null;
+      for (int id = 0; id < names.size(); id++)
+         {
+         final int hash = names.get(id).hashCode();
+         if (idsByHash.containsKey(hash))
+            {
+            if (collidingIds == null)
+               {
+               collidingIds = new HashMap<String, Integer>();
+               }
+            collidingIds.put(names.get(id), id);
+            }
+         else
+            {
+            idsByHash.put(hash, id);
+            }
+         }
+      idsOfCollidingNames = collidingIds;
+      final int[] ids = new int[idsByHash.size()];
+      final int[] hashes = new int[idsByHash.size()];
+      int i = 0;
+      for (final Map.Entry<Integer, Integer> entry : idsByHash.entrySet())
+         {
+         hashes[i] = entry.getKey();
+         ids[i] = entry.getValue();
+         i++;
+         }
+
+      while (true)
+         {
+         final boolean[] isSlotUsed = new boolean[1 << numBits];
+         int multiplier = INITIAL_HASH_MULTIPLIER;
+         for (int attempt = 0; attempt < NUM_HASH_MULTIPLIERS_PER_TABLE_SIZE; attempt++)
+            {
+            Arrays.fill(isSlotUsed, false);
+            boolean isPerfect = true;
+            for (int j = 0; j < hashes.length && isPerfect; j++)
+               {
+               final int slot = (hashes[j] * multiplier) >>> (32 - numBits);
+               isPerfect = !isSlotUsed[slot];
+               isSlotUsed[slot] = true;
+               }
+            if (isPerfect)
+               {
+               setPerfectHash(numBits, multiplier, ids, hashes);
+               return;
+               }
+
+            // try the next odd multiplier from a simple linear congruential sequence
+            multiplier = (multiplier * 1664525 + 1013904223) | 1;
+            }
+         numBits++;
+         }
+      }
+
+   private void setPerfectHash(final int numBits, final int multiplier, @NotNull final int[] ids, @NotNull final int[] hashes)
+      {
+      hashMultiplier = multiplier;
+      hashShift = 32 - numBits;
+      namesBySlot = new String[1 << numBits];
+      nameBytesBySlot = new byte[1 << numBits][];
+      idsBySlot = new int[1 << numBits];
+      hashesBySlot = new int[1 << numBits];
+      for (int i = 0; i < ids.length; i++)
+         {
+         final int slot = getSlot(hashes[i]);
+         final String name = names.get(ids[i]);
+         namesBySlot[slot] = name;
+         idsBySlot[slot] = ids[i];
+         hashesBySlot[slot] = hashes[i];
+         if (isAscii(name))
+            {
+            nameBytesBySlot[slot] = name.getBytes(Charset.forName("US-ASCII"));
+            }
+         }
+      }
+
+   private static boolean isAscii(@NotNull final String s)
+      {
+      for (int i = 0; i < s.length(); i++)
+         {
+         if (s.charAt(i) >= 0x80)
+            {
+            return false;
+            }
+         }
+      return true;
       }
 
    @Override